@@ -0,0 +1,111 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+
+package net.indigital.mysql2cass.benchmarks;
+
+import net.indigital.mysql2cass.RowBatch;
+import net.indigital.mysql2cass.TableSchema;
+import net.indigital.mysql2cass.cass.AsyncWriter;
+import net.indigital.mysql2cass.cass.CassWriter;
+import net.indigital.mysql2cass.cass.WriterSession;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Asynchronous write path: 'batches' batches written through AsyncWriter with up to maxInFlight of them
+ * in flight, against a FakeCassandra answering every batch_mutate after latencyMicros.
+ * maxInFlight=1 is the synchronous writer. Score is per group of 'batches' batches.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AsyncWriteBenchmark {
+
+    @Param({"800"})
+    public int elementsAtOnce;
+
+    @Param({"8"})
+    public int batches;
+
+    @Param({"0", "2000"})
+    public long latencyMicros;
+
+    @Param({"1", "4"})
+    public int maxInFlight;
+
+    private RowBatch batch;
+    private AsyncWriter async;
+    private BlockingQueue<WriterSession> sessions;
+
+    @Setup
+    public void setup() {
+        TableSchema schema = BenchmarkData.schema();
+        this.batch = new RowBatch(schema, this.elementsAtOnce);
+        BenchmarkData.fill(this.batch, BenchmarkData.rows(1, this.elementsAtOnce));
+
+        CassWriter cwriter = new CassWriter();
+        this.sessions = new ArrayBlockingQueue<WriterSession>(this.maxInFlight);
+        for (int i = 0; i < this.maxInFlight; i++) {
+            this.sessions.add(cwriter.openSession("string",
+                    new FakeCassandra(this.latencyMicros).createKeyspace("openser"), BenchmarkData.TABLE, schema));
+        }
+        this.async = AsyncWriter.forHost("fake-cassandra", 9160, this.maxInFlight);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        AsyncWriter.shutdownAll(10000);
+    }
+
+    @Benchmark
+    public void writeBatches() throws Exception {
+        List<AsyncWriter.WriteFuture<Integer>> futures = new ArrayList<AsyncWriter.WriteFuture<Integer>>(this.batches);
+        for (int i = 0; i < this.batches; i++) {
+            futures.add(this.async.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    WriterSession session = sessions.take();
+                    try {
+                        return session.writeRows(batch);
+                    } finally {
+                        sessions.put(session);
+                    }
+                }
+            }, null));
+        }
+        for (AsyncWriter.WriteFuture<Integer> future : futures) {
+            future.get();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.benchmarks;
+
+import net.indigital.mysql2cass.RowBatch;
+import net.indigital.mysql2cass.TableSchema;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.*;
+
+/*
+ * Test data shared by the benchmarks: the 'cdrs' mapping of config.example.xml
+ * and deterministic rows for it, so every run measures the same thing.
+ */
+public class BenchmarkData {
+
+    public static final String TABLE = "cdrs";
+    public static final String KEY = "cdr_id";
+
+    /* name, type. Same columns as the cdrs mapping of config.example.xml. */
+    private static final String[][] COLUMNS = {
+            {"cdr_id", "int"},
+            {"src_username", "string"},
+            {"src_domain", "string"},
+            {"dst_username", "string"},
+            {"dst_domain", "string"},
+            {"call_start_time", "datetime"},
+            {"duration", "int"},
+            {"sip_call_id", "string"},
+            {"sip_from_tag", "string"},
+            {"sip_to_tag", "string"},
+            {"src_ip", "string"},
+            {"cost", "int"},
+            {"rated", "int"},
+            {"created", "datetime"},
+    };
+
+    private static final long START_TIME = 1341100800000L;
+
+    public static List<Map<String, String>> maps() {
+        List<Map<String, String>> maps = new ArrayList<Map<String, String>>();
+        for (String[] column : COLUMNS) {
+            Map<String, String> m = new HashMap<String, String>();
+            m.put("name", column[0]);
+            m.put("type", column[1]);
+            m.put("secondaryIndex", "false");
+            maps.add(m);
+        }
+        return maps;
+    }
+
+    public static TableSchema schema() {
+        return new TableSchema(maps());
+    }
+
+    /*
+     * Value of column 'column' of the row with key 'key', as the JDBC driver would return it.
+     * About one in ten values is NULL.
+     */
+    public static Object value(int key, int column) {
+        if ((column > 0) && (((key + column) % 10) == 0)) {
+            return null;
+        }
+        String type = COLUMNS[column][1];
+        if (type.equals("int")) {
+            return (column == 0) ? key : (key * 31 + column) % 3600;
+        } else if (type.equals("datetime")) {
+            return new Timestamp(START_TIME + key * 1000L + column);
+        }
+        switch (column % 4) {
+            case 0: return "sip:" + (600000000 + key) + "@voip.indigital.net";
+            case 1: return "+3491" + (1000000 + key);
+            case 2: return "10.0." + (key % 256) + "." + (column * 7);
+            default: return Long.toHexString(key * 2654435761L) + "-" + column + "@192.168.1.201";
+        }
+    }
+
+    /*
+     * Rows from 'firstKey' on, as Object[] {key, column values...}.
+     */
+    public static Object[][] rows(int firstKey, int rows) {
+        Object[][] values = new Object[rows][];
+        for (int i = 0; i < rows; i++) {
+            int key = firstKey + i;
+            values[i] = new Object[COLUMNS.length + 1];
+            values[i][0] = key;
+            for (int c = 0; c < COLUMNS.length; c++) {
+                values[i][c + 1] = value(key, c);
+            }
+        }
+        return values;
+    }
+
+    /*
+     * Puts 'rows' into 'batch' the way MySqlReader does with the values of a ResultSet.
+     */
+    public static void fill(RowBatch batch, Object[][] rows) {
+        TableSchema schema = batch.schema;
+        for (Object[] values : rows) {
+            int row = batch.addRow((Integer) values[0]);
+            for (int c = 0; c < schema.size(); c++) {
+                Object value = values[c + 1];
+                if (value == null) {
+                    continue;
+                }
+                if (value instanceof Integer) {
+                    batch.setLong(row, c, (Integer) value);
+                } else if (value instanceof Timestamp) {
+                    batch.setLong(row, c, ((Timestamp) value).getTime());
+                } else {
+                    batch.setString(row, c, (String) value);
+                }
+            }
+        }
+    }
+
+    /*
+     * Creates the cdrs table in the in-memory database 'url' and loads 'rows' rows into it.
+     * Returns the open connection, which keeps the database alive.
+     */
+    public static Connection createTable(String url, int rows) throws Exception {
+        Connection connection = DriverManager.getConnection(url);
+        StringBuilder ddl = new StringBuilder("CREATE TABLE `" + TABLE + "` (");
+        StringBuilder insert = new StringBuilder("INSERT INTO `" + TABLE + "` VALUES (");
+        for (int c = 0; c < COLUMNS.length; c++) {
+            String type = COLUMNS[c][1];
+            ddl.append((c > 0) ? ", " : "").append("`").append(COLUMNS[c][0]).append("` ");
+            if (type.equals("int")) {
+                ddl.append("INT");
+            } else if (type.equals("datetime")) {
+                ddl.append("DATETIME");
+            } else {
+                ddl.append("VARCHAR(128)");
+            }
+            insert.append((c > 0) ? ", ?" : "?");
+        }
+        ddl.append(", PRIMARY KEY (`").append(KEY).append("`))");
+        insert.append(")");
+
+        Statement statement = connection.createStatement();
+        statement.executeUpdate(ddl.toString());
+        statement.close();
+
+        PreparedStatement ps = connection.prepareStatement(insert.toString());
+        for (int key = 1; key <= rows; key++) {
+            for (int c = 0; c < COLUMNS.length; c++) {
+                ps.setObject(c + 1, value(key, c));
+            }
+            ps.addBatch();
+            if ((key % 1000) == 0) {
+                ps.executeBatch();
+            }
+        }
+        ps.executeBatch();
+        ps.close();
+        return connection;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.benchmarks;
+
+import net.indigital.mysql2cass.RowBatch;
+import net.indigital.mysql2cass.TableSchema;
+import net.indigital.mysql2cass.cass.CassWriter;
+import net.indigital.mysql2cass.cass.WriterSession;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Encoding alone: the rows of a batch are turned into Hector insertions and dropped,
+ * nothing is serialized nor sent. This is the per-cell work of the write path.
+ * Score is rows encoded per second by one thread (one column per mapped column, about one
+ * in ten is NULL and skipped), for every keysType.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodeBenchmark {
+
+    private static final int ROWS = 200;
+
+    @Param({"string", "int", "long"})
+    public String keysType;
+
+    private RowBatch batch;
+    private WriterSession session;
+
+    @Setup
+    public void setup() {
+        TableSchema schema = BenchmarkData.schema();
+        this.batch = new RowBatch(schema, ROWS);
+        BenchmarkData.fill(this.batch, BenchmarkData.rows(1, ROWS));
+
+        CassWriter cwriter = new CassWriter();
+        /* Never flush, we only want the encoding. */
+        cwriter.setBatchLimits(Integer.MAX_VALUE, Integer.MAX_VALUE);
+        this.session = cwriter.openSession(this.keysType, new FakeCassandra().createKeyspace("openser"),
+                BenchmarkData.TABLE, schema);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void encodeRow() throws Exception {
+        for (int i = 0; i < ROWS; i++) {
+            this.session.addRow(this.batch, i);
+        }
+        this.session.discardBatch();
+    }
+}
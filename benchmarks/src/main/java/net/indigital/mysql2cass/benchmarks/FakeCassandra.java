@@ -0,0 +1,155 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.benchmarks;
+
+import me.prettyprint.cassandra.connection.HConnectionManager;
+import me.prettyprint.cassandra.model.ExecutingKeyspace;
+import me.prettyprint.cassandra.model.ExecutionResult;
+import me.prettyprint.cassandra.model.QuorumAllConsistencyLevelPolicy;
+import me.prettyprint.cassandra.service.CassandraHost;
+import me.prettyprint.cassandra.service.CassandraHostConfigurator;
+import me.prettyprint.cassandra.service.FailoverPolicy;
+import me.prettyprint.cassandra.service.Operation;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.exceptions.HectorException;
+import me.prettyprint.hector.api.exceptions.HectorTransportException;
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TTransport;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * In-process stand-in for a Cassandra cluster.
+ * Keyspaces created here run the Hector operations against a Thrift client that serializes the
+ * requests with the binary protocol, as they would go on the wire, and drops the bytes.
+ * So a write costs everything on our side (mutation building and Thrift serialization) and nothing else,
+ * unless a latency is set: then every batch_mutate also waits that long, as if for the cluster to answer.
+ */
+public class FakeCassandra {
+
+    private static final CassandraHost HOST = new CassandraHost("127.0.0.1", 9160);
+
+    private static HConnectionManager connectionManager;
+
+    private final CountingTransport transport = new CountingTransport();
+    private final Cassandra.Client client = new Cassandra.Client(new TBinaryProtocol(this.transport)) {
+        /* No server, no response to wait for. */
+        public void batch_mutate(Map<ByteBuffer, Map<String, List<Mutation>>> mutationMap,
+                                 ConsistencyLevel consistencyLevel) throws TException {
+            send_batch_mutate(mutationMap, consistencyLevel);
+            calls++;
+            if (latencyMicros > 0) {
+                try {
+                    TimeUnit.MICROSECONDS.sleep(latencyMicros);
+                } catch (InterruptedException e) {
+                    throw new TException(e);
+                }
+            }
+        }
+    };
+
+    private long calls = 0;
+    private long latencyMicros = 0;
+
+    public FakeCassandra() {
+    }
+
+    public FakeCassandra(long latencyMicros) {
+        this.latencyMicros = latencyMicros;
+    }
+
+    /*
+     * Returns a keyspace operator whose operations go to this fake cluster.
+     * Hector keyspaces need a connection manager even if we never use it for the operations,
+     * we give them one without hosts.
+     */
+    public Keyspace createKeyspace(String keyspaceName) {
+        return new ExecutingKeyspace(keyspaceName, connectionManager(), new QuorumAllConsistencyLevelPolicy(),
+                FailoverPolicy.FAIL_FAST) {
+            public <T> ExecutionResult<T> doExecuteOperation(Operation<T> op) throws HectorException {
+                op.applyConnectionParams(this.keyspace, this.consistencyLevelPolicy, this.failoverPolicy,
+                        this.credentials);
+                try {
+                    op.executeAndSetResult(client, HOST);
+                } catch (Exception e) {
+                    throw new HectorTransportException(e);
+                }
+                return op.getExecutionResult();
+            }
+        };
+    }
+
+    /* batch_mutate calls received. */
+    public long getCalls() {
+        return this.calls;
+    }
+
+    /* Bytes that would have been sent to Cassandra. */
+    public long getBytes() {
+        return this.transport.bytes;
+    }
+
+    private static synchronized HConnectionManager connectionManager() {
+        if (connectionManager == null) {
+            CassandraHostConfigurator configurator = new CassandraHostConfigurator("127.0.0.1:1");
+            configurator.setRetryDownedHosts(false);
+            connectionManager = new HConnectionManager("mysql2cass_benchmarks", configurator);
+        }
+        return connectionManager;
+    }
+
+    /*
+     * Write-only transport that just counts the bytes.
+     */
+    private static class CountingTransport extends TTransport {
+        private long bytes = 0;
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void open() {
+        }
+
+        public void close() {
+        }
+
+        public int read(byte[] buf, int off, int len) {
+            throw new UnsupportedOperationException("Nothing to read from a fake cluster.");
+        }
+
+        public void write(byte[] buf, int off, int len) {
+            this.bytes += len;
+        }
+    }
+}
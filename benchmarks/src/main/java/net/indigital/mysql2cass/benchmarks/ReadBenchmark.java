@@ -0,0 +1,86 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.benchmarks;
+
+import net.indigital.mysql2cass.RowBatch;
+import net.indigital.mysql2cass.mysql.MySqlConnectionPool;
+import net.indigital.mysql2cass.mysql.MySqlReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Read path: one MySqlReader.readDataBase() call, i.e. the keyset query plus the extraction of
+ * every row of the ResultSet into a RowBatch. H2 in MySQL mode stands in for MySQL, so the
+ * numbers include an in-memory query but no network.
+ * Score is per page of elementsAtOnce rows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmark {
+
+    private static final int TABLE_ROWS = 20000;
+
+    @Param({"40", "800", "5000"})
+    public int elementsAtOnce;
+
+    private Connection keepAlive;
+    private MySqlReader reader;
+    private RowBatch batch;
+
+    @Setup
+    public void setup() throws Exception {
+        String url = "jdbc:h2:mem:read" + this.elementsAtOnce + ";MODE=MySQL";
+        this.keepAlive = BenchmarkData.createTable(url, TABLE_ROWS);
+        this.reader = new MySqlReader(MySqlConnectionPool.forUrl(url, 1));
+        this.batch = new RowBatch(BenchmarkData.schema(), this.elementsAtOnce);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.keepAlive.close();
+    }
+
+    @Benchmark
+    public RowBatch readDataBase() throws Exception {
+        /* Always the same page, from the middle of the table. */
+        this.reader.lastNumericKey = TABLE_ROWS / 2;
+        this.batch.reset();
+        this.reader.connect();
+        this.reader.readDataBase(BenchmarkData.TABLE, BenchmarkData.KEY, this.elementsAtOnce, this.batch);
+        this.reader.close();
+        if (this.batch.size() != this.elementsAtOnce) {
+            throw new IllegalStateException("Read " + this.batch.size() + " rows, expected " + this.elementsAtOnce);
+        }
+        return this.batch;
+    }
+}
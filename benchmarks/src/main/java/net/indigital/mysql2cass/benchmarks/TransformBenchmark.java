@@ -0,0 +1,65 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.benchmarks;
+
+import net.indigital.mysql2cass.RowBatch;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Transform path: turning the values of a page of MySQL rows into a RowBatch
+ * (string columns to UTF-8, datetimes to epoch millis), without any database.
+ * Score is per page of elementsAtOnce rows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransformBenchmark {
+
+    @Param({"40", "800", "5000"})
+    public int elementsAtOnce;
+
+    private Object[][] rows;
+    private RowBatch batch;
+
+    @Setup
+    public void setup() {
+        this.rows = BenchmarkData.rows(1, this.elementsAtOnce);
+        this.batch = new RowBatch(BenchmarkData.schema(), this.elementsAtOnce);
+    }
+
+    @Benchmark
+    public RowBatch fill() {
+        this.batch.reset();
+        BenchmarkData.fill(this.batch, this.rows);
+        return this.batch;
+    }
+}
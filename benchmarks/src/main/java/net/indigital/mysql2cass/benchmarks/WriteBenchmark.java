@@ -0,0 +1,115 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.benchmarks;
+
+import net.indigital.mysql2cass.RowBatch;
+import net.indigital.mysql2cass.TableSchema;
+import net.indigital.mysql2cass.cass.CassWriter;
+import net.indigital.mysql2cass.cass.WriterSession;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Write path: building the Hector mutations of a batch and serializing them to Thrift,
+ * against FakeCassandra. Same partitioning as WriterStage when writerThreads > 1.
+ * Score is per batch of elementsAtOnce rows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WriteBenchmark {
+
+    @Param({"800"})
+    public int elementsAtOnce;
+
+    @Param({"50", "200", "1000"})
+    public int batchRows;
+
+    @Param({"1", "4"})
+    public int writerThreads;
+
+    private RowBatch batch;
+    private WriterSession[] sessions;
+    private ExecutorService workers;
+
+    @Setup
+    public void setup() {
+        TableSchema schema = BenchmarkData.schema();
+        this.batch = new RowBatch(schema, this.elementsAtOnce);
+        BenchmarkData.fill(this.batch, BenchmarkData.rows(1, this.elementsAtOnce));
+
+        CassWriter cwriter = new CassWriter();
+        cwriter.setBatchLimits(this.batchRows, CassWriter.DEFAULT_BATCH_BYTES);
+        this.sessions = new WriterSession[this.writerThreads];
+        for (int i = 0; i < this.sessions.length; i++) {
+            /* The fake Thrift client is not thread safe, one per writer like the real connections. */
+            this.sessions[i] = cwriter.openSession("string", new FakeCassandra().createKeyspace("openser"),
+                    BenchmarkData.TABLE, schema);
+        }
+        if (this.writerThreads > 1) {
+            this.workers = Executors.newFixedThreadPool(this.writerThreads);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (this.workers != null) {
+            this.workers.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public void writeRows() throws Exception {
+        if (this.workers == null) {
+            this.sessions[0].writeRows(this.batch);
+            return;
+        }
+        final int n = this.sessions.length;
+        List<Future<Integer>> futures = new ArrayList<Future<Integer>>(n);
+        for (int i = 0; i < n; i++) {
+            final WriterSession session = this.sessions[i];
+            final int partition = i;
+            futures.add(this.workers.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    return session.writeRows(batch, partition, n);
+                }
+            }));
+        }
+        for (Future<Integer> future : futures) {
+            future.get();
+        }
+    }
+}
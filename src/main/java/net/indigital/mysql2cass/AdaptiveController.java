@@ -0,0 +1,109 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+
+package net.indigital.mysql2cass;
+
+import org.apache.log4j.Logger;
+
+/*
+ * Decides, for an adaptive Mapping, how long to wait before the next read and how many rows to read.
+ *  - Polling: a full page means there is more to read, so the next read is right away. A page with
+ *    some rows means we just caught up, so we wait minRefresh. Empty pages double the wait, up to refresh.
+ *  - Page size: moved toward the number of rows Cassandra writes in targetWriteTime, given the time
+ *    per row of the last write, within [minElementsAtOnce, maxElementsAtOnce].
+ * Mappings that are not adaptive always wait refresh and read elementsAtOnce rows.
+ *
+ * The reader asks for the wait and the page size, the writer reports its times, from another thread.
+ */
+public class AdaptiveController {
+
+    private static Logger Log = Logger.getLogger(AdaptiveController.class);
+
+    private Boolean adaptive;
+    private long minRefresh;
+    private long refresh;
+    private int minElementsAtOnce;
+    private int maxElementsAtOnce;
+    private long targetWriteMicros;
+
+    private volatile long delay;
+    private volatile int elementsAtOnce;
+
+    public AdaptiveController(Boolean adaptive, int minRefresh, int refresh,
+                              int minElementsAtOnce, int elementsAtOnce, int maxElementsAtOnce, int targetWriteTime) {
+        this.adaptive = adaptive;
+        this.minRefresh = minRefresh;
+        this.refresh = refresh;
+        this.minElementsAtOnce = minElementsAtOnce;
+        this.maxElementsAtOnce = maxElementsAtOnce;
+        this.targetWriteMicros = targetWriteTime * 1000L;
+        this.delay = refresh;
+        this.elementsAtOnce = elementsAtOnce;
+    }
+
+    /* Rows to ask for in the next read. */
+    public int getElementsAtOnce() {
+        return this.elementsAtOnce;
+    }
+
+    /*
+     * Called after a read that got 'rows' rows out of the 'asked' ones. Returns how long to wait
+     * before the next read [ms].
+     */
+    public long nextDelay(int rows, int asked) {
+        if (!this.adaptive) {
+            return this.refresh;
+        }
+        if (rows >= asked) {
+            this.delay = 0;
+        } else if (rows > 0) {
+            this.delay = this.minRefresh;
+        } else {
+            /* From 1 ms at least, a minRefresh of 0 would keep polling an idle table with no wait at all. */
+            this.delay = Math.min(this.refresh, Math.max(this.minRefresh, Math.max(1, this.delay) * 2));
+        }
+        return this.delay;
+    }
+
+    /*
+     * Called after writing 'rows' rows to Cassandra in 'micros'.
+     */
+    public void written(int rows, long micros) {
+        if ((!this.adaptive) || (this.minElementsAtOnce == this.maxElementsAtOnce) || (rows == 0)) {
+            return;
+        }
+        long microsPerRow = Math.max(1, micros / rows);
+        long ideal = this.targetWriteMicros / microsPerRow;
+        /* Halfway there every time, so one slow write doesn't swing it. */
+        long next = (this.elementsAtOnce + ideal) / 2;
+        next = Math.max(this.minElementsAtOnce, Math.min(this.maxElementsAtOnce, next));
+        if (next != this.elementsAtOnce) {
+            Log.debug("elementsAtOnce: " + this.elementsAtOnce + " -> " + next + " (" + microsPerRow + "us/row)");
+            this.elementsAtOnce = (int) next;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+
+package net.indigital.mysql2cass;
+
+import net.indigital.mysql2cass.cass.CassWriter;
+import net.indigital.mysql2cass.cass.WriterSession;
+import net.indigital.mysql2cass.metrics.MappingMetrics;
+import net.indigital.mysql2cass.mysql.MySqlConnectionPool;
+import net.indigital.mysql2cass.mysql.MySqlReader;
+import net.indigital.mysql2cass.retry.RetriesExhaustedException;
+import net.indigital.mysql2cass.spool.DeadLetter;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Initial copy of a table split by key ranges, used when the mapping has more than one backfillThreads.
+ * The keys between MIN and MAX of numericKeyStr are split in backfillThreads contiguous chunks, and
+ * every chunk is copied by its own reader/writer pair: while a page of the chunk is written to
+ * Cassandra the next one is being read from MySQL.
+ *
+ * The progress of every chunk is saved as it goes, so an interrupted copy goes on from there.
+ * Once every chunk is done the mapping is committed up to the max key, and the incremental reads
+ * (or the binlog) go on from it.
+ *
+ * Chunks split the keys, not the rows, so they only take the same time if the keys are evenly used.
+ * A stopping mapping stops the chunks after their current page, and the copy goes on from there next time.
+ */
+public class Backfill {
+
+    private static Logger Log = Logger.getLogger(Backfill.class);
+
+    /* Saved under the backfill id once the copy is complete. */
+    private static final String DONE = "done";
+
+    private Mapping mapping;
+    private MySqlConnectionPool pool;
+    private CassWriter cwriter;
+    private String keyspace;
+    private String columnFamily;
+    private MappingMetrics metrics;
+
+    public Backfill(Mapping mapping, MySqlConnectionPool pool, CassWriter cwriter,
+                    String keyspace, String columnFamily) {
+        this.mapping = mapping;
+        this.pool = pool;
+        this.cwriter = cwriter;
+        this.keyspace = keyspace;
+        this.columnFamily = columnFamily;
+        this.metrics = mapping.metrics;
+    }
+
+    /*
+     * The plan of the copy is saved under this id, and the progress of chunk i under this id + i.
+     */
+    public static String checkpointId(Mapping mapping) {
+        return mapping.getCheckpointId() + "#backfill";
+    }
+
+    /*
+     * Copies the table, or what is left of it, and returns once it is all in Cassandra or the mapping is stopping.
+     */
+    public void run() throws Exception {
+        /* Without resume, everything is copied again. */
+        String plan = this.mapping.resume ? load(checkpointId(this.mapping)) : null;
+        if (DONE.equals(plan)) {
+            Log.info("The backfill of mapping:" + this.mapping.getID() + " is already done.");
+            return;
+        }
+        if ((plan == null) && (this.mapping.committedNumericKey >= 0)) {
+            /* Resuming an incremental copy, nothing to backfill. */
+            return;
+        }
+
+        Chunk[] chunks;
+        if (plan != null) {
+            chunks = resumeChunks(plan);
+        } else {
+            long[] range = readKeyRange();
+            if (this.mapping.stopping) {
+                return;
+            }
+            if (range == null) {
+                Log.info("Table:" + this.mapping.table + " is empty, nothing to backfill.");
+                return;
+            }
+            chunks = splitRange(range[0], range[1], this.mapping.backfillThreads);
+            /* The chunks first, a saved plan always has them. */
+            for (Chunk chunk : chunks) {
+                save(checkpointId(this.mapping) + chunk.index, chunk.after + "/" + chunk.upTo);
+            }
+            save(checkpointId(this.mapping), chunks.length + "/" + range[1]);
+        }
+        long maxKey = chunks[chunks.length - 1].upTo;
+
+        long startTime = System.nanoTime();
+        Log.info("Backfilling table:" + this.mapping.table + " up to numericKey:" + maxKey + " in " +
+                chunks.length + " chunks.");
+        ExecutorService readers = Executors.newFixedThreadPool(chunks.length);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(chunks.length);
+            for (Chunk chunk : chunks) {
+                futures.add(readers.submit(chunk));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            readers.shutdown();
+        }
+        if (this.mapping.stopping) {
+            Log.info("Stopped the backfill of table:" + this.mapping.table + ", it goes on from the saved chunks.");
+            return;
+        }
+
+        /* Handing off to the incremental copy. */
+        this.mapping.committedNumericKey = maxKey;
+        this.metrics.committedNumericKey = maxKey;
+        save(this.mapping.getCheckpointId(), String.valueOf(maxKey));
+        save(checkpointId(this.mapping), DONE);
+        Log.info("Backfilled table:" + this.mapping.table + " up to numericKey:" + maxKey + " in " +
+                ((System.nanoTime() - startTime) / 1000000) + "ms.");
+    }
+
+    private Chunk[] splitRange(long minKey, long maxKey, int count) {
+        long span = maxKey - minKey + 1;
+        count = (int) Math.max(1, Math.min(count, span));
+        long size = (span + count - 1) / count;
+        List<Chunk> chunks = new ArrayList<Chunk>(count);
+        long after = minKey - 1;
+        for (int i = 0; after < maxKey; i++) {
+            long upTo = Math.min(maxKey, after + size);
+            chunks.add(new Chunk(i, after, upTo));
+            after = upTo;
+        }
+        return chunks.toArray(new Chunk[chunks.size()]);
+    }
+
+    /*
+     * Chunks are saved as "<last key written>/<last key of the chunk>".
+     */
+    private Chunk[] resumeChunks(String plan) throws Exception {
+        int count = Integer.parseInt(plan.substring(0, plan.indexOf('/')));
+        Chunk[] chunks = new Chunk[count];
+        for (int i = 0; i < count; i++) {
+            String progress = load(checkpointId(this.mapping) + i);
+            if (progress == null) {
+                throw new RuntimeException("The progress of the backfill chunk " + i + " of mapping:" +
+                        this.mapping.getID() + " is missing.");
+            }
+            int slash = progress.indexOf('/');
+            chunks[i] = new Chunk(i, Long.parseLong(progress.substring(0, slash)),
+                    Long.parseLong(progress.substring(slash + 1)));
+            Log.info("Resuming the backfill chunk " + i + " of mapping:" + this.mapping.getID() +
+                    " after numericKey:" + chunks[i].after + " up to " + chunks[i].upTo);
+        }
+        return chunks;
+    }
+
+    /*
+     * MIN and MAX of the keys, null if the table is empty (or the mapping is stopping).
+     */
+    private long[] readKeyRange() throws Exception {
+        MySqlReader mreader = new MySqlReader(this.pool);
+        while (!this.mapping.stopping) {
+            try {
+                mreader.connect();
+                long[] range = mreader.readKeyRange(this.mapping.table, this.mapping.numericKeyStr);
+                mreader.close();
+                return range;
+            } catch (Exception e) {
+                Log.error(e.getMessage(),e);
+                this.metrics.readRetries.incrementAndGet();
+                Log.warn("Error while trying to read the keys of mysql host:" + this.mapping.mysqlHost +
+                        ", port:" + this.mapping.mysqlPort + ", table:" + this.mapping.table);
+                Log.warn("Not a problem! Retrying the connection within " +
+                        this.mapping.pauseMySQLReconnections + " ms...");
+                Thread.sleep(this.mapping.pauseMySQLReconnections);
+            }
+        }
+        return null;
+    }
+
+    private String load(String id) throws Exception {
+        if (this.mapping.checkpoints == null) {
+            return null;
+        }
+        return this.mapping.checkpoints.load(id);
+    }
+
+    /* As with the incremental copy, a checkpoint that can't be saved only means copying again. */
+    private void save(String id, String value) {
+        if (this.mapping.checkpoints == null) {
+            return;
+        }
+        try {
+            this.mapping.checkpoints.save(id, value);
+        } catch (Exception e) {
+            Log.error("Could not save the checkpoint:" + id + ", value:" + value);
+            Log.error(e.getMessage(),e);
+        }
+    }
+
+    /*
+     * Copies the keys in (after, upTo]. The reader runs in the calling thread and the writer in its own
+     * one, on two batches used in turn.
+     */
+    private class Chunk implements Callable<Void> {
+        private int index;
+        private long after;
+        private long upTo;
+
+        public Chunk(int index, long after, long upTo) {
+            this.index = index;
+            this.after = after;
+            this.upTo = upTo;
+        }
+
+        public Void call() throws Exception {
+            final String id = checkpointId(mapping) + this.index;
+            final WriterSession session = cwriter.openSession(mapping.keysType, keyspace, columnFamily, mapping.schema,
+                    mapping.backfillConsistency);
+            MySqlReader mreader = new MySqlReader(pool);
+            mreader.setDeadLetters(mapping, mapping.getID());
+            mreader.setDateTimeConverter(mapping.dates);
+            mreader.lastNumericKey = this.after;
+
+            RowBatch[] batches = {new RowBatch(mapping.schema, mapping.elementsAtOnce),
+                                  new RowBatch(mapping.schema, mapping.elementsAtOnce)};
+            ExecutorService writer = Executors.newSingleThreadExecutor();
+            Future<?> written = null;
+            try {
+                for (int i = 0; ; i++) {
+                    final RowBatch batch = batches[i & 1];
+                    int rows = read(mreader, batch);
+                    /* The other batch has to be written before this one, keys are committed in order. */
+                    if (written != null) {
+                        written.get();
+                    }
+                    if (mapping.stopping) {
+                        Log.info("Backfill chunk " + this.index + " of table:" + mapping.table + " stopped.");
+                        return null;
+                    }
+                    if (rows == 0) {
+                        break;
+                    }
+                    if (batch.size() == 0) {
+                        /* Every row of the page was left out. */
+                        continue;
+                    }
+                    written = writer.submit(new Callable<Void>() {
+                        public Void call() throws Exception {
+                            if (write(session, batch)) {
+                                save(id, batch.getLastKey() + "/" + upTo);
+                            }
+                            return null;
+                        }
+                    });
+                }
+            } finally {
+                writer.shutdown();
+            }
+            Log.info("Backfill chunk " + this.index + " of table:" + mapping.table + " done up to numericKey:" +
+                    this.upTo);
+            return null;
+        }
+
+        /*
+         * Returns the number of rows read, including the ones left out. Nothing is read once the mapping is stopping.
+         */
+        private int read(MySqlReader mreader, RowBatch batch) throws Exception {
+            long startTime = System.nanoTime();
+            int rows = 0;
+            Boolean mysqlSuccess = Boolean.FALSE;
+            while ((!mysqlSuccess) && (!mapping.stopping)) {
+                try {
+                    batch.reset();
+                    mreader.connect();
+                    rows = mreader.readDataBase(mapping.table, mapping.numericKeyStr, mapping.elementsAtOnce,
+                            this.upTo, batch);
+                    mreader.close();
+                    mysqlSuccess = Boolean.TRUE;
+                } catch (Exception e) {
+                    Log.error(e.getMessage(),e);
+                    metrics.readRetries.incrementAndGet();
+                    Log.warn("Error while trying to connect/read to/from mysql host:" + mapping.mysqlHost +
+                            ", port:" + mapping.mysqlPort + ", table:" + mapping.table +
+                            ", backfill chunk:" + this.index);
+                    Log.warn("Not a problem! Retrying the connection within " +
+                            mapping.pauseMySQLReconnections + " ms...");
+                    Thread.sleep(mapping.pauseMySQLReconnections);
+                }
+            }
+            metrics.mysqlFetchTime.record((System.nanoTime() - startTime) / 1000);
+            batch.readAt = System.nanoTime();
+            metrics.rowsRead.mark(batch.size());
+            metrics.bytesRead.mark(batch.dataBytes());
+            return rows;
+        }
+
+        /*
+         * Same retries as the WriterStage. A page the retry policy gives up on goes to the dead letters.
+         * Returns false if the mapping stopped while retrying the page, so its progress isn't saved.
+         */
+        private boolean write(WriterSession session, RowBatch batch) throws Exception {
+            long startTime = System.nanoTime();
+            Boolean cassSuccess = Boolean.FALSE;
+            int attempts = 0;
+            while (!cassSuccess) {
+                boolean probe = mapping.breaker.acquire();
+                try {
+                    session.writeRows(batch);
+                    mapping.breaker.success();
+                    cassSuccess = Boolean.TRUE;
+                } catch (Exception e) {
+                    mapping.breaker.failure(probe);
+                    Log.error(e.getMessage(),e);
+                    Log.warn("Error while trying to write to cassandra host:" + mapping.cassHost +
+                            ", port:" + mapping.cassPort + ", keyspace:" + keyspace +
+                            ", column_family:" + columnFamily + ", backfill chunk:" + this.index);
+                    if (!mapping.cassRetry.canRetry(++attempts)) {
+                        for (int i = 0; i < batch.size(); i++) {
+                            mapping.deadLetter(DeadLetter.of(mapping.getID(), e.getMessage(), batch, i));
+                        }
+                        Log.error("Gave up a batch of " + batch.size() + " elements, keys:" + batch.getKey(0) + "-" +
+                                batch.getLastKey() + ", backfill chunk:" + this.index,
+                                new RetriesExhaustedException("Gave up after " + attempts + " attempts", e));
+                        return true;
+                    }
+                    if (mapping.stopping) {
+                        return false;
+                    }
+                    metrics.writeRetries.incrementAndGet();
+                    long delay = mapping.cassRetry.delay(attempts);
+                    Log.warn("Not a problem! Retrying the connection within " + delay + " ms...");
+                    Thread.sleep(delay);
+                }
+            }
+            long now = System.nanoTime();
+            metrics.cassandraWriteTime.record((now - startTime) / 1000);
+            metrics.rowLatency.record((now - batch.readAt) / 1000, batch.size());
+            metrics.rowsWritten.mark(batch.size());
+            metrics.bytesWritten.mark(batch.dataBytes());
+            return true;
+        }
+    }
+}
@@ -0,0 +1,731 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+
+package net.indigital.mysql2cass;
+
+import com.github.shyiko.mysql.binlog.BinaryLogClient;
+import com.github.shyiko.mysql.binlog.BinaryLogFileReader;
+import com.github.shyiko.mysql.binlog.event.*;
+import com.github.shyiko.mysql.binlog.event.deserialization.EventDeserializer;
+import net.indigital.mysql2cass.metrics.MappingMetrics;
+import net.indigital.mysql2cass.mysql.MySqlConnectionPool;
+import net.indigital.mysql2cass.mysql.MySqlReader;
+import net.indigital.mysql2cass.spool.DeadLetter;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Producer stage of a Mapping in binlog mode, used instead of the ReaderStage.
+ * Follows the binary log of the MySQL server as a replica would, so updates and deletes reach
+ * Cassandra too, not only the new rows.
+ *
+ * The first time, the current binlog position is taken and the table is copied with the keyset
+ * reads of the ReaderStage. The binlog is then followed from that position: changes made during
+ * the copy are applied again, which is harmless since the last change of a row always wins.
+ *
+ * Batches are queued to the WriterStage with the position of the last transaction they hold
+ * (RowBatch.checkpoint), which is saved once they are written. A batch is queued when it is full or
+ * when there are no more events waiting, so under load the transactions are grouped.
+ * Transactions are never split across batches unless they don't fit in one.
+ *
+ * With binlogFile set, that binlog file is replayed instead and the stage ends with it.
+ */
+public class BinlogStage implements Runnable {
+
+    private static Logger Log = Logger.getLogger(BinlogStage.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /* Checkpoints of a binlog still being copied with the keyset reads. */
+    private static final String SNAPSHOT = "snapshot:";
+    /* Binlog events waiting to be handled. */
+    private static final int EVENTS_QUEUE_SIZE = 1024;
+    private static final long CONNECT_TIMEOUT = 30000;
+    /* Queued by the binlog client thread when the connection is lost. */
+    private static final Event DISCONNECTED = new Event(null, null);
+
+    private Mapping mapping;
+    private BlockingQueue<RowBatch> queue;
+    private BlockingQueue<RowBatch> free;
+    private MySqlConnectionPool pool;
+    private MySqlReader mreader;
+    private MappingMetrics metrics;
+    /* Parallel first copy, null to copy with the keyset reads only. */
+    private Backfill backfill;
+    private WriterStage writer;
+
+    /* Last transaction seen. */
+    private String binlogFile;
+    private long commitPosition;
+    /* Last transaction queued to the writer, where we go on from if something fails. */
+    private String restartFile;
+    private long restartPosition;
+
+    /* Id of the table in the current binlog, -1 if it hasn't been seen yet. */
+    private long tableId = -1;
+    /* Position in the MySQL table of the key and of every mapped column. */
+    private int keyPosition;
+    private int[] positions;
+    private boolean[] localTime;
+    /* Size in bytes of the key and of every mapped column if they are UNSIGNED integers, 0 otherwise. */
+    private int keyUnsigned;
+    private int[] unsigned;
+    private Map<String, Integer> columnPositions = null;
+    private Set<String> unsignedColumns = null;
+
+    private RowBatch batch = null;
+    private BlockingQueue<Event> events = null;
+    private volatile Boolean stopping = Boolean.FALSE;
+
+    public BinlogStage(Mapping mapping, BlockingQueue<RowBatch> queue, BlockingQueue<RowBatch> free,
+                       MySqlConnectionPool pool, Backfill backfill, WriterStage writer) {
+        this.mapping = mapping;
+        this.writer = writer;
+        this.backfill = backfill;
+        this.queue = queue;
+        this.free = free;
+        this.pool = pool;
+        this.mreader = new MySqlReader(pool);
+        this.mreader.setDeadLetters(mapping, mapping.getID());
+        this.metrics = mapping.metrics;
+        this.positions = new int[mapping.schema.size()];
+        this.localTime = new boolean[mapping.schema.size()];
+        this.unsigned = new int[mapping.schema.size()];
+    }
+
+    /*
+     * The binlog position of a mapping is saved next to its key, under this id.
+     */
+    public static String checkpointId(Mapping mapping) {
+        return mapping.getCheckpointId() + "#binlog";
+    }
+
+    public void run() {
+        try {
+            if (this.mapping.binlogFile != null) {
+                replayFile(new File(this.mapping.binlogFile));
+                return;
+            }
+            start();
+        } catch (Exception e) {
+            Log.error(e.getMessage(),e);
+            return;
+        }
+        /* Run this thread until the mapping is stopped. */
+        while (!this.mapping.stopping) {
+            try {
+                follow();
+            } catch (Exception e) {
+                Log.error(e.getMessage(),e);
+            }
+            if (this.mapping.stopping) {
+                break;
+            }
+            this.metrics.readRetries.incrementAndGet();
+            Log.warn("Lost the binlog of mysql host:" + this.mapping.mysqlHost + ", port:" + this.mapping.mysqlPort +
+                    ", table:" + this.mapping.table + ", going on from " + this.restartFile + "/" + this.restartPosition);
+            Log.warn("Not a problem! Retrying the connection within " +
+                    this.mapping.pauseMySQLReconnections + " ms...");
+            try {
+                Thread.sleep(this.mapping.pauseMySQLReconnections);
+            } catch (Exception e) {
+                Log.error(e.getMessage(),e);
+            }
+        }
+    }
+
+    /*
+     * Finds where to follow the binlog from, copying the table first if it hasn't been copied yet.
+     */
+    private void start() throws Exception {
+        String checkpoint = null;
+        if (this.mapping.resume) {
+            checkpoint = this.mapping.checkpoints.load(checkpointId(this.mapping));
+        }
+        if ((checkpoint != null) && (!checkpoint.startsWith(SNAPSHOT))) {
+            setRestart(checkpoint);
+            Log.info("Resuming the binlog of mapping:" + this.mapping.getID() + " from " + checkpoint);
+            return;
+        }
+
+        if (checkpoint != null) {
+            /* The copy was interrupted, it goes on from the committed key. */
+            setRestart(checkpoint.substring(SNAPSHOT.length()));
+        } else {
+            Boolean mysqlSuccess = Boolean.FALSE;
+            while (!mysqlSuccess) {
+                try {
+                    this.mreader.connect();
+                    String[] status = this.mreader.readMasterStatus();
+                    this.mreader.close();
+                    setRestart(status[0] + "/" + status[1]);
+                    mysqlSuccess = Boolean.TRUE;
+                } catch (Exception e) {
+                    Log.error(e.getMessage(),e);
+                    this.metrics.readRetries.incrementAndGet();
+                    Log.warn("Error while trying to read the binlog position of mysql host:" + this.mapping.mysqlHost +
+                            ", port:" + this.mapping.mysqlPort);
+                    Log.warn("Not a problem! Retrying the connection within " +
+                            this.mapping.pauseMySQLReconnections + " ms...");
+                    Thread.sleep(this.mapping.pauseMySQLReconnections);
+                }
+            }
+            if (this.mapping.checkpoints != null) {
+                this.mapping.checkpoints.save(checkpointId(this.mapping),
+                        SNAPSHOT + this.restartFile + "/" + this.restartPosition);
+            }
+        }
+        Log.info("Copying table:" + this.mapping.table + " before following the binlog from " +
+                this.restartFile + "/" + this.restartPosition);
+        if (this.backfill != null) {
+            this.backfill.run();
+        }
+        /* Whatever came after the backfill. */
+        new ReaderStage(this.mapping, this.queue, this.free, this.pool, this.writer).catchUp();
+        Log.info("Copied table:" + this.mapping.table + ", following the binlog.");
+    }
+
+    /*
+     * Follows the binlog from the restart position until the connection is lost.
+     * Whatever was not queued yet is read again on the next call.
+     */
+    private void follow() throws Exception {
+        this.binlogFile = this.restartFile;
+        this.commitPosition = this.restartPosition;
+        this.tableId = -1;
+        this.stopping = Boolean.FALSE;
+        final BlockingQueue<Event> events = new ArrayBlockingQueue<Event>(EVENTS_QUEUE_SIZE);
+        this.events = events;
+
+        BinaryLogClient client = new BinaryLogClient(this.mapping.mysqlHost, this.mapping.mysqlPort,
+                this.mapping.user, this.mapping.pass);
+        client.setServerId(this.mapping.serverId);
+        client.setBinlogFilename(this.restartFile);
+        client.setBinlogPosition(this.restartPosition);
+        /* Reconnections are done here, from the last queued transaction. */
+        client.setKeepAlive(false);
+        client.setEventDeserializer(newDeserializer());
+        final String threadName = Thread.currentThread().getName();
+        client.setThreadFactory(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread tmp = new Thread(r);
+                tmp.setName(threadName + "___binlog");
+                tmp.setDaemon(true);
+                return tmp;
+            }
+        });
+        client.registerEventListener(new BinaryLogClient.EventListener() {
+            public void onEvent(Event event) {
+                enqueue(events, event);
+            }
+        });
+        client.registerLifecycleListener(new BinaryLogClient.AbstractLifecycleListener() {
+            public void onCommunicationFailure(BinaryLogClient client, Exception e) {
+                Log.error(e.getMessage(),e);
+                enqueue(events, DISCONNECTED);
+            }
+            public void onEventDeserializationFailure(BinaryLogClient client, Exception e) {
+                Log.error(e.getMessage(),e);
+                enqueue(events, DISCONNECTED);
+            }
+            public void onDisconnect(BinaryLogClient client) {
+                enqueue(events, DISCONNECTED);
+            }
+        });
+
+        try {
+            Log.info("Following the binlog of mysql host:" + this.mapping.mysqlHost + ", port:" +
+                    this.mapping.mysqlPort + " from " + this.restartFile + "/" + this.restartPosition);
+            client.connect(CONNECT_TIMEOUT);
+            while (!this.mapping.stopping) {
+                /* While paused the events queue fills up and the binlog client waits. */
+                if (this.mapping.paused) {
+                    Thread.sleep(1000);
+                    continue;
+                }
+                Event event = this.events.poll(1, TimeUnit.SECONDS);
+                if (event == null) {
+                    continue;
+                }
+                if (event == DISCONNECTED) {
+                    return;
+                }
+                handle(event);
+                if ((this.batch != null) && (this.batch.checkpoint != null) && this.events.isEmpty()) {
+                    queueBatch();
+                }
+            }
+        } finally {
+            this.stopping = Boolean.TRUE;
+            client.disconnect();
+            discardBatch();
+        }
+    }
+
+    /*
+     * Called from the binlog client thread. Blocks while the events queue is full, so a slow
+     * Cassandra slows the binlog reads down instead of filling the memory.
+     */
+    private void enqueue(BlockingQueue<Event> events, Event event) {
+        try {
+            while (!this.stopping) {
+                if (events.offer(event, 1, TimeUnit.SECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.error(e.getMessage(),e);
+        }
+    }
+
+    /*
+     * Replays a binlog file, then ends. Transactions already written are skipped when resuming.
+     */
+    private void replayFile(File file) throws Exception {
+        this.binlogFile = file.getName();
+        long skipUntil = 0;
+        if (this.mapping.resume) {
+            String checkpoint = this.mapping.checkpoints.load(checkpointId(this.mapping));
+            if ((checkpoint != null) && checkpoint.startsWith(this.binlogFile + "/")) {
+                skipUntil = Long.parseLong(checkpoint.substring(this.binlogFile.length() + 1));
+                Log.info("Resuming the replay of binlog file:" + file + " from position " + skipUntil);
+            }
+        }
+        this.commitPosition = skipUntil;
+        Log.info("Replaying binlog file:" + file + " into table:" + this.mapping.table);
+        BinaryLogFileReader reader = new BinaryLogFileReader(file, newDeserializer());
+        try {
+            Event event;
+            while ((event = reader.readEvent()) != null) {
+                EventHeaderV4 header = event.getHeader();
+                if ((header.getNextPosition() <= skipUntil) && (header.getEventType() != EventType.TABLE_MAP)) {
+                    continue;
+                }
+                handle(event);
+            }
+            if ((this.batch != null) && (this.batch.checkpoint != null)) {
+                queueBatch();
+            }
+        } finally {
+            reader.close();
+            discardBatch();
+        }
+        Log.info("Replayed binlog file:" + file + " into table:" + this.mapping.table);
+    }
+
+    private static EventDeserializer newDeserializer() {
+        EventDeserializer deserializer = new EventDeserializer();
+        deserializer.setCompatibilityMode(
+                EventDeserializer.CompatibilityMode.DATE_AND_TIME_AS_LONG,
+                EventDeserializer.CompatibilityMode.INVALID_DATE_AND_TIME_AS_MIN_VALUE,
+                EventDeserializer.CompatibilityMode.CHAR_AND_BINARY_AS_BYTE_ARRAY);
+        return deserializer;
+    }
+
+    private void handle(Event event) throws Exception {
+        EventHeaderV4 header = event.getHeader();
+        switch (header.getEventType()) {
+            case ROTATE:
+                this.binlogFile = ((RotateEventData) event.getData()).getBinlogFilename();
+                break;
+            case TABLE_MAP:
+                mapTable((TableMapEventData) event.getData());
+                break;
+            case WRITE_ROWS:
+            case EXT_WRITE_ROWS:
+                WriteRowsEventData written = event.getData();
+                if (written.getTableId() == this.tableId) {
+                    for (Serializable[] row : written.getRows()) {
+                        addRow(row, written.getIncludedColumns(), false);
+                    }
+                }
+                break;
+            case UPDATE_ROWS:
+            case EXT_UPDATE_ROWS:
+                UpdateRowsEventData updated = event.getData();
+                if (updated.getTableId() == this.tableId) {
+                    for (Map.Entry<Serializable[], Serializable[]> row : updated.getRows()) {
+                        /* A row whose key changed is a deletion of the old key. */
+                        Serializable oldKey = keyOf(row.getKey(), updated.getIncludedColumnsBeforeUpdate());
+                        Serializable newKey = keyOf(row.getValue(), updated.getIncludedColumns());
+                        if ((oldKey != null) && (newKey != null) &&
+                            (toLong(oldKey, this.keyUnsigned) != toLong(newKey, this.keyUnsigned))) {
+                            current().addDeletedRow(toLong(oldKey, this.keyUnsigned));
+                            added();
+                        }
+                        addRow(row.getValue(), updated.getIncludedColumns(), true);
+                    }
+                }
+                break;
+            case DELETE_ROWS:
+            case EXT_DELETE_ROWS:
+                DeleteRowsEventData deleted = event.getData();
+                if (deleted.getTableId() == this.tableId) {
+                    for (Serializable[] row : deleted.getRows()) {
+                        Serializable key = keyOf(row, deleted.getIncludedColumns());
+                        if (key != null) {
+                            current().addDeletedRow(toLong(key, this.keyUnsigned));
+                            added();
+                        }
+                    }
+                }
+                break;
+            case XID:
+                commit(header);
+                break;
+            case QUERY:
+                /* Transactions on non transactional tables (MyISAM) end with a COMMIT query. */
+                if ("COMMIT".equalsIgnoreCase(((QueryEventData) event.getData()).getSql())) {
+                    commit(header);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /*
+     * Keeps the id the binlog gives to the table and where the mapped columns are in its rows.
+     */
+    private void mapTable(TableMapEventData data) throws Exception {
+        if ((!this.mapping.db.equals(data.getDatabase())) || (!this.mapping.table.equals(data.getTable()))) {
+            return;
+        }
+        Map<String, Integer> names = this.columnPositions;
+        TableMapEventMetadata metadata = data.getEventMetadata();
+        List<String> metadataNames = (metadata != null) ? metadata.getColumnNames() : null;
+        /* binlog_row_metadata=MINIMAL has the signedness already (MySQL 8), FULL the names too. */
+        BitSet signedness = (metadata != null) ? metadata.getSignedness() : null;
+        if ((metadataNames != null) && (!metadataNames.isEmpty())) {
+            names = new HashMap<String, Integer>();
+            for (int i = 0; i < metadataNames.size(); i++) {
+                names.put(metadataNames.get(i).toLowerCase(), i);
+            }
+        } else if (this.mapping.binlogFile != null) {
+            /* No MySQL to ask, the maps have to list the columns of the table. */
+            names = mappedPositions(data.getColumnTypes().length);
+        } else if ((names == null) || (names.size() != data.getColumnTypes().length)) {
+            /* First time, or the table changed. */
+            this.mreader.connect();
+            names = this.mreader.readColumnPositions(this.mapping.table);
+            this.unsignedColumns = this.mreader.readUnsignedColumns(this.mapping.table);
+            this.mreader.close();
+            this.columnPositions = names;
+        }
+        if ((signedness == null) && (this.unsignedColumns != null)) {
+            signedness = new BitSet();
+            for (String name : this.unsignedColumns) {
+                if (names.containsKey(name)) {
+                    signedness.set(names.get(name));
+                }
+            }
+        }
+
+        this.keyPosition = positionOf(names, this.mapping.numericKeyStr);
+        this.keyUnsigned = unsignedWidth(data, signedness, this.keyPosition);
+        TableSchema schema = this.mapping.schema;
+        for (int c = 0; c < schema.size(); c++) {
+            this.positions[c] = positionOf(names, schema.names[c]);
+            this.unsigned[c] = unsignedWidth(data, signedness, this.positions[c]);
+            com.github.shyiko.mysql.binlog.event.deserialization.ColumnType type = columnType(data, this.positions[c]);
+            /* DATETIME and DATE are read as if they were UTC, TIMESTAMP is a real instant. */
+            this.localTime[c] =
+                    (type != com.github.shyiko.mysql.binlog.event.deserialization.ColumnType.TIMESTAMP) &&
+                    (type != com.github.shyiko.mysql.binlog.event.deserialization.ColumnType.TIMESTAMP_V2);
+        }
+        this.tableId = data.getTableId();
+    }
+
+    /*
+     * Positions of the columns of a binlog file replayed without binlog_row_metadata=FULL: the table is taken to
+     * be the maps, in order, after the key if it's not one of them. Signedness, if not in the binlog either,
+     * can't be known: every integer is then read as signed.
+     */
+    private Map<String, Integer> mappedPositions(int columns) {
+        Map<String, Integer> names = new HashMap<String, Integer>();
+        String key = this.mapping.numericKeyStr.toLowerCase();
+        TableSchema schema = this.mapping.schema;
+        for (int c = 0; c < schema.size(); c++) {
+            names.put(schema.names[c].toLowerCase(), names.size());
+        }
+        if (!names.containsKey(key)) {
+            for (Map.Entry<String, Integer> name : names.entrySet()) {
+                name.setValue(name.getValue() + 1);
+            }
+            names.put(key, 0);
+        }
+        if (names.size() != columns) {
+            throw new RuntimeException("Table:" + this.mapping.table + " has " + columns + " columns in binlog file:" +
+                    this.mapping.binlogFile + " and the maps " + names.size() + ". Without binlog_row_metadata=FULL " +
+                    "the maps must list every column of the table, in order.");
+        }
+        return names;
+    }
+
+    private static com.github.shyiko.mysql.binlog.event.deserialization.ColumnType columnType(
+            TableMapEventData data, int position) {
+        return com.github.shyiko.mysql.binlog.event.deserialization.ColumnType.byCode(
+                data.getColumnTypes()[position] & 0xFF);
+    }
+
+    private static int unsignedWidth(TableMapEventData data, BitSet signedness, int position) {
+        if ((signedness == null) || (!signedness.get(position))) {
+            return 0;
+        }
+        return unsignedWidth(columnType(data, position));
+    }
+
+    /*
+     * Size in bytes of an integer column type, 0 for the other types.
+     */
+    static int unsignedWidth(com.github.shyiko.mysql.binlog.event.deserialization.ColumnType type) {
+        if (type == null) {
+            return 0;
+        }
+        switch (type) {
+            case TINY:
+                return 1;
+            case SHORT:
+                return 2;
+            case INT24:
+                return 3;
+            case LONG:
+                return 4;
+            case LONGLONG:
+                return 8;
+            default:
+                return 0;
+        }
+    }
+
+    private int positionOf(Map<String, Integer> names, String column) {
+        Integer position = names.get(column.toLowerCase());
+        if (position == null) {
+            throw new RuntimeException("Column:" + column + " not found in the binlog of table:" + this.mapping.table);
+        }
+        return position;
+    }
+
+    /*
+     * Adds a row image to the batch. Columns missing from the image (binlog_row_image=MINIMAL) are
+     * left untouched; NULLs of an update are deleted from Cassandra.
+     * A row with a value that can't be converted to the type of its column goes to the dead letters.
+     */
+    private void addRow(Serializable[] image, BitSet included, boolean update) throws Exception {
+        Serializable key = keyOf(image, included);
+        if (key == null) {
+            Log.warn("Skipping a row without key:" + this.mapping.numericKeyStr + ", or past 2^63, in the binlog of " +
+                    "table:" + this.mapping.table);
+            return;
+        }
+        long keyValue = toLong(key, this.keyUnsigned);
+        RowBatch rows = current();
+        int row = rows.addRow(keyValue);
+        try {
+            addValues(rows, row, image, included, update);
+        } catch (RuntimeException e) {
+            rows.removeLastRow();
+            DeadLetter letter = new DeadLetter(this.mapping.getID(), e.toString(), keyValue);
+            TableSchema schema = this.mapping.schema;
+            for (int c = 0; c < schema.size(); c++) {
+                Serializable value = valueOf(image, included, this.positions[c]);
+                if (value != null) {
+                    letter.values.put(schema.names[c], (value instanceof byte[]) ?
+                            new String((byte[]) value, UTF8) : value.toString());
+                }
+            }
+            Log.warn("Left out the row with key:" + letter.key + " of the binlog, it can't be converted: " + e);
+            this.mapping.deadLetter(letter);
+            return;
+        }
+        added();
+    }
+
+    private void addValues(RowBatch rows, int row, Serializable[] image, BitSet included, boolean update) {
+        TableSchema schema = this.mapping.schema;
+        for (int c = 0; c < schema.size(); c++) {
+            if (!included.get(this.positions[c])) {
+                continue;
+            }
+            Serializable value = valueOf(image, included, this.positions[c]);
+            Boolean set = Boolean.FALSE;
+            if (value != null) {
+                switch (schema.types[c]) {
+                    case INT:
+                        rows.setLong(row, c, toLong(value, this.unsigned[c]));
+                        set = Boolean.TRUE;
+                        break;
+                    case DATETIME:
+                        long millis = toLong(value);
+                        if (!isZeroDate(millis, this.localTime[c])) {
+                            if (this.localTime[c]) {
+                                millis = this.mapping.dates.fromLocal(millis);
+                            }
+                            rows.setLong(row, c, millis);
+                            set = Boolean.TRUE;
+                        }
+                        break;
+                    default:
+                        String string = (value instanceof byte[]) ? new String((byte[]) value, UTF8) : value.toString();
+                        if (string.length() > 0) {
+                            rows.setString(row, c, string);
+                            set = Boolean.TRUE;
+                        }
+                        break;
+                }
+            }
+            if ((!set) && update) {
+                rows.setCleared(row, c);
+            }
+        }
+    }
+
+    /*
+     * Zero dates (0000-00-00, or with a zero month or day) come as Long.MIN_VALUE, and a zero TIMESTAMP as 0,
+     * which is not a TIMESTAMP MySQL can store otherwise. They are NULL, as in the keyset reads
+     * (zeroDateTimeBehavior=convertToNull).
+     */
+    static boolean isZeroDate(long millis, boolean localTime) {
+        return (millis == Long.MIN_VALUE) || ((!localTime) && (millis == 0));
+    }
+
+    /*
+     * Value of the column at 'position' of the table in a row image, which only has the included columns.
+     */
+    private static Serializable valueOf(Serializable[] image, BitSet included, int position) {
+        if (!included.get(position)) {
+            return null;
+        }
+        int index = 0;
+        for (int i = included.nextSetBit(0); i < position; i = included.nextSetBit(i + 1)) {
+            index++;
+        }
+        return image[index];
+    }
+
+    /*
+     * Key of a row image, null if it has none or it doesn't fit in a long, as the keyset reads can't copy it either.
+     */
+    private Serializable keyOf(Serializable[] image, BitSet included) {
+        Serializable key = valueOf(image, included, this.keyPosition);
+        if ((key != null) && (this.keyUnsigned == 8) && (toLong(key) < 0)) {
+            return null;
+        }
+        return key;
+    }
+
+    /*
+     * The binlog has no sign, integers are read as signed ones of their size. An UNSIGNED one
+     * ('unsigned' bytes long, 0 if signed) is widened back to its value, as JDBC reads it.
+     * BIGINT UNSIGNED past 2^63 doesn't fit in a long, which JDBC doesn't read either.
+     */
+    static long toLong(Serializable value, int unsigned) {
+        long l = toLong(value);
+        if ((unsigned == 0) || (l >= 0)) {
+            return l;
+        }
+        if (unsigned == 8) {
+            throw new ArithmeticException("BIGINT UNSIGNED value out of range: " + Long.toUnsignedString(l));
+        }
+        return l & ((1L << (8 * unsigned)) - 1);
+    }
+
+    private static long toLong(Serializable value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof byte[]) {
+            return Long.parseLong(new String((byte[]) value, UTF8).trim());
+        }
+        return Long.parseLong(value.toString().trim());
+    }
+
+    private RowBatch current() throws Exception {
+        if (this.batch == null) {
+            this.batch = this.free.take();
+            this.batch.reset();
+        }
+        return this.batch;
+    }
+
+    /*
+     * A full batch is queued even in the middle of a transaction. It carries the position of the
+     * last complete transaction, so if something fails the rest is read again from there.
+     */
+    private void added() throws Exception {
+        if (this.batch.isFull()) {
+            this.batch.checkpoint = this.binlogFile + "/" + this.commitPosition;
+            queueBatch();
+        }
+    }
+
+    private void commit(EventHeaderV4 header) {
+        this.commitPosition = header.getNextPosition();
+        if (this.batch != null) {
+            this.batch.checkpoint = this.binlogFile + "/" + this.commitPosition;
+        }
+    }
+
+    /*
+     * Queues the batch to the writer. An empty one too (its rows were left out), so its position is saved
+     * like any other, in order.
+     */
+    private void queueBatch() throws Exception {
+        RowBatch rows = this.batch;
+        this.batch = null;
+        setRestart(rows.checkpoint);
+        rows.readAt = System.nanoTime();
+        this.metrics.rowsRead.mark(rows.size());
+        this.metrics.bytesRead.mark(rows.dataBytes());
+        Log.info("Read " + rows.size() + " changes from the binlog of table:" + this.mapping.table +
+                ", up to " + rows.checkpoint);
+        this.queue.put(rows);
+        this.writer.wakeUp();
+    }
+
+    /* Changes that were not queued will be read again. */
+    private void discardBatch() throws Exception {
+        if (this.batch != null) {
+            this.batch.reset();
+            this.free.put(this.batch);
+            this.batch = null;
+        }
+    }
+
+    private void setRestart(String position) {
+        int slash = position.lastIndexOf('/');
+        this.restartFile = position.substring(0, slash);
+        this.restartPosition = Long.parseLong(position.substring(slash + 1));
+    }
+}
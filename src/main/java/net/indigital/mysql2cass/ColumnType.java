@@ -0,0 +1,58 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass;
+
+/*
+ * Types a mapped column can have, as written in the 'type' attribute of a <column>.
+ */
+public enum ColumnType {
+    INT("int"),
+    DATETIME("datetime"),
+    STRING("string");
+
+    private String name;
+
+    ColumnType(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    /*
+     * Returns the type for a 'type' attribute. Anything unknown is a string, as it has always been.
+     */
+    public static ColumnType fromName(String name) {
+        if (name.equals("int")) {
+            return INT;
+        } else if (name.equals("datetime")) {
+            return DATETIME;
+        }
+        return STRING;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+
+package net.indigital.mysql2cass;
+
+import com.eaio.uuid.UUIDGen;
+
+import java.nio.ByteBuffer;
+import java.sql.Timestamp;
+import java.util.TimeZone;
+
+/*
+ * Conversions of the datetime columns of a mapping.
+ * MySQL DATETIMEs have no time zone, they are wall clock times of the zone given to the mapping
+ * (timeZone, the one of the JVM by default). Here they become epoch millis, which is how a RowBatch
+ * keeps them, and these become the time UUIDs written to Cassandra.
+ *
+ * Nothing here allocates but the returned buffers, and a converter can be shared by every thread
+ * of its mapping.
+ */
+public class DateTimeConverter {
+
+    /* 100ns intervals between the start of the Gregorian calendar (1582-10-15) and the epoch. */
+    private static final long GREGORIAN_OFFSET = 0x01B21DD213814000L;
+
+    /* Clock sequence (random at startup) and node of this JVM, the same for every UUID it writes. */
+    private static final long CLOCK_SEQ_AND_NODE = UUIDGen.getClockSeqAndNode();
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private TimeZone zone;
+    /* Zone the JDBC driver reads the DATETIMEs in. */
+    private TimeZone jvmZone;
+    private Boolean jvm;
+
+    public DateTimeConverter() {
+        this(TimeZone.getDefault());
+    }
+
+    public DateTimeConverter(TimeZone zone) {
+        this.zone = zone;
+        this.jvmZone = TimeZone.getDefault();
+        this.jvm = zone.hasSameRules(this.jvmZone);
+    }
+
+    public TimeZone getZone() {
+        return this.zone;
+    }
+
+    /*
+     * Instant of a Timestamp read by the JDBC driver, which puts the wall clock time in the zone of the JVM.
+     */
+    public long fromTimestamp(Timestamp timestamp) {
+        long millis = timestamp.getTime();
+        if (this.jvm) {
+            return millis;
+        }
+        return fromLocal(millis + this.jvmZone.getOffset(millis));
+    }
+
+    /*
+     * Instant of a wall clock time given as millis since 1970-01-01 00:00 of that same clock,
+     * which is how the binlog gives the DATETIMEs.
+     * Like the JDBC driver (Calendar), a repeated hour of a DST change is taken as standard time and
+     * a skipped one is moved forward.
+     */
+    public long fromLocal(long localMillis) {
+        int offset = this.zone.getOffset(localMillis - this.zone.getRawOffset());
+        long millis = localMillis - offset;
+        int actual = this.zone.getOffset(millis);
+        if (actual != offset) {
+            /* Skipped hour: taken with the offset in force before the change. */
+            millis = localMillis - actual;
+        }
+        return millis;
+    }
+
+    /*
+     * Instant of a MySQL datetime text: yyyy-MM-dd, optionally followed by HH:mm:ss (24h) and
+     * a fraction of a second, of which only the millis are kept.
+     * Throws IllegalArgumentException if the text is not a valid datetime, like Timestamp.valueOf().
+     */
+    public long parse(CharSequence text) {
+        int end = text.length();
+        int pos = 0;
+        while ((pos < end) && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        while ((end > pos) && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+
+        int year = digits(text, pos, 4, end);
+        pos = separator(text, pos + 4, '-', end);
+        int month = digits(text, pos, 2, end);
+        pos = separator(text, pos + 2, '-', end);
+        int day = digits(text, pos, 2, end);
+        pos += 2;
+        int hour = 0, minute = 0, second = 0, millis = 0;
+        if (pos < end) {
+            char c = text.charAt(pos);
+            if ((c != ' ') && (c != 'T')) {
+                throw invalid(text);
+            }
+            pos++;
+            hour = digits(text, pos, 2, end);
+            pos = separator(text, pos + 2, ':', end);
+            minute = digits(text, pos, 2, end);
+            pos = separator(text, pos + 2, ':', end);
+            second = digits(text, pos, 2, end);
+            pos += 2;
+            if (pos < end) {
+                if ((text.charAt(pos) != '.') || (pos + 1 == end)) {
+                    throw invalid(text);
+                }
+                pos++;
+                int scale = 100;
+                for (; pos < end; pos++, scale /= 10) {
+                    int digit = text.charAt(pos) - '0';
+                    if ((digit < 0) || (digit > 9)) {
+                        throw invalid(text);
+                    }
+                    millis += digit * scale;
+                }
+            }
+        }
+        if ((month < 1) || (month > 12) || (day < 1) || (day > 31) ||
+                (hour > 23) || (minute > 59) || (second > 59)) {
+            throw invalid(text);
+        }
+        long local = daysFromCivil(year, month, day) * MILLIS_PER_DAY +
+                ((hour * 60 + minute) * 60 + second) * 1000L + millis;
+        return fromLocal(local);
+    }
+
+    /*
+     * Time UUID of an instant, serialized as UUIDSerializer does, without the UUID.
+     * Within a run it only depends on the millis: the same instant always gives the same UUID, so a row
+     * written again (after a reconnection or a retry) gets the value it had. Unlike Hector's UUIDGen, which
+     * moves forward an instant it already gave, two rows with the same datetime get equal UUIDs.
+     */
+    public static ByteBuffer timeUUID(long millis) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putLong(0, timeUUIDHigh(millis));
+        buffer.putLong(8, CLOCK_SEQ_AND_NODE);
+        return buffer;
+    }
+
+    /*
+     * Most significant bits of a version 1 UUID: time_low, time_mid, version and time_hi.
+     */
+    static long timeUUIDHigh(long millis) {
+        long time = millis * 10000 + GREGORIAN_OFFSET;
+        return (time << 32) | ((time & 0xFFFF00000000L) >> 16) | 0x1000L | ((time >> 48) & 0x0FFFL);
+    }
+
+    /*
+     * Days since 1970-01-01 of a date of the proleptic Gregorian calendar.
+     */
+    static long daysFromCivil(int year, int month, int day) {
+        int y = (month <= 2) ? year - 1 : year;
+        int era = ((y >= 0) ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * ((month > 2) ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    private static int digits(CharSequence text, int pos, int count, int end) {
+        if (pos + count > end) {
+            throw invalid(text);
+        }
+        int value = 0;
+        for (int i = pos; i < pos + count; i++) {
+            int digit = text.charAt(i) - '0';
+            if ((digit < 0) || (digit > 9)) {
+                throw invalid(text);
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int separator(CharSequence text, int pos, char separator, int end) {
+        if ((pos >= end) || (text.charAt(pos) != separator)) {
+            throw invalid(text);
+        }
+        return pos + 1;
+    }
+
+    private static IllegalArgumentException invalid(CharSequence text) {
+        return new IllegalArgumentException("Invalid datetime: " + text);
+    }
+}
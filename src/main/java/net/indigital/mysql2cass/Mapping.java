@@ -27,10 +27,26 @@ First version: lmartin, July 2012.
 package net.indigital.mysql2cass;
 
 import net.indigital.mysql2cass.cass.CassWriter;
+import net.indigital.mysql2cass.cass.ClusterRegistry;
+import net.indigital.mysql2cass.cass.WriterSession;
+import net.indigital.mysql2cass.checkpoint.CheckpointStore;
+import net.indigital.mysql2cass.metrics.MappingMetrics;
+import net.indigital.mysql2cass.mysql.MySqlConnectionPool;
 import net.indigital.mysql2cass.mysql.MySqlReader;
+import net.indigital.mysql2cass.retry.CircuitBreaker;
+import net.indigital.mysql2cass.retry.RetryPolicy;
+import net.indigital.mysql2cass.segment.SegmentCodec;
+import net.indigital.mysql2cass.segment.SegmentReader;
+import net.indigital.mysql2cass.segment.SegmentWriter;
+import net.indigital.mysql2cass.spool.DeadLetter;
+import net.indigital.mysql2cass.spool.DeadLetterSink;
+import net.indigital.mysql2cass.spool.DeadLetterSpool;
 import org.apache.log4j.Logger;
 
+import java.io.File;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.locks.Lock;
 
 
@@ -39,15 +55,23 @@ import java.util.concurrent.locks.Lock;
  * Each of these Mapping threads will keep the consistency
  * between one MySQL table and its associated Column Family in Cassandra.
  *
- * loop forever:
- *  1) Requests data to MySQL and stores it to a temp structure.
- *  2) Based on the schema, writes the data to Cassandra.
+ * run() sets the mapping up, then schedules two pipelined stages on the MappingScheduler:
+ *  1) ReaderStage requests data to MySQL and queues it
+ *     (BinlogStage, in binlog mode, follows the changes of the table instead).
+ *  2) WriterStage, based on the schema, writes the queued data to Cassandra.
+ * In segment mode the ReaderStage dumps the data to local segment files instead, and a
+ * SegmentReplayStage reads it back for the WriterStage. Each side may run in a process of its own.
  *
 */
-public class Mapping implements Runnable {
+public class Mapping implements Runnable, DeadLetterSink {
 
     private static Logger Log = Logger.getLogger(Mapping.class);
 
+    /* Values of segmentMode. */
+    public static final String SEGMENTS_BOTH = "both";
+    public static final String SEGMENTS_DUMP = "dump";
+    public static final String SEGMENTS_REPLAY = "replay";
+
     public Lock lock;
     public Map<String, Boolean> keyspaces;
     public Boolean truncate;
@@ -64,10 +88,104 @@ public class Mapping implements Runnable {
     public String table;
     public String numericKeyStr;
     public List<Map<String, String>> maps;
+    /* The maps, resolved once. */
+    public TableSchema schema;
 
     public String cassHost;
     public Integer cassPort;
 
+    /* Optional tuning, set by the configuration parser when present. */
+    public Integer batchRows = CassWriter.DEFAULT_BATCH_ROWS;
+    public Integer batchBytes = CassWriter.DEFAULT_BATCH_BYTES;
+    public Integer fetchSize = 0;
+    public Integer pipelineDepth = 2;
+    public Integer writerThreads = 1;
+    /* More than one writes asynchronously, with up to that many writes in flight to the Cassandra host. */
+    public Integer maxInFlight = 1;
+    /* Adaptive polling and page size, see AdaptiveController. The bounds default to refresh and elementsAtOnce. */
+    public Boolean adaptive = Boolean.FALSE;
+    public Integer minRefresh = 100;
+    public Integer minElementsAtOnce = null;
+    public Integer maxElementsAtOnce = null;
+    public Integer targetWriteTime = 1000;
+    public AdaptiveController controller;
+    /* More than one splits the initial copy of the table in that many key ranges, copied in parallel. */
+    public Integer backfillThreads = 1;
+    /* Failed writes to Cassandra are retried after pauseCassReconnections, doubling up to maxPauseCassReconnections.
+     * A batch is given up after maxWriteAttempts, 0 never gives up. After breakerFailures failures in a row the
+     * host is left alone for breakerPause, by every mapping writing to it. */
+    public Integer maxPauseCassReconnections = 60000;
+    public Integer maxWriteAttempts = 0;
+    public Integer breakerFailures = 5;
+    public Integer breakerPause = null;
+    public RetryPolicy cassRetry;
+    public CircuitBreaker breaker;
+    /* Hector connection pools of the Cassandra cluster, see ClusterRegistry. cassHost may list several seed hosts. */
+    public Integer maxActive = ClusterRegistry.DEFAULT_MAX_ACTIVE;
+    public Integer maxWaitWhenExhausted = (int) ClusterRegistry.DEFAULT_MAX_WAIT;
+    public Integer socketTimeout = ClusterRegistry.DEFAULT_SOCKET_TIMEOUT;
+    public String loadBalancing = ClusterRegistry.DEFAULT_LOAD_BALANCING;
+    public Boolean autoDiscoverHosts = Boolean.FALSE;
+    /* Consistency level of the writes, and of the ones of the backfill (writeConsistency unless set). */
+    public String writeConsistency = CassWriter.DEFAULT_WRITE_CONSISTENCY;
+    public String backfillConsistency = null;
+    /* Replication of the keyspace, when this mapping is the one creating it. dataCenters is "DC1:3,DC2:2". */
+    public String replicationStrategy = CassWriter.SIMPLE_STRATEGY;
+    public Integer replicationFactor = 1;
+    public String dataCenters = null;
+    /* Time to live of every column written [s], 0 for ever. */
+    public Integer ttl = 0;
+    /* Datetime columns are wall clock times of the zone of this converter, the one of the JVM unless set. */
+    public DateTimeConverter dates = new DateTimeConverter();
+    public Integer poolSize = MySqlConnectionPool.DEFAULT_SIZE;
+    public String validationQuery = MySqlConnectionPool.DEFAULT_VALIDATION_QUERY;
+    public Integer poolIdleTimeout = MySqlConnectionPool.DEFAULT_IDLE_TIMEOUT;
+
+    /* Last key acknowledged by the writer stage. Every row up to it is in Cassandra. */
+    public volatile long committedNumericKey = -1;
+
+    /* Published through JMX and, if enabled, the Prometheus endpoint. */
+    public MappingMetrics metrics;
+
+    /* Where committedNumericKey is saved after every batch, null if it isn't.
+     * With resume, the copy goes on from the saved key and the keyspace is not dropped. */
+    public CheckpointStore checkpoints = null;
+    public Boolean resume = Boolean.FALSE;
+
+    /* Where the rows that could not be copied go, null if they are only logged.
+     * With replay, the ones left out by the previous run are written again, along with the new ones. */
+    public DeadLetterSpool deadLetters = null;
+
+    /* Binlog mode: after a first copy, follow the binlog so updates and deletes are copied too.
+     * serverId is the replica id used to read it. binlogFile replays that file instead. */
+    public Boolean binlog = Boolean.FALSE;
+    public Integer serverId = 65535;
+    public String binlogFile = null;
+
+    /* Segment mode: the rows read go through segment files in a directory of segmentDir, see SegmentWriter.
+     * segmentMode 'dump' only reads from MySQL to them, 'replay' only writes them to Cassandra. */
+    public File segmentDir = null;
+    public String segmentMode = SEGMENTS_BOTH;
+    public SegmentCodec segmentCodec = SegmentCodec.NONE;
+    public Integer segmentSize = SegmentWriter.DEFAULT_SEGMENT_SIZE;
+    public SegmentWriter segmentWriter = null;
+    public SegmentReader segmentReader = null;
+
+    /* Set by the MappingScheduler running this mapping. */
+    public MappingScheduler scheduler;
+    public volatile Boolean paused = Boolean.FALSE;
+    public volatile Boolean stopping = Boolean.FALSE;
+
+    /* Setup, which runs on the readers of the scheduler: a step that fails schedules run() again
+     * instead of waiting there, and the steps done are not done again. */
+    private MySqlConnectionPool pool = null;
+    private CassWriter cwriter = null;
+    private boolean readsMySql;
+    private boolean writesCassandra;
+    private Boolean truncated = Boolean.FALSE;
+    private Boolean cassCreated = Boolean.FALSE;
+    private int cassAttempts = 0;
+
     /*
     * Basic constructor.
     */
@@ -97,15 +215,57 @@ public class Mapping implements Runnable {
         this.table = table;
         this.numericKeyStr = numericKeyStr;
         this.maps = maps;
+        this.schema = new TableSchema(maps);
         this.cassHost = cassHost;
         this.cassPort = cassPort;
+        this.metrics = new MappingMetrics(getID());
     }
     public String getID() {
         return this.mysqlHost + ":" +  this.mysqlPort + "__" + this.db + "_" +
                 this.table + "__" + this.cassHost + ":" + this.cassPort;
     }
 
+    /*
+     * Key of the checkpoints of this mapping: the MySQL table it reads and the keyspace and column family
+     * it writes to. Unlike getID() it has no Cassandra hosts, so editing the seed list keeps the checkpoints.
+     */
+    public String getCheckpointId() {
+        String keyspace = this.db;
+        String columnFamily = this.table;
+        return this.mysqlHost + ":" + this.mysqlPort + "__" + this.db + "_" + this.table +
+                "__" + keyspace + "." + columnFamily;
+    }
+
+    /*
+     * Sets this mapping up, then starts its stages on the scheduler.
+     */
     public void run() {
+        if (this.cwriter == null) {
+            init();
+        }
+        if (this.stopping) {
+            return;
+        }
+        String keyspace = this.db;
+        String columnFamily = this.table;
+        if ((!this.truncated) && (!truncate())) {
+            this.scheduler.readAgain(this, this.pauseMySQLReconnections);
+            return;
+        }
+        if (!this.cassCreated) {
+            long delay = createSchema(keyspace, columnFamily);
+            if (delay >= 0) {
+                this.scheduler.readAgain(this, delay);
+                return;
+            }
+        }
+        start(keyspace, columnFamily);
+    }
+
+    /*
+     * The part of the setup that can't fail.
+     */
+    private void init() {
         Log.info("This thread is assigned to:" +
                 " truncate:" + this.truncate +
                 " keysType:" + this.keysType +
@@ -115,241 +275,438 @@ public class Mapping implements Runnable {
                 ", mysqlHost:" + this.mysqlHost + ", mysqlPort:" + this.mysqlPort +
                 ", db:" + this.db + ", user:" + this.user + ", pass:" + this.pass + ", table:" + this.table +
                 ", numericKeyStr:" + this.numericKeyStr + ", maps:" + this.maps +
-                ", cassHost:" + this.cassHost + ", cassPort:" + this.cassPort);
-
-        /* Reflects whether the */
-        Boolean mysqlSuccess;
-        MySqlReader mreader = new MySqlReader();
-
-        /* Reflects whether the set of cassandra cluster/keyspace/schema has successfully been created.
-         *  We need to create this just once. (Need to be out of the loop!) */
-        Boolean cassCreated;
-        Boolean mysqlFirstTime;
-        CassWriter cwriter = new CassWriter();
-
-
-        // Generating a name -> type dict for this schema.
-        Map<String, String> nameType = new HashMap<String, String>();
-        for (Map<String, String> m: this.maps) {
-            nameType.put(m.get("name"), m.get("type"));
+                ", cassHost:" + this.cassHost + ", cassPort:" + this.cassPort +
+                ", batchRows:" + this.batchRows + ", batchBytes:" + this.batchBytes +
+                ", fetchSize:" + this.fetchSize + ", pipelineDepth:" + this.pipelineDepth +
+                ", writerThreads:" + this.writerThreads + ", maxInFlight:" + this.maxInFlight +
+                ", maxPauseCassReconnections:" + this.maxPauseCassReconnections +
+                ", maxWriteAttempts:" + this.maxWriteAttempts +
+                ", breakerFailures:" + this.breakerFailures + ", breakerPause:" + this.breakerPause +
+                ", maxActive:" + this.maxActive + ", maxWaitWhenExhausted:" + this.maxWaitWhenExhausted +
+                ", socketTimeout:" + this.socketTimeout + ", loadBalancing:" + this.loadBalancing +
+                ", autoDiscoverHosts:" + this.autoDiscoverHosts +
+                ", writeConsistency:" + this.writeConsistency + ", backfillConsistency:" + this.backfillConsistency +
+                ", replicationStrategy:" + this.replicationStrategy + ", replicationFactor:" + this.replicationFactor +
+                ", dataCenters:" + this.dataCenters + ", ttl:" + this.ttl +
+                ", timeZone:" + this.dates.getZone().getID() +
+                ", backfillThreads:" + this.backfillThreads +
+                ", adaptive:" + this.adaptive + ", minRefresh:" + this.minRefresh +
+                ", minElementsAtOnce:" + this.minElementsAtOnce + ", maxElementsAtOnce:" + this.maxElementsAtOnce +
+                ", targetWriteTime:" + this.targetWriteTime +
+                ", poolSize:" + this.poolSize +
+                ", validationQuery:" + this.validationQuery + ", poolIdleTimeout:" + this.poolIdleTimeout +
+                ", resume:" + this.resume + ", binlog:" + this.binlog + ", serverId:" + this.serverId +
+                ", binlogFile:" + this.binlogFile + ", segmentDir:" + this.segmentDir +
+                ", segmentMode:" + this.segmentMode + ", segmentCompression:" + this.segmentCodec.getName() +
+                ", segmentSize:" + this.segmentSize);
+
+        this.metrics.register();
+        if (this.minElementsAtOnce == null) {
+            this.minElementsAtOnce = this.elementsAtOnce;
         }
+        if (this.maxElementsAtOnce == null) {
+            this.maxElementsAtOnce = this.elementsAtOnce;
+        }
+        this.controller = new AdaptiveController(this.adaptive, this.minRefresh, this.refresh,
+                this.minElementsAtOnce, this.elementsAtOnce, this.maxElementsAtOnce, this.targetWriteTime);
+        if (this.backfillConsistency == null) {
+            this.backfillConsistency = this.writeConsistency;
+        }
+        if (this.breakerPause == null) {
+            this.breakerPause = this.pauseCassReconnections;
+        }
+        this.cassRetry = new RetryPolicy(this.pauseCassReconnections, this.maxPauseCassReconnections,
+                this.maxWriteAttempts);
+        /* Shared with every other Mapping writing to the same host. */
+        this.breaker = CircuitBreaker.forHost(this.cassHost, this.cassPort, this.breakerFailures, this.breakerPause);
+        if (this.resume) {
+            loadCheckpoint();
+        }
+        if (this.segmentDir != null) {
+            openSegments();
+        }
+        this.readsMySql = (this.segmentDir == null) || (!this.segmentMode.equals(SEGMENTS_REPLAY));
+        this.writesCassandra = (this.segmentDir == null) || (!this.segmentMode.equals(SEGMENTS_DUMP));
 
-        long cassStartTime;
-        long cassEndTime;
-        long mysqlStartTime;
-        long mysqlEndTime;
-        long mysqlDiff;
-        float mysqlElapsed;
-        long cassDiff;
-        float cassElapsed;
-
-        String keyspace = this.db;
-        String columnFamily = this.table;
+        /* Connections to MySQL are shared with every other Mapping reading from the same database. */
+        this.pool = MySqlConnectionPool.get(this.mysqlHost, this.mysqlPort, this.db, this.user,
+                this.pass, this.fetchSize != 0, this.poolSize, this.validationQuery, this.poolIdleTimeout);
 
+        this.cwriter = new CassWriter();
+        this.cwriter.setBatchLimits(this.batchRows, this.batchBytes);
+        this.cwriter.setWriteConsistency(this.writeConsistency);
+        this.cwriter.setTtl(this.ttl);
+    }
 
+    /*
+     * Truncates the MySQL table, if asked to. Returns false if it failed and has to be tried again.
+     */
+    private boolean truncate() {
         Log.debug("-------------------------------");
         Log.debug("            MySQL init");
         Log.debug("-------------------------------");
-        if (this.truncate) {
+        if (this.truncate && this.readsMySql) {
             Log.debug("MySQL table:" + this.table + " will be truncated.");
-            mysqlSuccess = Boolean.FALSE;
-            while (!mysqlSuccess) {
-                try {
-                    /*  MySQL. Making the connection to MySQL. */
-                    Log.debug("Setting up mysql connection. host:" + this.mysqlHost + ", port:" + this.mysqlPort);
-                    mreader.connect(this.mysqlHost, this.mysqlPort, this.db, this.user, this.pass);
+            MySqlReader mreader = new MySqlReader(this.pool);
+            try {
+                /*  MySQL. Getting a connection to MySQL from the pool. */
+                Log.debug("Getting mysql connection. host:" + this.mysqlHost + ", port:" + this.mysqlPort);
+                mreader.connect();
 
-                    /* If the MySQL table needs to be dropped, we will do it just the first time. */
-                    mreader.truncateDataBase(this.table);
-                    Log.debug("Truncated table:" + this.table);
+                /* If the MySQL table needs to be dropped, we will do it just the first time. */
+                mreader.truncateDataBase(this.table);
+                Log.debug("Truncated table:" + this.table);
 
-                    mreader.close();
-                    mysqlSuccess = Boolean.TRUE;
-                } catch (Exception e) {
-                    Log.error(e.getMessage(),e);
-                    Log.warn("Error while trying to connect/read to/from mysql host:" + this.mysqlHost +
-                            ", port:" + this.mysqlPort + ", table:" + this.table);
-                    Log.warn("Not a problem! Retrying the connection within " +
-                            this.pauseMySQLReconnections + " ms...");
-                     try {
-                        Thread.sleep(this.pauseMySQLReconnections);
-                     } catch (Exception e2) {
-                         Log.error(e2.getMessage(),e2);
-                     }
-                }
+                mreader.close();
+            } catch (Exception e) {
+                Log.error(e.getMessage(),e);
+                Log.warn("Error while trying to connect/read to/from mysql host:" + this.mysqlHost +
+                        ", port:" + this.mysqlPort + ", table:" + this.table);
+                Log.warn("Not a problem! Retrying the connection within " +
+                        this.pauseMySQLReconnections + " ms...");
+                return false;
             }
         }  else {
             Log.debug("MySQL table:" + this.table + " doesn't need to be truncated.");
         }
+        this.truncated = Boolean.TRUE;
+        return true;
+    }
 
-        cassCreated = Boolean.FALSE;
+    /*
+     * Creates the Cassandra keyspace and column family, dropping the keyspace first if needed.
+     * Returns -1 once done, or how long to wait before trying again [ms]: the schema is needed to
+     * go on, so this one never gives up.
+     */
+    private long createSchema(String keyspace, String columnFamily) {
         Log.debug("-------------------------------");
         Log.debug("          CASSANDRA init");
         Log.debug("-------------------------------");
-        /* Cassandra creating the schema/columnFamily. Dropping keyspace if needed. */
-        while (!cassCreated) {
+        if (!this.writesCassandra) {
+            this.cassCreated = Boolean.TRUE;
+            return -1;
+        }
+        try {
+            Log.debug("Cassandra cluster/schema/keyspace still not created");
+            /* The cluster is shared with every other Mapping writing to the same hosts. */
+            this.cwriter.setCluster(ClusterRegistry.get(this.cassHost, this.cassPort, this.maxActive,
+                    this.maxWaitWhenExhausted, this.socketTimeout, this.loadBalancing, this.autoDiscoverHosts));
+
+            this.lock.lock();
+            Log.debug("I got the lock");
             try {
-                Log.debug("Cassandra cluster/schema/keyspace still not created");
-                cwriter.createCluster("mysql2cass_cluster", this.cassHost, this.cassPort);
+                Log.info("Checking keyspace:" + keyspace + " in keyspaces:" + this.keyspaces.toString());
+                /* Dropping keyspace in case it already exists. */
+                if (this.resume) {
+                    /* Resuming, what is already in Cassandra is kept. */
+                    Log.info("Resuming, keyspace:" + keyspace + " won't be dropped.");
+                } else if (!this.keyspaces.containsKey(keyspace)) {
+                    Log.info("Since the keyspace:" + keyspace + " hasn't been tried to be dropped, let's try to drop it");
+                    /* Once, a failure is retried along with the rest of the schema. */
+                    this.cwriter.dropKeyspace(keyspace, new RetryPolicy(0, 0, 1));
+                    this.keyspaces.put(keyspace, Boolean.TRUE);
+                    Log.info("Added keyspace:" + keyspace + " to keyspaces:" + this.keyspaces.toString());
+                } else {
+                    /* Just one thread has to drop the keyspace in case it already exists. */
+                    Log.info("keyspace:" + keyspace + " already tried to be dropped, don't drop it.");
+                }
+            } finally {
+                Log.debug("Unlocking the lock");
+                this.lock.unlock();
+            }
 
-                this.lock.lock();
-                Log.debug("I got the lock");
-                try {
-                    Log.info("Checking keyspace:" + keyspace + " in keyspaces:" + this.keyspaces.toString());
-                    /* Dropping keyspace in case it already exists. */
-                    if (!this.keyspaces.containsKey(keyspace)) {
-                        Log.info("Since the keyspace:" + keyspace + " hasn't been tried to be dropped, let's try to drop it");
-                        cwriter.dropKeyspace(keyspace);
-                        this.keyspaces.put(keyspace, Boolean.TRUE);
-                        Log.info("Added keyspace:" + keyspace + " to keyspaces:" + this.keyspaces.toString());
+            this.cwriter.createKeyspace(keyspace, this.replicationStrategy, this.replicationFactor, this.dataCenters);
+            this.cwriter.createSchema(this.keysType, keyspace, columnFamily, this.maps);
+            this.cassCreated = Boolean.TRUE;
+            return -1;
+        } catch (Exception e) {
+            Log.error(e.getMessage(),e);
+            Log.warn("Error while trying to create cluster/schema/keyspace in cass. " +
+                    "host:" + this.cassHost + ", port:" + this.cassPort +
+                    ", keyspace:" + keyspace + ", columnFamily:" + columnFamily);
+            long delay = this.cassRetry.delay(++this.cassAttempts);
+            Log.warn("Not a problem! Retrying the connection within " + delay + " ms...");
+            return delay;
+        }
+    }
+
+    /*
+     * Starts the stages of this mapping, once it is set up.
+     */
+    private void start(String keyspace, String columnFamily) {
+        /* From here on, a reader stage fetches pages from MySQL while a writer stage writes
+         * the previous ones to Cassandra. They talk through a queue, and both run on the
+         * pools of the scheduler. The queue holds every batch there is, so the reader never waits to
+         * queue one: it is bounded by the free batches. */
+        BlockingQueue<RowBatch> queue = new ArrayBlockingQueue<RowBatch>(this.pipelineDepth + 2);
+        /* Batches are allocated once and recycled: one being read, one being written and the queued ones.
+         * They are sized for the biggest page the controller may ask for. */
+        BlockingQueue<RowBatch> free = new ArrayBlockingQueue<RowBatch>(this.pipelineDepth + 2);
+        for (int i = 0; i < this.pipelineDepth + 2; i++) {
+            free.add(new RowBatch(this.schema, this.maxElementsAtOnce));
+        }
+        if (this.stopping) {
+            return;
+        }
+        if ((this.deadLetters != null) && this.writesCassandra) {
+            /* The letters are written as of before they were left out, so they don't need to go first. */
+            final String tmpKeyspace = keyspace;
+            final String tmpColumnFamily = columnFamily;
+            this.scheduler.startDeadLetters(this, new Runnable() {
+                public void run() {
+                    replayDeadLetters(cwriter, tmpKeyspace, tmpColumnFamily);
+                }
+            });
+        }
+        WriterStage writer = null;
+        if (this.writesCassandra) {
+            writer = new WriterStage(this, queue, free, cwriter, keyspace, columnFamily, this.scheduler.getWriters());
+        }
+        Backfill backfill = null;
+        if (this.backfillThreads > 1) {
+            backfill = new Backfill(this, pool, cwriter, keyspace, columnFamily);
+        }
+        if (this.binlog) {
+            /* The backfill is done by the binlog stage, once it knows where the binlog is. */
+            this.scheduler.startBinlog(this, new BinlogStage(this, queue, free, pool, backfill, writer), writer);
+        } else if (backfill != null) {
+            /* A backfill may take days, so it gets a thread of its own too, which then starts the reads.
+             * There are no segments with a backfill. */
+            final Backfill tmpBackfill = backfill;
+            final ReaderStage reader = new ReaderStage(this, queue, free, pool, writer);
+            final WriterStage tmpWriter = writer;
+            this.scheduler.startBackfill(this, new Runnable() {
+                public void run() {
+                    runBackfill(tmpBackfill);
+                    if (stopping) {
+                        return;
+                    }
+                    if (fetchSize != 0) {
+                        /* A stream goes on in this thread. */
+                        reader.follow();
                     } else {
-                        /* Just one thread has to drop the keyspace in case it already exists. */
-                        Log.info("keyspace:" + keyspace + " already tried to be dropped, don't drop it.");
+                        scheduler.scheduleReader(Mapping.this, reader, tmpWriter);
                     }
-                } finally {
-                    Log.debug("Unlocking the lock");
-                    this.lock.unlock();
                 }
+            }, writer);
+        } else {
+            if (this.segmentReader != null) {
+                this.scheduler.scheduleReader(this, new SegmentReplayStage(this, queue, free, writer), writer);
+            }
+            if (this.readsMySql && (this.fetchSize != 0)) {
+                this.scheduler.startStream(this, new ReaderStage(this, queue, free, this.pool, writer), writer);
+            } else if (this.readsMySql) {
+                this.scheduler.scheduleReader(this, new ReaderStage(this, queue, free, this.pool, writer), writer);
+            }
+        }
+    }
 
-                cwriter.createKeyspace(keyspace);
-                cwriter.createSchema(this.keysType, keyspace, columnFamily, this.maps);
-                cassCreated = Boolean.TRUE;
-            } catch (Exception e) {
-                Log.error(e.getMessage(),e);
-                Log.warn("Error while trying to create cluster/schema/keyspace in cass. " +
-                        "host:" + this.cassHost + ", port:" + this.cassPort +
-                        ", keyspace:" + keyspace + ", columnFamily:" + columnFamily);
-                Log.warn("Not a problem! Retrying the connection within " +
-                        this.pauseCassReconnections + " ms...");
-                try {
-                    Thread.sleep(this.pauseCassReconnections);
-                } catch (Exception e2) {
-                    Log.error(e2.getMessage(),e2);
-                }
+    /*
+     * Opens the segments of this mapping, in a directory of segmentDir named after it:
+     * to append to them if it reads from MySQL, to replay them if it writes to Cassandra.
+     */
+    private void openSegments() {
+        File dir = new File(this.segmentDir, getID().replaceAll("[^A-Za-z0-9._-]", "_"));
+        try {
+            if (!this.segmentMode.equals(SEGMENTS_REPLAY)) {
+                this.segmentWriter = new SegmentWriter(dir, this.schema, this.segmentCodec, this.segmentSize);
             }
+            if (!this.segmentMode.equals(SEGMENTS_DUMP)) {
+                this.segmentReader = new SegmentReader(dir, this.schema);
+            }
+        } catch (Exception e) {
+            Log.error("Could not open the segments of mapping:" + getID() + " in:" + dir);
+            Log.error(e.getMessage(),e);
+            System.exit(0);
         }
+    }
 
+    /*
+     * Called once the stages are stopped.
+     */
+    public void closeSegments() {
+        if (this.segmentWriter != null) {
+            this.segmentWriter.close();
+        }
+        if (this.segmentReader != null) {
+            this.segmentReader.close();
+        }
+    }
 
+    /*
+     * Leaves a row out of the copy. It goes to the dead letter spool, if there is one.
+     */
+    public void deadLetter(DeadLetter letter) {
+        this.metrics.rowsGivenUp.incrementAndGet();
+        Log.debug("Left out " + letter);
+        if (this.deadLetters == null) {
+            return;
+        }
+        try {
+            this.deadLetters.add(letter);
+        } catch (Exception e) {
+            Log.error("Could not spool " + letter);
+            Log.error(e.getMessage(),e);
+        }
+    }
 
+    /*
+     * Writes again the rows of this mapping left out by the previous run, as they were then.
+     * Rows that still can't be converted or written go back to the spool.
+     */
+    private void replayDeadLetters(CassWriter cwriter, String keyspace, String columnFamily) {
+        List<DeadLetter> letters = this.deadLetters.takeReplay(getID());
+        if (letters.isEmpty()) {
+            return;
+        }
+        Log.info("Replaying " + letters.size() + " dead letters of mapping:" + getID());
+        WriterSession session = cwriter.openSession(this.keysType, keyspace, columnFamily, this.schema);
+        RowBatch batch = new RowBatch(this.schema, this.elementsAtOnce);
+        int replayed = 0;
+        /* When the oldest letter of the batch was spooled [ms]. */
+        long spooledAt = Long.MAX_VALUE;
+        for (DeadLetter letter : letters) {
+            if (addDeadLetter(batch, letter)) {
+                spooledAt = Math.min(spooledAt, letter.time);
+                if (batch.isFull()) {
+                    replayed += writeDeadLetters(session, batch, spooledAt);
+                    spooledAt = Long.MAX_VALUE;
+                }
+            }
+        }
+        replayed += writeDeadLetters(session, batch, spooledAt);
+        Log.info("Replayed " + replayed + " of " + letters.size() + " dead letters of mapping:" + getID());
+    }
 
+    private boolean addDeadLetter(RowBatch batch, DeadLetter letter) {
+        int row = letter.deleted ? batch.addDeletedRow(letter.key) : batch.addRow(letter.key);
+        try {
+            for (int c = 0; c < this.schema.size(); c++) {
+                String name = this.schema.names[c];
+                if (!letter.values.containsKey(name)) {
+                    continue;
+                }
+                String value = letter.values.get(name);
+                if (value == null) {
+                    batch.setCleared(row, c);
+                    continue;
+                }
+                switch (this.schema.types[c]) {
+                    case INT:
+                        batch.setLong(row, c, Long.parseLong(value.trim()));
+                        break;
+                    case DATETIME:
+                        /* Epoch millis once read, the raw MySQL text if it could not be read. */
+                        try {
+                            batch.setLong(row, c, Long.parseLong(value.trim()));
+                        } catch (NumberFormatException e) {
+                            batch.setLong(row, c, this.dates.parse(value));
+                        }
+                        break;
+                    default:
+                        if (value.length() > 0) {
+                            batch.setString(row, c, value);
+                        }
+                        break;
+                }
+            }
+            return true;
+        } catch (RuntimeException e) {
+            batch.removeLastRow();
+            letter.reason = "Replay: " + e.getMessage();
+            deadLetter(letter);
+            return false;
+        }
+    }
 
+    /*
+     * Timestamp of the first of 'rows' replayed rows, the oldest of them spooled at 'spooledAt' [ms].
+     * The rows are written as of before they were left out, in microseconds like the WriterStage, so
+     * whatever reached Cassandra since then (a newer value, a deletion) wins over the replay.
+     */
+    static long replayClock(long spooledAt, int rows) {
+        return spooledAt * 1000 - rows;
+    }
 
-        /* Run this thread forever, please. */
-        for ( ; ; ) {
+    /*
+     * Same retries as the WriterStage. Returns the number of rows written, and empties the batch.
+     */
+    private int writeDeadLetters(WriterSession session, RowBatch batch, long spooledAt) {
+        int rows = batch.size();
+        int attempts = 0;
+        Boolean cassSuccess = (rows == 0);
+        if (rows > 0) {
+            batch.clock = replayClock(spooledAt, rows);
+        }
+        while (!cassSuccess) {
             try {
-                Log.debug("-------------------------------");
-                Log.debug("            MySQL");
-                Log.debug("-------------------------------");
-                mysqlStartTime = new Date().getTime();
-                /* MySQL access and reading. */
-                mysqlSuccess = Boolean.FALSE;
-                while (!mysqlSuccess) {
-                    try {
-                        /*  MySQL. Making the connection to MySQL. */
-                        Log.debug("Setting up mysql connection. host:" + this.mysqlHost + ", port:" + this.mysqlPort);
-                        mreader.connect(this.mysqlHost, this.mysqlPort, this.db, this.user, this.pass);
-
-                        /*  MySQL. Getting the elements from MySQL. */
-                        Log.debug("Reading elements from host:" + this.mysqlHost + ", port:" + this.mysqlPort +
-                                ", table:" + this.table);
-                        mreader.readDataBase(this.table, this.numericKeyStr, this.elementsAtOnce, this.maps);
-                        /*  MySQL. Closing connections. */
-                        Log.debug("Closing connections from host:" + this.mysqlHost + ", port:" + this.mysqlPort +
-                                ", table:" + this.table);
-                        mreader.close();
-                        mysqlSuccess = Boolean.TRUE;
-                    } catch (Exception e) {
-                        Log.error(e.getMessage(),e);
-                        Log.warn("Error while trying to connect/read to/from mysql host:" + this.mysqlHost +
-                                ", port:" + this.mysqlPort + ", table:" + this.table);
-                        Log.warn("Not a problem! Retrying the connection within " +
-                                this.pauseMySQLReconnections + " ms...");
-                        Thread.sleep(this.pauseMySQLReconnections);
-                    }
-                }
-                mysqlEndTime = new Date().getTime();
-
-                cassStartTime = new Date().getTime();
-                Log.debug("-------------------------------");
-                Log.debug("          CASSANDRA");
-                Log.debug("-------------------------------");
-                /* Cassandra.  Writing. */
-                if (mreader.output.size() > 0) {
-                    Log.info("We have " + mreader.output.size() + " elements to insert to host:" + this.cassHost
-                            + ", port:" + this.cassPort + ", keyspace:" + keyspace + ", column_family:" + columnFamily);
-
-                    /* Cassandra writing. */
-                    List<String> keysList = new ArrayList<String>(mreader.output.keySet());
-                    while (keysList.size() > 0) {
-                        String key = keysList.get(0);
-                        Integer integerKey = Integer.parseInt(key);
-                        Map<String,String> dict = new HashMap<String,String>();
-                        dict = mreader.output.get(key);
-                        List<String> keysValuesList = new ArrayList<String>(dict.keySet());
-                        Log.debug("Writing [" +  key + "] to cassandra host:" + this.cassHost + ", port:" +
-                                this.cassPort + ", keyspace:" + keyspace + ", column_family:" + columnFamily);
-
-                        while (keysValuesList.size() > 0) {
-                            String columnName = keysValuesList.get(0);
-                            String value = dict.get(columnName).toString();
-                            String type = nameType.get(columnName);
-
-                            // Inserting the 'value' in the given 'keyspace', 'columnFamily' and 'key'.
-                            // 'type' defines the type for the cassandra columnName type.
-                            // Type could be {'string', 'int', 'datetime'}
-                            try {
-                                cwriter.set(keysType, keyspace, columnFamily, key, columnName, value, type);
-                                Log.info("keyspace:" + keyspace + ", columnFamily:" + columnFamily + "[" +
-                                        integerKey  + "]" + "[" + columnName + "] = " + value + ". (type=" + type + ")");
-                                /* Value successfully inserted. */
-                                keysValuesList.remove(0);
-                            } catch (Exception e) {
-                                //Log.error(e.getMessage(),e);
-                                Log.warn("Error while trying to write to cassandra host:" + this.cassHost +
-                                        ", port:" + this.cassPort + ", keyspace:" + keyspace +
-                                        ", column_family:" + columnFamily + ", columnName:" + columnName +
-                                        ", key:" + integerKey + ", value:" + value + ", (type:" + type + ")" );
-                                Log.warn("Not a problem! Retrying the connection within " +
-                                        this.pauseCassReconnections + " ms...");
-                                Thread.sleep(this.pauseCassReconnections);
-                            }
+                boolean probe = this.breaker.acquire();
+                try {
+                    session.writeRows(batch);
+                    this.breaker.success();
+                    cassSuccess = Boolean.TRUE;
+                } catch (Exception e) {
+                    this.breaker.failure(probe);
+                    Log.error(e.getMessage(),e);
+                    if ((!this.cassRetry.canRetry(++attempts)) || this.stopping) {
+                        /* Back to the spool, for the next replay. */
+                        for (int i = 0; i < batch.size(); i++) {
+                            DeadLetter letter = DeadLetter.of(getID(), "Replay: " + e.getMessage(), batch, i);
+                            /* Keeps its age for the next replay. */
+                            letter.time = spooledAt;
+                            deadLetter(letter);
                         }
-                        Log.info("Just wrote element [" +  integerKey + "] to cassandra host:" + this.cassHost +
-                                ", port:" + this.cassPort + ", keyspace:" + keyspace + ", column_family:" + columnFamily);
-                        /* Element successfully inserted. */
-                        keysList.remove(0);
+                        rows = 0;
+                        break;
                     }
-                } else {
-                    Log.info("Nothing new to write to cassandra host:" + this.cassHost +
-                            ", port:" + this.cassPort + ", keyspace:" + keyspace + ", column_family:" + columnFamily +
-                            ", numericKeyStr:" + this.numericKeyStr);
-                }
-                cassEndTime = new Date().getTime();
-
-                /* Giving some information about the timing. */
-                if (mreader.output.size() > 0) {
-                    mysqlDiff = mysqlEndTime - mysqlStartTime;
-                    mysqlElapsed = ((float)mysqlDiff / (float)mreader.output.size());
-                    cassDiff = cassEndTime - cassStartTime;
-                    cassElapsed = ((float)cassDiff / (float)mreader.output.size());
-
-                    Log.info("Read " + mreader.output.size() +
-                            " elements in time:" + mysqlDiff +
-                            "ms. time/element:" + mysqlElapsed + "ms.");
-                    Log.info("Wrote " + mreader.output.size() +
-                            " elements in time:" + cassDiff +
-                            "ms. time/element:" + cassElapsed + "ms.");
+                    this.metrics.writeRetries.incrementAndGet();
+                    long delay = this.cassRetry.delay(attempts);
+                    Log.warn("Not a problem! Retrying the connection within " + delay + " ms...");
+                    Thread.sleep(delay);
                 }
+            } catch (InterruptedException e) {
+                Log.error(e.getMessage(),e);
+                rows = 0;
+                break;
+            }
+        }
+        batch.reset();
+        return rows;
+    }
 
-                /* We don't want to stress the MySQL/cass connections. Let's relax a little bit. */
-                Log.info("Sleeping thread for " + this.refresh + "ms.");
-                Thread.sleep(this.refresh);
-                Log.info("Waking up thread after " + this.refresh + "ms.");
-
+    /*
+     * The backfill retries MySQL and Cassandra by itself, so anything else is a bug or a bad checkpoint.
+     */
+    private void runBackfill(Backfill backfill) {
+        try {
+            backfill.run();
+        } catch (Exception e) {
+            Log.error("Could not backfill mapping:" + getID());
+            Log.error(e.getMessage(),e);
+            System.exit(0);
+        }
+    }
 
-            } catch (Exception e) {
-                Log.error(e.getMessage(),e);
+    /*
+     * Goes on from the last checkpoint of this mapping, if there is one.
+     */
+    public void loadCheckpoint() {
+        if (this.checkpoints == null) {
+            return;
+        }
+        try {
+            String checkpoint = this.checkpoints.load(getCheckpointId());
+            if (checkpoint == null) {
+                Log.info("No checkpoint for mapping:" + getID() + ", starting from the beginning.");
+                return;
             }
+            this.committedNumericKey = Long.parseLong(checkpoint);
+            this.metrics.committedNumericKey = this.committedNumericKey;
+            Log.info("Resuming mapping:" + getID() + " after numericKey:" + this.committedNumericKey);
+        } catch (Exception e) {
+            Log.error("Could not load the checkpoint of mapping:" + getID());
+            Log.error(e.getMessage(),e);
+            System.exit(0);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,313 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+
+package net.indigital.mysql2cass;
+
+import net.indigital.mysql2cass.cass.AsyncWriter;
+import net.indigital.mysql2cass.cass.ClusterRegistry;
+import net.indigital.mysql2cass.checkpoint.CheckpointStore;
+import net.indigital.mysql2cass.spool.DeadLetterSpool;
+import org.apache.log4j.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Runs every Mapping on two shared, bounded pools instead of a couple of threads per mapping:
+ *  - the readers pool runs the setup of the mappings and their reads, each one scheduling the next,
+ *  - the writers pool writes the queued batches, and only runs when there is something to write.
+ * An idle mapping holds no thread, and neither does a mapping waiting for something: nothing on the pools
+ * sleeps or waits for a free batch, a failed attempt schedules the next one instead. So a mapping whose
+ * MySQL or Cassandra is down doesn't take a thread from the others.
+ * Mappings following the binlog keep a thread of their own, they are always reading, and so do backfills,
+ * replays of dead letters and streams, which hold a MySQL cursor while the writer catches up.
+ *
+ * Mappings can be paused and resumed, and shutdown() stops everything cleanly: reads stop,
+ * whatever was read is written and the checkpoints are closed.
+ */
+public class MappingScheduler implements MappingSchedulerMBean {
+
+    private static Logger Log = Logger.getLogger(MappingScheduler.class);
+
+    /* How long shutdown() waits for each pool [ms]. */
+    public static final long SHUTDOWN_TIMEOUT = 60000;
+
+    private ScheduledThreadPoolExecutor readers;
+    private ExecutorService writers;
+
+    private Map<String, Mapping> mappings = new LinkedHashMap<String, Mapping>();
+    /* Binlog stages, backfills, streams and dead letter replays. */
+    private List<Thread> ownThreads = new CopyOnWriteArrayList<Thread>();
+    private List<WriterStage> writerStages = new CopyOnWriteArrayList<WriterStage>();
+    private Boolean stopped = Boolean.FALSE;
+
+    public MappingScheduler(int threads) {
+        this.readers = new ScheduledThreadPoolExecutor(threads, threadFactory("reader"));
+        /* Reads waiting for their turn are dropped on shutdown. */
+        this.readers.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.writers = Executors.newFixedThreadPool(threads, threadFactory("writer"));
+    }
+
+    private static ThreadFactory threadFactory(final String kind) {
+        return new ThreadFactory() {
+            private int count = 0;
+            public synchronized Thread newThread(Runnable r) {
+                Thread tmp = new Thread(r);
+                tmp.setName("mysql2cass-" + kind + "-" + (this.count++));
+                return tmp;
+            }
+        };
+    }
+
+    /*
+     * Publishes the pause/resume/shutdown operations. A failure is logged, the scheduler works anyway.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName("net.indigital.mysql2cass:type=Scheduler"));
+        } catch (Exception e) {
+            Log.error("Could not register the JMX operations of the scheduler");
+            Log.error(e.getMessage(),e);
+        }
+    }
+
+    /*
+     * Starts a mapping. Its setup runs on the readers pool, then it schedules its own stages here.
+     */
+    public synchronized void schedule(Mapping mapping) {
+        mapping.scheduler = this;
+        this.mappings.put(mapping.getID(), mapping);
+        this.readers.execute(mapping);
+    }
+
+    /* Pool the WriterStages run on. */
+    public Executor getWriters() {
+        return this.writers;
+    }
+
+    /*
+     * Starts the reads of a mapping, a ReaderStage or a SegmentReplayStage. Every read cycle asks for
+     * the next one with readAgain(). 'writer' is null when the mapping only dumps to segments.
+     */
+    public synchronized void scheduleReader(Mapping mapping, Runnable reader, WriterStage writer) {
+        if (this.stopped) {
+            return;
+        }
+        if ((writer != null) && (!this.writerStages.contains(writer))) {
+            this.writerStages.add(writer);
+        }
+        readAgain(reader, 0);
+    }
+
+    /*
+     * Runs 'reader' again in 'delay' ms, unless we are stopping.
+     */
+    public void readAgain(Runnable reader, long delay) {
+        try {
+            this.readers.schedule(reader, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.debug("Not reading again, the scheduler is stopped.");
+        }
+    }
+
+    /*
+     * Wakes 'writer' up in 'delay' ms, to try a failed write again, unless we are stopping.
+     */
+    public void wakeUpLater(final WriterStage writer, long delay) {
+        try {
+            this.readers.schedule(new Runnable() {
+                public void run() {
+                    writer.wakeUp();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.debug("Not writing again, the scheduler is stopped.");
+        }
+    }
+
+    /*
+     * A stream keeps its MySQL cursor open while it waits for free batches, so it gets a thread of its own,
+     * which goes on reading until the mapping stops.
+     */
+    public synchronized void startStream(Mapping mapping, final ReaderStage reader, WriterStage writer) {
+        if (this.stopped) {
+            return;
+        }
+        if ((writer != null) && (!this.writerStages.contains(writer))) {
+            this.writerStages.add(writer);
+        }
+        Thread tmp = new Thread(new Runnable() {
+            public void run() {
+                reader.follow();
+            }
+        });
+        tmp.setName("mysql2cass-stream___" + mapping.getID());
+        tmp.start();
+        this.ownThreads.add(tmp);
+    }
+
+    /*
+     * A binlog stage is always reading, so it gets a thread of its own.
+     */
+    public synchronized void startBinlog(Mapping mapping, BinlogStage binlog, WriterStage writer) {
+        if (this.stopped) {
+            return;
+        }
+        this.writerStages.add(writer);
+        Thread tmp = new Thread(binlog);
+        tmp.setName("mysql2cass-binlog___" + mapping.getID());
+        tmp.start();
+        this.ownThreads.add(tmp);
+    }
+
+    /*
+     * A backfill gets a thread of its own too, instead of holding a reader for as long as it takes.
+     * 'backfill' schedules the reads of the mapping once it is done.
+     */
+    public synchronized void startBackfill(Mapping mapping, Runnable backfill, WriterStage writer) {
+        if (this.stopped) {
+            return;
+        }
+        this.writerStages.add(writer);
+        Thread tmp = new Thread(backfill);
+        tmp.setName("mysql2cass-backfill___" + mapping.getID());
+        tmp.start();
+        this.ownThreads.add(tmp);
+    }
+
+    /*
+     * Writing the dead letters left by the previous run retries Cassandra for as long as it takes,
+     * so it gets a thread of its own as well.
+     */
+    public synchronized void startDeadLetters(Mapping mapping, Runnable replay) {
+        if (this.stopped) {
+            return;
+        }
+        Thread tmp = new Thread(replay);
+        tmp.setName("mysql2cass-deadletters___" + mapping.getID());
+        tmp.start();
+        this.ownThreads.add(tmp);
+    }
+
+    public synchronized void pause(String mappingId) {
+        mapping(mappingId).paused = Boolean.TRUE;
+        Log.info("Paused mapping:" + mappingId);
+    }
+
+    public synchronized void resume(String mappingId) {
+        mapping(mappingId).paused = Boolean.FALSE;
+        Log.info("Resumed mapping:" + mappingId);
+    }
+
+    public synchronized boolean isPaused(String mappingId) {
+        return mapping(mappingId).paused;
+    }
+
+    private Mapping mapping(String mappingId) {
+        Mapping mapping = this.mappings.get(mappingId);
+        if (mapping == null) {
+            throw new IllegalArgumentException("Unknown mapping:" + mappingId);
+        }
+        return mapping;
+    }
+
+    /*
+     * Stops every mapping: no more reads, the batches already read are written and their checkpoints saved.
+     * Reads that don't stop within SHUTDOWN_TIMEOUT are interrupted.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (this.stopped) {
+                return;
+            }
+            this.stopped = Boolean.TRUE;
+        }
+        Log.info("Stopping every mapping...");
+        for (Mapping mapping : this.mappings.values()) {
+            mapping.stopping = Boolean.TRUE;
+        }
+        try {
+            this.readers.shutdown();
+            if (!this.readers.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Log.warn("Some readers didn't stop in " + SHUTDOWN_TIMEOUT + "ms, interrupting them.");
+                this.readers.shutdownNow();
+            }
+            for (Thread ownThread : this.ownThreads) {
+                ownThread.join(SHUTDOWN_TIMEOUT);
+            }
+
+            /* Writers stop once they have written everything queued. */
+            this.writers.shutdown();
+            if (!this.writers.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Log.warn("Some writers didn't finish in " + SHUTDOWN_TIMEOUT + "ms, interrupting them.");
+                this.writers.shutdownNow();
+            }
+            /* And the asynchronous writes they started. */
+            AsyncWriter.shutdownAll(SHUTDOWN_TIMEOUT);
+        } catch (InterruptedException e) {
+            Log.error(e.getMessage(),e);
+        }
+        for (WriterStage writer : this.writerStages) {
+            writer.close();
+        }
+        for (Mapping mapping : this.mappings.values()) {
+            mapping.closeSegments();
+        }
+        ClusterRegistry.shutdownAll();
+
+        Set<CheckpointStore> checkpoints = new HashSet<CheckpointStore>();
+        for (Mapping mapping : this.mappings.values()) {
+            if (mapping.checkpoints != null) {
+                checkpoints.add(mapping.checkpoints);
+            }
+        }
+        for (CheckpointStore store : checkpoints) {
+            store.close();
+        }
+        Set<DeadLetterSpool> spools = new HashSet<DeadLetterSpool>();
+        for (Mapping mapping : this.mappings.values()) {
+            if (mapping.deadLetters != null) {
+                spools.add(mapping.deadLetters);
+            }
+        }
+        for (DeadLetterSpool spool : spools) {
+            spool.close();
+        }
+        Log.info("Every mapping stopped.");
+    }
+}
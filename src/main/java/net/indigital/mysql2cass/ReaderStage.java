@@ -0,0 +1,431 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass;
+
+import net.indigital.mysql2cass.mysql.MySqlConnectionPool;
+import net.indigital.mysql2cass.mysql.MySqlReader;
+import net.indigital.mysql2cass.mysql.RowHandler;
+import net.indigital.mysql2cass.metrics.MappingMetrics;
+import net.indigital.mysql2cass.segment.SegmentWriter;
+import net.indigital.mysql2cass.spool.DeadLetter;
+import net.indigital.mysql2cass.spool.DeadLetterSink;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Producer stage of a Mapping, run by the MappingScheduler every 'refresh' ms, or as its
+ * AdaptiveController says.
+ * Reads pages of rows from MySQL and puts them in the bounded queue shared with the WriterStage,
+ * so the next page is being fetched while the previous one is being written to Cassandra.
+ * Batches are recycled: the reader takes empty ones from the 'free' queue and the writer gives
+ * them back once written. When there is no free batch the reader ends its cycle and comes back a bit
+ * later, until the writer catches up. A failed read is not retried in place either: the cycle ends and
+ * the next one is scheduled after pauseMySQLReconnections, so a dead MySQL doesn't hold a reader thread.
+ * Streams are the exception, they keep their cursor open and run on a thread of their own (follow()).
+ *
+ * The reader keeps its own position (MySqlReader.lastNumericKey), which runs ahead of
+ * Mapping.committedNumericKey, the last key acknowledged by the writer.
+ *
+ * In segment mode the batches are appended to the segment files instead, and the reader goes on
+ * after the last key in them. A SegmentReplayStage, maybe in another process, writes them.
+ */
+public class ReaderStage implements Runnable {
+
+    private static Logger Log = Logger.getLogger(ReaderStage.class);
+
+    /* What a cycle returns when it could not read, 'retryIn' tells when to try again. */
+    private static final int NOT_READ = -1;
+    /* How often a reader looks for a free batch while the writer catches up [ms]. */
+    private static final long FREE_BATCH_WAIT = 10;
+
+    private Mapping mapping;
+    private BlockingQueue<RowBatch> queue;
+    private BlockingQueue<RowBatch> free;
+    private MySqlReader mreader;
+    private MappingMetrics metrics;
+    private WriterStage writer;
+    /* Segment mode, null otherwise. */
+    private SegmentWriter segments;
+    /* Delay before the next cycle when the last one returned NOT_READ [ms]. */
+    private long retryIn;
+    /* When the source max key was last read from MySQL [ms]. */
+    private long maxKeyReadAt = 0;
+
+    public ReaderStage(Mapping mapping, BlockingQueue<RowBatch> queue, BlockingQueue<RowBatch> free,
+                       MySqlConnectionPool pool, WriterStage writer) {
+        this.mapping = mapping;
+        this.writer = writer;
+        this.queue = queue;
+        this.free = free;
+        this.mreader = new MySqlReader(pool);
+        this.mreader.setDeadLetters(mapping, mapping.getID());
+        this.mreader.setDateTimeConverter(mapping.dates);
+        /* Reading starts after the last key in Cassandra, -1 unless resuming from a checkpoint. */
+        this.mreader.lastNumericKey = mapping.committedNumericKey;
+        this.segments = mapping.segmentWriter;
+        if (this.segments != null) {
+            this.mreader.lastNumericKey = Math.max(this.mreader.lastNumericKey, this.segments.getLastKey());
+        }
+        this.metrics = mapping.metrics;
+    }
+
+    /*
+     * One read cycle, then asks the scheduler to run it again after the delay given by the controller.
+     */
+    public void run() {
+        long delay = this.mapping.refresh;
+        try {
+            delay = cycle();
+        } catch (Exception e) {
+            Log.error(e.getMessage(),e);
+        } finally {
+            Log.debug("Next read of table:" + this.mapping.table + " in " + delay + "ms.");
+            this.mapping.scheduler.readAgain(this, delay);
+        }
+    }
+
+    /*
+     * Runs the read cycles on the calling thread until the mapping stops. Streams run here, on a thread
+     * of their own given by the MappingScheduler.
+     */
+    public void follow() {
+        while (!this.mapping.stopping) {
+            long delay = this.mapping.refresh;
+            try {
+                delay = cycle();
+            } catch (Exception e) {
+                Log.error(e.getMessage(),e);
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /*
+     * One read cycle, unless paused or stopping. Returns the delay until the next one [ms].
+     */
+    private long cycle() throws Exception {
+        if ((this.mapping.paused) || (this.mapping.stopping)) {
+            return this.mapping.refresh;
+        }
+        AdaptiveController controller = this.mapping.controller;
+        if (this.mapping.fetchSize != 0) {
+            /* A stream reads everything there is, it never leaves anything behind. */
+            return controller.nextDelay(streamCycle(), Integer.MAX_VALUE);
+        }
+        int asked = controller.getElementsAtOnce();
+        int rows = readCycle(asked);
+        if (rows == NOT_READ) {
+            return this.retryIn;
+        }
+        return controller.nextDelay(rows, asked);
+    }
+
+    /*
+     * Reads and queues everything there is after lastNumericKey, then returns.
+     * Used to take the initial copy of a table before following its binlog, on a thread of its own.
+     */
+    public void catchUp() throws Exception {
+        int rows;
+        do {
+            rows = (this.mapping.fetchSize != 0) ? streamCycle() : readCycle(this.mapping.controller.getElementsAtOnce());
+            if (rows == NOT_READ) {
+                Thread.sleep(this.retryIn);
+            }
+        } while ((rows != 0) && (!this.mapping.stopping));
+    }
+
+    /*
+     * Batch mode. Reads up to elementsAtOnce rows after lastNumericKey and queues them.
+     * Returns the number of rows read, including the ones left out, or NOT_READ when there was no free
+     * batch or the read failed.
+     */
+    private int readCycle(int elementsAtOnce) throws Exception {
+        Log.debug("-------------------------------");
+        Log.debug("            MySQL");
+        Log.debug("-------------------------------");
+        RowBatch batch = this.free.poll();
+        if (batch == null) {
+            Log.debug("No free batch for table:" + this.mapping.table + ", waiting for the writer.");
+            this.retryIn = FREE_BATCH_WAIT;
+            return NOT_READ;
+        }
+        long mysqlStartTime = System.nanoTime();
+        long from = this.mreader.lastNumericKey;
+        /* MySQL access and reading. */
+        int rows;
+        try {
+            batch.reset();
+            /*  MySQL. Getting a connection to MySQL from the pool. */
+            Log.debug("Getting mysql connection. host:" + this.mapping.mysqlHost +
+                    ", port:" + this.mapping.mysqlPort);
+            this.mreader.connect();
+
+            /*  MySQL. Getting the elements from MySQL. */
+            Log.debug("Reading elements from host:" + this.mapping.mysqlHost +
+                    ", port:" + this.mapping.mysqlPort + ", table:" + this.mapping.table);
+            rows = this.mreader.readDataBase(this.mapping.table, this.mapping.numericKeyStr,
+                    elementsAtOnce, batch);
+            updateMaxKey(rows < Math.min(elementsAtOnce, batch.capacity()));
+            /*  MySQL. Giving the connection back. */
+            Log.debug("Releasing connection from host:" + this.mapping.mysqlHost +
+                    ", port:" + this.mapping.mysqlPort + ", table:" + this.mapping.table);
+            this.mreader.close();
+        } catch (Exception e) {
+            Log.error(e.getMessage(),e);
+            this.metrics.readRetries.incrementAndGet();
+            Log.warn("Error while trying to connect/read to/from mysql host:" + this.mapping.mysqlHost +
+                    ", port:" + this.mapping.mysqlPort + ", table:" + this.mapping.table);
+            Log.warn("Not a problem! Retrying the connection within " +
+                    this.mapping.pauseMySQLReconnections + " ms...");
+            this.mreader.lastNumericKey = from;
+            return notRead(batch, this.mapping.pauseMySQLReconnections);
+        }
+        long mysqlMicros = (System.nanoTime() - mysqlStartTime) / 1000;
+        long mysqlDiff = mysqlMicros / 1000;
+        this.metrics.mysqlFetchTime.record(mysqlMicros);
+
+        if (batch.size() > 0) {
+            Log.info("Read " + batch.size() +
+                    " elements in time:" + mysqlDiff +
+                    "ms. time/element:" + ((float)mysqlDiff / (float)batch.size()) + "ms.");
+            batch.readTime = mysqlDiff;
+            try {
+                handOff(batch);
+            } catch (Exception e) {
+                Log.error(e.getMessage(),e);
+                Log.warn("Error while trying to append to the segments of table:" + this.mapping.table);
+                Log.warn("Not a problem! Reading them again within " + this.mapping.pauseMySQLReconnections + " ms...");
+                this.mreader.lastNumericKey = from;
+                return notRead(batch, this.mapping.pauseMySQLReconnections);
+            }
+        } else {
+            this.free.offer(batch);
+            Log.info("Nothing new to read from mysql host:" + this.mapping.mysqlHost +
+                    ", port:" + this.mapping.mysqlPort + ", table:" + this.mapping.table +
+                    ", numericKeyStr:" + this.mapping.numericKeyStr);
+        }
+        return rows;
+    }
+
+    /*
+     * Gives 'batch' back, unused, and says when to try again.
+     */
+    private int notRead(RowBatch batch, long delay) {
+        batch.reset();
+        this.free.offer(batch);
+        this.retryIn = delay;
+        return NOT_READ;
+    }
+
+    /*
+     * Streaming mode. Reads everything after lastNumericKey through a MySQL cursor,
+     * queueing it in chunks of elementsAtOnce rows as the rows arrive.
+     * If MySQL fails in the middle, we reconnect and go on from the last queued chunk.
+     * Returns the number of rows read.
+     */
+    private int streamCycle() throws Exception {
+        long startTime = System.nanoTime();
+        ChunkQueuer handler = new ChunkQueuer();
+        /* Rows left out go through the handler, which knows the ones read again after reconnecting. */
+        this.mreader.setDeadLetters(handler, this.mapping.getID());
+        Boolean mysqlSuccess = Boolean.FALSE;
+        while ((!mysqlSuccess) && (!this.mapping.stopping)) {
+            try {
+                Log.debug("Streaming elements from host:" + this.mapping.mysqlHost +
+                        ", port:" + this.mapping.mysqlPort + ", table:" + this.mapping.table +
+                        ", fetchSize:" + this.mapping.fetchSize);
+                this.mreader.connect();
+                this.mreader.streamDataBase(this.mapping.table, this.mapping.numericKeyStr,
+                        this.mapping.fetchSize, this.mapping.schema, handler);
+                /* The cursor got to the end of the table. */
+                updateMaxKey(true);
+                this.mreader.close();
+                mysqlSuccess = Boolean.TRUE;
+            } catch (Exception e) {
+                Log.error(e.getMessage(),e);
+                this.metrics.readRetries.incrementAndGet();
+                Log.warn("Error while trying to stream from mysql host:" + this.mapping.mysqlHost +
+                        ", port:" + this.mapping.mysqlPort + ", table:" + this.mapping.table +
+                        ", lastNumericKey:" + this.mreader.lastNumericKey);
+                Log.warn("Not a problem! Retrying the connection within " +
+                        this.mapping.pauseMySQLReconnections + " ms...");
+                handler.discard();
+                Thread.sleep(this.mapping.pauseMySQLReconnections);
+            }
+        }
+        this.mreader.setDeadLetters(this.mapping, this.mapping.getID());
+
+        if (handler.rows > 0) {
+            long diff = (System.nanoTime() - startTime) / 1000000;
+            Log.info("Streamed " + handler.rows + " elements in time:" + diff +
+                    "ms. time/element:" + ((float)diff / (float)handler.rows) + "ms.");
+        } else {
+            Log.info("Nothing new to read from mysql host:" + this.mapping.mysqlHost +
+                    ", port:" + this.mapping.mysqlPort + ", table:" + this.mapping.table +
+                    ", numericKeyStr:" + this.mapping.numericKeyStr);
+        }
+        return handler.rows;
+    }
+
+    /*
+     * Updates the source max key, which tells how far behind this mapping is. Once the reader has
+     * 'caughtUp' with the table it is the last key read; until then it is read from MySQL, with a
+     * SELECT MAX, at most once per refresh.
+     */
+    private void updateMaxKey(boolean caughtUp) {
+        if (caughtUp) {
+            if (this.mreader.lastNumericKey >= 0) {
+                this.metrics.sourceMaxKey = this.mreader.lastNumericKey;
+            }
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now - this.maxKeyReadAt < this.mapping.refresh) {
+            return;
+        }
+        this.maxKeyReadAt = now;
+        long maxKey = this.mreader.readMaxKey(this.mapping.table, this.mapping.numericKeyStr);
+        if (maxKey >= 0) {
+            this.metrics.sourceMaxKey = maxKey;
+        }
+    }
+
+    /*
+     * Hands a batch to the writer, or appends it to the segments in segment mode.
+     * The queue holds every batch there is, so adding never waits. A failed append throws and leaves
+     * 'batch' to the caller, who reads its rows again.
+     */
+    private void handOff(RowBatch batch) throws Exception {
+        if (this.segments == null) {
+            markRead(batch);
+            this.queue.add(batch);
+            this.writer.wakeUp();
+            return;
+        }
+        this.segments.append(batch);
+        markRead(batch);
+        batch.reset();
+        this.free.offer(batch);
+    }
+
+    /*
+     * Accounts for a batch that is about to be handed to the writer.
+     */
+    private void markRead(RowBatch batch) {
+        batch.readAt = System.nanoTime();
+        this.metrics.rowsRead.mark(batch.size());
+        this.metrics.bytesRead.mark(batch.dataBytes());
+        this.metrics.lastNumericKey = batch.getLastKey();
+    }
+
+    /*
+     * Streaming mode handler. Hands out free batches for the rows coming from the MySQL cursor and
+     * queues every batch for the writer as soon as it is full. The memory used is bounded by the
+     * recycled batches plus the driver fetch buffer.
+     */
+    private class ChunkQueuer implements RowHandler, DeadLetterSink {
+        private RowBatch chunk = null;
+        private long chunkStartTime;
+        /* Last key left out, so it is not read again. */
+        private long skippedKey = -1;
+        /* Last key given to the dead letters, over every reconnection of the stream. */
+        private long deadLetterKey = -1;
+        public int rows = 0;
+
+        public RowBatch current() throws Exception {
+            if (this.chunk == null) {
+                /* The thread is ours, but we don't wait for the writer past a stop. */
+                while ((this.chunk = free.poll(FREE_BATCH_WAIT, TimeUnit.MILLISECONDS)) == null) {
+                    if (mapping.stopping) {
+                        throw new InterruptedException("Stopping mapping:" + mapping.getID());
+                    }
+                }
+                this.chunk.reset();
+                this.chunkStartTime = System.nanoTime();
+            }
+            return this.chunk;
+        }
+
+        public void added() throws Exception {
+            if (this.chunk.size() >= mapping.controller.getElementsAtOnce()) {
+                queueChunk();
+            }
+        }
+
+        public void skipped(long key) throws Exception {
+            this.skippedKey = key;
+        }
+
+        public void end() throws Exception {
+            if (this.chunk != null) {
+                queueChunk();
+            }
+            if (this.skippedKey > mreader.lastNumericKey) {
+                mreader.lastNumericKey = this.skippedKey;
+            }
+        }
+
+        /* Rows of a chunk that was not queued yet will be read again after reconnecting, and so will the
+         * ones left out after it. */
+        public void discard() {
+            if (this.chunk != null) {
+                this.chunk.reset();
+            }
+            this.skippedKey = -1;
+        }
+
+        /* A row left out again after reconnecting is already a dead letter. */
+        public void deadLetter(DeadLetter letter) {
+            if (letter.key <= this.deadLetterKey) {
+                return;
+            }
+            this.deadLetterKey = letter.key;
+            mapping.deadLetter(letter);
+        }
+
+        private void queueChunk() throws Exception {
+            if (this.chunk.size() == 0) {
+                return;
+            }
+            long micros = (System.nanoTime() - this.chunkStartTime) / 1000;
+            this.chunk.readTime = micros / 1000;
+            metrics.mysqlFetchTime.record(micros);
+            long lastKey = this.chunk.getLastKey();
+            this.rows += this.chunk.size();
+            handOff(this.chunk);
+            this.chunk = null;
+            mreader.lastNumericKey = Math.max(lastKey, this.skippedKey);
+        }
+    }
+}
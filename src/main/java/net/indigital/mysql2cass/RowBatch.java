@@ -0,0 +1,321 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/*
+ * Unit of work handed from the ReaderStage to the WriterStage of a Mapping:
+ * a set of rows read from MySQL, in key order.
+ * Batches coming from the binlog (BinlogStage) are in binlog order instead, may hold deleted rows
+ * and cleared cells, and carry the binlog position they get to in 'checkpoint'.
+ *
+ * Rows are stored column by column in primitive arrays sized once from elementsAtOnce:
+ *  - keys, int columns and datetime columns (epoch millis) in long[],
+ *  - string columns as UTF-8 bytes in a shared byte[] plus per-cell offset/length,
+ *  - a bitmap telling which cells are null (nothing to write for them).
+ * Batches are recycled with reset(), so once warmed up a Mapping reads and writes
+ * without allocating per row.
+ */
+public class RowBatch {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /* Initial room for each string cell, the byte storage grows if needed. */
+    private static final int BYTES_PER_STRING = 32;
+
+    public TableSchema schema;
+    /* Time spent reading these rows from MySQL [ms]. */
+    public long readTime;
+    /* When the batch was handed to the writer, from System.nanoTime(). Used for the row latency. */
+    public long readAt;
+    /* Position to save once the batch is written, for sources other than the keyset reads. null for those. */
+    public String checkpoint;
+    /* Timestamp of the first row in Cassandra, the others follow. 0 lets the writer session choose. */
+    public long clock;
+
+    private int capacity;
+    private int size = 0;
+    private long[] keys;
+    /* Per column: values for int/datetime columns, null for string columns. */
+    private long[][] longs;
+    /* Per column: start/length in 'bytes' for string columns, null for the others. */
+    private int[][] offsets;
+    private int[][] lengths;
+    private byte[] bytes;
+    private int bytesUsed = 0;
+    /* Bit (row * columns + column) is set when the cell is null. */
+    private long[] nulls;
+    /* Same bits, set when a null cell has to be deleted in Cassandra (an UPDATE set it to NULL). */
+    private long[] cleared;
+    /* Rows deleted in MySQL. Only their key matters. */
+    private boolean[] deleted;
+
+    public RowBatch(TableSchema schema, int capacity) {
+        int columns = schema.size();
+        int stringColumns = 0;
+        this.schema = schema;
+        this.capacity = capacity;
+        this.keys = new long[capacity];
+        this.longs = new long[columns][];
+        this.offsets = new int[columns][];
+        this.lengths = new int[columns][];
+        for (int c = 0; c < columns; c++) {
+            if (schema.types[c] == ColumnType.STRING) {
+                this.offsets[c] = new int[capacity];
+                this.lengths[c] = new int[capacity];
+                stringColumns++;
+            } else {
+                this.longs[c] = new long[capacity];
+            }
+        }
+        this.bytes = new byte[Math.max(1, capacity * stringColumns * BYTES_PER_STRING)];
+        this.nulls = new long[(capacity * columns + 63) / 64];
+        this.cleared = new long[this.nulls.length];
+        this.deleted = new boolean[capacity];
+    }
+
+    /*
+     * Empties the batch so it can be filled again.
+     */
+    public void reset() {
+        int words = (this.size * this.schema.size() + 63) / 64;
+        Arrays.fill(this.nulls, 0, words, 0L);
+        Arrays.fill(this.cleared, 0, words, 0L);
+        Arrays.fill(this.deleted, 0, this.size, false);
+        this.size = 0;
+        this.bytesUsed = 0;
+        this.readTime = 0;
+        this.readAt = 0;
+        this.checkpoint = null;
+        this.clock = 0;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public int capacity() {
+        return this.capacity;
+    }
+
+    public boolean isFull() {
+        return this.size == this.capacity;
+    }
+
+    /*
+     * Approximate size of the row data: 8 bytes per key and int/datetime cell, plus the UTF-8 strings.
+     */
+    public long dataBytes() {
+        int numericColumns = 0;
+        for (int c = 0; c < this.schema.size(); c++) {
+            if (this.longs[c] != null) {
+                numericColumns++;
+            }
+        }
+        return 8L * this.size * (1 + numericColumns) + this.bytesUsed;
+    }
+
+    /*
+     * Appends a row with the given key and returns its index. Its cells are null until set.
+     */
+    public int addRow(long key) {
+        int row = this.size++;
+        this.keys[row] = key;
+        int columns = this.schema.size();
+        for (int c = 0; c < columns; c++) {
+            setNull(row, c);
+        }
+        return row;
+    }
+
+    /*
+     * Appends the deletion of the row with the given key and returns its index.
+     */
+    public int addDeletedRow(long key) {
+        int row = addRow(key);
+        this.deleted[row] = true;
+        return row;
+    }
+
+    /*
+     * Takes back the last row added, when one of its values could not be read.
+     */
+    public void removeLastRow() {
+        int row = --this.size;
+        for (int c = 0; c < this.schema.size(); c++) {
+            /* Its strings are the last bytes written. */
+            if ((this.offsets[c] != null) && (!isNull(row, c))) {
+                this.bytesUsed = Math.min(this.bytesUsed, this.offsets[c][row]);
+            }
+            setNotNull(row, c);
+        }
+        this.deleted[row] = false;
+    }
+
+    public boolean isDeleted(int row) {
+        return this.deleted[row];
+    }
+
+    public long getKey(int row) {
+        return this.keys[row];
+    }
+
+    /* The batch is in key order, so this is the highest key it contains. */
+    public long getLastKey() {
+        return this.keys[this.size - 1];
+    }
+
+    public boolean isNull(int row, int column) {
+        int bit = row * this.schema.size() + column;
+        return (this.nulls[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    public void setNull(int row, int column) {
+        int bit = row * this.schema.size() + column;
+        this.nulls[bit >>> 6] |= (1L << bit);
+    }
+
+    private void setNotNull(int row, int column) {
+        int bit = row * this.schema.size() + column;
+        this.nulls[bit >>> 6] &= ~(1L << bit);
+        this.cleared[bit >>> 6] &= ~(1L << bit);
+    }
+
+    /*
+     * Marks a cell as null in MySQL where it may have had a value, so it has to be deleted in Cassandra.
+     */
+    public void setCleared(int row, int column) {
+        int bit = row * this.schema.size() + column;
+        this.nulls[bit >>> 6] |= (1L << bit);
+        this.cleared[bit >>> 6] |= (1L << bit);
+    }
+
+    public boolean isCleared(int row, int column) {
+        int bit = row * this.schema.size() + column;
+        return (this.cleared[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    /*
+     * int columns hold the value, datetime columns the epoch millis.
+     */
+    public long getLong(int row, int column) {
+        return this.longs[column][row];
+    }
+
+    public void setLong(int row, int column, long value) {
+        this.longs[column][row] = value;
+        setNotNull(row, column);
+    }
+
+    /*
+     * Stores a string cell as UTF-8, without any intermediate byte[].
+     */
+    public void setString(int row, int column, String value) {
+        int length = value.length();
+        ensureBytes(length * 3);
+        int start = this.bytesUsed;
+        int pos = start;
+        byte[] b = this.bytes;
+        for (int i = 0; i < length; i++) {
+            char ch = value.charAt(i);
+            if (ch < 0x80) {
+                b[pos++] = (byte) ch;
+            } else if (ch < 0x800) {
+                b[pos++] = (byte) (0xC0 | (ch >> 6));
+                b[pos++] = (byte) (0x80 | (ch & 0x3F));
+            } else if (Character.isHighSurrogate(ch) && (i + 1 < length) &&
+                       Character.isLowSurrogate(value.charAt(i + 1))) {
+                int cp = Character.toCodePoint(ch, value.charAt(++i));
+                b[pos++] = (byte) (0xF0 | (cp >> 18));
+                b[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                b[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                b[pos++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(ch)) {
+                b[pos++] = (byte) '?';
+            } else {
+                b[pos++] = (byte) (0xE0 | (ch >> 12));
+                b[pos++] = (byte) (0x80 | ((ch >> 6) & 0x3F));
+                b[pos++] = (byte) (0x80 | (ch & 0x3F));
+            }
+        }
+        this.offsets[column][row] = start;
+        this.lengths[column][row] = pos - start;
+        this.bytesUsed = pos;
+        setNotNull(row, column);
+    }
+
+    /*
+     * The UTF-8 bytes of a string cell, from the position to the limit of the buffer. The buffer shares
+     * the batch storage, so it is only valid until the batch is reset.
+     * It is not a slice: Thrift 0.6 takes the array offset of a slice off its length when writing it.
+     */
+    public ByteBuffer getStringBytes(int row, int column) {
+        return ByteBuffer.wrap(this.bytes, this.offsets[column][row], this.lengths[column][row]);
+    }
+
+    public String getString(int row, int column) {
+        return new String(this.bytes, this.offsets[column][row], this.lengths[column][row], UTF8);
+    }
+
+    /* Serialized size of a cell, used to estimate the size of the Cassandra batches. */
+    public int getStringLength(int row, int column) {
+        return this.lengths[column][row];
+    }
+
+    /*
+     * Copies the UTF-8 bytes of a string cell to 'out', used to write the batch to a segment file.
+     */
+    public void putStringBytes(int row, int column, ByteBuffer out) {
+        out.put(this.bytes, this.offsets[column][row], this.lengths[column][row]);
+    }
+
+    /*
+     * Stores a string cell from the next 'length' UTF-8 bytes of 'in', as read back from a segment file.
+     */
+    public void setStringBytes(int row, int column, ByteBuffer in, int length) {
+        ensureBytes(length);
+        in.get(this.bytes, this.bytesUsed, length);
+        this.offsets[column][row] = this.bytesUsed;
+        this.lengths[column][row] = length;
+        this.bytesUsed += length;
+        setNotNull(row, column);
+    }
+
+    /* Bytes used by the string cells, at least the sum of their lengths. */
+    public int stringBytes() {
+        return this.bytesUsed;
+    }
+
+    private void ensureBytes(int extra) {
+        if (this.bytesUsed + extra > this.bytes.length) {
+            this.bytes = Arrays.copyOf(this.bytes, Math.max(this.bytes.length * 2, this.bytesUsed + extra));
+        }
+    }
+}
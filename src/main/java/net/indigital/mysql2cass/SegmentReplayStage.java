@@ -0,0 +1,136 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass;
+
+import net.indigital.mysql2cass.metrics.MappingMetrics;
+import net.indigital.mysql2cass.segment.SegmentReader;
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.BlockingQueue;
+
+/*
+ * Producer stage of a Mapping in segment mode, instead of the ReaderStage feeding the WriterStage:
+ * reads back the batches dumped to the segment files and queues them for the writer.
+ * Run by the MappingScheduler like a ReaderStage. Each run replays every complete record there is,
+ * then the next one waits for 'refresh' ms, so the segments being dumped are followed.
+ * When there is no free batch the run ends there, and the next one comes back a bit later.
+ *
+ * Replay goes on after Mapping.committedNumericKey, -1 unless resuming from a checkpoint,
+ * so without resume the whole segments are written again to the new keyspace.
+ */
+public class SegmentReplayStage implements Runnable {
+
+    private static Logger Log = Logger.getLogger(SegmentReplayStage.class);
+
+    /* How often the replay looks for a free batch while the writer catches up [ms]. */
+    private static final long FREE_BATCH_WAIT = 10;
+
+    private Mapping mapping;
+    private BlockingQueue<RowBatch> queue;
+    private BlockingQueue<RowBatch> free;
+    private SegmentReader segments;
+    private MappingMetrics metrics;
+    private WriterStage writer;
+    /* Last key queued. */
+    private long lastNumericKey;
+
+    public SegmentReplayStage(Mapping mapping, BlockingQueue<RowBatch> queue, BlockingQueue<RowBatch> free,
+                              WriterStage writer) {
+        this.mapping = mapping;
+        this.queue = queue;
+        this.free = free;
+        this.writer = writer;
+        this.segments = mapping.segmentReader;
+        this.metrics = mapping.metrics;
+        this.lastNumericKey = mapping.committedNumericKey;
+    }
+
+    public void run() {
+        long delay = this.mapping.refresh;
+        try {
+            if ((!this.mapping.paused) && (!this.mapping.stopping) && (!replayCycle())) {
+                delay = FREE_BATCH_WAIT;
+            }
+        } catch (Exception e) {
+            Log.error(e.getMessage(),e);
+            Log.warn("Error while trying to replay the segments of table:" + this.mapping.table);
+            Log.warn("Not a problem! Retrying within " + delay + " ms...");
+        } finally {
+            Log.debug("Next replay of table:" + this.mapping.table + " in " + delay + "ms.");
+            this.mapping.scheduler.readAgain(this, delay);
+        }
+    }
+
+    /*
+     * Queues every complete record after lastNumericKey. Returns false when it ran out of free batches
+     * before getting to the end of the segments.
+     */
+    private boolean replayCycle() throws Exception {
+        long startTime = System.nanoTime();
+        int rows = 0;
+        boolean done = true;
+        while ((!this.mapping.paused) && (!this.mapping.stopping)) {
+            RowBatch batch = this.free.poll();
+            if (batch == null) {
+                done = false;
+                break;
+            }
+            long batchStartTime = System.nanoTime();
+            boolean read = false;
+            try {
+                batch.reset();
+                read = this.segments.next(batch, this.lastNumericKey);
+            } finally {
+                if (!read) {
+                    batch.reset();
+                    this.free.offer(batch);
+                }
+            }
+            if (!read) {
+                break;
+            }
+            batch.readTime = (System.nanoTime() - batchStartTime) / 1000000;
+            batch.readAt = System.nanoTime();
+            this.metrics.rowsRead.mark(batch.size());
+            this.metrics.bytesRead.mark(batch.dataBytes());
+            this.metrics.lastNumericKey = batch.getLastKey();
+            this.lastNumericKey = batch.getLastKey();
+            rows += batch.size();
+            /* The queue holds every batch there is. */
+            this.queue.add(batch);
+            this.writer.wakeUp();
+        }
+        if (rows > 0) {
+            long diff = (System.nanoTime() - startTime) / 1000000;
+            Log.info("Replayed " + rows + " elements in time:" + diff +
+                    "ms. time/element:" + ((float)diff / (float)rows) + "ms.");
+        } else {
+            Log.info("Nothing new to replay from the segments of table:" + this.mapping.table);
+        }
+        return done;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass;
+
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The columns of a <maps> definition, resolved once when the Mapping starts.
+ * Column i of every row read from MySQL is names[i], of type types[i].
+ */
+public class TableSchema {
+
+    public final String[] names;
+    public final ColumnType[] types;
+
+    public TableSchema(List<Map<String, String>> maps) {
+        this.names = new String[maps.size()];
+        this.types = new ColumnType[maps.size()];
+        for (int i = 0; i < maps.size(); i++) {
+            this.names[i] = maps.get(i).get("name");
+            this.types[i] = ColumnType.fromName(maps.get(i).get("type"));
+        }
+    }
+
+    public int size() {
+        return this.names.length;
+    }
+}
@@ -0,0 +1,624 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass;
+
+import net.indigital.mysql2cass.cass.AsyncWriter;
+import net.indigital.mysql2cass.cass.CassWriter;
+import net.indigital.mysql2cass.cass.WriterSession;
+import net.indigital.mysql2cass.metrics.MappingMetrics;
+import net.indigital.mysql2cass.retry.CircuitBreaker;
+import net.indigital.mysql2cass.retry.RetriesExhaustedException;
+import net.indigital.mysql2cass.spool.DeadLetter;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Consumer stage of a Mapping.
+ * Takes the batches queued by the ReaderStage, writes them to Cassandra and acknowledges them
+ * by moving Mapping.committedNumericKey forward. A key is only committed once every row up to it
+ * has been written. Batches from the binlog are acknowledged by saving their binlog position.
+ * With writerThreads > 1 each batch is fanned out to a pool of writers, partitioned by row key.
+ * With maxInFlight > 1 batches are written asynchronously instead, up to maxInFlight at a time per
+ * Cassandra host, and acknowledged in order as they complete.
+ * Every batch gets its timestamps here, in queue order, so a later change of a row always wins
+ * whatever the order the writes end up in.
+ * Failed writes are retried as the RetryPolicy of the mapping says, through the CircuitBreaker of the
+ * Cassandra host. A batch the policy gives up on goes to the dead letters and is acknowledged, so the
+ * mapping goes on.
+ * A batch lost for any other reason (another error, or the mapping stopped while retrying it) stops the
+ * writer and its mapping: nothing is acknowledged after it, so a restart copies it again.
+ * Every batch, written or not, is reset and given back to the ReaderStage through the 'free' queue.
+ *
+ * The writer doesn't own a thread. Producers call wakeUp() after queueing a batch, and the writer
+ * then runs on the given executor until the queue is empty. It never runs twice at the same time,
+ * and never waits there: a failed write is tried again when the scheduler wakes the writer up, and
+ * the parallel and asynchronous writes wake it up once they are done.
+ *
+ * Writer sessions are opened once, here, and kept for the whole life of the mapping.
+ */
+public class WriterStage implements Runnable {
+
+    private static Logger Log = Logger.getLogger(WriterStage.class);
+
+    private Mapping mapping;
+    private MappingMetrics metrics;
+    private BlockingQueue<RowBatch> queue;
+    private BlockingQueue<RowBatch> free;
+    private WriterSession session;
+    private String keyspace;
+    private String columnFamily;
+    private Executor executor;
+    /* Set while the writer is scheduled or running. */
+    private AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    /* Writer pool, only used when the mapping has more than one writerThreads. */
+    private ExecutorService workers;
+    private WriterSession[] sessions;
+
+    /* Asynchronous writes, only used when the mapping has more than one maxInFlight. */
+    private AsyncWriter async;
+    private BlockingQueue<WriterSession> idleSessions;
+    /* Writes in flight, in queue order. Guarded by itself. */
+    private Deque<InFlight> inFlight = new ArrayDeque<InFlight>();
+
+    /* Last timestamp given to a row. */
+    private long lastClock = 0;
+
+    /* Set once a batch is lost. Nothing is written nor acknowledged after it. */
+    private volatile Boolean failed = Boolean.FALSE;
+
+    /* Batch being written, while it is up to this stage: until it is done, or handed to the workers or
+     * the AsyncWriter. A failed attempt is tried again at retryAt (System.nanoTime()). */
+    private volatile RowBatch current = null;
+    private long currentStart;
+    private int attempts;
+    private volatile long retryAt;
+    /* Set while the workers or the AsyncWriter are to wake the writer up. */
+    private volatile boolean waiting = false;
+    private Runnable whenFree = new Runnable() {
+        public void run() {
+            waiting = false;
+            wakeUp();
+        }
+    };
+
+    public WriterStage(Mapping mapping, BlockingQueue<RowBatch> queue, BlockingQueue<RowBatch> free,
+                       CassWriter cwriter, String keyspace, String columnFamily, Executor executor) {
+        this.mapping = mapping;
+        this.executor = executor;
+        this.metrics = mapping.metrics;
+        this.queue = queue;
+        this.free = free;
+        this.keyspace = keyspace;
+        this.columnFamily = columnFamily;
+
+        if (mapping.maxInFlight > 1) {
+            /* Every write in flight needs a session of its own. */
+            this.async = AsyncWriter.forHost(mapping.cassHost, mapping.cassPort, mapping.maxInFlight);
+            this.idleSessions = new ArrayBlockingQueue<WriterSession>(mapping.maxInFlight);
+            for (int i = 0; i < mapping.maxInFlight; i++) {
+                this.idleSessions.add(cwriter.openSession(mapping.keysType, keyspace, columnFamily, mapping.schema));
+            }
+        } else if (mapping.writerThreads > 1) {
+            /* Every worker has its own session and pending batch, but they all share the Hector cluster. */
+            this.sessions = new WriterSession[mapping.writerThreads];
+            for (int i = 0; i < this.sessions.length; i++) {
+                this.sessions[i] = cwriter.openSession(mapping.keysType, keyspace, columnFamily, mapping.schema);
+            }
+            final String threadName = "mysql2cass-writer___" + mapping.getID();
+            this.workers = Executors.newFixedThreadPool(mapping.writerThreads, new ThreadFactory() {
+                private int count = 0;
+                public synchronized Thread newThread(Runnable r) {
+                    Thread tmp = new Thread(r);
+                    tmp.setName(threadName + "___writer" + (this.count++));
+                    return tmp;
+                }
+            });
+        } else {
+            this.session = cwriter.openSession(mapping.keysType, keyspace, columnFamily, mapping.schema);
+        }
+    }
+
+    /*
+     * Makes sure the writer will run. Called by the producers after queueing a batch.
+     */
+    public void wakeUp() {
+        if (this.scheduled.compareAndSet(false, true)) {
+            try {
+                this.executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                this.scheduled.set(false);
+                Log.warn("Writer of mapping:" + this.mapping.getID() + " stopped, " + this.queue.size() +
+                        " batches left unwritten.");
+            }
+        }
+    }
+
+    /*
+     * Writes every queued batch it can, then returns.
+     */
+    public void run() {
+        try {
+            drain();
+        } finally {
+            this.scheduled.set(false);
+            /* A batch may have been queued, or a write finished, after the last check. */
+            if (ready()) {
+                wakeUp();
+            }
+        }
+    }
+
+    /*
+     * Whether there is something to do now: a batch to start, or the current one to try again.
+     */
+    private boolean ready() {
+        if (this.waiting) {
+            return false;
+        }
+        if (this.current == null) {
+            return !this.queue.isEmpty();
+        }
+        return System.nanoTime() - this.retryAt >= 0;
+    }
+
+    private void drain() {
+        while (!this.waiting) {
+            if (this.current == null) {
+                RowBatch batch = this.queue.poll();
+                if (batch == null) {
+                    return;
+                }
+                if (this.failed) {
+                    finish(batch, 0, null);
+                    continue;
+                }
+                start(batch);
+            } else if (System.nanoTime() - this.retryAt < 0) {
+                /* Woken up before the retry of the current batch, which is already scheduled. */
+                return;
+            }
+            if (this.failed) {
+                RowBatch batch = this.current;
+                this.current = null;
+                finish(batch, this.currentStart, null);
+            } else if (this.async != null) {
+                writeAsync();
+            } else if (this.workers != null) {
+                writeInParallel();
+            } else {
+                writeSync();
+            }
+        }
+    }
+
+    /*
+     * Makes 'batch' the current one.
+     */
+    private void start(RowBatch batch) {
+        Log.debug("-------------------------------");
+        Log.debug("          CASSANDRA");
+        Log.debug("-------------------------------");
+        Log.info("We have " + batch.size() + " elements to insert to host:" + this.mapping.cassHost
+                + ", port:" + this.mapping.cassPort + ", keyspace:" + this.keyspace +
+                ", column_family:" + this.columnFamily);
+        batch.clock = nextClock(batch.size());
+        this.currentStart = System.nanoTime();
+        this.retryAt = this.currentStart;
+        this.attempts = 0;
+        this.current = batch;
+    }
+
+    /*
+     * Done with a batch: acknowledges it, after giving its rows up if 'error' is a RetriesExhaustedException.
+     * Any other error, or a lost batch before it, and the batch is lost. Then it is given back.
+     */
+    private void finish(RowBatch batch, long cassStartTime, Exception error) {
+        boolean acknowledged = false;
+        try {
+            if (!this.failed) {
+                if (error instanceof RetriesExhaustedException) {
+                    giveUp(batch, (RetriesExhaustedException) error);
+                } else if (error != null) {
+                    throw error;
+                }
+                acknowledge(batch, cassStartTime);
+                acknowledged = true;
+            }
+        } catch (Exception e) {
+            Log.error(e.getMessage(),e);
+        } finally {
+            if (!acknowledged) {
+                lost(batch);
+            }
+            release(batch);
+        }
+    }
+
+    /*
+     * One attempt at the current batch. If it fails, the writer is woken up again for the next one
+     * instead of waiting here.
+     */
+    private void writeSync() {
+        RowBatch batch = this.current;
+        Exception error = null;
+        try {
+            int state = this.mapping.breaker.tryAcquire();
+            if (state == CircuitBreaker.WAIT) {
+                retryLater(this.mapping.breaker.retryIn());
+                return;
+            }
+            Exception failure = tryWrite(this.session, batch, 0, 1, state == CircuitBreaker.PROBE);
+            if (failure != null) {
+                retryLater(retryDelay(++this.attempts, failure, 0, 1));
+                return;
+            }
+        } catch (Exception e) {
+            error = e;
+        }
+        this.current = null;
+        finish(batch, this.currentStart, error);
+    }
+
+    /*
+     * The current batch is tried again in 'delay' ms.
+     */
+    private void retryLater(long delay) {
+        this.retryAt = System.nanoTime() + delay * 1000000;
+        this.mapping.scheduler.wakeUpLater(this, delay);
+    }
+
+    /*
+     * Timestamps for the rows of the next batch: clock, clock + 1... in microseconds, like Hector's.
+     */
+    private long nextClock(int rows) {
+        long clock = Math.max(System.currentTimeMillis() * 1000, this.lastClock + 1);
+        this.lastClock = clock + rows;
+        return clock;
+    }
+
+    /*
+     * Commits a written batch. release() gives it back to the reader.
+     */
+    private void acknowledge(RowBatch batch, long cassStartTime) throws Exception {
+        long now = System.nanoTime();
+        long cassDiff = (now - cassStartTime) / 1000000;
+
+        /* Acknowledging the batch. Binlog batches are acknowledged by their binlog position. */
+        if (batch.checkpoint == null) {
+            this.mapping.committedNumericKey = batch.getLastKey();
+            this.metrics.committedNumericKey = batch.getLastKey();
+            saveCheckpoint(this.mapping.getCheckpointId(), String.valueOf(batch.getLastKey()));
+        } else {
+            saveCheckpoint(BinlogStage.checkpointId(this.mapping), batch.checkpoint);
+        }
+        this.metrics.cassandraWriteTime.record((now - cassStartTime) / 1000);
+        this.mapping.controller.written(batch.size(), (now - cassStartTime) / 1000);
+        this.metrics.rowLatency.record((now - batch.readAt) / 1000, batch.size());
+        this.metrics.rowsWritten.mark(batch.size());
+        this.metrics.bytesWritten.mark(batch.dataBytes());
+
+        /* Giving some information about the timing. */
+        Log.info("Wrote " + batch.size() +
+                " elements in time:" + cassDiff +
+                "ms. time/element:" + ((float)cassDiff / (float)batch.size()) + "ms." +
+                " committedNumericKey:" + this.mapping.committedNumericKey);
+    }
+
+    /*
+     * The batch can be filled again. There is room for every batch in 'free', so this never waits.
+     */
+    private void release(RowBatch batch) {
+        batch.reset();
+        this.free.offer(batch);
+    }
+
+    /*
+     * A batch that was neither written nor given up. Nothing after it can be acknowledged, or a restart
+     * would go on past its rows, so the writer stops and so does the mapping.
+     */
+    private void lost(RowBatch batch) {
+        if (this.failed) {
+            Log.debug("Dropped a batch of " + batch.size() + " elements behind a lost one.");
+            return;
+        }
+        this.failed = Boolean.TRUE;
+        this.mapping.stopping = Boolean.TRUE;
+        Log.error("Lost a batch of " + batch.size() + " elements to host:" + this.mapping.cassHost +
+                ", port:" + this.mapping.cassPort + ", keyspace:" + this.keyspace +
+                ", column_family:" + this.columnFamily + ". Stopping mapping:" + this.mapping.getID() +
+                ", committedNumericKey:" + this.mapping.committedNumericKey);
+    }
+
+    /*
+     * Starts writing the current batch and returns. While the host has maxInFlight writes in flight the
+     * batch waits, and the writer is woken up once there is room.
+     */
+    private void writeAsync() {
+        final RowBatch batch = this.current;
+        AsyncWriter.WriteFuture<RowBatch> future = new AsyncWriter.WriteFuture<RowBatch>(new Callable<RowBatch>() {
+            public RowBatch call() throws Exception {
+                WriterSession writer = idleSessions.take();
+                try {
+                    writeRows(writer, batch, 0, 1);
+                } finally {
+                    idleSessions.put(writer);
+                }
+                return batch;
+            }
+        }, new Runnable() {
+            public void run() {
+                acknowledgeWritten();
+            }
+        });
+        InFlight write = new InFlight(batch, future, this.currentStart);
+        synchronized (this.inFlight) {
+            this.inFlight.addLast(write);
+        }
+        /* Cleared by whenFree, which may run before trySubmit() returns. */
+        this.waiting = true;
+        boolean started;
+        try {
+            started = this.async.trySubmit(future, this.whenFree);
+        } catch (Exception e) {
+            synchronized (this.inFlight) {
+                this.inFlight.remove(write);
+            }
+            this.current = null;
+            this.waiting = false;
+            finish(batch, this.currentStart, e);
+            return;
+        }
+        if (!started) {
+            synchronized (this.inFlight) {
+                this.inFlight.remove(write);
+            }
+            return;
+        }
+        this.current = null;
+        this.waiting = false;
+    }
+
+    /*
+     * Called as writes complete. Acknowledges the written batches in queue order, so the checkpoint
+     * never gets past a batch still in flight. Once a write is lost, nothing behind it is acknowledged.
+     */
+    private void acknowledgeWritten() {
+        synchronized (this.inFlight) {
+            while ((!this.inFlight.isEmpty()) && this.inFlight.peekFirst().future.isDone()) {
+                InFlight write = this.inFlight.pollFirst();
+                Exception error = null;
+                try {
+                    write.future.get();
+                } catch (ExecutionException e) {
+                    error = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                } catch (Exception e) {
+                    error = e;
+                }
+                finish(write.batch, write.startTime, error);
+            }
+        }
+    }
+
+    /*
+     * The partition of the batch given up is left out of Cassandra, its rows go to the dead letters and the
+     * mapping goes on after it. The rows of the other partitions are in Cassandra already.
+     */
+    private void giveUp(RowBatch batch, RetriesExhaustedException e) {
+        int rows = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            if (WriterSession.partitionOf(batch.getKey(i), e.getPartitions()) == e.getPartition()) {
+                this.mapping.deadLetter(DeadLetter.of(this.mapping.getID(), e.getMessage(), batch, i));
+                rows++;
+            }
+        }
+        Log.error("Gave up " + rows + " of a batch of " + batch.size() + " elements, keys:" + batch.getKey(0) + "-" +
+                batch.getLastKey() + ", partition " + e.getPartition() + "/" + e.getPartitions() +
+                ", to host:" + this.mapping.cassHost + ", port:" + this.mapping.cassPort +
+                ", keyspace:" + this.keyspace + ", column_family:" + this.columnFamily);
+        Log.error(e.getMessage(),e);
+    }
+
+    /* A batch being written asynchronously. */
+    private static class InFlight {
+        private RowBatch batch;
+        private AsyncWriter.WriteFuture<RowBatch> future;
+        private long startTime;
+
+        public InFlight(RowBatch batch, AsyncWriter.WriteFuture<RowBatch> future, long startTime) {
+            this.batch = batch;
+            this.future = future;
+            this.startTime = startTime;
+        }
+    }
+
+    /*
+     * Stops the writer pool, if any. Called once nothing else will be queued.
+     */
+    public void close() {
+        RowBatch batch = this.current;
+        if (batch != null) {
+            /* It was waiting for a retry when the scheduler stopped. */
+            this.current = null;
+            lost(batch);
+            release(batch);
+        }
+        if (this.workers != null) {
+            this.workers.shutdown();
+        }
+    }
+
+    /*
+     * Saves the committed key or binlog position, so a restart can resume from it. If it can't be saved
+     * we go on: the rows are in Cassandra, a restart would just copy some of them again.
+     */
+    private void saveCheckpoint(String id, String value) {
+        if (this.mapping.checkpoints == null) {
+            return;
+        }
+        try {
+            this.mapping.checkpoints.save(id, value);
+        } catch (Exception e) {
+            Log.error("Could not save the checkpoint:" + id + ", value:" + value);
+            Log.error(e.getMessage(),e);
+        }
+    }
+
+    /*
+     * Splits the current batch by row key among the writer workers and returns. The last worker to be done
+     * finishes the batch and wakes the writer up for the next one.
+     * All the columns of a row go to the same worker, so the order of the writes of one row is kept.
+     */
+    private void writeInParallel() {
+        final RowBatch batch = this.current;
+        final long cassStartTime = this.currentStart;
+        final int n = this.sessions.length;
+        final AtomicInteger left = new AtomicInteger(n);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        final List<RetriesExhaustedException> exhausted =
+                Collections.synchronizedList(new ArrayList<RetriesExhaustedException>());
+        this.current = null;
+        this.waiting = true;
+        for (int i = 0; i < n; i++) {
+            final WriterSession writer = this.sessions[i];
+            final int partition = i;
+            Runnable task = new Runnable() {
+                public void run() {
+                    try {
+                        writeRows(writer, batch, partition, n);
+                    } catch (RetriesExhaustedException e) {
+                        exhausted.add(e);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, (e instanceof Exception) ? (Exception) e : new ExecutionException(e));
+                    } finally {
+                        /* The batch is done only when every worker is done, even if one of them gave up. */
+                        if (left.decrementAndGet() == 0) {
+                            finishInParallel(batch, cassStartTime, failure.get(), exhausted);
+                            waiting = false;
+                            wakeUp();
+                        }
+                    }
+                }
+            };
+            try {
+                this.workers.execute(task);
+            } catch (RejectedExecutionException e) {
+                failure.compareAndSet(null, e);
+                if (left.decrementAndGet() == 0) {
+                    finishInParallel(batch, cassStartTime, failure.get(), exhausted);
+                    this.waiting = false;
+                }
+            }
+        }
+    }
+
+    /*
+     * Like finish(), for a batch written by the workers: every partition given up goes to the dead letters,
+     * unless a partition was lost, which loses the batch.
+     */
+    private void finishInParallel(RowBatch batch, long cassStartTime, Exception error,
+                                  List<RetriesExhaustedException> exhausted) {
+        if ((error == null) && (!this.failed)) {
+            for (RetriesExhaustedException e : exhausted) {
+                giveUp(batch, e);
+            }
+        }
+        finish(batch, cassStartTime, error);
+    }
+
+    /*
+     * Writes a set of rows to Cassandra, retrying until it gets in, the retry policy gives up or the mapping
+     * stops. Only on threads of the mapping or of the AsyncWriter, as it waits between attempts.
+     */
+    private void writeRows(WriterSession writer, RowBatch rows, int partition, int partitions) throws Exception {
+        int attempts = 0;
+        Exception failure;
+        do {
+            /* While the host is failing, only one writer at a time gets to try it. */
+            boolean probe = this.mapping.breaker.acquire();
+            failure = tryWrite(writer, rows, partition, partitions, probe);
+            if (failure != null) {
+                Thread.sleep(retryDelay(++attempts, failure, partition, partitions));
+            }
+        } while (failure != null);
+    }
+
+    /*
+     * One attempt at writing a set of rows, once the CircuitBreaker said so. Returns why it failed, null if
+     * it didn't. Insertions are idempotent, so if anything fails we just write the whole set again.
+     */
+    private Exception tryWrite(WriterSession writer, RowBatch rows, int partition, int partitions, boolean probe) {
+        try {
+            int flushes = writer.writeRows(rows, partition, partitions);
+            this.mapping.breaker.success();
+            Log.info("Just wrote partition " + partition + "/" + partitions + " of " + rows.size() +
+                    " elements in " + flushes +
+                    " batches to cassandra host:" + this.mapping.cassHost + ", port:" + this.mapping.cassPort +
+                    ", keyspace:" + this.keyspace + ", column_family:" + this.columnFamily);
+            return null;
+        } catch (Exception e) {
+            this.mapping.breaker.failure(probe);
+            Log.error(e.getMessage(),e);
+            Log.warn("Error while trying to write to cassandra host:" + this.mapping.cassHost +
+                    ", port:" + this.mapping.cassPort + ", keyspace:" + this.keyspace +
+                    ", column_family:" + this.columnFamily);
+            return e;
+        }
+    }
+
+    /*
+     * How long to wait after 'attempts' failed attempts, the last one because of 'failure' [ms].
+     * Throws once the retry policy gives up, or if the mapping is stopping.
+     */
+    private long retryDelay(int attempts, Exception failure, int partition, int partitions) throws Exception {
+        if (!this.mapping.cassRetry.canRetry(attempts)) {
+            throw new RetriesExhaustedException("Gave up writing partition " + partition + "/" + partitions +
+                    " after " + attempts + " attempts", failure, partition, partitions);
+        }
+        if (this.mapping.stopping) {
+            throw new InterruptedException("Stopped writing partition " + partition + "/" + partitions +
+                    " after " + attempts + " attempts, mapping:" + this.mapping.getID() + " is stopping");
+        }
+        this.metrics.writeRetries.incrementAndGet();
+        long delay = this.mapping.cassRetry.delay(attempts);
+        Log.warn("Not a problem! Retrying the connection within " + delay + " ms...");
+        return delay;
+    }
+}
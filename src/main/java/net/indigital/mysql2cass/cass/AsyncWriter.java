@@ -0,0 +1,202 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+
+package net.indigital.mysql2cass.cass;
+
+import org.apache.log4j.Logger;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Asynchronous writes to one Cassandra host, with at most maxInFlight of them in flight at a time.
+ * submit() returns as soon as the write is on its way, or blocks while there are already maxInFlight
+ * of them, so a fast producer is slowed down by the host instead of queueing without bounds.
+ * trySubmit() doesn't block, it calls back once there is room instead.
+ *
+ * Hector only has a blocking client, so every write in flight holds one of the maxInFlight threads
+ * of the host. Those threads are shared by every mapping writing to the host, the first one to ask
+ * for it decides maxInFlight.
+ */
+public class AsyncWriter {
+
+    private static Logger Log = Logger.getLogger(AsyncWriter.class);
+
+    private static final Map<String, AsyncWriter> hosts = new HashMap<String, AsyncWriter>();
+
+    private final String host;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+    private final ExecutorService executor;
+    /* Called back when a write is over, see trySubmit(). Guarded by itself. */
+    private final Set<Runnable> waiting = new LinkedHashSet<Runnable>();
+
+    private AsyncWriter(final String host, int maxInFlight) {
+        this.host = host;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.executor = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+            private int count = 0;
+            public synchronized Thread newThread(Runnable r) {
+                Thread tmp = new Thread(r);
+                tmp.setName("mysql2cass-cassandra___" + host + "___" + (this.count++));
+                return tmp;
+            }
+        });
+    }
+
+    /*
+     * The writer of a host, created the first time it is asked for.
+     */
+    public static synchronized AsyncWriter forHost(String host, int port, int maxInFlight) {
+        String key = ClusterRegistry.seeds(host, port);
+        AsyncWriter writer = hosts.get(key);
+        if (writer == null) {
+            writer = new AsyncWriter(key, maxInFlight);
+            hosts.put(key, writer);
+            Log.info("Cassandra host:" + key + " accepts up to " + maxInFlight + " writes in flight.");
+        } else if (writer.maxInFlight != maxInFlight) {
+            Log.warn("Cassandra host:" + key + " already accepts up to " + writer.maxInFlight +
+                    " writes in flight, ignoring maxInFlight:" + maxInFlight);
+        }
+        return writer;
+    }
+
+    /*
+     * Starts 'write'. The future completes when Cassandra has acknowledged it, and then calls its done().
+     */
+    public <T> WriteFuture<T> submit(Callable<T> write, Runnable whenDone) throws InterruptedException {
+        WriteFuture<T> future = new WriteFuture<T>(write, whenDone);
+        submit(future);
+        return future;
+    }
+
+    /*
+     * Same as above, for a future created by the caller.
+     */
+    public void submit(WriteFuture<?> future) throws InterruptedException {
+        this.inFlight.acquire();
+        start(future);
+    }
+
+    /*
+     * Same as above without waiting. Returns false when there are already maxInFlight writes in flight,
+     * 'whenFree' is then called as soon as one of them is over, so the caller can try again.
+     */
+    public boolean trySubmit(WriteFuture<?> future, Runnable whenFree) {
+        /* Before trying, so a write ending in between calls it back. */
+        synchronized (this.waiting) {
+            this.waiting.add(whenFree);
+        }
+        if (!this.inFlight.tryAcquire()) {
+            return false;
+        }
+        synchronized (this.waiting) {
+            this.waiting.remove(whenFree);
+        }
+        start(future);
+        return true;
+    }
+
+    private void start(WriteFuture<?> future) {
+        future.writer = this;
+        try {
+            this.executor.execute(future);
+        } catch (RejectedExecutionException e) {
+            this.inFlight.release();
+            throw e;
+        }
+    }
+
+    /*
+     * A write is over: its slot is given back and whoever was waiting for one is called back.
+     */
+    private void release() {
+        this.inFlight.release();
+        List<Runnable> callbacks;
+        synchronized (this.waiting) {
+            callbacks = new ArrayList<Runnable>(this.waiting);
+            this.waiting.clear();
+        }
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    public int getInFlight() {
+        return this.maxInFlight - this.inFlight.availablePermits();
+    }
+
+    public int getMaxInFlight() {
+        return this.maxInFlight;
+    }
+
+    /*
+     * Waits for the writes in flight to every host, then stops. Called on shutdown.
+     */
+    public static synchronized void shutdownAll(long timeout) throws InterruptedException {
+        for (AsyncWriter writer : hosts.values()) {
+            writer.executor.shutdown();
+        }
+        for (AsyncWriter writer : hosts.values()) {
+            if (!writer.executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+                Log.warn("Writes to cassandra host:" + writer.host + " didn't finish in " + timeout + "ms.");
+                writer.executor.shutdownNow();
+            }
+        }
+        hosts.clear();
+    }
+
+    /*
+     * A write in flight. Gives its slot back and calls 'whenDone' once it is over, successfully or not.
+     */
+    public static class WriteFuture<T> extends FutureTask<T> {
+        private Runnable whenDone;
+        private AsyncWriter writer;
+
+        public WriteFuture(Callable<T> write, Runnable whenDone) {
+            super(write);
+            this.whenDone = whenDone;
+        }
+
+        protected void done() {
+            if (this.writer != null) {
+                this.writer.release();
+            }
+            if (this.whenDone != null) {
+                this.whenDone.run();
+            }
+        }
+    }
+}
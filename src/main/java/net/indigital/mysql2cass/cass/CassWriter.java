@@ -28,43 +28,64 @@ package net.indigital.mysql2cass.cass;
 
 import me.prettyprint.cassandra.model.BasicColumnDefinition;
 import me.prettyprint.cassandra.model.BasicColumnFamilyDefinition;
+import me.prettyprint.cassandra.model.ConfigurableConsistencyLevel;
 
 import me.prettyprint.cassandra.serializers.StringSerializer;
-import me.prettyprint.cassandra.serializers.IntegerSerializer;
-import me.prettyprint.cassandra.serializers.UUIDSerializer;
 
 import me.prettyprint.cassandra.service.ThriftCfDef;
 import me.prettyprint.cassandra.service.ThriftKsDef;
-import me.prettyprint.cassandra.utils.TimeUUIDUtils;
 import me.prettyprint.hector.api.Cluster;
+import me.prettyprint.hector.api.HConsistencyLevel;
 import me.prettyprint.hector.api.Keyspace;
-import me.prettyprint.hector.api.beans.HColumn;
 import me.prettyprint.hector.api.ddl.*;
 import me.prettyprint.hector.api.exceptions.HInvalidRequestException;
 import me.prettyprint.hector.api.factory.HFactory;
-import me.prettyprint.hector.api.mutation.MutationResult;
-import me.prettyprint.hector.api.mutation.Mutator;
+import net.indigital.mysql2cass.TableSchema;
+import net.indigital.mysql2cass.retry.RetriesExhaustedException;
+import net.indigital.mysql2cass.retry.RetryPolicy;
 import org.apache.log4j.Logger;
 
-import java.text.SimpleDateFormat;
 import java.util.*;
 
-import static me.prettyprint.hector.api.factory.HFactory.createColumn;
-
 
 public class CassWriter {
     private static Logger Log = Logger.getLogger(CassWriter.class);
 
+    /* Default thresholds for the batched write path. */
+    public static final int DEFAULT_BATCH_ROWS = 200;
+    public static final int DEFAULT_BATCH_BYTES = 1024 * 1024;
+
+    /* Hector's default. */
+    public static final String DEFAULT_WRITE_CONSISTENCY = "QUORUM";
+    public static final String SIMPLE_STRATEGY = "SimpleStrategy";
+    public static final String NETWORK_TOPOLOGY_STRATEGY = "NetworkTopologyStrategy";
+
     private Cluster cluster;
 
-    public void createCluster(String clustername, String address, int port){
-        this.cluster= HFactory.getOrCreateCluster(clustername, address + ":" + port);
-        Log.info("Cassandra getOrCreateCluster returned. Don't really know if this is good yet.");
+    private int batchRows = DEFAULT_BATCH_ROWS;
+    private int batchBytes = DEFAULT_BATCH_BYTES;
+    private String writeConsistency = DEFAULT_WRITE_CONSISTENCY;
+    private int ttl = 0;
+
+    /*
+     * Hector clusters are thread safe, so several writers can share the same one.
+     * See ClusterRegistry.
+     */
+    public Cluster getCluster() {
+        return this.cluster;
     }
 
-    public void dropKeyspace(String keyspaceName) throws Exception {
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    /*
+     * Drops the keyspace if it exists, retrying as 'retry' says. Throws once it gives up.
+     */
+    public void dropKeyspace(String keyspaceName, RetryPolicy retry) throws Exception {
         if (this.cluster.describeKeyspace(keyspaceName) != null ) {
             Boolean dropped = Boolean.FALSE;
+            int attempts = 0;
             while (!dropped) {
                 try {
                     Log.info("Keyspace:" + keyspaceName + " already exists, dropping it.");
@@ -73,16 +94,33 @@ public class CassWriter {
                 } catch (Exception e) {
                     Log.error("Exception while trying to drop the keyspace:" + keyspaceName);
                     Log.error(e.getMessage(),e);
+                    if (!retry.canRetry(++attempts)) {
+                        throw new RetriesExhaustedException("Could not drop the keyspace:" + keyspaceName +
+                                " after " + attempts + " attempts", e);
+                    }
+                    long delay = retry.delay(attempts);
+                    Log.warn("Not a problem! Retrying within " + delay + " ms...");
+                    Thread.sleep(delay);
                 }
             }
         }
     }
 
-    public void createKeyspace(String keyspaceName) throws Exception {
-        int replicationFactor = 1;
+    /*
+     * Creates the keyspace, if it isn't there yet, with the given replication strategy:
+     * "SimpleStrategy" with 'replicationFactor' replicas, or "NetworkTopologyStrategy" with the
+     * replicas of every data center in 'dataCenters', as "DC1:3,DC2:2".
+     */
+    public void createKeyspace(String keyspaceName, String replicationStrategy, int replicationFactor,
+                               String dataCenters) throws Exception {
         try {
-            KeyspaceDefinition keyspacedef = HFactory.createKeyspaceDefinition(keyspaceName,
-                    ThriftKsDef.DEF_STRATEGY_CLASS,  replicationFactor, null);
+            ThriftKsDef keyspacedef;
+            if (replicationStrategy.equals(NETWORK_TOPOLOGY_STRATEGY)) {
+                keyspacedef = new ThriftKsDef(keyspaceName, ThriftKsDef.NETWORK_TOPOLOGY_STRATEGY, 0, null);
+                keyspacedef.setStrategyOptions(parseDataCenters(dataCenters));
+            } else {
+                keyspacedef = new ThriftKsDef(keyspaceName, ThriftKsDef.DEF_STRATEGY_CLASS, replicationFactor, null);
+            }
             this.cluster.addKeyspace(keyspacedef, true);
             Log.info("Keyspace:" +  keyspaceName + " created");
 
@@ -104,9 +142,19 @@ public class CassWriter {
         }
     }
 
-    public void close(){
-        this.cluster.getConnectionManager().shutdown();
-        Log.info("Cassandra connection closed.");
+    /*
+     * "DC1:3,DC2:2" as {DC1=3, DC2=2}. Throws if it is not like that.
+     */
+    public static Map<String, String> parseDataCenters(String dataCenters) {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        for (String dataCenter : dataCenters.split(",")) {
+            String[] parts = dataCenter.trim().split(":");
+            if ((parts.length != 2) || parts[0].trim().isEmpty() || (Integer.parseInt(parts[1].trim()) < 1)) {
+                throw new IllegalArgumentException("Expected DC:replicas, found: " + dataCenter);
+            }
+            options.put(parts[0].trim(), parts[1].trim());
+        }
+        return options;
     }
 
     public void createSchema (String keysType, String keyspaceName, String columnFamily,
@@ -114,6 +162,17 @@ public class CassWriter {
         final StringSerializer ss = StringSerializer.get();
 
         try {
+            /* When resuming, the column family may be there already. */
+            KeyspaceDefinition keyspaceDefinition = this.cluster.describeKeyspace(keyspaceName);
+            if (keyspaceDefinition != null) {
+                for (ColumnFamilyDefinition existing : keyspaceDefinition.getCfDefs()) {
+                    if (existing.getName().equals(columnFamily)) {
+                        Log.info("columnFamily:" + columnFamily + " already exists in the keyspace:" + keyspaceName +
+                                ". Not a problem.");
+                        return;
+                    }
+                }
+            }
 
             // Creating the column family definition
             BasicColumnFamilyDefinition columnFamilyDefinition = new BasicColumnFamilyDefinition();
@@ -160,9 +219,11 @@ public class CassWriter {
             // This will affect to the column names, keep UTF8TYPE
             cfDef.setComparatorType(ComparatorType.UTF8TYPE);
 
-            // The keys will always be INTEGERS but we can write as the user decided (int or string).
+            // The keys will always be INTEGERS but we can write as the user decided (int, long or string).
             if (keysType.equals("int")) {
                 cfDef.setKeyValidationClass(ComparatorType.INTEGERTYPE.getClassName());
+            } else if (keysType.equals("long")) {
+                cfDef.setKeyValidationClass(ComparatorType.LONGTYPE.getClassName());
             } else {
                 cfDef.setKeyValidationClass(ComparatorType.UTF8TYPE.getClassName());
             }
@@ -176,50 +237,70 @@ public class CassWriter {
         }
     }
 
-    // Keys are INTEGERTYPE
-    // type could be {'string', 'int', 'datetime'}.
-    public void set(String keysType, String keyspaceName, String columnFamily, String key,
-                    String columnName, String value, String type) throws Exception {
-        final StringSerializer ss = StringSerializer.get();
-        final IntegerSerializer si = IntegerSerializer.get();
-        final UUIDSerializer su = UUIDSerializer.get();
-
-        Keyspace keyspaceOperator = HFactory.createKeyspace(keyspaceName, this.cluster);
-
-        // The keys will always be INTEGERS but we can write as the user decided (int or string).
-        Mutator<Integer> mutatorInt = HFactory.createMutator(keyspaceOperator, si);
-        Integer keyInt = Integer.parseInt(key);
-        Mutator<String> mutatorStr = HFactory.createMutator(keyspaceOperator, ss);
-        String keyStr = String.valueOf(Integer.parseInt(key)); // Doing this conversion not to get the filled size.
-
-        if (type.equals("int")) {
-            HColumn<String, Integer> col = createColumn(columnName, Integer.parseInt(value), ss, si);
-            Log.debug("Inserting an <int> value. value:" + value);
-            /* Must be a better way to do it! DRY! @TODO*/
-            if (keysType.equals("int")) {mutatorInt.addInsertion(keyInt, columnFamily, col);
-            } else { mutatorStr.addInsertion(keyStr, columnFamily, col);}
-
-        } else if (type.equals("datetime")) {
-            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
-            Date date = format.parse(value);
-            UUID timeUUID = TimeUUIDUtils.getTimeUUID(date.getTime());
-            Log.debug("Inserting a <datetime> value. value:" + value + " ,date:" + date +
-                    " ,timeUUID:" + timeUUID.toString());
-            HColumn<String, UUID> col = createColumn(columnName, timeUUID, ss, su);
-            /* Must be a better way to do it! DRY! @TODO*/
-            if (keysType.equals("int")) {mutatorInt.addInsertion(keyInt, columnFamily, col);
-            } else { mutatorStr.addInsertion(keyStr, columnFamily, col);}
-        } else {
-            HColumn<String, String> col = createColumn(columnName, value, ss, ss);
-            Log.debug("Inserting a <string> value. value:" + value);
-            /* Must be a better way to do it! DRY! @TODO*/
-            if (keysType.equals("int")) {mutatorInt.addInsertion(keyInt, columnFamily, col);
-            } else { mutatorStr.addInsertion(keyStr, columnFamily, col);}
+    /*
+     * Sets the default thresholds of the sessions opened by this writer. A pending batch is sent to
+     * Cassandra as soon as it holds 'batchRows' rows or roughly 'batchBytes' serialized bytes.
+     */
+    public void setBatchLimits(int batchRows, int batchBytes) {
+        this.batchRows = batchRows;
+        this.batchBytes = batchBytes;
+    }
+
+    /*
+     * Consistency level of the writes of the sessions opened from now on, one of HConsistencyLevel.
+     */
+    public void setWriteConsistency(String writeConsistency) {
+        this.writeConsistency = writeConsistency;
+    }
+
+    /*
+     * Time to live of every column inserted by the sessions opened from now on [s]. 0 for ever.
+     */
+    public void setTtl(int ttl) {
+        this.ttl = ttl;
+    }
+
+    /*
+     * Whether the name is one of HConsistencyLevel.
+     */
+    public static boolean isConsistencyLevel(String name) {
+        for (HConsistencyLevel level : HConsistencyLevel.values()) {
+            if (level.name().equals(name)) {
+                return true;
+            }
         }
+        return false;
+    }
+
+    /*
+     * Opens a long-lived writer session for one column family, resolving the keyspace operator
+     * and the encoding of every column of 'schema' up front. Open it once and keep it.
+     */
+    public WriterSession openSession(String keysType, String keyspaceName, String columnFamily,
+                                     TableSchema schema) {
+        return openSession(keysType, keyspaceName, columnFamily, schema, this.writeConsistency);
+    }
 
-        /* Must be a better way to do it! DRY! */
-        if (keysType.equals("int")) {MutationResult mr = mutatorInt.execute();
-        } else { MutationResult mr = mutatorStr.execute();}
+    /*
+     * Same as above, writing with the given consistency level instead.
+     */
+    public WriterSession openSession(String keysType, String keyspaceName, String columnFamily,
+                                     TableSchema schema, String writeConsistency) {
+        ConfigurableConsistencyLevel consistency = new ConfigurableConsistencyLevel();
+        consistency.setDefaultWriteConsistencyLevel(HConsistencyLevel.valueOf(writeConsistency));
+        return openSession(keysType, HFactory.createKeyspace(keyspaceName, this.cluster, consistency),
+                columnFamily, schema);
+    }
+
+    /*
+     * Same as above, on a keyspace operator given by the caller.
+     */
+    public WriterSession openSession(String keysType, Keyspace keyspaceOperator, String columnFamily,
+                                     TableSchema schema) {
+        WriterSession session = new WriterSession(keyspaceOperator, keysType, columnFamily, schema);
+        session.setBatchLimits(this.batchRows, this.batchBytes);
+        session.setTtl(this.ttl);
+        return session;
     }
 
     /*
@@ -0,0 +1,150 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+
+package net.indigital.mysql2cass.cass;
+
+import me.prettyprint.cassandra.connection.DynamicLoadBalancingPolicy;
+import me.prettyprint.cassandra.connection.LeastActiveBalancingPolicy;
+import me.prettyprint.cassandra.connection.LoadBalancingPolicy;
+import me.prettyprint.cassandra.connection.RoundRobinBalancingPolicy;
+import me.prettyprint.cassandra.service.CassandraHost;
+import me.prettyprint.cassandra.service.CassandraHostConfigurator;
+import me.prettyprint.hector.api.Cluster;
+import me.prettyprint.hector.api.factory.HFactory;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+
+/*
+ * One Hector Cluster per set of Cassandra seed hosts, shared by every mapping writing to it.
+ * Hector keeps a pool of connections to every host of the cluster and spreads the requests
+ * among them with the load balancing policy, so the writes don't all go through one coordinator.
+ * The first mapping asking for a cluster defines its pool settings.
+ */
+public class ClusterRegistry {
+
+    private static Logger Log = Logger.getLogger(ClusterRegistry.class);
+
+    public static final int DEFAULT_MAX_ACTIVE = CassandraHost.DEFAULT_MAX_ACTIVE;
+    public static final long DEFAULT_MAX_WAIT = CassandraHost.DEFAULT_MAX_WAITTIME_WHEN_EXHAUSTED;
+    public static final int DEFAULT_SOCKET_TIMEOUT = 0;
+    public static final String DEFAULT_LOAD_BALANCING = "leastActive";
+
+    /* Hector names of the clusters asked for, to close them. */
+    private static final Set<String> names = new HashSet<String>();
+
+    /*
+     * The seed hosts as Hector wants them, "host1:port,host2:port", in a fixed order so that
+     * the same hosts listed in a different order are the same cluster.
+     * Hosts may come with their own port, 'port' is used for the rest.
+     */
+    public static String seeds(String hosts, int port) {
+        List<String> seeds = new ArrayList<String>();
+        for (String host : hosts.split(",")) {
+            host = host.trim();
+            if (host.length() > 0) {
+                seeds.add((host.indexOf(':') < 0) ? host + ":" + port : host);
+            }
+        }
+        Collections.sort(seeds);
+        StringBuilder result = new StringBuilder();
+        for (String seed : seeds) {
+            if (result.length() > 0) {
+                result.append(",");
+            }
+            result.append(seed);
+        }
+        return result.toString();
+    }
+
+    /*
+     * Whether the name is one of the load balancing policies known by policy().
+     */
+    public static boolean isLoadBalancing(String name) {
+        return name.equals("leastActive") || name.equals("roundRobin") || name.equals("dynamic");
+    }
+
+    private static LoadBalancingPolicy policy(String name) {
+        if (name.equals("roundRobin")) {
+            return new RoundRobinBalancingPolicy();
+        } else if (name.equals("dynamic")) {
+            return new DynamicLoadBalancingPolicy();
+        }
+        return new LeastActiveBalancingPolicy();
+    }
+
+    /*
+     * Returns the cluster of the given seed hosts, creating it the first time.
+     * 'maxActive' is the size of the connection pool of every host, 'maxWait' how long to wait for
+     * a connection when they are all busy (-1 forever) and 'socketTimeout' the Thrift socket timeout
+     * (0 none) [ms]. With 'autoDiscoverHosts' the rest of the ring is found from the seeds.
+     */
+    public static Cluster get(String hosts, int port, int maxActive, long maxWait, int socketTimeout,
+                              String loadBalancing, boolean autoDiscoverHosts) {
+        String seeds = seeds(hosts, port);
+        /* Hector keeps the clusters by name, so every set of seeds has a name of its own.
+         * The name goes in a JMX ObjectName too, where ':' can't be. */
+        String name = "mysql2cass_cluster___" + seeds.replace(':', '_');
+        synchronized (names) {
+            if (HFactory.getCluster(name) == null) {
+                Log.info("Creating Cassandra cluster:" + seeds + ", maxActive:" + maxActive + ", maxWait:" + maxWait +
+                        ", socketTimeout:" + socketTimeout + ", loadBalancing:" + loadBalancing +
+                        ", autoDiscoverHosts:" + autoDiscoverHosts);
+            }
+            names.add(name);
+            CassandraHostConfigurator configurator = new CassandraHostConfigurator(seeds);
+            configurator.setMaxActive(maxActive);
+            configurator.setMaxWaitTimeWhenExhausted(maxWait);
+            configurator.setCassandraThriftSocketTimeout(socketTimeout);
+            configurator.setLoadBalancingPolicy(policy(loadBalancing));
+            configurator.setAutoDiscoverHosts(autoDiscoverHosts);
+            configurator.setRetryDownedHosts(true);
+            return HFactory.getOrCreateCluster(name, configurator);
+        }
+    }
+
+    /*
+     * Closes the connections of every cluster. Called once nothing is being written any more.
+     */
+    public static void shutdownAll() {
+        synchronized (names) {
+            for (String name : names) {
+                Cluster cluster = HFactory.getCluster(name);
+                if (cluster == null) {
+                    continue;
+                }
+                try {
+                    HFactory.shutdownCluster(cluster);
+                    Log.info("Cassandra cluster:" + name + " closed.");
+                } catch (Exception e) {
+                    Log.error(e.getMessage(),e);
+                }
+            }
+            names.clear();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+
+package net.indigital.mysql2cass.cass;
+
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import net.indigital.mysql2cass.ColumnType;
+import net.indigital.mysql2cass.DateTimeConverter;
+import net.indigital.mysql2cass.RowBatch;
+import net.indigital.mysql2cass.TableSchema;
+
+import java.nio.ByteBuffer;
+
+/*
+ * The bytes a row of a mapping is written as: its key, as keysType says, and the name and value of
+ * every column, as CassWriter.createSchema() defines the column family.
+ * Everything is resolved once from the schema; encoding is an indexed loop with a switch on the type
+ * of the column, with no virtual calls the JIT could not inline.
+ * Used by every WriterSession, and by anything else that has to write the same bytes.
+ */
+public class RowEncoder {
+
+    private KeyEncoding keyEncoding;
+    private ColumnType[] types;
+    private ByteBuffer[] columnNames;
+
+    public RowEncoder(String keysType, TableSchema schema) {
+        // The keys will always be INTEGERS but we can write as the user decided (int, long or string).
+        this.keyEncoding = KeyEncoding.of(keysType);
+        this.types = schema.types.clone();
+        StringSerializer ss = StringSerializer.get();
+        this.columnNames = new ByteBuffer[schema.size()];
+        for (int c = 0; c < schema.size(); c++) {
+            this.columnNames[c] = ss.toByteBuffer(schema.names[c]);
+        }
+    }
+
+    public int size() {
+        return this.types.length;
+    }
+
+    /*
+     * Serialized name of column 'column'. It is shared, callers must not change it.
+     */
+    public ByteBuffer getColumnName(int column) {
+        return this.columnNames[column];
+    }
+
+    public ByteBuffer encodeKey(long key) {
+        switch (this.keyEncoding) {
+            case INTEGER:
+                return encodeInteger(key);
+            case LONG:
+                return encodeLong(key);
+            default:
+                return encodeDigits(key);
+        }
+    }
+
+    /*
+     * Turns one cell of a RowBatch into the bytes Cassandra expects for the validation class
+     * given to the column in CassWriter.createSchema().
+     */
+    public ByteBuffer encodeValue(RowBatch batch, int row, int column) {
+        switch (this.types[column]) {
+            case INT:
+                return encodeInteger(batch.getLong(row, column));
+            case DATETIME:
+                /* Datetimes are written as time UUIDs, so they sort by time. */
+                return DateTimeConverter.timeUUID(batch.getLong(row, column));
+            default:
+                /* Strings are already UTF-8 in the batch, the bytes go out as they are. */
+                return batch.getStringBytes(row, column);
+        }
+    }
+
+    /* Only for the logs. */
+    public String valueToString(RowBatch batch, int row, int column) {
+        if (this.types[column] == ColumnType.STRING) {
+            return batch.getString(row, column);
+        }
+        return String.valueOf(batch.getLong(row, column));
+    }
+
+    /* Same bytes as IntegerSerializer, without boxing. */
+    static ByteBuffer encodeInt(int value) {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        buffer.putInt(0, value);
+        return buffer;
+    }
+
+    /* Same bytes as LongSerializer, without boxing. */
+    static ByteBuffer encodeLong(long value) {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(0, value);
+        return buffer;
+    }
+
+    /*
+     * Bytes for IntegerType, which takes any big-endian two's complement length.
+     * Values that fit in an int keep the 4 bytes they always had, bigger ones take 8.
+     */
+    static ByteBuffer encodeInteger(long value) {
+        if ((value >= Integer.MIN_VALUE) && (value <= Integer.MAX_VALUE)) {
+            return encodeInt((int) value);
+        }
+        return encodeLong(value);
+    }
+
+    /*
+     * Decimal digits of the key in ASCII (so UTF-8), written straight into the buffer
+     * instead of going through String.valueOf() and the StringSerializer.
+     */
+    static ByteBuffer encodeDigits(long key) {
+        if (key == Long.MIN_VALUE) {
+            return StringSerializer.get().toByteBuffer(String.valueOf(key));
+        }
+        long abs = Math.abs(key);
+        int digits = 1;
+        for (long rest = abs / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        int length = (key < 0) ? digits + 1 : digits;
+        byte[] bytes = new byte[length];
+        for (int i = length - 1; i >= length - digits; i--) {
+            bytes[i] = (byte) ('0' + (abs % 10));
+            abs /= 10;
+        }
+        if (key < 0) {
+            bytes[0] = '-';
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /*
+     * How the row keys are written, from the keysType of the mapping.
+     */
+    private static enum KeyEncoding {
+        /* keysType int, IntegerType. */
+        INTEGER,
+        /* keysType long, LongType. */
+        LONG,
+        /* keysType string, UTF8Type. */
+        STRING;
+
+        static KeyEncoding of(String keysType) {
+            if (keysType.equals("int")) {
+                return INTEGER;
+            } else if (keysType.equals("long")) {
+                return LONG;
+            }
+            return STRING;
+        }
+    }
+}
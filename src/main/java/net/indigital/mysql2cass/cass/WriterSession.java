@@ -0,0 +1,212 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.cass;
+
+import me.prettyprint.cassandra.serializers.ByteBufferSerializer;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.factory.HFactory;
+import me.prettyprint.hector.api.mutation.Mutator;
+import net.indigital.mysql2cass.RowBatch;
+import net.indigital.mysql2cass.TableSchema;
+import org.apache.log4j.Logger;
+
+import java.nio.ByteBuffer;
+
+import static me.prettyprint.hector.api.factory.HFactory.createColumn;
+
+/*
+ * Long-lived writer for one (keyspace, column family) pair.
+ * Everything that only depends on the configuration is resolved once, when the session is opened:
+ * the keyspace operator, the mutator and the RowEncoder of the schema.
+ * The write path is an indexed loop over the columns that encodes the values (see RowEncoder) and adds them
+ * to the mutator, which is reused between flushes.
+ *
+ * A session is not thread safe. Every writer thread has its own one.
+ */
+public class WriterSession {
+    private static Logger Log = Logger.getLogger(WriterSession.class);
+
+    /* Thrift overhead per column: timestamp, ttl and length prefixes. Only used to estimate batch sizes. */
+    private static final int COLUMN_OVERHEAD = 24;
+
+    private static final ByteBufferSerializer sb = ByteBufferSerializer.get();
+
+    private String keysType;
+    private String columnFamily;
+    private TableSchema schema;
+    private Keyspace keyspaceOperator;
+    private Mutator<ByteBuffer> mutator;
+
+    /* Resolved from the schema. Column names are serialized once and shared by every insertion. */
+    private RowEncoder encoder;
+    private ByteBuffer[] columnNames;
+    private int[] columnSizes;
+
+    private int batchRows = CassWriter.DEFAULT_BATCH_ROWS;
+    private int batchBytes = CassWriter.DEFAULT_BATCH_BYTES;
+    /* Time to live of the inserted columns [s], 0 for ever. */
+    private int ttl = 0;
+    private int pendingRows = 0;
+    private int pendingBytes = 0;
+    private int flushes = 0;
+    /* Last timestamp given to a row. Timestamps never repeat, so a later change of a row always wins. */
+    private long lastClock = 0;
+
+    WriterSession(Keyspace keyspaceOperator, String keysType, String columnFamily, TableSchema schema) {
+        this.keysType = keysType;
+        this.columnFamily = columnFamily;
+        this.schema = schema;
+        this.keyspaceOperator = keyspaceOperator;
+        /* Keys are encoded by us (see RowEncoder), so the mutator just passes the buffers through. */
+        this.mutator = HFactory.createMutator(this.keyspaceOperator, sb);
+
+        this.encoder = new RowEncoder(keysType, schema);
+        this.columnNames = new ByteBuffer[schema.size()];
+        this.columnSizes = new int[schema.size()];
+        for (int c = 0; c < schema.size(); c++) {
+            this.columnNames[c] = this.encoder.getColumnName(c);
+            this.columnSizes[c] = COLUMN_OVERHEAD + this.columnNames[c].remaining();
+        }
+        Log.info("Opened writer session for keyspace:" + keyspaceOperator.getKeyspaceName() +
+                ", columnFamily:" + columnFamily);
+    }
+
+    /*
+     * Sets the thresholds of this session. A pending batch is sent to Cassandra
+     * as soon as it holds 'batchRows' rows or roughly 'batchBytes' serialized bytes.
+     */
+    public void setBatchLimits(int batchRows, int batchBytes) {
+        this.batchRows = batchRows;
+        this.batchBytes = batchBytes;
+    }
+
+    public void setTtl(int ttl) {
+        this.ttl = ttl;
+    }
+
+    /*
+     * Adds all the non-null columns of row 'row' of 'batch' to the pending batch,
+     * and the deletion of its cleared columns. A deleted row becomes a row deletion.
+     * Every column of the row gets the same timestamp, later than the one of the previous row, or
+     * the one of the row given by the batch.
+     */
+    public void addRow(RowBatch batch, int row) throws Exception {
+        long key = batch.getKey(row);
+        ByteBuffer rowKey = this.encoder.encodeKey(key);
+        long clock = (batch.clock != 0) ? batch.clock + row : nextClock();
+        if (batch.isDeleted(row)) {
+            Log.debug("columnFamily:" + this.columnFamily + "[" + key + "] deleted.");
+            this.mutator.addDeletion(rowKey, this.columnFamily, clock);
+            this.pendingBytes += COLUMN_OVERHEAD + rowKey.remaining();
+        }
+        for (int c = 0; c < this.columnNames.length; c++) {
+            if (batch.isNull(row, c)) {
+                if (batch.isCleared(row, c)) {
+                    this.mutator.addDeletion(rowKey, this.columnFamily, this.columnNames[c], sb, clock);
+                    this.pendingBytes += this.columnSizes[c];
+                }
+                continue;
+            }
+            ByteBuffer value = this.encoder.encodeValue(batch, row, c);
+            if (Log.isDebugEnabled()) {
+                Log.debug("columnFamily:" + this.columnFamily + "[" + key + "][" + this.schema.names[c] + "] = " +
+                        this.encoder.valueToString(batch, row, c) + ". (type=" + this.schema.types[c].getName() + ")");
+            }
+            this.mutator.addInsertion(rowKey, this.columnFamily, (this.ttl > 0) ?
+                    createColumn(this.columnNames[c], value, clock, this.ttl, sb, sb) :
+                    createColumn(this.columnNames[c], value, clock, sb, sb));
+            this.pendingBytes += this.columnSizes[c] + value.remaining();
+        }
+        this.pendingRows++;
+        if ((this.pendingRows >= this.batchRows) || (this.pendingBytes >= this.batchBytes)) {
+            flush();
+        }
+    }
+
+    /*
+     * Sends the pending batch to Cassandra in a single batch_mutate call.
+     * Returns the number of rows written.
+     */
+    public int flush() throws Exception {
+        int rows = this.pendingRows;
+        if (rows > 0) {
+            Log.debug("Flushing " + rows + " rows (" + this.pendingBytes + " bytes) to Cassandra.");
+            this.mutator.execute();
+            this.flushes++;
+        }
+        this.pendingRows = 0;
+        this.pendingBytes = 0;
+        return rows;
+    }
+
+    /*
+     * Drops whatever is pending. Used after a failed flush so the batch can be retried from scratch.
+     */
+    public void discardBatch() {
+        this.mutator.discardPendingMutations();
+        this.pendingRows = 0;
+        this.pendingBytes = 0;
+    }
+
+    /*
+     * Writes a whole batch read from MySQL, flushing it in chunks of batchRows/batchBytes.
+     * Insertions are idempotent, so on failure the whole batch can simply be written again.
+     * Returns the number of batch_mutate calls issued.
+     */
+    public int writeRows(RowBatch rows) throws Exception {
+        return writeRows(rows, 0, 1);
+    }
+
+    /*
+     * Same as above, but only for the rows whose key belongs to 'partition' out of 'partitions'.
+     * This way several writers can share one batch without copying it.
+     */
+    public int writeRows(RowBatch rows, int partition, int partitions) throws Exception {
+        this.flushes = 0;
+        try {
+            for (int i = 0; i < rows.size(); i++) {
+                if (partitionOf(rows.getKey(i), partitions) == partition) {
+                    addRow(rows, i);
+                }
+            }
+            flush();
+        } catch (Exception e) {
+            discardBatch();
+            throw e;
+        }
+        return this.flushes;
+    }
+
+    private long nextClock() {
+        this.lastClock = Math.max(this.keyspaceOperator.createClock(), this.lastClock + 1);
+        return this.lastClock;
+    }
+
+    public static int partitionOf(long key, int partitions) {
+        return (int) Math.abs(key % partitions);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.checkpoint;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.*;
+
+/*
+ * CheckpointStore kept in a local append-only file, shared by every mapping.
+ * Each save() appends one "mappingId<TAB>value" line and syncs it to disk; on load the last line
+ * of a mapping wins. A line cut by a crash has no end of line and is ignored, the previous value
+ * of that mapping is still there. When the file gets long it is compacted into a new one holding
+ * only the last value of each mapping, which replaces it with an atomic rename.
+ */
+public class FileCheckpointStore implements CheckpointStore {
+    private static Logger Log = Logger.getLogger(FileCheckpointStore.class);
+
+    public static final String FILE_NAME = "checkpoints.log";
+
+    /* Lines appended before compacting the file. */
+    private static final int COMPACT_EVERY = 10000;
+
+    private static final String UTF8 = "UTF-8";
+
+    private File file;
+    private Map<String, String> values = new HashMap<String, String>();
+    private FileOutputStream out;
+    private int appended = 0;
+
+    public FileCheckpointStore(File dir) throws Exception {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create the checkpoint directory:" + dir);
+        }
+        this.file = new File(dir, FILE_NAME);
+        if (this.file.exists()) {
+            read();
+        }
+        compact();
+        Log.info("Checkpoints in:" + this.file.getAbsolutePath() + ", mappings:" + this.values.keySet());
+    }
+
+    public synchronized String load(String mappingId) {
+        return this.values.get(mappingId);
+    }
+
+    public synchronized void save(String mappingId, String value) throws Exception {
+        if ((mappingId.indexOf('\t') >= 0) || (mappingId.indexOf('\n') >= 0) || (value.indexOf('\n') >= 0)) {
+            throw new IllegalArgumentException("Tabs and ends of line are not allowed in checkpoints: " +
+                    mappingId + "=" + value);
+        }
+        this.out.write((mappingId + "\t" + value + "\n").getBytes(UTF8));
+        this.out.getFD().sync();
+        this.values.put(mappingId, value);
+        if (++this.appended >= COMPACT_EVERY) {
+            compact();
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            if (this.out != null) {
+                this.out.close();
+                this.out = null;
+            }
+        } catch (IOException e) {
+            Log.error(e.getMessage(),e);
+        }
+    }
+
+    private void read() throws IOException {
+        byte[] content = new byte[(int) this.file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(this.file));
+        try {
+            in.readFully(content);
+        } finally {
+            in.close();
+        }
+        int start = 0;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] != '\n') {
+                continue;
+            }
+            String line = new String(content, start, i - start, UTF8);
+            start = i + 1;
+            int tab = line.indexOf('\t');
+            if (tab > 0) {
+                this.values.put(line.substring(0, tab), line.substring(tab + 1));
+            } else {
+                Log.warn("Ignoring a bad line in " + this.file + ": " + line);
+            }
+        }
+        if (start < content.length) {
+            Log.warn("Ignoring an incomplete last line in " + this.file + ", probably cut by a crash.");
+        }
+    }
+
+    /*
+     * Writes the current values to a new file, syncs it and renames it over the old one.
+     */
+    private void compact() throws IOException {
+        close();
+        File tmp = new File(this.file.getParentFile(), FILE_NAME + ".tmp");
+        FileOutputStream compacted = new FileOutputStream(tmp);
+        try {
+            for (Map.Entry<String, String> entry : this.values.entrySet()) {
+                compacted.write((entry.getKey() + "\t" + entry.getValue() + "\n").getBytes(UTF8));
+            }
+            compacted.getFD().sync();
+        } finally {
+            compacted.close();
+        }
+        if (!tmp.renameTo(this.file)) {
+            throw new IOException("Could not rename " + tmp + " to " + this.file);
+        }
+        this.out = new FileOutputStream(this.file, true);
+        this.appended = 0;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Latency histogram in the style of HdrHistogram, for non-negative values in microseconds.
+ * Buckets are log-linear: every power of two is split in SUB_BUCKETS linear buckets, so any recorded
+ * value is known within 1/SUB_BUCKETS (about 3%), from 1us up to MAX_VALUE, in a fixed array of counters.
+ * Recording is lock free and can be done from any thread. Reads are not an atomic snapshot, which is
+ * fine for monitoring.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /* Bigger values are recorded as MAX_VALUE. About 12 days. */
+    public static final long MAX_VALUE = (1L << 40) - 1;
+
+    private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long micros) {
+        record(micros, 1);
+    }
+
+    /*
+     * Records 'times' occurrences of the same value, e.g. once per row of a batch.
+     */
+    public void record(long micros, long times) {
+        if (times <= 0) {
+            return;
+        }
+        long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+        this.counts.addAndGet(index(value), times);
+        this.count.addAndGet(times);
+        this.sum.addAndGet(value * times);
+        long current;
+        while (value > (current = this.max.get())) {
+            if (this.max.compareAndSet(current, value)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /* Sum of all the recorded values [us]. */
+    public long getSum() {
+        return this.sum.get();
+    }
+
+    public long getMax() {
+        return this.max.get();
+    }
+
+    public double getMean() {
+        long n = this.count.get();
+        return (n == 0) ? 0 : (double) this.sum.get() / n;
+    }
+
+    /*
+     * Value under which 'quantile' (0 to 1) of the recorded values are, rounded up to the
+     * top of its bucket and never above the maximum recorded. 0 when nothing was recorded.
+     */
+    public long getValueAtQuantile(double quantile) {
+        long n = this.count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += this.counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+
+    /*
+     * Values below SUB_BUCKETS have a bucket of their own. Above, the bucket is given by
+     * the position of the highest bit and the SUB_BUCKET_BITS bits that follow it.
+     */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long subBucket = (index & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
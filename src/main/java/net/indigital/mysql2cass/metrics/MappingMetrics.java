@@ -0,0 +1,200 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.metrics;
+
+import org.apache.log4j.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Counters, gauges and latency histograms of one Mapping, updated by its reader and writer stages.
+ * Published through JMX as net.indigital.mysql2cass:type=Mapping,name=<mapping id>
+ * and, when metricsPort is set, by MetricsServer in the Prometheus text format.
+ */
+public class MappingMetrics implements MappingMetricsMBean {
+    private static Logger Log = Logger.getLogger(MappingMetrics.class);
+
+    /* Every registered mapping, for MetricsServer. */
+    private static final List<MappingMetrics> registered = new CopyOnWriteArrayList<MappingMetrics>();
+
+    private final String mappingId;
+
+    public final Meter rowsRead = new Meter();
+    public final Meter rowsWritten = new Meter();
+    public final Meter bytesRead = new Meter();
+    public final Meter bytesWritten = new Meter();
+    public final AtomicLong readRetries = new AtomicLong();
+    public final AtomicLong writeRetries = new AtomicLong();
+    /* Rows left out of Cassandra: they could not be read, or their batch was given up after maxWriteAttempts. */
+    public final AtomicLong rowsGivenUp = new AtomicLong();
+
+    /* Time to read a page (or a streamed chunk) from MySQL [us]. */
+    public final LatencyHistogram mysqlFetchTime = new LatencyHistogram();
+    /* Time to write a batch to Cassandra, retries included [us]. */
+    public final LatencyHistogram cassandraWriteTime = new LatencyHistogram();
+    /* From the moment a row was read from MySQL until it is acknowledged by Cassandra, per row [us]. */
+    public final LatencyHistogram rowLatency = new LatencyHistogram();
+
+    /* Key the reader has got to, last key acknowledged by the writer and highest key in MySQL. */
+    public volatile long lastNumericKey = -1;
+    public volatile long committedNumericKey = -1;
+    public volatile long sourceMaxKey = -1;
+
+    public MappingMetrics(String mappingId) {
+        this.mappingId = mappingId;
+    }
+
+    public static List<MappingMetrics> getRegistered() {
+        return registered;
+    }
+
+    /*
+     * Publishes these metrics. A failure to register the MBean is logged, the mapping works anyway.
+     */
+    public void register() {
+        registered.add(this);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName("net.indigital.mysql2cass:type=Mapping,name=" +
+                    ObjectName.quote(this.mappingId)));
+            Log.info("Registered JMX metrics of mapping:" + this.mappingId);
+        } catch (Exception e) {
+            Log.error("Could not register the JMX metrics of mapping:" + this.mappingId);
+            Log.error(e.getMessage(),e);
+        }
+    }
+
+    public String getMappingId() {
+        return this.mappingId;
+    }
+
+    public long getRowsRead() {
+        return this.rowsRead.getCount();
+    }
+
+    public long getRowsWritten() {
+        return this.rowsWritten.getCount();
+    }
+
+    public long getBytesRead() {
+        return this.bytesRead.getCount();
+    }
+
+    public long getBytesWritten() {
+        return this.bytesWritten.getCount();
+    }
+
+    public double getRowsReadPerSecond() {
+        return this.rowsRead.getOneMinuteRate();
+    }
+
+    public double getRowsWrittenPerSecond() {
+        return this.rowsWritten.getOneMinuteRate();
+    }
+
+    public double getBytesWrittenPerSecond() {
+        return this.bytesWritten.getOneMinuteRate();
+    }
+
+    public long getReadRetries() {
+        return this.readRetries.get();
+    }
+
+    public long getWriteRetries() {
+        return this.writeRetries.get();
+    }
+
+    public long getRowsGivenUp() {
+        return this.rowsGivenUp.get();
+    }
+
+    public long getLastNumericKey() {
+        return this.lastNumericKey;
+    }
+
+    public long getCommittedNumericKey() {
+        return this.committedNumericKey;
+    }
+
+    public long getSourceMaxKey() {
+        return this.sourceMaxKey;
+    }
+
+    /*
+     * Rows in MySQL that are not in Cassandra yet. Keys are autoincremental, so this is
+     * the distance between the highest key and the last committed one (gaps are counted).
+     */
+    public long getLagRows() {
+        long committed = Math.max(this.committedNumericKey, 0);
+        return Math.max(this.sourceMaxKey - committed, 0);
+    }
+
+    public double getMysqlFetchTimeMedian() {
+        return millis(this.mysqlFetchTime.getValueAtQuantile(0.5));
+    }
+
+    public double getMysqlFetchTime99thPercentile() {
+        return millis(this.mysqlFetchTime.getValueAtQuantile(0.99));
+    }
+
+    public double getMysqlFetchTimeMax() {
+        return millis(this.mysqlFetchTime.getMax());
+    }
+
+    public double getCassandraWriteTimeMedian() {
+        return millis(this.cassandraWriteTime.getValueAtQuantile(0.5));
+    }
+
+    public double getCassandraWriteTime99thPercentile() {
+        return millis(this.cassandraWriteTime.getValueAtQuantile(0.99));
+    }
+
+    public double getCassandraWriteTimeMax() {
+        return millis(this.cassandraWriteTime.getMax());
+    }
+
+    public double getRowLatencyMedian() {
+        return millis(this.rowLatency.getValueAtQuantile(0.5));
+    }
+
+    public double getRowLatency99thPercentile() {
+        return millis(this.rowLatency.getValueAtQuantile(0.99));
+    }
+
+    public double getRowLatencyMax() {
+        return millis(this.rowLatency.getMax());
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.metrics;
+
+/*
+ * JMX view of the metrics of one Mapping. Times are in milliseconds, rates per second.
+ */
+public interface MappingMetricsMBean {
+
+    String getMappingId();
+
+    long getRowsRead();
+    long getRowsWritten();
+    long getBytesRead();
+    long getBytesWritten();
+    double getRowsReadPerSecond();
+    double getRowsWrittenPerSecond();
+    double getBytesWrittenPerSecond();
+
+    long getReadRetries();
+    long getWriteRetries();
+    long getRowsGivenUp();
+
+    long getLastNumericKey();
+    long getCommittedNumericKey();
+    long getSourceMaxKey();
+    long getLagRows();
+
+    double getMysqlFetchTimeMedian();
+    double getMysqlFetchTime99thPercentile();
+    double getMysqlFetchTimeMax();
+
+    double getCassandraWriteTimeMedian();
+    double getCassandraWriteTime99thPercentile();
+    double getCassandraWriteTimeMax();
+
+    double getRowLatencyMedian();
+    double getRowLatency99thPercentile();
+    double getRowLatencyMax();
+}
@@ -0,0 +1,86 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Counter with a one-minute rate, exponentially weighted like the Unix load average.
+ * The rate is updated every TICK_INTERVAL, lazily, by whoever marks or reads the meter.
+ */
+public class Meter {
+
+    private static final long TICK_INTERVAL = 5000000000L; // ns
+    private static final double ALPHA = 1 - Math.exp(-5.0 / 60.0);
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong uncounted = new AtomicLong();
+    private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+    private volatile boolean initialized = false;
+    private volatile double rate = 0; // per ns
+
+    public void mark(long n) {
+        tickIfNecessary();
+        this.count.addAndGet(n);
+        this.uncounted.addAndGet(n);
+    }
+
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /* Events per second over the last minute, roughly. */
+    public double getOneMinuteRate() {
+        tickIfNecessary();
+        return this.rate * 1000000000.0;
+    }
+
+    private void tickIfNecessary() {
+        long oldTick = this.lastTick.get();
+        long newTick = System.nanoTime();
+        long age = newTick - oldTick;
+        if (age > TICK_INTERVAL) {
+            long newIntervalStartTick = newTick - age % TICK_INTERVAL;
+            if (this.lastTick.compareAndSet(oldTick, newIntervalStartTick)) {
+                long ticks = age / TICK_INTERVAL;
+                for (long i = 0; i < ticks; i++) {
+                    tick();
+                }
+            }
+        }
+    }
+
+    private void tick() {
+        double instantRate = (double) this.uncounted.getAndSet(0) / TICK_INTERVAL;
+        if (this.initialized) {
+            this.rate += ALPHA * (instantRate - this.rate);
+        } else {
+            this.rate = instantRate;
+            this.initialized = true;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.log4j.Logger;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+/*
+ * Optional HTTP endpoint serving the metrics of every mapping at /metrics,
+ * in the Prometheus text exposition format. Started when metricsPort is set.
+ */
+public class MetricsServer {
+    private static Logger Log = Logger.getLogger(MetricsServer.class);
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private HttpServer server;
+
+    public void start(int port) throws Exception {
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.server.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) {
+                try {
+                    byte[] body = scrape().getBytes("UTF-8");
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream out = exchange.getResponseBody();
+                    out.write(body);
+                    out.close();
+                } catch (Exception e) {
+                    Log.error(e.getMessage(),e);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        this.server.start();
+        Log.info("Serving Prometheus metrics on port:" + port + " at /metrics");
+    }
+
+    public void stop() {
+        if (this.server != null) {
+            this.server.stop(0);
+        }
+    }
+
+    /*
+     * Every metric of every registered mapping, labelled with the mapping id.
+     */
+    public static String scrape() {
+        List<MappingMetrics> all = MappingMetrics.getRegistered();
+        StringBuilder out = new StringBuilder();
+
+        header(out, "mysql2cass_rows_read_total", "counter", "Rows read from MySQL.");
+        for (MappingMetrics m : all) {
+            sample(out, "mysql2cass_rows_read_total", m, null, m.getRowsRead());
+        }
+        header(out, "mysql2cass_rows_written_total", "counter", "Rows written to Cassandra.");
+        for (MappingMetrics m : all) {
+            sample(out, "mysql2cass_rows_written_total", m, null, m.getRowsWritten());
+        }
+        header(out, "mysql2cass_bytes_read_total", "counter", "Bytes of row data read from MySQL.");
+        for (MappingMetrics m : all) {
+            sample(out, "mysql2cass_bytes_read_total", m, null, m.getBytesRead());
+        }
+        header(out, "mysql2cass_bytes_written_total", "counter", "Bytes of row data written to Cassandra.");
+        for (MappingMetrics m : all) {
+            sample(out, "mysql2cass_bytes_written_total", m, null, m.getBytesWritten());
+        }
+        header(out, "mysql2cass_read_retries_total", "counter", "Failed MySQL reads that were retried.");
+        for (MappingMetrics m : all) {
+            sample(out, "mysql2cass_read_retries_total", m, null, m.getReadRetries());
+        }
+        header(out, "mysql2cass_write_retries_total", "counter", "Failed Cassandra writes that were retried.");
+        for (MappingMetrics m : all) {
+            sample(out, "mysql2cass_write_retries_total", m, null, m.getWriteRetries());
+        }
+        header(out, "mysql2cass_rows_given_up_total", "counter", "Rows left out of Cassandra, see the dead letters.");
+        for (MappingMetrics m : all) {
+            sample(out, "mysql2cass_rows_given_up_total", m, null, m.getRowsGivenUp());
+        }
+
+        header(out, "mysql2cass_last_numeric_key", "gauge", "Last key read from MySQL.");
+        for (MappingMetrics m : all) {
+            sample(out, "mysql2cass_last_numeric_key", m, null, m.getLastNumericKey());
+        }
+        header(out, "mysql2cass_committed_numeric_key", "gauge", "Last key acknowledged by Cassandra.");
+        for (MappingMetrics m : all) {
+            sample(out, "mysql2cass_committed_numeric_key", m, null, m.getCommittedNumericKey());
+        }
+        header(out, "mysql2cass_source_max_key", "gauge", "Highest key in the MySQL table.");
+        for (MappingMetrics m : all) {
+            sample(out, "mysql2cass_source_max_key", m, null, m.getSourceMaxKey());
+        }
+        header(out, "mysql2cass_lag_rows", "gauge", "Rows of the MySQL table not yet in Cassandra.");
+        for (MappingMetrics m : all) {
+            sample(out, "mysql2cass_lag_rows", m, null, m.getLagRows());
+        }
+
+        summary(out, "mysql2cass_mysql_fetch_seconds", "Time to read a page of rows from MySQL.", all,
+                new HistogramOf() {
+                    LatencyHistogram get(MappingMetrics m) { return m.mysqlFetchTime; }
+                });
+        summary(out, "mysql2cass_cassandra_write_seconds", "Time to write a batch to Cassandra.", all,
+                new HistogramOf() {
+                    LatencyHistogram get(MappingMetrics m) { return m.cassandraWriteTime; }
+                });
+        summary(out, "mysql2cass_row_latency_seconds", "Time from MySQL read to Cassandra acknowledgement, per row.",
+                all, new HistogramOf() {
+                    LatencyHistogram get(MappingMetrics m) { return m.rowLatency; }
+                });
+        return out.toString();
+    }
+
+    private static abstract class HistogramOf {
+        abstract LatencyHistogram get(MappingMetrics m);
+    }
+
+    private static void summary(StringBuilder out, String name, String help, List<MappingMetrics> all,
+                                HistogramOf histogramOf) {
+        header(out, name, "summary", help);
+        for (MappingMetrics m : all) {
+            LatencyHistogram histogram = histogramOf.get(m);
+            for (double quantile : QUANTILES) {
+                sample(out, name, m, "quantile=\"" + quantile + "\"",
+                        seconds(histogram.getValueAtQuantile(quantile)));
+            }
+            sample(out, name + "_sum", m, null, seconds(histogram.getSum()));
+            sample(out, name + "_count", m, null, histogram.getCount());
+        }
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, MappingMetrics m, String extraLabel, Object value) {
+        out.append(name).append("{mapping=\"").append(escape(m.getMappingId())).append('"');
+        if (extraLabel != null) {
+            out.append(',').append(extraLabel);
+        }
+        out.append("} ").append(value).append('\n');
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static double seconds(long micros) {
+        return micros / 1000000.0;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.mysql;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Bounded pool of JDBC connections to one MySQL database.
+ * There is one pool per host/port/db/user, shared by every Mapping reading from it,
+ * so the connections are kept open across refresh cycles instead of being created every time.
+ *
+ * Connections are validated with 'validationQuery' when they are borrowed after having been idle,
+ * and closed once they have been idle for more than 'idleTimeout' ms.
+ */
+public class MySqlConnectionPool {
+    private static Logger Log = Logger.getLogger(MySqlConnectionPool.class);
+
+    public static final int DEFAULT_SIZE = 4;
+    public static final String DEFAULT_VALIDATION_QUERY = "SELECT 1";
+    public static final int DEFAULT_IDLE_TIMEOUT = 300000;
+
+    /* Connections idle for less than this are handed out without validation [ms]. */
+    private static final long VALIDATION_INTERVAL = 5000;
+
+    /* All the pools, keyed by host/port/db/user. */
+    private static final Map<String, MySqlConnectionPool> pools = new HashMap<String, MySqlConnectionPool>();
+
+    private String id;
+    private String url;
+    private String validationQuery;
+    private int idleTimeout;
+    private Semaphore slots;
+    private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+
+    /*
+     * Returns the pool for the given database, creating it the first time.
+     * The size, validation query and idle timeout of the first caller are the ones used.
+     */
+    public static MySqlConnectionPool get(String host, Integer port, String db, String user, String pass,
+                                          Boolean cursorFetch, Integer size, String validationQuery,
+                                          Integer idleTimeout) {
+        String id = user + "@" + host + ":" + port + "/" + db + (cursorFetch ? "?cursor" : "");
+        synchronized (pools) {
+            MySqlConnectionPool pool = pools.get(id);
+            if (pool == null) {
+                /* Zero dates can't be converted to a timestamp, so they are read as NULL. */
+                String url = "jdbc:mysql://" + host + ":" + port + "/" + db +
+                        "?" + "user=" + user + "&password=" + pass + "&zeroDateTimeBehavior=convertToNull";
+                if (cursorFetch) {
+                    url += "&useCursorFetch=true";
+                }
+                pool = new MySqlConnectionPool(id, url, size, validationQuery, idleTimeout);
+                pools.put(id, pool);
+                Log.info("Created MySQL connection pool:" + id + ", size:" + size +
+                        ", validationQuery:" + validationQuery + ", idleTimeout:" + idleTimeout);
+            }
+            return pool;
+        }
+    }
+
+    /*
+     * Returns a new pool, not shared with anybody, for any JDBC url whose driver is in the classpath.
+     * Used to read from a database other than MySQL, e.g. an in-memory one in the benchmarks.
+     */
+    public static MySqlConnectionPool forUrl(String url, Integer size) {
+        return new MySqlConnectionPool(url, url, size, DEFAULT_VALIDATION_QUERY, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    private MySqlConnectionPool(String id, String url, int size, String validationQuery, int idleTimeout) {
+        this.id = id;
+        this.url = url;
+        this.validationQuery = validationQuery;
+        this.idleTimeout = idleTimeout;
+        this.slots = new Semaphore(size, true);
+    }
+
+    /*
+     * Borrows a connection, waiting up to 'timeout' ms for a free one.
+     */
+    public PooledConnection borrow(long timeout) throws Exception {
+        if (!this.slots.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+            throw new RuntimeException("Timed out waiting for a connection of the pool:" + this.id);
+        }
+        try {
+            PooledConnection pc;
+            while ((pc = takeIdle()) != null) {
+                if (validate(pc)) {
+                    return pc;
+                }
+                pc.close();
+            }
+            // This will load the MySQL driver, each DB has its own driver
+            Class.forName("com.mysql.jdbc.Driver");
+            Log.debug("Opening a new connection for the pool:" + this.id);
+            return new PooledConnection(DriverManager.getConnection(this.url));
+        } catch (Exception e) {
+            this.slots.release();
+            throw e;
+        }
+    }
+
+    /*
+     * Gives a healthy connection back to the pool.
+     */
+    public void release(PooledConnection pc) {
+        pc.lastUsed = System.currentTimeMillis();
+        synchronized (this.idle) {
+            this.idle.addFirst(pc);
+        }
+        this.slots.release();
+        evictIdle();
+    }
+
+    /*
+     * Closes a connection that failed, freeing its slot in the pool.
+     */
+    public void invalidate(PooledConnection pc) {
+        Log.debug("Discarding a broken connection of the pool:" + this.id);
+        pc.close();
+        this.slots.release();
+    }
+
+    /* Most recently used first, so the least used ones get old and evicted. */
+    private PooledConnection takeIdle() {
+        synchronized (this.idle) {
+            return this.idle.pollFirst();
+        }
+    }
+
+    private boolean validate(PooledConnection pc) {
+        if (System.currentTimeMillis() - pc.lastUsed < VALIDATION_INTERVAL) {
+            return true;
+        }
+        Statement statement = null;
+        try {
+            statement = pc.connection.createStatement();
+            statement.execute(this.validationQuery);
+            return true;
+        } catch (Exception e) {
+            Log.warn("Connection of the pool:" + this.id + " failed validation: " + e.getMessage());
+            return false;
+        } finally {
+            try {
+                if (statement != null) {
+                    statement.close();
+                }
+            } catch (Exception e) {
+                Log.error(e.getMessage(),e);
+            }
+        }
+    }
+
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        List<PooledConnection> evicted = new ArrayList<PooledConnection>();
+        synchronized (this.idle) {
+            Iterator<PooledConnection> it = this.idle.descendingIterator();
+            while (it.hasNext()) {
+                PooledConnection pc = it.next();
+                if (now - pc.lastUsed > this.idleTimeout) {
+                    it.remove();
+                    evicted.add(pc);
+                }
+            }
+        }
+        for (PooledConnection pc : evicted) {
+            Log.debug("Closing an idle connection of the pool:" + this.id);
+            pc.close();
+        }
+    }
+}
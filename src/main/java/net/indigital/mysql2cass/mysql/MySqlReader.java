@@ -26,38 +26,80 @@ First version: lmartin, July 2012.
 
 package net.indigital.mysql2cass.mysql;
 
+import net.indigital.mysql2cass.DateTimeConverter;
+import net.indigital.mysql2cass.RowBatch;
+import net.indigital.mysql2cass.TableSchema;
+import net.indigital.mysql2cass.spool.DeadLetter;
+import net.indigital.mysql2cass.spool.DeadLetterSink;
 import org.apache.log4j.Logger;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.*;
 
 public class MySqlReader {
     private static Logger Log = Logger.getLogger(MySqlReader.class);
 
+    /* fetchSize value asking Connector/J to stream the results row by row. */
+    public static final int STREAM_ROW_BY_ROW = -1;
+
+    /* How long to wait for a free connection of the pool [ms]. */
+    private static final long BORROW_TIMEOUT = 30000;
+
+    private MySqlConnectionPool pool;
+    private PooledConnection pooled = null;
     private Connection connect = null;
     private Statement statement = null;
     private ResultSet resultSet = null;
+    /* Set when something failed, so the connection is discarded instead of going back to the pool. */
+    private Boolean broken = Boolean.FALSE;
 
-    public Map<String,Map<String,String>> output;
-    public Integer lastNumericKey = -1;
+    public long lastNumericKey = -1;
 
-    // @TODO Where is my connection pool!? lmartin
-    public void connect(String host, Integer port, String db, String user, String pass) throws Exception {
-        try {
-            // This will load the MySQL driver, each DB has its own driver
-            Class.forName("com.mysql.jdbc.Driver");
+    /* Where the rows that can't be read go, null to fail the read instead. */
+    private DeadLetterSink deadLetters = null;
+    private String mappingId;
+
+    private DateTimeConverter dates = new DateTimeConverter();
+
+    public MySqlReader(MySqlConnectionPool pool) {
+        this.pool = pool;
+    }
 
-            // Setup the connection with the DB
-            this.connect = DriverManager.getConnection("jdbc:mysql://" + host + ":" + port + "/" + db +
-                    "?" + "user=" + user + "&password=" + pass);
+    /*
+     * Zone of the datetime columns, the one of the JVM unless set.
+     */
+    public void setDateTimeConverter(DateTimeConverter dates) {
+        this.dates = dates;
+    }
+
+    /*
+     * From now on, a row with a value that can't be read as the type of its column is given to
+     * 'deadLetters' and left out, instead of failing the whole read.
+     */
+    public void setDeadLetters(DeadLetterSink deadLetters, String mappingId) {
+        this.deadLetters = deadLetters;
+        this.mappingId = mappingId;
+    }
+
+    /*
+     * Borrows a connection from the pool. close() gives it back.
+     */
+    public void connect() throws Exception {
+        try {
+            this.broken = Boolean.FALSE;
+            this.pooled = this.pool.borrow(BORROW_TIMEOUT);
+            this.connect = this.pooled.connection;
 
             // Statements allow to issue SQL queries to the database
             this.statement = connect.createStatement();
 
         } catch (Exception e) {
+            this.broken = Boolean.TRUE;
             this.close();
             //Log.error(e.getMessage(),e);
             throw new RuntimeException(e);
@@ -76,63 +118,317 @@ public class MySqlReader {
             this.statement.executeUpdate(query);
 
         } catch (Exception e) {
+            this.broken = Boolean.TRUE;
             this.close();
             Log.error(e.getMessage(),e);
         }
     }
 
 
-    public void readDataBase(String table, String numericKeyStr, Integer elementsAtOnce,
-                             List<Map<String, String>> maps) throws Exception {
+    /*
+     * Batch read mode. Reads up to 'elementsAtOnce' rows after 'lastNumericKey', in key order,
+     * into 'output' (which must be empty), and moves 'lastNumericKey' to the last key read.
+     * Returns the number of rows read, including the ones left out (see setDeadLetters).
+     */
+    public int readDataBase(String table, String numericKeyStr, Integer elementsAtOnce,
+                            RowBatch output) throws Exception {
+        return readDataBase(table, numericKeyStr, elementsAtOnce, -1, output);
+    }
+
+    /*
+     * Same as above, but only up to 'upToKey' (included). -1 means no upper limit.
+     */
+    public int readDataBase(String table, String numericKeyStr, Integer elementsAtOnce, long upToKey,
+                            RowBatch output) throws Exception {
         try {
-            this.output = new TreeMap<String, Map<String, String>>();
+            TableSchema schema = output.schema;
 
-            // Query to select all the rows starting from 'lastNumericKey'
-            String query = "SELECT * FROM "+ table + " WHERE " + table + "." + numericKeyStr + " > " +
-                    this.lastNumericKey + " LIMIT 0 , " + elementsAtOnce;
-            Log.debug(query);
+            // Query to select the next rows starting from 'lastNumericKey'
+            String query = keysetQuery(table, numericKeyStr, schema, upToKey >= 0) + " LIMIT ?";
+            Log.debug(query + " [" + this.lastNumericKey + ", " + upToKey + ", " + elementsAtOnce + "]");
 
-            // Result set get the result of the SQL query
-            this.resultSet = this.statement.executeQuery(query);
+            PreparedStatement readStatement = this.pooled.prepare(query);
+            int index = 1;
+            readStatement.setLong(index++, this.lastNumericKey);
+            if (upToKey >= 0) {
+                readStatement.setLong(index++, upToKey);
+            }
+            readStatement.setInt(index, Math.min(elementsAtOnce, output.capacity()));
 
-            // Logging the maps list.
-            Log.debug("Received the MySQL query. Now we get the columns that we really want.");
+            // Result set get the result of the SQL query
+            this.resultSet = readStatement.executeQuery();
+            int read = 0;
+            long lastKey = -1;
             while (this.resultSet.next()) {
-                Integer integerID = Integer.parseInt(this.resultSet.getString(numericKeyStr));
+                lastKey = this.resultSet.getLong(1);
+                readRow(output);
+                read++;
+            }
+            /* Rows left out are not read again. */
+            if (read > 0) {
+                this.lastNumericKey = lastKey;
+            }
+            return read;
+        } catch (Exception e) {
+            this.broken = Boolean.TRUE;
+            this.close();
+            throw e;
+        }
+    }
 
-                Map<String,String> dict = new TreeMap<String,String>();
-                for (Map<String, String> m: maps) {
-                    String value = this.resultSet.getString(m.get("name"));
-                    if (value.length() > 0) {
-                        dict.put(m.get("name"), value);
-                    }
-                }
-                /* This 20 characters wide will help us to order the keys later on. */
-                output.put(String.format("%020d", integerID), dict);
+    /*
+     * Streaming read mode. Reads every row after 'lastNumericKey' in key order through a forward-only
+     * cursor, fetching 'fetchSize' rows at a time (or row by row with STREAM_ROW_BY_ROW), straight
+     * into the batches given by 'handler'.
+     * 'lastNumericKey' is not moved here: the handler decides when a key has been safely handled.
+     */
+    public void streamDataBase(String table, String numericKeyStr, Integer fetchSize,
+                               TableSchema schema, RowHandler handler) throws Exception {
+        try {
+            String query = keysetQuery(table, numericKeyStr, schema, false);
+            Log.debug(query + " [" + this.lastNumericKey + "]");
+
+            PreparedStatement streamStatement = this.pooled.prepare(query);
+            if (fetchSize == STREAM_ROW_BY_ROW) {
+                streamStatement.setFetchSize(Integer.MIN_VALUE);
+            } else {
+                streamStatement.setFetchSize(fetchSize);
             }
-            if (this.resultSet.last()) {
-                this.lastNumericKey = this.resultSet.getInt(numericKeyStr);
+            streamStatement.setLong(1, this.lastNumericKey);
+            this.resultSet = streamStatement.executeQuery();
+
+            while (this.resultSet.next()) {
+                if (readRow(handler.current())) {
+                    handler.added();
+                } else {
+                    handler.skipped(this.resultSet.getLong(1));
+                }
             }
+            handler.end();
         } catch (Exception e) {
+            this.broken = Boolean.TRUE;
             this.close();
+            throw e;
+        }
+    }
+
+    /*
+     * Highest key of the table, or -1 if it could not be read. Only used for monitoring,
+     * so a failure here is logged and does not stop the copy.
+     */
+    public long readMaxKey(String table, String numericKeyStr) {
+        if (this.pooled == null) {
+            return -1;
+        }
+        try {
+            /* A streamed result set must be closed before the connection can run anything else. */
+            if (this.resultSet != null) {
+                this.resultSet.close();
+                this.resultSet = null;
+            }
+            PreparedStatement maxStatement = this.pooled.prepare(
+                    "SELECT MAX(`" + numericKeyStr + "`) FROM `" + table + "`");
+            ResultSet max = maxStatement.executeQuery();
+            try {
+                return max.next() ? max.getLong(1) : -1;
+            } finally {
+                max.close();
+            }
+        } catch (Exception e) {
+            this.broken = Boolean.TRUE;
             Log.error(e.getMessage(),e);
+            return -1;
+        }
+    }
+
+    /*
+     * Lowest and highest keys of the table, or null if it is empty.
+     */
+    public long[] readKeyRange(String table, String numericKeyStr) throws Exception {
+        try {
+            PreparedStatement rangeStatement = this.pooled.prepare(
+                    "SELECT MIN(`" + numericKeyStr + "`), MAX(`" + numericKeyStr + "`) FROM `" + table + "`");
+            this.resultSet = rangeStatement.executeQuery();
+            if ((!this.resultSet.next()) || (this.resultSet.getObject(1) == null)) {
+                return null;
+            }
+            return new long[] {this.resultSet.getLong(1), this.resultSet.getLong(2)};
+        } catch (Exception e) {
+            this.broken = Boolean.TRUE;
+            this.close();
+            throw e;
+        }
+    }
+
+    /*
+     * Current position of the binary log of the server, as {file, position}.
+     */
+    public String[] readMasterStatus() throws Exception {
+        try {
+            this.resultSet = this.statement.executeQuery("SHOW MASTER STATUS");
+            if (!this.resultSet.next()) {
+                throw new RuntimeException("The binary log is not enabled in the MySQL server (log_bin).");
+            }
+            return new String[] {this.resultSet.getString(1), String.valueOf(this.resultSet.getLong(2))};
+        } catch (Exception e) {
+            this.broken = Boolean.TRUE;
+            this.close();
+            throw e;
+        }
+    }
+
+    /*
+     * Position (from 0) of every column of the table, by lower case name.
+     * The binary log identifies the columns by position only.
+     */
+    public Map<String, Integer> readColumnPositions(String table) throws Exception {
+        try {
+            PreparedStatement columnsStatement = this.pooled.prepare(
+                    "SELECT COLUMN_NAME, ORDINAL_POSITION FROM information_schema.COLUMNS " +
+                    "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ?");
+            columnsStatement.setString(1, table);
+            this.resultSet = columnsStatement.executeQuery();
+            Map<String, Integer> positions = new HashMap<String, Integer>();
+            while (this.resultSet.next()) {
+                positions.put(this.resultSet.getString(1).toLowerCase(), this.resultSet.getInt(2) - 1);
+            }
+            if (positions.isEmpty()) {
+                throw new RuntimeException("Table:" + table + " not found in information_schema.");
+            }
+            return positions;
+        } catch (Exception e) {
+            this.broken = Boolean.TRUE;
+            this.close();
+            throw e;
+        }
+    }
+
+    /*
+     * Names (in lower case) of the UNSIGNED columns of a table of the current database.
+     */
+    public Set<String> readUnsignedColumns(String table) throws Exception {
+        try {
+            PreparedStatement columnsStatement = this.pooled.prepare(
+                    "SELECT COLUMN_NAME FROM information_schema.COLUMNS " +
+                    "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND COLUMN_TYPE LIKE '%unsigned%'");
+            columnsStatement.setString(1, table);
+            this.resultSet = columnsStatement.executeQuery();
+            Set<String> unsigned = new HashSet<String>();
+            while (this.resultSet.next()) {
+                unsigned.add(this.resultSet.getString(1).toLowerCase());
+            }
+            return unsigned;
+        } catch (Exception e) {
+            this.broken = Boolean.TRUE;
+            this.close();
+            throw e;
+        }
+    }
+
+    /*
+     * Keyset query for the rows after a key, and up to another one if 'bounded'. The key is always
+     * the first column, followed by the mapped columns in the order of the schema.
+     */
+    private static String keysetQuery(String table, String numericKeyStr, TableSchema schema, boolean bounded) {
+        StringBuilder query = new StringBuilder("SELECT `" + numericKeyStr + "`");
+        for (String name : schema.names) {
+            query.append(", `").append(name).append("`");
+        }
+        query.append(" FROM `").append(table).append("` WHERE `").append(numericKeyStr).append("` > ?");
+        if (bounded) {
+            query.append(" AND `").append(numericKeyStr).append("` <= ?");
+        }
+        query.append(" ORDER BY `").append(numericKeyStr).append("`");
+        return query.toString();
+    }
+
+    /*
+     * Appends the current row to 'batch', reading every mapped column with the getter matching its type.
+     * NULLs and empty strings are left as null cells, there is nothing to write for them.
+     * Returns false if the row was left out because a value could not be read (see setDeadLetters).
+     */
+    private boolean readRow(RowBatch batch) throws Exception {
+        int row = batch.addRow(this.resultSet.getLong(1));
+        try {
+            readValues(batch, row);
+            return true;
+        } catch (SQLException e) {
+            if (this.deadLetters == null) {
+                throw e;
+            }
+            /* If the raw values can't be read either, the connection is the problem, not the row. */
+            DeadLetter letter = new DeadLetter(this.mappingId, e.getMessage(), batch.getKey(row));
+            try {
+                for (int i = 0; i < batch.schema.size(); i++) {
+                    String value = this.resultSet.getString(i + 2);
+                    if (value != null) {
+                        letter.values.put(batch.schema.names[i], value);
+                    }
+                }
+            } catch (SQLException e2) {
+                throw e;
+            }
+            batch.removeLastRow();
+            Log.warn("Left out the row with key:" + letter.key + ", it can't be read: " + e.getMessage());
+            this.deadLetters.deadLetter(letter);
+            return false;
+        }
+    }
+
+    private void readValues(RowBatch batch, int row) throws SQLException {
+        TableSchema schema = batch.schema;
+        for (int i = 0; i < schema.size(); i++) {
+            int index = i + 2;
+            switch (schema.types[i]) {
+                case INT:
+                    long longValue = this.resultSet.getLong(index);
+                    if (!this.resultSet.wasNull()) {
+                        batch.setLong(row, i, longValue);
+                    }
+                    break;
+                case DATETIME:
+                    Timestamp timestamp = this.resultSet.getTimestamp(index);
+                    if (timestamp != null) {
+                        batch.setLong(row, i, this.dates.fromTimestamp(timestamp));
+                    }
+                    break;
+                default:
+                    String value = this.resultSet.getString(index);
+                    if ((value != null) && (value.length() > 0)) {
+                        batch.setString(row, i, value);
+                    }
+                    break;
+            }
         }
     }
 
     // You need to close the resultSet
+    /*
+     * Gives the connection back to the pool, or discards it if something went wrong with it.
+     * The cached prepared statements stay open with their connection.
+     */
     public void close() {
         try {
             if (this.resultSet != null) {
                 this.resultSet.close();
+                this.resultSet = null;
             }
             if (this.statement != null) {
                 this.statement.close();
-            }
-            if (this.connect != null) {
-                this.connect.close();
+                this.statement = null;
             }
         } catch (Exception e) {
+            this.broken = Boolean.TRUE;
             Log.error(e.getMessage(),e);
         }
+        if (this.pooled != null) {
+            if (this.broken) {
+                this.pool.invalidate(this.pooled);
+            } else {
+                this.pool.release(this.pooled);
+            }
+            this.pooled = null;
+            this.connect = null;
+        }
     }
 }
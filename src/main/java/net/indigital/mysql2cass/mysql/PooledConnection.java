@@ -0,0 +1,75 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.mysql;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.*;
+
+/*
+ * A JDBC connection owned by a MySqlConnectionPool, with its prepared statements cached
+ * so every query is only prepared once per connection.
+ */
+public class PooledConnection {
+    private static Logger Log = Logger.getLogger(PooledConnection.class);
+
+    public Connection connection;
+    long lastUsed = System.currentTimeMillis();
+    private Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+
+    PooledConnection(Connection connection) {
+        this.connection = connection;
+    }
+
+    /*
+     * Returns the cached forward-only, read-only statement for 'query', preparing it the first time.
+     */
+    public PreparedStatement prepare(String query) throws Exception {
+        PreparedStatement statement = this.statements.get(query);
+        if (statement == null) {
+            statement = this.connection.prepareStatement(query,
+                    ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            this.statements.put(query, statement);
+        }
+        return statement;
+    }
+
+    void close() {
+        try {
+            for (PreparedStatement statement : this.statements.values()) {
+                statement.close();
+            }
+            this.statements.clear();
+            this.connection.close();
+        } catch (Exception e) {
+            Log.error(e.getMessage(),e);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.mysql;
+
+import net.indigital.mysql2cass.RowBatch;
+
+/*
+ * Receives the rows of a streamed read, in key order,
+ * as soon as they come from the MySQL cursor.
+ */
+public interface RowHandler {
+
+    /*
+     * The batch the next row has to be read into. It must have room for one more row.
+     */
+    RowBatch current() throws Exception;
+
+    /*
+     * Called after a row has been appended to current().
+     */
+    void added() throws Exception;
+
+    /*
+     * Called instead of added() when the row could not be read and was left out.
+     */
+    void skipped(long key) throws Exception;
+
+    /*
+     * Called once the cursor has been exhausted.
+     */
+    void end() throws Exception;
+}
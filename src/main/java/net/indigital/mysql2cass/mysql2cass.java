@@ -26,6 +26,7 @@ First version: lmartin, July 2012.
 
 package net.indigital.mysql2cass;
 
+import net.indigital.mysql2cass.metrics.MetricsServer;
 import net.indigital.util.Properties;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -82,11 +83,23 @@ public class mysql2cass {
                  * we create an execution thread and start it,
                  */
                 List<Mapping> listMapping = Properties.configure(args[0]);
+
+                /* Optional Prometheus endpoint. The metrics are always available through JMX. */
+                if (Properties.metricsPort > 0) {
+                    new MetricsServer().start(Properties.metricsPort);
+                }
+
+                /* Every mapping runs on the shared pools of the scheduler. */
+                final MappingScheduler scheduler = new MappingScheduler(Properties.schedulerThreads);
+                scheduler.register();
+                Runtime.getRuntime().addShutdownHook(new Thread() {
+                    public void run() {
+                        scheduler.shutdown();
+                    }
+                });
                 for (Mapping map : listMapping) {
-                    Log.info("Starting new thread...");
-                    Thread tmp = new Thread(map);
-                    tmp.setName(tmp.getName() + "___" + map.getID());
-                    tmp.start();
+                    Log.info("Scheduling mapping:" + map.getID());
+                    scheduler.schedule(map);
                 }
             } catch (Exception e) {
                 Log.error(e.getMessage(),e);
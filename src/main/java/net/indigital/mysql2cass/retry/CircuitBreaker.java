@@ -0,0 +1,153 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+
+package net.indigital.mysql2cass.retry;
+
+import net.indigital.mysql2cass.cass.ClusterRegistry;
+import org.apache.log4j.Logger;
+
+import java.util.*;
+
+/*
+ * Circuit breaker of a Cassandra host (or set of seed hosts), shared by every mapping writing to it.
+ * After 'failures' failures in a row the circuit opens: nobody talks to the host for 'pause' ms.
+ * Then a single caller, the probe, is let through to try. If it works the circuit closes and everybody goes on,
+ * if it doesn't the circuit stays open for another 'pause'. Calls that were already in flight don't count as
+ * the probe: their failures don't reopen the circuit nor let another probe in.
+ * So a host that is down gets one request every 'pause' ms, instead of one per writer thread.
+ */
+public class CircuitBreaker {
+
+    private static Logger Log = Logger.getLogger(CircuitBreaker.class);
+
+    private static final Map<String, CircuitBreaker> hosts = new HashMap<String, CircuitBreaker>();
+
+    private final String host;
+    private final int failures;
+    private final long pause;
+
+    private int failuresInARow = 0;
+    /* Open until then [ms], 0 when closed. */
+    private long openUntil = 0;
+    /* A probe is in flight. */
+    private boolean trying = false;
+
+    public CircuitBreaker(String host, int failures, long pause) {
+        this.host = host;
+        this.failures = failures;
+        this.pause = pause;
+    }
+
+    /*
+     * The breaker of a host, created the first time it is asked for with the settings of that first mapping.
+     */
+    public static synchronized CircuitBreaker forHost(String host, int port, int failures, long pause) {
+        String key = ClusterRegistry.seeds(host, port);
+        CircuitBreaker breaker = hosts.get(key);
+        if (breaker == null) {
+            breaker = new CircuitBreaker(key, failures, pause);
+            hosts.put(key, breaker);
+        } else if ((breaker.failures != failures) || (breaker.pause != pause)) {
+            Log.warn("Ignoring breakerFailures:" + failures + ", breakerPause:" + pause + " for cassandra host:" + key +
+                    ", its circuit breaker is shared and uses breakerFailures:" + breaker.failures +
+                    ", breakerPause:" + breaker.pause + ".");
+        }
+        return breaker;
+    }
+
+    /* What tryAcquire() says. */
+    public static final int CALL = 0;
+    public static final int PROBE = 1;
+    public static final int WAIT = 2;
+
+    /*
+     * Waits until the host can be called: the circuit is closed, or it is our turn to try it.
+     * Returns true for the probe, which has to tell failure() so.
+     */
+    public synchronized boolean acquire() throws InterruptedException {
+        int state;
+        while ((state = tryAcquire()) == WAIT) {
+            wait(retryIn());
+        }
+        return state == PROBE;
+    }
+
+    /*
+     * Same as acquire(), without waiting: CALL or PROBE when the host can be called, WAIT when it can't yet.
+     */
+    public synchronized int tryAcquire() {
+        if (this.openUntil == 0) {
+            return CALL;
+        }
+        if ((System.currentTimeMillis() >= this.openUntil) && (!this.trying)) {
+            this.trying = true;
+            return PROBE;
+        }
+        return WAIT;
+    }
+
+    /*
+     * When to ask again after tryAcquire() said WAIT [ms]: when the circuit is due to let a probe in,
+     * or after another pause if a probe is already in flight.
+     */
+    public synchronized long retryIn() {
+        long now = System.currentTimeMillis();
+        return Math.max(1, (now < this.openUntil) ? this.openUntil - now : this.pause);
+    }
+
+    public synchronized void success() {
+        if (this.openUntil != 0) {
+            Log.info("Cassandra host:" + this.host + " is back, closing its circuit.");
+        }
+        this.failuresInARow = 0;
+        this.openUntil = 0;
+        this.trying = false;
+        notifyAll();
+    }
+
+    /*
+     * 'probe' is what acquire() returned to the failed call.
+     */
+    public synchronized void failure(boolean probe) {
+        this.failuresInARow++;
+        if (probe || ((this.openUntil == 0) && (this.failuresInARow >= this.failures))) {
+            if (!probe) {
+                Log.warn("Cassandra host:" + this.host + " failed " + this.failuresInARow +
+                        " times in a row, opening its circuit for " + this.pause + "ms.");
+            }
+            this.openUntil = System.currentTimeMillis() + this.pause;
+            if (probe) {
+                this.trying = false;
+            }
+            notifyAll();
+        }
+    }
+
+    public synchronized boolean isOpen() {
+        return this.openUntil != 0;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+
+package net.indigital.mysql2cass.retry;
+
+/*
+ * Thrown when a RetryPolicy gives up. The cause is the error of the last attempt.
+ * A write split by row key tells which of its partitions was given up: the rows whose
+ * WriterSession.partitionOf(key, partitions) is 'partition'. Anything else is partition 0 of 1.
+ */
+public class RetriesExhaustedException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private int partition = 0;
+    private int partitions = 1;
+
+    public RetriesExhaustedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public RetriesExhaustedException(String message, Throwable cause, int partition, int partitions) {
+        super(message, cause);
+        this.partition = partition;
+        this.partitions = partitions;
+    }
+
+    public int getPartition() {
+        return this.partition;
+    }
+
+    public int getPartitions() {
+        return this.partitions;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+
+package net.indigital.mysql2cass.retry;
+
+import java.util.Random;
+
+/*
+ * How long to wait between attempts, and when to give up.
+ * The wait doubles with every failed attempt, from 'pause' up to 'maxPause', and is then
+ * picked at random between its half and itself, so the writers that failed together don't all
+ * come back at the same time.
+ */
+public class RetryPolicy {
+
+    private static final Random random = new Random();
+
+    private long pause;
+    private long maxPause;
+    private int maxAttempts;
+
+    /*
+     * 'maxAttempts' counts the first one too. 0 retries forever.
+     */
+    public RetryPolicy(long pause, long maxPause, int maxAttempts) {
+        this.pause = pause;
+        this.maxPause = Math.max(pause, maxPause);
+        this.maxAttempts = maxAttempts;
+    }
+
+    /*
+     * Whether to try again after 'attempts' failed attempts.
+     */
+    public boolean canRetry(int attempts) {
+        return (this.maxAttempts == 0) || (attempts < this.maxAttempts);
+    }
+
+    /*
+     * Wait before the next attempt after 'attempts' failed ones [ms].
+     */
+    public long delay(int attempts) {
+        long delay = this.pause;
+        for (int i = 1; (i < attempts) && (delay < this.maxPause); i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, this.maxPause);
+        long half = delay / 2;
+        return half + (long) (random.nextDouble() * (delay - half));
+    }
+
+    public int getMaxAttempts() {
+        return this.maxAttempts;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.segment;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+ * Compression of the records of a segment file, as set by segmentCompression.
+ * Records are compressed from a heap array, and decompressed straight from the mapped segment
+ * into a direct buffer, which is what Snappy needs.
+ */
+public enum SegmentCodec {
+    NONE("none", 0),
+    LZ4("lz4", 1),
+    SNAPPY("snappy", 2);
+
+    private String name;
+    /* Stored in the segment header. */
+    private int id;
+
+    SegmentCodec(String name, int id) {
+        this.name = name;
+        this.id = id;
+    }
+
+    public String getName() {
+        return this.name;
+    }
+
+    public int getId() {
+        return this.id;
+    }
+
+    /*
+     * Returns the codec for a segmentCompression attribute, null if there is none.
+     */
+    public static SegmentCodec fromName(String name) {
+        for (SegmentCodec codec : values()) {
+            if (codec.name.equals(name)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    public static SegmentCodec fromId(int id) throws IOException {
+        for (SegmentCodec codec : values()) {
+            if (codec.id == id) {
+                return codec;
+            }
+        }
+        throw new IOException("Unknown segment compression:" + id);
+    }
+
+    /* Biggest compressed size of 'length' bytes. */
+    public int maxCompressedLength(int length) {
+        switch (this) {
+            case LZ4:
+                return lz4().maxCompressedLength(length);
+            case SNAPPY:
+                return Snappy.maxCompressedLength(length);
+            default:
+                return length;
+        }
+    }
+
+    /*
+     * Compresses the first 'length' bytes of 'in' to 'out', sized with maxCompressedLength.
+     * Returns the compressed size.
+     */
+    public int compress(byte[] in, int length, byte[] out) throws IOException {
+        switch (this) {
+            case LZ4:
+                return lz4().compress(in, 0, length, out, 0, out.length);
+            case SNAPPY:
+                return Snappy.compress(in, 0, length, out, 0);
+            default:
+                System.arraycopy(in, 0, out, 0, length);
+                return length;
+        }
+    }
+
+    /*
+     * Decompresses 'in', from its position to its limit, to 'out', a direct buffer with room for
+     * 'rawLength' bytes. 'out' is left ready to be read.
+     */
+    public void decompress(ByteBuffer in, ByteBuffer out, int rawLength) throws IOException {
+        int length;
+        out.clear();
+        switch (this) {
+            case LZ4:
+                length = lz4Safe().decompress(in, in.position(), in.remaining(), out, 0, rawLength);
+                break;
+            case SNAPPY:
+                length = Snappy.uncompress(in, out);
+                break;
+            default:
+                out.put(in);
+                length = out.position();
+                break;
+        }
+        if (length != rawLength) {
+            throw new IOException("Corrupt record, " + length + " bytes once decompressed instead of " + rawLength);
+        }
+        out.position(0);
+        out.limit(rawLength);
+    }
+
+    /* Loaded only when used, so the native libraries are not needed without compression. */
+    private static LZ4Compressor lz4() {
+        return LZ4Factory.fastestInstance().fastCompressor();
+    }
+
+    private static LZ4SafeDecompressor lz4Safe() {
+        return LZ4Factory.fastestInstance().safeDecompressor();
+    }
+}
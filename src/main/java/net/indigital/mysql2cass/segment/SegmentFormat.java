@@ -0,0 +1,193 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.segment;
+
+import net.indigital.mysql2cass.ColumnType;
+import net.indigital.mysql2cass.RowBatch;
+import net.indigital.mysql2cass.TableSchema;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/*
+ * Layout of the segment files, shared by SegmentWriter and SegmentReader. Numbers are big endian.
+ *
+ * A segment starts with a header:
+ *   magic (4) | version (1) | codec (1) | columns (2) | type of every column (1 each)
+ * followed by one record per RowBatch:
+ *   stored length (4) | raw length (4) | last key (8) | CRC32 of the stored bytes (4) | stored bytes
+ * The stored bytes are the raw ones compressed with the codec of the segment. The raw ones are:
+ *   rows (4), then per row: key (8) | deleted (1) | per column: 0 null, 1 cleared, 2 value
+ * where a value is 8 bytes for int/datetime columns and length (4) plus UTF-8 bytes for string ones.
+ *
+ * Segments are named segment-<sequence>.seg, with a sequence that sorts as text.
+ */
+class SegmentFormat {
+
+    /* "M2CS" */
+    static final int MAGIC = 0x4D324353;
+    static final int VERSION = 1;
+    static final int RECORD_HEADER = 20;
+
+    static final byte NULL = 0;
+    static final byte CLEARED = 1;
+    static final byte VALUE = 2;
+
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".seg";
+
+    static File segment(File dir, long sequence) {
+        return new File(dir, PREFIX + String.format("%019d", sequence) + SUFFIX);
+    }
+
+    /* Segments of a directory, in order. */
+    static File[] segments(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().startsWith(PREFIX) && file.getName().endsWith(SUFFIX)) {
+                files[count++] = file;
+            }
+        }
+        File[] segments = Arrays.copyOf(files, count);
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    static long sequence(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /* Fills 'buffer' from the file, starting at 'position'. */
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of segment");
+            }
+            position += read;
+        }
+    }
+
+    static int headerLength(TableSchema schema) {
+        return 8 + schema.size();
+    }
+
+    static void putHeader(ByteBuffer out, SegmentCodec codec, TableSchema schema) {
+        out.putInt(MAGIC);
+        out.put((byte) VERSION);
+        out.put((byte) codec.getId());
+        out.putShort((short) schema.size());
+        for (int c = 0; c < schema.size(); c++) {
+            out.put((byte) schema.types[c].ordinal());
+        }
+    }
+
+    /*
+     * Reads the header of a segment and returns its codec. The columns must be the ones of 'schema',
+     * segments written with other maps can't be replayed.
+     */
+    static SegmentCodec getHeader(ByteBuffer in, TableSchema schema, File segment) throws IOException {
+        if ((in.getInt() != MAGIC) || (in.get() != VERSION)) {
+            throw new IOException("Not a segment file, or of another version:" + segment);
+        }
+        SegmentCodec codec = SegmentCodec.fromId(in.get());
+        boolean same = (in.getShort() == schema.size());
+        for (int c = 0; same && (c < schema.size()); c++) {
+            same = (in.get() == schema.types[c].ordinal());
+        }
+        if (!same) {
+            throw new IOException("The columns of " + segment + " are not the ones of the maps");
+        }
+        return codec;
+    }
+
+    /* Raw size of a batch, or a bit more. */
+    static int maxLength(RowBatch batch) {
+        int columns = batch.schema.size();
+        return 4 + batch.size() * (9 + 9 * columns) + batch.stringBytes();
+    }
+
+    static void encode(RowBatch batch, ByteBuffer out) {
+        TableSchema schema = batch.schema;
+        out.putInt(batch.size());
+        for (int row = 0; row < batch.size(); row++) {
+            out.putLong(batch.getKey(row));
+            out.put((byte) (batch.isDeleted(row) ? 1 : 0));
+            for (int c = 0; c < schema.size(); c++) {
+                if (batch.isNull(row, c)) {
+                    out.put(batch.isCleared(row, c) ? CLEARED : NULL);
+                } else if (schema.types[c] == ColumnType.STRING) {
+                    out.put(VALUE);
+                    out.putInt(batch.getStringLength(row, c));
+                    batch.putStringBytes(row, c, out);
+                } else {
+                    out.put(VALUE);
+                    out.putLong(batch.getLong(row, c));
+                }
+            }
+        }
+    }
+
+    /*
+     * Appends the rows of a raw record to 'batch', which must have room for them.
+     */
+    static void decode(ByteBuffer in, RowBatch batch) throws IOException {
+        TableSchema schema = batch.schema;
+        int rows = in.getInt();
+        if (batch.size() + rows > batch.capacity()) {
+            throw new IOException("A record of " + rows + " rows doesn't fit in a batch of " + batch.capacity() +
+                    ", the segments were written with a bigger elementsAtOnce");
+        }
+        for (int i = 0; i < rows; i++) {
+            long key = in.getLong();
+            int row = (in.get() != 0) ? batch.addDeletedRow(key) : batch.addRow(key);
+            for (int c = 0; c < schema.size(); c++) {
+                byte tag = in.get();
+                if (tag == CLEARED) {
+                    batch.setCleared(row, c);
+                } else if (tag == VALUE) {
+                    if (schema.types[c] == ColumnType.STRING) {
+                        batch.setStringBytes(row, c, in, in.getInt());
+                    } else {
+                        batch.setLong(row, c, in.getLong());
+                    }
+                } else if (tag != NULL) {
+                    throw new IOException("Corrupt record, unknown cell:" + tag);
+                }
+            }
+        }
+    }
+}
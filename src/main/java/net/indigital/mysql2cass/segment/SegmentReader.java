@@ -0,0 +1,218 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.segment;
+
+import net.indigital.mysql2cass.RowBatch;
+import net.indigital.mysql2cass.TableSchema;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/*
+ * Replay side of the segment mode: reads back the records of the segment files of a mapping, in order.
+ * Segments are memory mapped and records are decoded straight from the mapping into the recycled
+ * batches, or from a reused buffer when they are compressed. Nothing is allocated per row.
+ *
+ * The last segment may still be being written by a SegmentWriter, in this process or another one.
+ * A record is only read once it is complete and its CRC is right; next() returns false until then.
+ * Segments are never deleted, so they can be replayed again (e.g. into a keyspace that was dropped).
+ */
+public class SegmentReader {
+    private static Logger Log = Logger.getLogger(SegmentReader.class);
+
+    private File dir;
+    private TableSchema schema;
+    private int headerLength;
+
+    /* Segment being read, null until there is one. */
+    private long sequence = -1;
+    private File segment;
+    private FileChannel channel = null;
+    private SegmentCodec codec;
+    /* Next record. */
+    private long position;
+    /* Mapping of the segment, from mapStart to the size it had when mapped. */
+    private MappedByteBuffer map = null;
+    private long mapStart;
+
+    /* Decompressed record, reused. */
+    private ByteBuffer raw = null;
+    private CRC32 crc = new CRC32();
+
+    /* Set by record(). */
+    private int rawLength;
+    private long recordKey;
+
+    public SegmentReader(File dir, TableSchema schema) {
+        this.dir = dir;
+        this.schema = schema;
+        this.headerLength = SegmentFormat.headerLength(schema);
+    }
+
+    /*
+     * Reads the next record with keys after 'after' into 'batch', which must be empty.
+     * Records up to 'after' are skipped without even reading their rows.
+     * Returns false when there is no new complete record.
+     */
+    public synchronized boolean next(RowBatch batch, long after) throws IOException {
+        while (true) {
+            if ((this.channel == null) && (!openNext())) {
+                return false;
+            }
+            ByteBuffer stored = record();
+            if (stored == null) {
+                /* The writer only starts a segment once the previous one is complete. */
+                if (!laterSegment()) {
+                    return false;
+                }
+                stored = record();
+                if (stored == null) {
+                    if (this.position < this.channel.size()) {
+                        throw new IOException("Corrupt record at " + this.position + " of " + this.segment);
+                    }
+                    closeSegment();
+                    continue;
+                }
+            }
+            long recordEnd = this.position + SegmentFormat.RECORD_HEADER + stored.remaining();
+            if (this.recordKey <= after) {
+                this.position = recordEnd;
+                continue;
+            }
+            if (this.codec == SegmentCodec.NONE) {
+                SegmentFormat.decode(stored, batch);
+            } else {
+                if ((this.raw == null) || (this.raw.capacity() < this.rawLength)) {
+                    this.raw = ByteBuffer.allocateDirect(Math.max(this.rawLength, 64 * 1024));
+                }
+                this.codec.decompress(stored, this.raw, this.rawLength);
+                SegmentFormat.decode(this.raw, batch);
+            }
+            this.position = recordEnd;
+            return true;
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            closeSegment();
+        } catch (IOException e) {
+            Log.error(e.getMessage(),e);
+        }
+    }
+
+    /*
+     * The stored bytes of the record at 'position', null if it is not complete yet.
+     * Leaves its raw length and last key in rawLength and recordKey.
+     */
+    private ByteBuffer record() throws IOException {
+        long size = this.channel.size();
+        if (this.position + SegmentFormat.RECORD_HEADER > size) {
+            return null;
+        }
+        map(this.position + SegmentFormat.RECORD_HEADER, size);
+        int at = (int) (this.position - this.mapStart);
+        int storedLength = this.map.getInt(at);
+        if ((storedLength < 0) || (this.position + SegmentFormat.RECORD_HEADER + storedLength > size)) {
+            return null;
+        }
+        map(this.position + SegmentFormat.RECORD_HEADER + storedLength, size);
+        at = (int) (this.position - this.mapStart);
+        this.rawLength = this.map.getInt(at + 4);
+        this.recordKey = this.map.getLong(at + 8);
+        int crc = this.map.getInt(at + 16);
+        ByteBuffer stored = this.map.duplicate();
+        stored.limit(at + SegmentFormat.RECORD_HEADER + storedLength);
+        stored.position(at + SegmentFormat.RECORD_HEADER);
+        this.crc.reset();
+        this.crc.update(stored.duplicate());
+        return ((int) this.crc.getValue() == crc) ? stored : null;
+    }
+
+    /* Maps the segment from 'position' if the current mapping doesn't get to 'end'. */
+    private void map(long end, long size) throws IOException {
+        if ((this.map == null) || (this.mapStart > this.position) || (end > this.mapStart + this.map.capacity())) {
+            this.mapStart = this.position;
+            this.map = this.channel.map(FileChannel.MapMode.READ_ONLY, this.position, size - this.position);
+        }
+    }
+
+    /*
+     * Opens the first segment after the current one, if there is one with its header written.
+     */
+    private boolean openNext() throws IOException {
+        for (File next : SegmentFormat.segments(this.dir)) {
+            if (SegmentFormat.sequence(next) <= this.sequence) {
+                continue;
+            }
+            if (next.length() < this.headerLength) {
+                return false;
+            }
+            FileChannel tmp = new RandomAccessFile(next, "r").getChannel();
+            try {
+                ByteBuffer header = ByteBuffer.allocate(this.headerLength);
+                SegmentFormat.readFully(tmp, header, 0);
+                header.flip();
+                this.codec = SegmentFormat.getHeader(header, this.schema, next);
+            } catch (IOException e) {
+                tmp.close();
+                throw e;
+            }
+            this.channel = tmp;
+            this.segment = next;
+            this.sequence = SegmentFormat.sequence(next);
+            this.position = this.headerLength;
+            this.map = null;
+            Log.info("Replaying segment:" + next);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean laterSegment() {
+        for (File next : SegmentFormat.segments(this.dir)) {
+            if (SegmentFormat.sequence(next) > this.sequence) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void closeSegment() throws IOException {
+        this.map = null;
+        if (this.channel != null) {
+            this.channel.close();
+            this.channel = null;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.segment;
+
+import net.indigital.mysql2cass.RowBatch;
+import net.indigital.mysql2cass.TableSchema;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/*
+ * Dump side of the segment mode: appends the batches read from MySQL to the segment files of a
+ * mapping (see SegmentFormat), so reading doesn't wait for Cassandra.
+ * Every record is synced to disk before append() returns. A new segment is started once the
+ * current one would grow past segmentSize.
+ *
+ * When opened, the last segment is checked and a record cut by a crash is truncated, so the
+ * dump goes on after getLastKey(), the last key safely on disk.
+ */
+public class SegmentWriter {
+    private static Logger Log = Logger.getLogger(SegmentWriter.class);
+
+    /* Size a segment grows to before a new one is started [bytes]. */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private File dir;
+    private TableSchema schema;
+    private SegmentCodec codec;
+    private int segmentSize;
+    private int headerLength;
+
+    /* Segment being written, null until the next append. */
+    private long sequence = -1;
+    private FileChannel channel = null;
+    private long position;
+    private long lastKey = -1;
+
+    /* Reused for every record. */
+    private ByteBuffer raw = ByteBuffer.allocate(64 * 1024);
+    private byte[] compressed = new byte[0];
+    private ByteBuffer recordHeader = ByteBuffer.allocate(SegmentFormat.RECORD_HEADER);
+    private CRC32 crc = new CRC32();
+
+    /* Set by scan(). */
+    private long scannedKey;
+    private SegmentCodec scannedCodec;
+
+    public SegmentWriter(File dir, TableSchema schema, SegmentCodec codec, int segmentSize) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create the segment directory:" + dir);
+        }
+        this.dir = dir;
+        this.schema = schema;
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+        this.headerLength = SegmentFormat.headerLength(schema);
+        recover();
+        Log.info("Segments in:" + dir.getAbsolutePath() + ", last key:" + this.lastKey);
+    }
+
+    /* Last key written, -1 if there is none. */
+    public synchronized long getLastKey() {
+        return this.lastKey;
+    }
+
+    /*
+     * Appends a batch as one record. If it fails, whatever was written of it is taken back.
+     */
+    public synchronized void append(RowBatch batch) throws IOException {
+        if (batch.size() == 0) {
+            return;
+        }
+        int maxLength = SegmentFormat.maxLength(batch);
+        if (this.raw.capacity() < maxLength) {
+            this.raw = ByteBuffer.allocate(Math.max(maxLength, this.raw.capacity() * 2));
+        }
+        this.raw.clear();
+        SegmentFormat.encode(batch, this.raw);
+        int rawLength = this.raw.position();
+        byte[] stored = this.raw.array();
+        int storedLength = rawLength;
+        if (this.codec != SegmentCodec.NONE) {
+            int maxStored = this.codec.maxCompressedLength(rawLength);
+            if (this.compressed.length < maxStored) {
+                this.compressed = new byte[Math.max(maxStored, this.compressed.length * 2)];
+            }
+            stored = this.compressed;
+            storedLength = this.codec.compress(this.raw.array(), rawLength, stored);
+        }
+        this.crc.reset();
+        this.crc.update(stored, 0, storedLength);
+
+        if ((this.channel != null) && (this.position > this.headerLength) &&
+            (this.position + SegmentFormat.RECORD_HEADER + storedLength > this.segmentSize)) {
+            closeSegment();
+        }
+        if (this.channel == null) {
+            openSegment();
+        }
+        this.recordHeader.clear();
+        this.recordHeader.putInt(storedLength);
+        this.recordHeader.putInt(rawLength);
+        this.recordHeader.putLong(batch.getLastKey());
+        this.recordHeader.putInt((int) this.crc.getValue());
+        this.recordHeader.flip();
+        ByteBuffer[] record = new ByteBuffer[] {this.recordHeader, ByteBuffer.wrap(stored, 0, storedLength)};
+        try {
+            this.channel.position(this.position);
+            while (record[1].hasRemaining()) {
+                this.channel.write(record);
+            }
+            this.channel.force(false);
+        } catch (IOException e) {
+            try {
+                this.channel.truncate(this.position);
+            } catch (IOException e2) {
+                Log.error(e2.getMessage(),e2);
+            }
+            throw e;
+        }
+        this.position += SegmentFormat.RECORD_HEADER + storedLength;
+        this.lastKey = batch.getLastKey();
+    }
+
+    public synchronized void close() {
+        try {
+            closeSegment();
+        } catch (IOException e) {
+            Log.error(e.getMessage(),e);
+        }
+    }
+
+    private void openSegment() throws IOException {
+        File segment = SegmentFormat.segment(this.dir, ++this.sequence);
+        this.channel = new RandomAccessFile(segment, "rw").getChannel();
+        ByteBuffer header = ByteBuffer.allocate(this.headerLength);
+        SegmentFormat.putHeader(header, this.codec, this.schema);
+        header.flip();
+        this.channel.truncate(0);
+        while (header.hasRemaining()) {
+            this.channel.write(header, header.position());
+        }
+        this.position = this.headerLength;
+        Log.info("Writing segment:" + segment);
+    }
+
+    private void closeSegment() throws IOException {
+        if (this.channel != null) {
+            this.channel.close();
+            this.channel = null;
+        }
+    }
+
+    /*
+     * Finds the last key on disk, going back from the last segment until one has a record.
+     * The last segment goes on being written if it was written with the same codec.
+     */
+    private void recover() throws IOException {
+        File[] segments = SegmentFormat.segments(this.dir);
+        for (int i = segments.length - 1; (i >= 0) && (this.lastKey < 0); i--) {
+            FileChannel tmp = new RandomAccessFile(segments[i], "rw").getChannel();
+            long end = scan(tmp, segments[i]);
+            this.lastKey = this.scannedKey;
+            if (i < segments.length - 1) {
+                tmp.close();
+                continue;
+            }
+            this.sequence = SegmentFormat.sequence(segments[i]);
+            if (end < tmp.size()) {
+                Log.warn("Truncating " + segments[i] + " at " + end + " of " + tmp.size() +
+                        " bytes, probably cut by a crash.");
+                tmp.truncate(end);
+                tmp.force(true);
+            }
+            if (end == 0) {
+                /* Not even the header, it is written again. */
+                tmp.close();
+                this.sequence--;
+            } else if (this.scannedCodec != this.codec) {
+                tmp.close();
+            } else {
+                this.channel = tmp;
+                this.position = end;
+            }
+        }
+    }
+
+    /*
+     * Checks the records of a segment. Returns where the valid ones end, 0 if even the header is
+     * incomplete, and leaves in scannedKey the last key of the last valid one, -1 if there is none.
+     */
+    private long scan(FileChannel channel, File segment) throws IOException {
+        this.scannedKey = -1;
+        long size = channel.size();
+        if (size < this.headerLength) {
+            return 0;
+        }
+        ByteBuffer header = ByteBuffer.allocate(this.headerLength);
+        SegmentFormat.readFully(channel, header, 0);
+        header.flip();
+        this.scannedCodec = SegmentFormat.getHeader(header, this.schema, segment);
+        long end = this.headerLength;
+        ByteBuffer stored = ByteBuffer.allocate(0);
+        while (end + SegmentFormat.RECORD_HEADER <= size) {
+            this.recordHeader.clear();
+            SegmentFormat.readFully(channel, this.recordHeader, end);
+            this.recordHeader.flip();
+            int storedLength = this.recordHeader.getInt();
+            this.recordHeader.getInt();
+            long key = this.recordHeader.getLong();
+            int crc = this.recordHeader.getInt();
+            if ((storedLength < 0) || (end + SegmentFormat.RECORD_HEADER + storedLength > size)) {
+                break;
+            }
+            if (stored.capacity() < storedLength) {
+                stored = ByteBuffer.allocate(storedLength);
+            }
+            stored.clear();
+            stored.limit(storedLength);
+            SegmentFormat.readFully(channel, stored, end + SegmentFormat.RECORD_HEADER);
+            this.crc.reset();
+            this.crc.update(stored.array(), 0, storedLength);
+            if ((int) this.crc.getValue() != crc) {
+                break;
+            }
+            end += SegmentFormat.RECORD_HEADER + storedLength;
+            this.scannedKey = key;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,86 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+
+package net.indigital.mysql2cass.spool;
+
+import net.indigital.mysql2cass.RowBatch;
+import net.indigital.mysql2cass.TableSchema;
+
+import java.util.*;
+
+/*
+ * A row left out of Cassandra, as kept by the DeadLetterSpool.
+ * Values are text: the raw MySQL value when the row could not be read, the value read (datetimes
+ * in epoch millis) when it could not be written. A cleared cell (set to NULL by an update) has a
+ * null value, cells without value are not there.
+ */
+public class DeadLetter {
+
+    public long time;
+    public String mappingId;
+    public String reason;
+    public long key;
+    public boolean deleted;
+    public Map<String, String> values = new LinkedHashMap<String, String>();
+
+    public DeadLetter(String mappingId, String reason, long key) {
+        this.time = System.currentTimeMillis();
+        this.mappingId = mappingId;
+        this.reason = reason;
+        this.key = key;
+    }
+
+    /*
+     * Dead letter of row 'row' of a batch.
+     */
+    public static DeadLetter of(String mappingId, String reason, RowBatch batch, int row) {
+        DeadLetter letter = new DeadLetter(mappingId, reason, batch.getKey(row));
+        letter.deleted = batch.isDeleted(row);
+        TableSchema schema = batch.schema;
+        for (int c = 0; c < schema.size(); c++) {
+            if (batch.isCleared(row, c)) {
+                letter.values.put(schema.names[c], null);
+            } else if (!batch.isNull(row, c)) {
+                switch (schema.types[c]) {
+                    case INT:
+                    case DATETIME:
+                        letter.values.put(schema.names[c], String.valueOf(batch.getLong(row, c)));
+                        break;
+                    default:
+                        letter.values.put(schema.names[c], batch.getString(row, c));
+                        break;
+                }
+            }
+        }
+        return letter;
+    }
+
+    public String toString() {
+        return "DeadLetter[mapping:" + this.mappingId + ", key:" + this.key + (this.deleted ? " deleted" : "") +
+                ", reason:" + this.reason + ", values:" + this.values + "]";
+    }
+}
@@ -0,0 +1,208 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+
+package net.indigital.mysql2cass.spool;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.*;
+
+/*
+ * Local append-only file with the rows that could not be copied, shared by every mapping:
+ * rows with a value that can't be converted to the type of its column, and batches given up after
+ * maxWriteAttempts. The mapping goes on without them, and they can be replayed later on.
+ *
+ * Each row is one line, synced to disk:
+ *   time<TAB>mappingId<TAB>reason<TAB>key<TAB>row|delete[<TAB>column=value|<TAB>column]...
+ * where a column without '=' is a cleared one. Backslashes, tabs, ends of line and '=' are escaped.
+ * A line cut by a crash has no end of line and is ignored.
+ *
+ * With replay, the file found at start is renamed to deadletters.<time>.log and its rows are
+ * handed to their mappings, new dead letters go to a new file.
+ */
+public class DeadLetterSpool {
+    private static Logger Log = Logger.getLogger(DeadLetterSpool.class);
+
+    public static final String FILE_NAME = "deadletters.log";
+
+    private static final String UTF8 = "UTF-8";
+
+    private File file;
+    private FileOutputStream out;
+    private Map<String, List<DeadLetter>> replay = new HashMap<String, List<DeadLetter>>();
+
+    public DeadLetterSpool(File dir, boolean replay) throws Exception {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create the dead letter directory:" + dir);
+        }
+        this.file = new File(dir, FILE_NAME);
+        if (replay && this.file.exists()) {
+            File replayed = new File(dir, "deadletters." + System.currentTimeMillis() + ".log");
+            if (!this.file.renameTo(replayed)) {
+                throw new IOException("Could not rename " + this.file + " to " + replayed);
+            }
+            for (DeadLetter letter : read(replayed)) {
+                List<DeadLetter> letters = this.replay.get(letter.mappingId);
+                if (letters == null) {
+                    letters = new ArrayList<DeadLetter>();
+                    this.replay.put(letter.mappingId, letters);
+                }
+                letters.add(letter);
+            }
+            Log.info("Replaying the dead letters of " + replayed + ", mappings:" + this.replay.keySet());
+        }
+        this.out = new FileOutputStream(this.file, true);
+        Log.info("Dead letters in:" + this.file.getAbsolutePath());
+    }
+
+    /*
+     * The dead letters of a mapping to replay, handed out only once.
+     */
+    public synchronized List<DeadLetter> takeReplay(String mappingId) {
+        List<DeadLetter> letters = this.replay.remove(mappingId);
+        return (letters != null) ? letters : new ArrayList<DeadLetter>();
+    }
+
+    public synchronized void add(DeadLetter letter) throws IOException {
+        StringBuilder line = new StringBuilder();
+        line.append(letter.time).append('\t');
+        escape(line, letter.mappingId).append('\t');
+        escape(line, letter.reason).append('\t');
+        line.append(letter.key).append('\t').append(letter.deleted ? "delete" : "row");
+        for (Map.Entry<String, String> value : letter.values.entrySet()) {
+            line.append('\t');
+            escape(line, value.getKey());
+            if (value.getValue() != null) {
+                escape(line.append('='), value.getValue());
+            }
+        }
+        line.append('\n');
+        this.out.write(line.toString().getBytes(UTF8));
+        this.out.getFD().sync();
+    }
+
+    public synchronized void close() {
+        try {
+            if (this.out != null) {
+                this.out.close();
+                this.out = null;
+            }
+        } catch (IOException e) {
+            Log.error(e.getMessage(),e);
+        }
+    }
+
+    /*
+     * Every dead letter of a spool file, in order.
+     */
+    public static List<DeadLetter> read(File file) throws IOException {
+        byte[] content = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(content);
+        } finally {
+            in.close();
+        }
+        List<DeadLetter> letters = new ArrayList<DeadLetter>();
+        int start = 0;
+        for (int i = 0; i < content.length; i++) {
+            if (content[i] != '\n') {
+                continue;
+            }
+            String line = new String(content, start, i - start, UTF8);
+            start = i + 1;
+            try {
+                letters.add(parse(line));
+            } catch (Exception e) {
+                Log.warn("Ignoring a bad line in " + file + ": " + line);
+            }
+        }
+        if (start < content.length) {
+            Log.warn("Ignoring an incomplete last line in " + file + ", probably cut by a crash.");
+        }
+        return letters;
+    }
+
+    private static DeadLetter parse(String line) {
+        String[] fields = line.split("\t", -1);
+        DeadLetter letter = new DeadLetter(unescape(fields[1]), unescape(fields[2]), Long.parseLong(fields[3]));
+        letter.time = Long.parseLong(fields[0]);
+        if (fields[4].equals("delete")) {
+            letter.deleted = true;
+        } else if (!fields[4].equals("row")) {
+            throw new IllegalArgumentException("Unknown kind of row: " + fields[4]);
+        }
+        for (int i = 5; i < fields.length; i++) {
+            int equals = fields[i].indexOf('=');
+            if (equals < 0) {
+                letter.values.put(unescape(fields[i]), null);
+            } else {
+                letter.values.put(unescape(fields[i].substring(0, equals)), unescape(fields[i].substring(equals + 1)));
+            }
+        }
+        return letter;
+    }
+
+    private static StringBuilder escape(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+                case '\\': out.append("\\\\"); break;
+                case '\t': out.append("\\t"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '=': out.append("\\e"); break;
+                default: out.append(ch); break;
+            }
+        }
+        return out;
+    }
+
+    private static String unescape(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder out = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            if ((ch == '\\') && (i + 1 < value.length())) {
+                char next = value.charAt(++i);
+                switch (next) {
+                    case 't': out.append('\t'); break;
+                    case 'n': out.append('\n'); break;
+                    case 'r': out.append('\r'); break;
+                    case 'e': out.append('='); break;
+                    default: out.append(next); break;
+                }
+            } else {
+                out.append(ch);
+            }
+        }
+        return out.toString();
+    }
+}
@@ -26,8 +26,19 @@ First version: lmartin, July 2012.
 
 package net.indigital.util;
 
+import net.indigital.mysql2cass.DateTimeConverter;
 import net.indigital.mysql2cass.Mapping;
-
+import net.indigital.mysql2cass.cass.CassWriter;
+import net.indigital.mysql2cass.cass.ClusterRegistry;
+import net.indigital.mysql2cass.checkpoint.CheckpointStore;
+import net.indigital.mysql2cass.checkpoint.FileCheckpointStore;
+import net.indigital.mysql2cass.mysql.MySqlConnectionPool;
+import net.indigital.mysql2cass.mysql.MySqlReader;
+import net.indigital.mysql2cass.segment.SegmentCodec;
+import net.indigital.mysql2cass.segment.SegmentWriter;
+import net.indigital.mysql2cass.spool.DeadLetterSpool;
+
+import java.io.File;
 import java.util.*;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -45,8 +56,13 @@ import org.dom4j.io.SAXReader;
 */
 public class Properties {
     private static String mapping = "mysql2cass/*";
+    private static String root = "/mysql2cass";
     private static Logger Log = Logger.getLogger(Properties.class);
 
+    /* Settings common to every mapping, attributes of the root node. Set by configure(). */
+    public static Integer metricsPort = 0;
+    public static Integer schedulerThreads = 4;
+
     /*
      * This private method reads the XML configuration file
      * and returns the parsed document.
@@ -74,6 +90,24 @@ public class Properties {
         return nodes;
     }
 
+    /*
+     * Basic private method helper.
+     * Reads an optional integer attribute, returning defaultValue when it is not set.
+     */
+    private static Integer optionalInteger(Node node, String attribute, Integer defaultValue) {
+        Node attributeNode = node.selectSingleNode("@" + attribute);
+        if ((attributeNode == null) || (attributeNode.getStringValue().isEmpty())) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(attributeNode.getStringValue());
+        } catch (NumberFormatException e) {
+            Log.error("Found an incorrect value for " + attribute + ": " + attributeNode.getStringValue());
+            System.exit(0);
+        }
+        return defaultValue;
+    }
+
     /*
      * Main parser function.
      * Easy and big function to parse the configuration file.
@@ -86,10 +120,115 @@ public class Properties {
         Document document = getDocument(configFileLocation);
         List<Node> mappingNodes = selectNodes(document, mapping);
 
+        /* Parsing the settings of the root node. */
+        Node rootNode = document.selectSingleNode(root);
+        CheckpointStore checkpoints = null;
+        Boolean resume = Boolean.FALSE;
+        DeadLetterSpool deadLetters = null;
+        File segmentDir = null;
+        String segmentMode = Mapping.SEGMENTS_BOTH;
+        SegmentCodec segmentCodec = SegmentCodec.NONE;
+        Integer segmentSize = SegmentWriter.DEFAULT_SEGMENT_SIZE;
+        if (rootNode != null) {
+            metricsPort = optionalInteger(rootNode, "metricsPort", 0);
+            if ((metricsPort < 0) || (metricsPort > 65535)) {
+                Log.error("Found an incorrect metricsPort: " + metricsPort);
+                System.exit(0);
+            }
+
+            schedulerThreads = optionalInteger(rootNode, "schedulerThreads", 4);
+            if (schedulerThreads < 1) {
+                Log.error("Found an incorrect schedulerThreads: " + schedulerThreads);
+                System.exit(0);
+            }
+
+            Node resumeNode = rootNode.selectSingleNode("@resume");
+            if ((resumeNode != null) && (!resumeNode.getStringValue().isEmpty())) {
+                if ((!resumeNode.getStringValue().equals("true")) && (!resumeNode.getStringValue().equals("false"))) {
+                    Log.error("Found an incorrect value for resume: " + resumeNode.getStringValue());
+                    System.exit(0);
+                }
+                resume = resumeNode.getStringValue().equals("true");
+            }
+            Node checkpointDirNode = rootNode.selectSingleNode("@checkpointDir");
+            if ((checkpointDirNode != null) && (!checkpointDirNode.getStringValue().isEmpty())) {
+                try {
+                    checkpoints = new FileCheckpointStore(new File(checkpointDirNode.getStringValue()));
+                } catch (Exception e) {
+                    Log.error("Could not open the checkpoints in: " + checkpointDirNode.getStringValue());
+                    Log.error(e.getMessage(),e);
+                    System.exit(0);
+                }
+            }
+
+            Boolean replayDeadLetters = Boolean.FALSE;
+            Node replayNode = rootNode.selectSingleNode("@replayDeadLetters");
+            if ((replayNode != null) && (!replayNode.getStringValue().isEmpty())) {
+                if ((!replayNode.getStringValue().equals("true")) && (!replayNode.getStringValue().equals("false"))) {
+                    Log.error("Found an incorrect value for replayDeadLetters: " + replayNode.getStringValue());
+                    System.exit(0);
+                }
+                replayDeadLetters = replayNode.getStringValue().equals("true");
+            }
+            Node deadLetterDirNode = rootNode.selectSingleNode("@deadLetterDir");
+            if ((deadLetterDirNode != null) && (!deadLetterDirNode.getStringValue().isEmpty())) {
+                try {
+                    deadLetters = new DeadLetterSpool(new File(deadLetterDirNode.getStringValue()), replayDeadLetters);
+                } catch (Exception e) {
+                    Log.error("Could not open the dead letters in: " + deadLetterDirNode.getStringValue());
+                    Log.error(e.getMessage(),e);
+                    System.exit(0);
+                }
+            } else if (replayDeadLetters) {
+                Log.error("replayDeadLetters needs a deadLetterDir");
+                System.exit(0);
+            }
+
+            Node segmentDirNode = rootNode.selectSingleNode("@segmentDir");
+            if ((segmentDirNode != null) && (!segmentDirNode.getStringValue().isEmpty())) {
+                segmentDir = new File(segmentDirNode.getStringValue());
+            }
+            Node segmentModeNode = rootNode.selectSingleNode("@segmentMode");
+            if ((segmentModeNode != null) && (!segmentModeNode.getStringValue().isEmpty())) {
+                segmentMode = segmentModeNode.getStringValue();
+                if ((!segmentMode.equals(Mapping.SEGMENTS_BOTH)) && (!segmentMode.equals(Mapping.SEGMENTS_DUMP)) &&
+                    (!segmentMode.equals(Mapping.SEGMENTS_REPLAY))) {
+                    Log.error("Found an incorrect value for segmentMode: " + segmentMode +
+                            ". Valid values are both, dump, replay");
+                    System.exit(0);
+                }
+            }
+            Node segmentCompressionNode = rootNode.selectSingleNode("@segmentCompression");
+            if ((segmentCompressionNode != null) && (!segmentCompressionNode.getStringValue().isEmpty())) {
+                segmentCodec = SegmentCodec.fromName(segmentCompressionNode.getStringValue());
+                if (segmentCodec == null) {
+                    Log.error("Found an incorrect value for segmentCompression: " +
+                            segmentCompressionNode.getStringValue() + ". Valid values are none, lz4, snappy");
+                    System.exit(0);
+                }
+            }
+            segmentSize = optionalInteger(rootNode, "segmentSize", SegmentWriter.DEFAULT_SEGMENT_SIZE);
+            if (segmentSize < 1) {
+                Log.error("Found an incorrect segmentSize: " + segmentSize);
+                System.exit(0);
+            }
+        }
+        if (resume && (checkpoints == null)) {
+            Log.error("resume needs a checkpointDir");
+            System.exit(0);
+        }
+
         Integer pauseMySQLReconnections; //ms
         Integer pauseCassandraReconnections; //ms
         Integer refresh; //ms
         Integer elementsAtOnce; //num elements
+        Integer pipelineDepth; //num batches
+        Integer backfillThreads; //num threads
+        Boolean adaptive;
+        Integer minRefresh; //ms
+        Integer minElementsAtOnce; //num elements
+        Integer maxElementsAtOnce; //num elements
+        Integer targetWriteTime; //ms
 
         String mysqlHost;
         Integer mysqlPort;
@@ -98,10 +237,37 @@ public class Properties {
         String db;
         String table;
         String numericKeyStr;
+        TimeZone timeZone;
         String cassHost;
         Integer cassPort;
         String keysType;
         Boolean truncateDataBase;
+        Integer batchRows; //num rows
+        Integer batchBytes; //bytes
+        Integer writerThreads; //num threads
+        Integer maxInFlight; //num writes
+        Integer maxPauseCassandraReconnections; //ms
+        Integer maxWriteAttempts; //num attempts
+        Integer breakerFailures; //num failures
+        Integer breakerPause; //ms
+        Integer maxActive; //num connections per host
+        Integer maxWaitWhenExhausted; //ms, -1 forever
+        Integer socketTimeout; //ms, 0 none
+        String loadBalancing;
+        Boolean autoDiscoverHosts;
+        String writeConsistency;
+        String backfillConsistency;
+        String replicationStrategy;
+        Integer replicationFactor; //num replicas
+        String dataCenters;
+        Integer ttl; //s, 0 for ever
+        Integer fetchSize; //num elements, 0 disables streaming
+        Integer poolSize; //num connections
+        Integer poolIdleTimeout; //ms
+        String validationQuery;
+        Boolean binlog;
+        Integer serverId;
+        String binlogFile;
 
         /* Common to all the mappings. This structure will allow the threads
         *  to know which Cassandra keyspace has already been tried to be removed. */
@@ -139,6 +305,36 @@ public class Properties {
             }
             refresh = Integer.parseInt(node.selectSingleNode("@refresh").getStringValue());
             elementsAtOnce = Integer.parseInt(node.selectSingleNode("@elementsAtOnce").getStringValue());
+            pipelineDepth = optionalInteger(node, "pipelineDepth", 2);
+            if (pipelineDepth < 1) {
+                Log.error("Found an incorrect mapping node. pipelineDepth must be positive");
+                System.exit(0);
+            }
+            adaptive = Boolean.FALSE;
+            Node adaptiveNode = node.selectSingleNode("@adaptive");
+            if ((adaptiveNode != null) && (!adaptiveNode.getStringValue().isEmpty())) {
+                if ((!adaptiveNode.getStringValue().equals("true")) && (!adaptiveNode.getStringValue().equals("false"))) {
+                    Log.error("Found an incorrect value for adaptive: " + adaptiveNode.getStringValue());
+                    System.exit(0);
+                }
+                adaptive = adaptiveNode.getStringValue().equals("true");
+            }
+            minRefresh = optionalInteger(node, "minRefresh", Math.min(100, refresh));
+            minElementsAtOnce = optionalInteger(node, "minElementsAtOnce", elementsAtOnce);
+            maxElementsAtOnce = optionalInteger(node, "maxElementsAtOnce", elementsAtOnce);
+            targetWriteTime = optionalInteger(node, "targetWriteTime", 1000);
+            if ((minRefresh < 0) || (minRefresh > refresh) ||
+                (minElementsAtOnce < 1) || (minElementsAtOnce > elementsAtOnce) || (maxElementsAtOnce < elementsAtOnce) ||
+                (targetWriteTime < 1)) {
+                Log.error("Found an incorrect mapping node. It must be 0 <= minRefresh <= refresh, " +
+                        "1 <= minElementsAtOnce <= elementsAtOnce <= maxElementsAtOnce and targetWriteTime positive");
+                System.exit(0);
+            }
+            backfillThreads = optionalInteger(node, "backfillThreads", 1);
+            if (backfillThreads < 1) {
+                Log.error("Found an incorrect mapping node. backfillThreads must be positive");
+                System.exit(0);
+            }
 
             List<Node> mysqlNodes = node.selectNodes("mysql");
             List<Node> cassandraNodes = node.selectNodes("cassandra");
@@ -196,6 +392,56 @@ public class Properties {
             pauseMySQLReconnections =
                     Integer.parseInt(mysqlNode.selectSingleNode("@pauseReconnections").getStringValue());
 
+            poolSize = optionalInteger(mysqlNode, "poolSize", MySqlConnectionPool.DEFAULT_SIZE);
+            poolIdleTimeout = optionalInteger(mysqlNode, "poolIdleTimeout", MySqlConnectionPool.DEFAULT_IDLE_TIMEOUT);
+            if ((poolSize < 1) || (poolIdleTimeout < 0)) {
+                Log.error("Found an incorrect mysql node. poolSize must be positive and poolIdleTimeout not negative");
+                System.exit(0);
+            }
+            validationQuery = MySqlConnectionPool.DEFAULT_VALIDATION_QUERY;
+            if ((mysqlNode.selectSingleNode("@validationQuery") != null) &&
+                (!mysqlNode.selectSingleNode("@validationQuery").getStringValue().isEmpty())) {
+                validationQuery = mysqlNode.selectSingleNode("@validationQuery").getStringValue();
+            }
+
+            timeZone = TimeZone.getDefault();
+            Node timeZoneNode = mysqlNode.selectSingleNode("@timeZone");
+            if ((timeZoneNode != null) && (!timeZoneNode.getStringValue().isEmpty())) {
+                timeZone = TimeZone.getTimeZone(timeZoneNode.getStringValue());
+                /* Unknown ids are silently taken as GMT. */
+                if (!timeZone.getID().equals(timeZoneNode.getStringValue())) {
+                    Log.error("Found an incorrect time zone: " + timeZoneNode.getStringValue());
+                    System.exit(0);
+                }
+            }
+
+            fetchSize = optionalInteger(mysqlNode, "fetchSize", 0);
+            if (fetchSize < MySqlReader.STREAM_ROW_BY_ROW) {
+                Log.error("Found an incorrect mysql node. fetchSize must be -1, 0 or positive");
+                System.exit(0);
+            }
+
+            binlog = Boolean.FALSE;
+            Node binlogNode = mysqlNode.selectSingleNode("@binlog");
+            if ((binlogNode != null) && (!binlogNode.getStringValue().isEmpty())) {
+                if ((!binlogNode.getStringValue().equals("true")) && (!binlogNode.getStringValue().equals("false"))) {
+                    Log.error("Found an incorrect value for binlog: " + binlogNode.getStringValue());
+                    System.exit(0);
+                }
+                binlog = binlogNode.getStringValue().equals("true");
+            }
+            serverId = optionalInteger(mysqlNode, "serverId", 65535);
+            if (serverId < 1) {
+                Log.error("Found an incorrect mysql node. serverId must be positive");
+                System.exit(0);
+            }
+            binlogFile = null;
+            if ((mysqlNode.selectSingleNode("@binlogFile") != null) &&
+                (!mysqlNode.selectSingleNode("@binlogFile").getStringValue().isEmpty())) {
+                binlogFile = mysqlNode.selectSingleNode("@binlogFile").getStringValue();
+                binlog = Boolean.TRUE;
+            }
+
 
             /* Parsing cassandra information */
             Node cassandraNode = (Node) cassandraNodes.toArray()[0];
@@ -212,6 +458,7 @@ public class Properties {
             }
 
             if ((!(cassandraNode.selectSingleNode("@keysType").getStringValue().equals("int"))) &&
+                (!(cassandraNode.selectSingleNode("@keysType").getStringValue().equals("long"))) &&
                 (!(cassandraNode.selectSingleNode("@keysType").getStringValue().equals("string"))) ) {
                 Log.error("Found an incorrect type for the Cassandra keys: " +
                     cassandraNode.selectSingleNode("@keysType").getStringValue());
@@ -219,10 +466,106 @@ public class Properties {
             }
 
             /* Setting variables for the Cassandra parsed information */
+            /* One or more seed hosts, separated by commas. */
             cassHost = cassandraNode.selectSingleNode("@host").getStringValue();
             cassPort = Integer.parseInt(cassandraNode.selectSingleNode("@port").getStringValue());
             pauseCassandraReconnections = Integer.parseInt(cassandraNode.selectSingleNode("@pauseReconnections").getStringValue());
             keysType = cassandraNode.selectSingleNode("@keysType").getStringValue();
+            batchRows = optionalInteger(cassandraNode, "batchRows", CassWriter.DEFAULT_BATCH_ROWS);
+            batchBytes = optionalInteger(cassandraNode, "batchBytes", CassWriter.DEFAULT_BATCH_BYTES);
+            writerThreads = optionalInteger(cassandraNode, "writerThreads", 1);
+            maxInFlight = optionalInteger(cassandraNode, "maxInFlight", 1);
+            if ((batchRows < 1) || (batchBytes < 1) || (writerThreads < 1) || (maxInFlight < 1)) {
+                Log.error("Found an incorrect cassandra node. batchRows, batchBytes, writerThreads and maxInFlight " +
+                        "must be positive");
+                System.exit(0);
+            }
+            if ((writerThreads > 1) && (maxInFlight > 1)) {
+                Log.error("Found an incorrect cassandra node. Use either writerThreads or maxInFlight");
+                System.exit(0);
+            }
+            maxPauseCassandraReconnections = optionalInteger(cassandraNode, "maxPauseReconnections", 60000);
+            maxWriteAttempts = optionalInteger(cassandraNode, "maxWriteAttempts", 0);
+            breakerFailures = optionalInteger(cassandraNode, "breakerFailures", 5);
+            breakerPause = optionalInteger(cassandraNode, "breakerPause", pauseCassandraReconnections);
+            if ((maxWriteAttempts < 0) || (breakerFailures < 1) || (breakerPause < 0)) {
+                Log.error("Found an incorrect cassandra node. maxWriteAttempts and breakerPause can't be negative, " +
+                        "breakerFailures must be positive");
+                System.exit(0);
+            }
+            maxActive = optionalInteger(cassandraNode, "maxActive", ClusterRegistry.DEFAULT_MAX_ACTIVE);
+            maxWaitWhenExhausted = optionalInteger(cassandraNode, "maxWaitWhenExhausted",
+                    (int) ClusterRegistry.DEFAULT_MAX_WAIT);
+            socketTimeout = optionalInteger(cassandraNode, "socketTimeout", ClusterRegistry.DEFAULT_SOCKET_TIMEOUT);
+            if ((maxActive < 1) || (maxWaitWhenExhausted < -1) || (socketTimeout < 0)) {
+                Log.error("Found an incorrect cassandra node. maxActive must be positive, maxWaitWhenExhausted -1 or " +
+                        "more and socketTimeout not negative");
+                System.exit(0);
+            }
+            loadBalancing = ClusterRegistry.DEFAULT_LOAD_BALANCING;
+            Node loadBalancingNode = cassandraNode.selectSingleNode("@loadBalancing");
+            if ((loadBalancingNode != null) && (!loadBalancingNode.getStringValue().isEmpty())) {
+                if (!ClusterRegistry.isLoadBalancing(loadBalancingNode.getStringValue())) {
+                    Log.error("Found an incorrect value for loadBalancing: " + loadBalancingNode.getStringValue());
+                    System.exit(0);
+                }
+                loadBalancing = loadBalancingNode.getStringValue();
+            }
+            autoDiscoverHosts = Boolean.FALSE;
+            Node autoDiscoverNode = cassandraNode.selectSingleNode("@autoDiscoverHosts");
+            if ((autoDiscoverNode != null) && (!autoDiscoverNode.getStringValue().isEmpty())) {
+                if ((!autoDiscoverNode.getStringValue().equals("true")) &&
+                    (!autoDiscoverNode.getStringValue().equals("false"))) {
+                    Log.error("Found an incorrect value for autoDiscoverHosts: " + autoDiscoverNode.getStringValue());
+                    System.exit(0);
+                }
+                autoDiscoverHosts = autoDiscoverNode.getStringValue().equals("true");
+            }
+            writeConsistency = CassWriter.DEFAULT_WRITE_CONSISTENCY;
+            if ((cassandraNode.selectSingleNode("@writeConsistency") != null) &&
+                (!cassandraNode.selectSingleNode("@writeConsistency").getStringValue().isEmpty())) {
+                writeConsistency = cassandraNode.selectSingleNode("@writeConsistency").getStringValue();
+            }
+            backfillConsistency = writeConsistency;
+            if ((cassandraNode.selectSingleNode("@backfillConsistency") != null) &&
+                (!cassandraNode.selectSingleNode("@backfillConsistency").getStringValue().isEmpty())) {
+                backfillConsistency = cassandraNode.selectSingleNode("@backfillConsistency").getStringValue();
+            }
+            if ((!CassWriter.isConsistencyLevel(writeConsistency)) || (!CassWriter.isConsistencyLevel(backfillConsistency))) {
+                Log.error("Found an incorrect consistency level in the cassandra node: " + writeConsistency + ", " +
+                        backfillConsistency + ". Valid values are ONE, TWO, THREE, QUORUM, ALL, ANY, LOCAL_QUORUM, " +
+                        "EACH_QUORUM");
+                System.exit(0);
+            }
+            replicationStrategy = CassWriter.SIMPLE_STRATEGY;
+            if ((cassandraNode.selectSingleNode("@replicationStrategy") != null) &&
+                (!cassandraNode.selectSingleNode("@replicationStrategy").getStringValue().isEmpty())) {
+                replicationStrategy = cassandraNode.selectSingleNode("@replicationStrategy").getStringValue();
+            }
+            replicationFactor = optionalInteger(cassandraNode, "replicationFactor", 1);
+            dataCenters = null;
+            if ((cassandraNode.selectSingleNode("@dataCenters") != null) &&
+                (!cassandraNode.selectSingleNode("@dataCenters").getStringValue().isEmpty())) {
+                dataCenters = cassandraNode.selectSingleNode("@dataCenters").getStringValue();
+            }
+            if (replicationStrategy.equals(CassWriter.NETWORK_TOPOLOGY_STRATEGY)) {
+                try {
+                    CassWriter.parseDataCenters(dataCenters);
+                } catch (Exception e) {
+                    Log.error("Found an incorrect cassandra node. NetworkTopologyStrategy needs dataCenters as " +
+                            "DC1:3,DC2:2, found: " + dataCenters);
+                    System.exit(0);
+                }
+            } else if (!replicationStrategy.equals(CassWriter.SIMPLE_STRATEGY)) {
+                Log.error("Found an incorrect replicationStrategy: " + replicationStrategy +
+                        ". Valid values are SimpleStrategy, NetworkTopologyStrategy");
+                System.exit(0);
+            }
+            ttl = optionalInteger(cassandraNode, "ttl", 0);
+            if ((replicationFactor < 1) || (ttl < 0)) {
+                Log.error("Found an incorrect cassandra node. replicationFactor must be positive and ttl not negative");
+                System.exit(0);
+            }
 
             /* Parsing the columns and adding a 'map' for each column. */
             Node mapsNode = (Node) mapsNodes.toArray()[0];
@@ -286,6 +629,54 @@ public class Properties {
             /* Finally creating and adding another mapping node. */
             Mapping m = new Mapping(lock, keyspaces, truncateDataBase, keysType, pauseMySQLReconnections, pauseCassandraReconnections, refresh, elementsAtOnce,
                         mysqlHost, mysqlPort, db, user, pass, table, numericKeyStr, maps, cassHost, cassPort);
+            m.batchRows = batchRows;
+            m.batchBytes = batchBytes;
+            m.fetchSize = fetchSize;
+            m.dates = new DateTimeConverter(timeZone);
+            m.pipelineDepth = pipelineDepth;
+            m.writerThreads = writerThreads;
+            m.maxInFlight = maxInFlight;
+            m.maxPauseCassReconnections = maxPauseCassandraReconnections;
+            m.maxWriteAttempts = maxWriteAttempts;
+            m.breakerFailures = breakerFailures;
+            m.breakerPause = breakerPause;
+            m.maxActive = maxActive;
+            m.maxWaitWhenExhausted = maxWaitWhenExhausted;
+            m.socketTimeout = socketTimeout;
+            m.loadBalancing = loadBalancing;
+            m.autoDiscoverHosts = autoDiscoverHosts;
+            m.writeConsistency = writeConsistency;
+            m.backfillConsistency = backfillConsistency;
+            m.replicationStrategy = replicationStrategy;
+            m.replicationFactor = replicationFactor;
+            m.dataCenters = dataCenters;
+            m.ttl = ttl;
+            m.backfillThreads = backfillThreads;
+            m.adaptive = adaptive;
+            m.minRefresh = minRefresh;
+            m.minElementsAtOnce = minElementsAtOnce;
+            m.maxElementsAtOnce = maxElementsAtOnce;
+            m.targetWriteTime = targetWriteTime;
+            m.poolSize = poolSize;
+            m.poolIdleTimeout = poolIdleTimeout;
+            m.validationQuery = validationQuery;
+            m.checkpoints = checkpoints;
+            m.deadLetters = deadLetters;
+            m.resume = resume;
+            m.binlog = binlog;
+            m.serverId = serverId;
+            m.binlogFile = binlogFile;
+            if (segmentDir != null) {
+                if (binlog || (backfillThreads > 1)) {
+                    Log.error("Found an incorrect mapping node for table: " + table +
+                            ". binlog and backfillThreads can't be used with segmentDir");
+                    System.exit(0);
+                }
+                m.segmentDir = segmentDir;
+                m.segmentMode = segmentMode;
+                m.segmentCodec = segmentCodec;
+                m.segmentSize = segmentSize;
+            }
             listMapping.add(m);
             Log.debug("Success while adding another mapping!");
 
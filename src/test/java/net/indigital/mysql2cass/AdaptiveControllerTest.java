@@ -0,0 +1,71 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass;
+
+import junit.framework.TestCase;
+
+public class AdaptiveControllerTest extends TestCase {
+
+    /*
+     * Full pages read again right away, a short one waits minRefresh, empty ones double the wait up to refresh.
+     */
+    public void testPolling() {
+        AdaptiveController controller = new AdaptiveController(Boolean.TRUE, 100, 1000, 10, 100, 1000, 50);
+        assertEquals(0, controller.nextDelay(100, 100));
+        assertEquals(100, controller.nextDelay(5, 100));
+        assertEquals(200, controller.nextDelay(0, 100));
+        assertEquals(400, controller.nextDelay(0, 100));
+        assertEquals(800, controller.nextDelay(0, 100));
+        assertEquals(1000, controller.nextDelay(0, 100));
+        assertEquals(1000, controller.nextDelay(0, 100));
+        assertEquals(0, controller.nextDelay(100, 100));
+    }
+
+    /*
+     * With a minRefresh of 0, an idle table still backs off after a full or a short page.
+     */
+    public void testZeroMinRefresh() {
+        AdaptiveController controller = new AdaptiveController(Boolean.TRUE, 0, 1000, 10, 100, 1000, 50);
+        assertEquals(0, controller.nextDelay(100, 100));
+        long delay = 0;
+        for (int i = 0; i < 20; i++) {
+            long next = controller.nextDelay(0, 100);
+            assertTrue("delay:" + next + " after " + delay, (next > delay) || (next == 1000));
+            delay = next;
+        }
+        assertEquals(1000, delay);
+        assertEquals(0, controller.nextDelay(1, 100));
+        assertTrue(controller.nextDelay(0, 100) > 0);
+    }
+
+    public void testNotAdaptive() {
+        AdaptiveController controller = new AdaptiveController(Boolean.FALSE, 0, 1000, 10, 100, 1000, 50);
+        assertEquals(1000, controller.nextDelay(100, 100));
+        assertEquals(1000, controller.nextDelay(0, 100));
+        assertEquals(100, controller.getElementsAtOnce());
+    }
+}
@@ -0,0 +1,226 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass;
+
+import com.github.shyiko.mysql.binlog.event.deserialization.ColumnType;
+import junit.framework.TestCase;
+import net.indigital.mysql2cass.cass.FakeCassandra;
+import net.indigital.mysql2cass.checkpoint.CheckpointStore;
+import net.indigital.mysql2cass.mysql.MySqlConnectionPool;
+import net.indigital.mysql2cass.retry.CircuitBreaker;
+import net.indigital.mysql2cass.retry.RetryPolicy;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Integers as the binlog connector gives them: signed numbers of the size of the column.
+ * And the replay of binlog/binlog.000001, a binlog of a MySQL 5.7 without binlog_row_metadata, where the table
+ * binlogdb.calls is (id BIGINT, val VARCHAR(20)):
+ *  - up to 263: INSERT (1, '10'), (2, '20'), (3, '30')
+ *  - up to 422: UPDATE 2 to (2, '200'), and 3 to (4, '40')
+ *  - up to 568: DELETE 1, 2 and 4
+ *  - up to 689: INSERT (7, '70') in another table
+ *  - up to 811: INSERT (5, 'bad'), which can't be read as an int
+ */
+public class BinlogStageTest extends TestCase {
+
+    private static final String FILE = "binlog.000001";
+    private static final int ROWS = 3;
+
+    /* The writer only runs when the test says so. */
+    private static final Executor NEVER = new Executor() {
+        public void execute(Runnable command) {
+        }
+    };
+
+    /* Saved checkpoints, by mapping. */
+    private Map<String, String> saved = new HashMap<String, String>();
+
+    public void testTinyintUnsigned() {
+        assertEquals(1, BinlogStage.unsignedWidth(ColumnType.TINY));
+        assertEquals(200L, BinlogStage.toLong(Integer.valueOf((byte) 200), 1));
+        assertEquals(127L, BinlogStage.toLong(Integer.valueOf(127), 1));
+    }
+
+    public void testSmallintUnsigned() {
+        assertEquals(2, BinlogStage.unsignedWidth(ColumnType.SHORT));
+        assertEquals(40000L, BinlogStage.toLong(Integer.valueOf((short) 40000), 2));
+    }
+
+    public void testMediumintUnsigned() {
+        assertEquals(3, BinlogStage.unsignedWidth(ColumnType.INT24));
+        /* Sign extended from 24 bits. */
+        assertEquals(16000000L, BinlogStage.toLong(Integer.valueOf((16000000 << 8) >> 8), 3));
+    }
+
+    public void testIntUnsigned() {
+        assertEquals(4, BinlogStage.unsignedWidth(ColumnType.LONG));
+        assertEquals(3000000000L, BinlogStage.toLong(Integer.valueOf((int) 3000000000L), 4));
+        assertEquals(4294967295L, BinlogStage.toLong(Integer.valueOf(-1), 4));
+    }
+
+    public void testBigintUnsigned() {
+        assertEquals(8, BinlogStage.unsignedWidth(ColumnType.LONGLONG));
+        assertEquals(Long.MAX_VALUE, BinlogStage.toLong(Long.valueOf(Long.MAX_VALUE), 8));
+        try {
+            /* 2^63 */
+            BinlogStage.toLong(Long.valueOf(Long.MIN_VALUE), 8);
+            fail("BIGINT UNSIGNED past 2^63 doesn't fit in a long");
+        } catch (ArithmeticException e) {
+            assertTrue(e.getMessage().endsWith("9223372036854775808"));
+        }
+    }
+
+    public void testSignedKeepsItsSign() {
+        assertEquals(-56L, BinlogStage.toLong(Integer.valueOf((byte) 200), 0));
+        assertEquals(-1294967296L, BinlogStage.toLong(Integer.valueOf((int) 3000000000L), 0));
+        assertEquals(0, BinlogStage.unsignedWidth(ColumnType.VARCHAR));
+        assertEquals(0, BinlogStage.unsignedWidth(ColumnType.DATETIME_V2));
+    }
+
+    public void testZeroDates() {
+        assertTrue(BinlogStage.isZeroDate(Long.MIN_VALUE, true));
+        assertTrue(BinlogStage.isZeroDate(Long.MIN_VALUE, false));
+        /* TIMESTAMP 0000-00-00 00:00:00 */
+        assertTrue(BinlogStage.isZeroDate(0, false));
+        /* DATETIME 1970-01-01 00:00:00 and 1969-12-31 23:59:59.999 are dates. */
+        assertFalse(BinlogStage.isZeroDate(0, true));
+        assertFalse(BinlogStage.isZeroDate(-1, true));
+    }
+
+    private Mapping mapping() throws Exception {
+        List<Map<String, String>> maps = new ArrayList<Map<String, String>>();
+        for (String name : new String[]{"id", "val"}) {
+            Map<String, String> column = new HashMap<String, String>();
+            column.put("name", name);
+            column.put("type", "int");
+            column.put("secondaryIndex", "false");
+            maps.add(column);
+        }
+        Mapping mapping = new Mapping(new ReentrantLock(), new HashMap<String, Boolean>(), Boolean.FALSE, "long",
+                0, 1, 1000, ROWS, "h2", 3306, "binlogdb", "u", "p", "calls", "id", maps, "fake-binlog", 9160);
+        mapping.controller = new AdaptiveController(Boolean.FALSE, 100, 1000, ROWS, ROWS, ROWS, 1000);
+        mapping.cassRetry = new RetryPolicy(1, 1, 0);
+        mapping.breaker = new CircuitBreaker("fake-binlog", 5, 1);
+        mapping.binlog = Boolean.TRUE;
+        mapping.binlogFile = new File(getClass().getResource("/binlog/" + FILE).toURI()).getPath();
+        mapping.resume = Boolean.TRUE;
+        mapping.checkpoints = new CheckpointStore() {
+            public synchronized String load(String mappingId) {
+                return saved.get(mappingId);
+            }
+
+            public synchronized void save(String mappingId, String value) {
+                saved.put(mappingId, value);
+            }
+
+            public void close() {
+            }
+        };
+        return mapping;
+    }
+
+    /* Rows of a batch as "key=val", or "-key" if deleted, then its checkpoint. */
+    private static String describe(RowBatch batch) {
+        StringBuilder tmp = new StringBuilder();
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.isDeleted(i)) {
+                tmp.append("-").append(batch.getKey(i));
+            } else {
+                tmp.append(batch.getKey(i)).append("=").append(batch.getLong(i, 1));
+            }
+            tmp.append(" ");
+        }
+        return tmp.append("@").append(batch.checkpoint).toString();
+    }
+
+    /*
+     * Replays the file, then writes what it queued to a FakeCassandra. Returns the batches queued.
+     */
+    private List<String> replay(Mapping mapping, FakeCassandra cassandra) throws Exception {
+        BlockingQueue<RowBatch> queue = new ArrayBlockingQueue<RowBatch>(6);
+        BlockingQueue<RowBatch> free = new ArrayBlockingQueue<RowBatch>(6);
+        for (int i = 0; i < 6; i++) {
+            free.add(new RowBatch(mapping.schema, ROWS));
+        }
+        WriterStage writer = new WriterStage(mapping, queue, free, cassandra.createWriter(), "binlogdb", "calls",
+                NEVER);
+        new BinlogStage(mapping, queue, free, MySqlConnectionPool.forUrl("jdbc:nowhere:binlog", 1), null,
+                writer).run();
+        List<String> batches = new ArrayList<String>();
+        for (RowBatch batch : queue) {
+            batches.add(describe(batch));
+        }
+        writer.run();
+        assertTrue(queue.isEmpty());
+        assertEquals(6, free.size());
+        return batches;
+    }
+
+    /*
+     * A snapshot checkpoint is a copy that didn't end, so the whole file is replayed. Full batches are queued in
+     * the middle of a transaction, with the position of the last one complete. The last batch is empty, its only
+     * row was left out, but its position is saved anyway.
+     */
+    public void testReplayFile() throws Exception {
+        Mapping mapping = mapping();
+        this.saved.put(BinlogStage.checkpointId(mapping), "snapshot:" + FILE + "/4");
+        FakeCassandra cassandra = new FakeCassandra();
+
+        List<String> batches = replay(mapping, cassandra);
+
+        assertEquals(Arrays.asList(
+                "1=10 2=20 3=30 @" + FILE + "/0",
+                "2=200 -3 4=40 @" + FILE + "/263",
+                "-1 -2 -4 @" + FILE + "/422",
+                "@" + FILE + "/811"), batches);
+        assertEquals(1, mapping.metrics.rowsGivenUp.get());
+        assertEquals(new TreeSet<Long>(Arrays.asList(1L, 2L, 3L, 4L)), cassandra.getWritten());
+        assertEquals(FILE + "/811", this.saved.get(BinlogStage.checkpointId(mapping)));
+    }
+
+    /*
+     * Resuming from a saved position, the transactions up to it are skipped.
+     */
+    public void testResumeReplayFile() throws Exception {
+        Mapping mapping = mapping();
+        this.saved.put(BinlogStage.checkpointId(mapping), FILE + "/263");
+
+        List<String> batches = replay(mapping, new FakeCassandra());
+
+        assertEquals(Arrays.asList(
+                "2=200 -3 4=40 @" + FILE + "/263",
+                "-1 -2 -4 @" + FILE + "/422",
+                "@" + FILE + "/811"), batches);
+        assertEquals(FILE + "/811", this.saved.get(BinlogStage.checkpointId(mapping)));
+    }
+}
@@ -0,0 +1,58 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+public class DateTimeConverterTest extends TestCase {
+
+    /*
+     * The same instant gives the same UUID every time, it is not moved forward like UUIDGen does.
+     */
+    public void testSameInstantSameUUID() {
+        long millis = 1343779200123L;
+        ByteBuffer first = DateTimeConverter.timeUUID(millis);
+        ByteBuffer second = DateTimeConverter.timeUUID(millis);
+        assertEquals(first, second);
+        assertFalse(first.equals(DateTimeConverter.timeUUID(millis + 1)));
+    }
+
+    /*
+     * The UUID is a version 1 one holding the instant.
+     */
+    public void testTimestamp() {
+        long millis = 1343779200123L;
+        ByteBuffer buffer = DateTimeConverter.timeUUID(millis);
+        UUID uuid = new UUID(buffer.getLong(0), buffer.getLong(8));
+        assertEquals(1, uuid.version());
+        assertEquals(2, uuid.variant());
+        assertEquals(millis, (uuid.timestamp() - 0x01B21DD213814000L) / 10000);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass;
+
+import junit.framework.TestCase;
+import net.indigital.mysql2cass.cass.FakeCassandra;
+import net.indigital.mysql2cass.mysql.MySqlConnectionPool;
+import net.indigital.mysql2cass.retry.CircuitBreaker;
+import net.indigital.mysql2cass.retry.RetryPolicy;
+import org.apache.thrift.TException;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Mappings whose MySQL or Cassandra is down, more of them than threads in the scheduler, next to a healthy one
+ * reading from an in-memory H2 database in MySQL mode and writing to a FakeCassandra.
+ */
+public class MappingSchedulerTest extends TestCase {
+
+    private static final String H2_URL = "jdbc:h2:mem:scheduler;MODE=MySQL;DB_CLOSE_DELAY=-1";
+    /* No driver takes it, every connection fails. */
+    private static final String DEAD_URL = "jdbc:nowhere:scheduler";
+    private static final int THREADS = 2;
+    private static final int ROWS = 20;
+    private static final int BATCH_ROWS = 5;
+    /* Pause after a failure, long enough for the test to end before any retry. */
+    private static final int PAUSE = 60000;
+    private static final long TIMEOUT = 10000;
+
+    private MappingScheduler scheduler;
+
+    protected void setUp() throws Exception {
+        Connection connection = DriverManager.getConnection(H2_URL);
+        connection.prepareStatement("CREATE TABLE calls (id BIGINT PRIMARY KEY, val BIGINT)").execute();
+        PreparedStatement insert = connection.prepareStatement("INSERT INTO calls VALUES (?, ?)");
+        for (int i = 1; i <= ROWS; i++) {
+            insert.setLong(1, i);
+            insert.setLong(2, i * 10);
+            insert.execute();
+        }
+        connection.close();
+        this.scheduler = new MappingScheduler(THREADS);
+    }
+
+    protected void tearDown() throws Exception {
+        this.scheduler.shutdown();
+        Connection connection = DriverManager.getConnection(H2_URL);
+        connection.prepareStatement("DROP ALL OBJECTS").execute();
+        connection.close();
+    }
+
+    private Mapping mapping(String cassHost) {
+        List<Map<String, String>> maps = new ArrayList<Map<String, String>>();
+        for (String name : new String[]{"id", "val"}) {
+            Map<String, String> column = new HashMap<String, String>();
+            column.put("name", name);
+            column.put("type", "int");
+            column.put("secondaryIndex", "false");
+            maps.add(column);
+        }
+        Mapping mapping = new Mapping(new ReentrantLock(), new HashMap<String, Boolean>(), Boolean.FALSE, "long",
+                PAUSE, PAUSE, 10, BATCH_ROWS, "h2", 3306, "scheduler", "u", "p", "calls", "id", maps, cassHost, 9160);
+        mapping.controller = new AdaptiveController(Boolean.FALSE, 10, 10, BATCH_ROWS, BATCH_ROWS, BATCH_ROWS, 1000);
+        /* Retries forever. */
+        mapping.cassRetry = new RetryPolicy(PAUSE, PAUSE, 0);
+        mapping.breaker = new CircuitBreaker(cassHost, 1000, PAUSE);
+        mapping.scheduler = this.scheduler;
+        return mapping;
+    }
+
+    /* Starts reading 'url' and writing to 'cassandra', as Mapping.run() would. */
+    private void start(Mapping mapping, String url, FakeCassandra cassandra) {
+        BlockingQueue<RowBatch> queue = new ArrayBlockingQueue<RowBatch>(mapping.pipelineDepth + 2);
+        BlockingQueue<RowBatch> free = new ArrayBlockingQueue<RowBatch>(mapping.pipelineDepth + 2);
+        for (int i = 0; i < mapping.pipelineDepth + 2; i++) {
+            free.add(new RowBatch(mapping.schema, BATCH_ROWS));
+        }
+        WriterStage writer = new WriterStage(mapping, queue, free, cassandra.createWriter(), "scheduler", "calls",
+                this.scheduler.getWriters());
+        ReaderStage reader = new ReaderStage(mapping, queue, free, MySqlConnectionPool.forUrl(url, 1), writer);
+        this.scheduler.scheduleReader(mapping, reader, writer);
+    }
+
+    /*
+     * Readers that can't connect to MySQL and writers that can't write to Cassandra wait for their next attempt
+     * without holding a thread, so the healthy mapping copies every row meanwhile.
+     */
+    public void testDeadMappingsDontStarveHealthyOnes() throws Exception {
+        for (int i = 0; i < THREADS + 1; i++) {
+            start(mapping("dead-mysql-" + i), DEAD_URL, new FakeCassandra());
+        }
+        final AtomicInteger failures = new AtomicInteger();
+        FakeCassandra down = new FakeCassandra() {
+            protected void received(List<Long> keys) throws Exception {
+                failures.incrementAndGet();
+                throw new TException("Injected failure");
+            }
+        };
+        List<Mapping> deadCassandra = new ArrayList<Mapping>();
+        for (int i = 0; i < THREADS + 1; i++) {
+            Mapping mapping = mapping("dead-cassandra-" + i);
+            deadCassandra.add(mapping);
+            start(mapping, H2_URL, down);
+        }
+        /* Every dead mapping had its first failure, and waits. */
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ((failures.get() < THREADS + 1) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+        assertEquals(THREADS + 1, failures.get());
+
+        Mapping healthy = mapping("healthy");
+        FakeCassandra cassandra = new FakeCassandra();
+        start(healthy, H2_URL, cassandra);
+        deadline = System.currentTimeMillis() + TIMEOUT;
+        while ((healthy.committedNumericKey < ROWS) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(ROWS, healthy.committedNumericKey);
+        assertEquals(ROWS, cassandra.getWritten().size());
+        for (Mapping mapping : deadCassandra) {
+            assertEquals(-1, mapping.committedNumericKey);
+        }
+        assertEquals(THREADS + 1, failures.get());
+    }
+}
@@ -0,0 +1,72 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class MappingTest extends TestCase {
+
+    /*
+     * A row spooled at 'spooledAt' and written again to Cassandra since (same millisecond or later,
+     * the WriterStage timestamps are millis * 1000 or more) must keep the newer column on replay.
+     */
+    public void testReplayedLetterOlderThanStoredColumn() {
+        long spooledAt = 1342000000000L;
+        long stored = spooledAt * 1000;
+        int rows = 500;
+        long clock = Mapping.replayClock(spooledAt, rows);
+        for (int row = 0; row < rows; row++) {
+            assertTrue("row " + row, clock + row < stored);
+        }
+    }
+
+    public void testReplayKeepsTheLetterTime() {
+        long spooledAt = 1342000000000L;
+        long clock = Mapping.replayClock(spooledAt, 1);
+        assertEquals(spooledAt * 1000 - 1, clock);
+        assertTrue(clock > (spooledAt - 1) * 1000);
+    }
+
+    private static Mapping mapping(String table, String cassHost) {
+        return new Mapping(new ReentrantLock(), new HashMap<String, Boolean>(), Boolean.FALSE, "long", 10, 10, 100, 10,
+                "db1", 3306, "calls", "u", "p", table, "id", new ArrayList<Map<String, String>>(), cassHost, 9160);
+    }
+
+    /*
+     * Checkpoints outlive a change of the seed list, but not of what is copied.
+     */
+    public void testCheckpointId() {
+        Mapping mapping = mapping("calls", "cass1,cass2");
+        assertEquals(mapping.getCheckpointId(), mapping("calls", "cass3").getCheckpointId());
+        assertFalse(mapping.getID().equals(mapping("calls", "cass3").getID()));
+        assertFalse(mapping.getCheckpointId().equals(mapping("calls2", "cass1,cass2").getCheckpointId()));
+        assertEquals(-1, mapping.getCheckpointId().indexOf("cass1"));
+    }
+}
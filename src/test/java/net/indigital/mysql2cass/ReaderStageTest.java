@@ -0,0 +1,247 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass;
+
+import junit.framework.TestCase;
+import net.indigital.mysql2cass.mysql.MySqlConnectionPool;
+import net.indigital.mysql2cass.segment.SegmentCodec;
+import net.indigital.mysql2cass.segment.SegmentReader;
+import net.indigital.mysql2cass.segment.SegmentWriter;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/*
+ * Streaming reads from an in-memory H2 database in MySQL mode, through a driver that loses the
+ * connection once in the middle of the stream. The rows go to segment files, so no Cassandra is needed.
+ */
+public class ReaderStageTest extends TestCase {
+
+    private static final String H2_URL = "jdbc:h2:mem:readerstage;MODE=MySQL;DB_CLOSE_DELAY=-1";
+    private static final String URL = "jdbc:flaky:" + H2_URL;
+    private static final int ROWS = 30;
+    /* Can't be read as an int, so it is left out. */
+    private static final long BAD_KEY = 18;
+    /* The connection is lost when the cursor gets to it, the first time. */
+    private static final long LOST_KEY = 20;
+
+    private static volatile boolean lost = false;
+    /* SELECT MAX queries run. */
+    private static AtomicInteger maxQueries = new AtomicInteger();
+
+    /*
+     * H2 behind proxies, whose result sets fail on LOST_KEY once.
+     */
+    private static class FlakyDriver implements Driver {
+
+        public Connection connect(String url, Properties info) throws SQLException {
+            if (!acceptsURL(url)) {
+                return null;
+            }
+            return (Connection) wrap(Connection.class, DriverManager.getConnection(H2_URL), null);
+        }
+
+        /* 'sql' is the query of a PreparedStatement, null for anything else. */
+        private static Object wrap(final Class<?> type, final Object target, final String sql) {
+            return Proxy.newProxyInstance(FlakyDriver.class.getClassLoader(), new Class<?>[]{type},
+                    new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    if ((sql != null) && sql.startsWith("SELECT MAX") && method.getName().equals("executeQuery")) {
+                        maxQueries.incrementAndGet();
+                    }
+                    Object result;
+                    try {
+                        result = method.invoke(target, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                    if (result instanceof PreparedStatement) {
+                        return wrap(PreparedStatement.class, result, (String) args[0]);
+                    }
+                    if (result instanceof ResultSet) {
+                        return wrap(ResultSet.class, result, null);
+                    }
+                    if ((target instanceof ResultSet) && method.getName().equals("next") && ((Boolean) result) &&
+                        (((ResultSet) target).getLong(1) == LOST_KEY) && (!lost)) {
+                        lost = true;
+                        throw new SQLException("Communications link failure");
+                    }
+                    return result;
+                }
+            });
+        }
+
+        public boolean acceptsURL(String url) {
+            return url.startsWith("jdbc:flaky:");
+        }
+
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+
+    private File dir;
+
+    protected void setUp() throws Exception {
+        DriverManager.registerDriver(new FlakyDriver());
+        Connection connection = DriverManager.getConnection(H2_URL);
+        PreparedStatement create = connection.prepareStatement(
+                "CREATE TABLE calls (id BIGINT PRIMARY KEY, val VARCHAR(20))");
+        create.execute();
+        PreparedStatement insert = connection.prepareStatement("INSERT INTO calls VALUES (?, ?)");
+        for (int i = 1; i <= ROWS; i++) {
+            insert.setLong(1, i);
+            insert.setString(2, (i == BAD_KEY) ? "bad" : String.valueOf(i * 10));
+            insert.execute();
+        }
+        connection.close();
+        this.dir = File.createTempFile("segments", "");
+        this.dir.delete();
+        lost = false;
+        maxQueries.set(0);
+    }
+
+    protected void tearDown() throws Exception {
+        Connection connection = DriverManager.getConnection(H2_URL);
+        connection.prepareStatement("DROP ALL OBJECTS").execute();
+        connection.close();
+        File[] files = this.dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        this.dir.delete();
+    }
+
+    /*
+     * The stream is lost after leaving a row out: the rows after the last queued chunk are read again,
+     * but the row left out is only a dead letter once.
+     */
+    public void testReconnectMidStream() throws Exception {
+        List<Map<String, String>> maps = new ArrayList<Map<String, String>>();
+        for (String name : new String[]{"id", "val"}) {
+            Map<String, String> column = new HashMap<String, String>();
+            column.put("name", name);
+            column.put("type", "int");
+            column.put("secondaryIndex", "false");
+            maps.add(column);
+        }
+        Mapping mapping = new Mapping(new ReentrantLock(), new HashMap<String, Boolean>(), Boolean.FALSE, "long",
+                0, 0, 1000, 5, "h2", 3306, "readerstage", "u", "p", "calls", "id", maps, "localhost", 9160);
+        mapping.fetchSize = 1;
+        mapping.controller = new AdaptiveController(Boolean.FALSE, 100, 1000, 5, 5, 5, 1000);
+        mapping.segmentWriter = new SegmentWriter(this.dir, mapping.schema, SegmentCodec.NONE,
+                SegmentWriter.DEFAULT_SEGMENT_SIZE);
+        BlockingQueue<RowBatch> free = new ArrayBlockingQueue<RowBatch>(2);
+        free.add(new RowBatch(mapping.schema, 5));
+        free.add(new RowBatch(mapping.schema, 5));
+
+        ReaderStage reader = new ReaderStage(mapping, new ArrayBlockingQueue<RowBatch>(2), free,
+                MySqlConnectionPool.forUrl(URL, 1), null);
+        reader.catchUp();
+        mapping.segmentWriter.close();
+
+        assertTrue(lost);
+        assertEquals(1, mapping.metrics.rowsGivenUp.get());
+        SegmentReader segments = new SegmentReader(this.dir, mapping.schema);
+        RowBatch batch = new RowBatch(mapping.schema, 5);
+        List<Long> keys = new ArrayList<Long>();
+        long after = -1;
+        while (segments.next(batch, after)) {
+            for (int row = 0; row < batch.size(); row++) {
+                keys.add(batch.getKey(row));
+                assertEquals(batch.getKey(row) * 10, batch.getLong(row, 1));
+            }
+            after = batch.getLastKey();
+            batch.reset();
+        }
+        segments.close();
+        assertEquals(ROWS - 1, keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            assertEquals((i + 1 < BAD_KEY) ? i + 1 : i + 2, keys.get(i).longValue());
+        }
+    }
+
+    /*
+     * Paging through the table reads its max key once per refresh, not after every page,
+     * and once the reader caught up the last key read is the max key.
+     */
+    public void testMaxKeyOncePerRefresh() throws Exception {
+        lost = true;
+        List<Map<String, String>> maps = new ArrayList<Map<String, String>>();
+        for (String name : new String[]{"id", "val"}) {
+            Map<String, String> column = new HashMap<String, String>();
+            column.put("name", name);
+            column.put("type", "int");
+            column.put("secondaryIndex", "false");
+            maps.add(column);
+        }
+        Mapping mapping = new Mapping(new ReentrantLock(), new HashMap<String, Boolean>(), Boolean.FALSE, "long",
+                0, 0, 60000, 5, "h2", 3306, "readerstage", "u", "p", "calls", "id", maps, "localhost", 9160);
+        mapping.controller = new AdaptiveController(Boolean.FALSE, 100, 60000, 5, 5, 5, 1000);
+        mapping.segmentWriter = new SegmentWriter(this.dir, mapping.schema, SegmentCodec.NONE,
+                SegmentWriter.DEFAULT_SEGMENT_SIZE);
+        BlockingQueue<RowBatch> free = new ArrayBlockingQueue<RowBatch>(2);
+        free.add(new RowBatch(mapping.schema, 5));
+        free.add(new RowBatch(mapping.schema, 5));
+
+        ReaderStage reader = new ReaderStage(mapping, new ArrayBlockingQueue<RowBatch>(2), free,
+                MySqlConnectionPool.forUrl(URL, 1), null);
+        reader.catchUp();
+        mapping.segmentWriter.close();
+
+        assertEquals(1, maxQueries.get());
+        assertEquals(ROWS, mapping.metrics.sourceMaxKey);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+
+/*
+ * Batches of (id int, name string, born datetime) rows.
+ */
+public class RowBatchTest extends TestCase {
+
+    private static final int ID = 0;
+    private static final int NAME = 1;
+    private static final int BORN = 2;
+    /* 3 columns, so the bitmaps take more than one long. */
+    private static final int CAPACITY = 30;
+
+    private static TableSchema schema() {
+        List<Map<String, String>> maps = new ArrayList<Map<String, String>>();
+        String[][] columns = {{"id", "int"}, {"name", "string"}, {"born", "datetime"}};
+        for (String[] column : columns) {
+            Map<String, String> map = new HashMap<String, String>();
+            map.put("name", column[0]);
+            map.put("type", column[1]);
+            maps.add(map);
+        }
+        return new TableSchema(maps);
+    }
+
+    public void testNewRowsAreNull() {
+        RowBatch batch = new RowBatch(schema(), CAPACITY);
+        int row = batch.addRow(7);
+        assertEquals(0, row);
+        assertEquals(1, batch.size());
+        assertEquals(7, batch.getKey(row));
+        assertFalse(batch.isDeleted(row));
+        for (int c = 0; c < 3; c++) {
+            assertTrue(batch.isNull(row, c));
+            assertFalse(batch.isCleared(row, c));
+        }
+        batch.setLong(row, ID, 7);
+        batch.setString(row, NAME, "seven");
+        assertFalse(batch.isNull(row, ID));
+        assertFalse(batch.isNull(row, NAME));
+        assertTrue(batch.isNull(row, BORN));
+        assertEquals(7, batch.getLong(row, ID));
+        assertEquals("seven", batch.getString(row, NAME));
+    }
+
+    /*
+     * A cleared cell is null, and has to be deleted. Setting it again undoes both.
+     */
+    public void testCleared() {
+        RowBatch batch = new RowBatch(schema(), CAPACITY);
+        int row = batch.addRow(1);
+        batch.setCleared(row, BORN);
+        assertTrue(batch.isNull(row, BORN));
+        assertTrue(batch.isCleared(row, BORN));
+        assertFalse(batch.isCleared(row, NAME));
+        batch.setLong(row, BORN, 1000);
+        assertFalse(batch.isNull(row, BORN));
+        assertFalse(batch.isCleared(row, BORN));
+    }
+
+    /*
+     * Every cell has its own bits, across the words of the bitmaps.
+     */
+    public void testBitmaps() {
+        RowBatch batch = new RowBatch(schema(), CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            int row = batch.addRow(i);
+            for (int c = 0; c < 3; c++) {
+                switch ((i + c) % 3) {
+                    case 0:
+                        break;
+                    case 1:
+                        batch.setCleared(row, c);
+                        break;
+                    default:
+                        if (c == NAME) {
+                            batch.setString(row, c, "row" + i);
+                        } else {
+                            batch.setLong(row, c, i);
+                        }
+                        break;
+                }
+            }
+        }
+        assertTrue(batch.isFull());
+        for (int row = 0; row < CAPACITY; row++) {
+            for (int c = 0; c < 3; c++) {
+                int kind = (row + c) % 3;
+                assertEquals("row:" + row + ", column:" + c, kind != 2, batch.isNull(row, c));
+                assertEquals("row:" + row + ", column:" + c, kind == 1, batch.isCleared(row, c));
+            }
+        }
+        assertEquals("row28", batch.getString(28, NAME));
+    }
+
+    /*
+     * The row taken back leaves nothing behind: its strings, its bits, its deletion.
+     */
+    public void testRemoveLastRow() {
+        RowBatch batch = new RowBatch(schema(), CAPACITY);
+        int first = batch.addRow(1);
+        batch.setString(first, NAME, "one");
+        int bytes = batch.stringBytes();
+        long dataBytes = batch.dataBytes();
+
+        int second = batch.addDeletedRow(2);
+        batch.setString(second, NAME, "two, much longer than the first one");
+        batch.setCleared(second, BORN);
+        batch.setLong(second, ID, 2);
+        batch.removeLastRow();
+
+        assertEquals(1, batch.size());
+        assertEquals(bytes, batch.stringBytes());
+        assertEquals(dataBytes, batch.dataBytes());
+        assertEquals(1, batch.getLastKey());
+        int again = batch.addRow(3);
+        assertEquals(second, again);
+        assertFalse(batch.isDeleted(again));
+        for (int c = 0; c < 3; c++) {
+            assertTrue(batch.isNull(again, c));
+            assertFalse(batch.isCleared(again, c));
+        }
+        batch.setString(again, NAME, "three");
+        assertEquals("one", batch.getString(first, NAME));
+        assertEquals("three", batch.getString(again, NAME));
+    }
+
+    /*
+     * A batch reset is as good as a new one.
+     */
+    public void testReset() {
+        RowBatch batch = new RowBatch(schema(), CAPACITY);
+        for (int i = 0; i < CAPACITY; i++) {
+            int row = (i % 2 == 0) ? batch.addRow(i) : batch.addDeletedRow(i);
+            batch.setLong(row, ID, i);
+            batch.setString(row, NAME, "a name long enough to grow the storage of the batch " + i);
+            batch.setCleared(row, BORN);
+        }
+        batch.checkpoint = "binlog.000001/4";
+        batch.clock = 1;
+        batch.readAt = 1;
+        batch.readTime = 1;
+
+        batch.reset();
+
+        assertEquals(0, batch.size());
+        assertFalse(batch.isFull());
+        assertEquals(0, batch.stringBytes());
+        assertEquals(0, batch.dataBytes());
+        assertNull(batch.checkpoint);
+        assertEquals(0, batch.clock);
+        assertEquals(0, batch.readAt);
+        assertEquals(0, batch.readTime);
+        for (int i = 0; i < CAPACITY; i++) {
+            int row = batch.addRow(100 + i);
+            assertFalse(batch.isDeleted(row));
+            for (int c = 0; c < 3; c++) {
+                assertTrue(batch.isNull(row, c));
+                assertFalse(batch.isCleared(row, c));
+            }
+        }
+        assertEquals(100 + CAPACITY - 1, batch.getLastKey());
+    }
+
+    public void testUtf8() {
+        RowBatch batch = new RowBatch(schema(), 1);
+        int row = batch.addRow(1);
+        String value = "añ€😀";
+        batch.setString(row, NAME, value);
+        assertEquals(value, batch.getString(row, NAME));
+        assertEquals(1 + 2 + 3 + 4, batch.getStringLength(row, NAME));
+        /* A lone surrogate can't be UTF-8. */
+        batch.setString(row, NAME, "a\ud83d");
+        assertEquals("a?", batch.getString(row, NAME));
+    }
+}
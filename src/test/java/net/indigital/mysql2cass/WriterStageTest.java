@@ -0,0 +1,222 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass;
+
+import junit.framework.TestCase;
+import net.indigital.mysql2cass.cass.AsyncWriter;
+import net.indigital.mysql2cass.cass.FakeCassandra;
+import net.indigital.mysql2cass.checkpoint.CheckpointStore;
+import net.indigital.mysql2cass.retry.CircuitBreaker;
+import net.indigital.mysql2cass.retry.RetryPolicy;
+import org.apache.thrift.TException;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Writes batches of rows (id, val = id * 10) to a FakeCassandra.
+ */
+public class WriterStageTest extends TestCase {
+
+    private static final int ROWS = 5;
+    private static final long TIMEOUT = 10000;
+
+    /* Runs the writer on the calling thread. */
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    /* Saved checkpoints, by mapping. */
+    private Map<String, String> saved = new HashMap<String, String>();
+
+    protected void tearDown() throws Exception {
+        AsyncWriter.shutdownAll(TIMEOUT);
+    }
+
+    private Mapping mapping(String cassHost) {
+        List<Map<String, String>> maps = new ArrayList<Map<String, String>>();
+        for (String name : new String[]{"id", "val"}) {
+            Map<String, String> column = new HashMap<String, String>();
+            column.put("name", name);
+            column.put("type", "int");
+            column.put("secondaryIndex", "false");
+            maps.add(column);
+        }
+        Mapping mapping = new Mapping(new ReentrantLock(), new HashMap<String, Boolean>(), Boolean.FALSE, "long",
+                0, 1, 1000, ROWS, "h2", 3306, "writerstage", "u", "p", "calls", "id", maps, cassHost, 9160);
+        mapping.controller = new AdaptiveController(Boolean.FALSE, 100, 1000, ROWS, ROWS, ROWS, 1000);
+        mapping.cassRetry = new RetryPolicy(1, 1, 0);
+        mapping.breaker = new CircuitBreaker(cassHost, 5, 1);
+        mapping.checkpoints = new CheckpointStore() {
+            public synchronized String load(String mappingId) {
+                return saved.get(mappingId);
+            }
+
+            public synchronized void save(String mappingId, String value) {
+                saved.put(mappingId, value);
+            }
+
+            public void close() {
+            }
+        };
+        return mapping;
+    }
+
+    /* Batch of the rows from 'first' on. */
+    private static RowBatch batch(Mapping mapping, long first) {
+        RowBatch batch = new RowBatch(mapping.schema, ROWS);
+        for (long key = first; key < first + ROWS; key++) {
+            int row = batch.addRow(key);
+            batch.setLong(row, 0, key);
+            batch.setLong(row, 1, key * 10);
+        }
+        batch.readAt = System.nanoTime();
+        return batch;
+    }
+
+    /* Waits until the writer has given back 'batches' batches. */
+    private static void awaitFree(BlockingQueue<RowBatch> free, int batches) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ((free.size() < batches) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+        assertEquals(batches, free.size());
+    }
+
+    /*
+     * The first of three asynchronous writes ends last: nothing is acknowledged until it ends, then all three are.
+     */
+    public void testAsyncWritesAcknowledgedInOrder() throws Exception {
+        final CountDownLatch firstEnds = new CountDownLatch(1);
+        FakeCassandra cassandra = new FakeCassandra() {
+            protected void received(List<Long> keys) throws Exception {
+                if (keys.contains(1L)) {
+                    firstEnds.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+            }
+        };
+        Mapping mapping = mapping("fake-order");
+        mapping.maxInFlight = 3;
+        BlockingQueue<RowBatch> queue = new ArrayBlockingQueue<RowBatch>(3);
+        BlockingQueue<RowBatch> free = new ArrayBlockingQueue<RowBatch>(3);
+        WriterStage writer = new WriterStage(mapping, queue, free, cassandra.createWriter(), "writerstage", "calls",
+                DIRECT);
+        queue.add(batch(mapping, 1));
+        queue.add(batch(mapping, 6));
+        queue.add(batch(mapping, 11));
+        writer.wakeUp();
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ((cassandra.getWritten().size() < 2 * ROWS) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+        assertTrue(cassandra.getWritten().containsAll(Arrays.asList(10L, 15L)));
+        assertNull(this.saved.get(mapping.getCheckpointId()));
+        assertEquals(-1, mapping.committedNumericKey);
+        assertEquals(0, free.size());
+
+        firstEnds.countDown();
+        awaitFree(free, 3);
+        assertEquals("15", this.saved.get(mapping.getCheckpointId()));
+        assertEquals(15, mapping.committedNumericKey);
+        assertFalse(mapping.stopping);
+    }
+
+    /*
+     * The second of three asynchronous writes fails with something that is not retried, after the third one
+     * is written: the checkpoint stays at the first one, and every batch goes back to 'free'.
+     */
+    public void testLostWriteStopsTheCheckpoint() throws Exception {
+        final CountDownLatch thirdWritten = new CountDownLatch(1);
+        FakeCassandra cassandra = new FakeCassandra() {
+            protected void received(List<Long> keys) throws Exception {
+                if (keys.contains(8L)) {
+                    thirdWritten.await(TIMEOUT, TimeUnit.MILLISECONDS);
+                    throw new Error("Injected failure");
+                }
+                if (keys.contains(13L)) {
+                    thirdWritten.countDown();
+                }
+            }
+        };
+        Mapping mapping = mapping("fake-lost");
+        mapping.maxInFlight = 3;
+        BlockingQueue<RowBatch> queue = new ArrayBlockingQueue<RowBatch>(3);
+        BlockingQueue<RowBatch> free = new ArrayBlockingQueue<RowBatch>(3);
+        WriterStage writer = new WriterStage(mapping, queue, free, cassandra.createWriter(), "writerstage", "calls",
+                DIRECT);
+        queue.add(batch(mapping, 1));
+        queue.add(batch(mapping, 6));
+        queue.add(batch(mapping, 11));
+        writer.wakeUp();
+
+        awaitFree(free, 3);
+        assertEquals(0, thirdWritten.getCount());
+        assertTrue(cassandra.getWritten().contains(15L));
+        assertEquals("5", this.saved.get(mapping.getCheckpointId()));
+        assertEquals(5, mapping.committedNumericKey);
+        assertTrue(mapping.stopping);
+        assertEquals(0, mapping.metrics.rowsGivenUp.get());
+    }
+
+    /*
+     * Two writer threads, and the one writing the odd keys gives up: only its rows go to the dead letters,
+     * the even ones are written, and the batch is acknowledged.
+     */
+    public void testGiveUpSpoolsOnlyItsPartition() throws Exception {
+        FakeCassandra cassandra = new FakeCassandra() {
+            protected void received(List<Long> keys) throws Exception {
+                if (keys.get(0) % 2 == 1) {
+                    throw new TException("Injected failure");
+                }
+            }
+        };
+        Mapping mapping = mapping("fake-partition");
+        mapping.writerThreads = 2;
+        mapping.cassRetry = new RetryPolicy(1, 1, 2);
+        BlockingQueue<RowBatch> queue = new ArrayBlockingQueue<RowBatch>(1);
+        BlockingQueue<RowBatch> free = new ArrayBlockingQueue<RowBatch>(1);
+        WriterStage writer = new WriterStage(mapping, queue, free, cassandra.createWriter(), "writerstage", "calls",
+                DIRECT);
+        queue.add(batch(mapping, 1));
+        writer.wakeUp();
+
+        awaitFree(free, 1);
+        writer.close();
+        assertEquals(new HashSet<Long>(Arrays.asList(2L, 4L)), cassandra.getWritten());
+        assertEquals(3, mapping.metrics.rowsGivenUp.get());
+        assertEquals("5", this.saved.get(mapping.getCheckpointId()));
+        assertFalse(mapping.stopping);
+    }
+}
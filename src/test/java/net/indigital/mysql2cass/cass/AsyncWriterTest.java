@@ -0,0 +1,205 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.cass;
+
+import junit.framework.TestCase;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Writes that only wait, to see how many of them AsyncWriter lets in flight and what shutdownAll() does with them.
+ */
+public class AsyncWriterTest extends TestCase {
+
+    private static final int MAX_IN_FLIGHT = 2;
+    private static final long TIMEOUT = 10000;
+
+    protected void tearDown() throws Exception {
+        AsyncWriter.shutdownAll(TIMEOUT);
+    }
+
+    /* A write that waits for 'go', counting the writes running at the same time. */
+    private static Callable<Integer> write(final int id, final CountDownLatch go, final AtomicInteger running,
+                                          final AtomicInteger peak) {
+        return new Callable<Integer>() {
+            public Integer call() throws Exception {
+                int now = running.incrementAndGet();
+                synchronized (peak) {
+                    peak.set(Math.max(peak.get(), now));
+                }
+                try {
+                    go.await();
+                } finally {
+                    running.decrementAndGet();
+                }
+                return id;
+            }
+        };
+    }
+
+    private static void await(AtomicInteger value, int expected) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while ((value.get() != expected) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, value.get());
+    }
+
+    /*
+     * submit() blocks while maxInFlight writes are in flight, and trySubmit() says no and calls back once one of
+     * them is over.
+     */
+    public void testMaxInFlight() throws Exception {
+        final AsyncWriter async = AsyncWriter.forHost("fake-bound", 9160, MAX_IN_FLIGHT);
+        final CountDownLatch go = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger peak = new AtomicInteger();
+        final List<AsyncWriter.WriteFuture<Integer>> futures =
+                Collections.synchronizedList(new ArrayList<AsyncWriter.WriteFuture<Integer>>());
+        for (int i = 0; i < MAX_IN_FLIGHT; i++) {
+            futures.add(async.submit(write(i, go, running, peak), null));
+        }
+        await(running, MAX_IN_FLIGHT);
+        assertEquals(MAX_IN_FLIGHT, async.getInFlight());
+
+        /* A producer with more to write waits. */
+        final CountDownLatch submitted = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    for (int i = MAX_IN_FLIGHT; i < 3 * MAX_IN_FLIGHT; i++) {
+                        futures.add(async.submit(write(i, go, running, peak), null));
+                        submitted.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    fail(e.getMessage());
+                }
+            }
+        });
+        producer.start();
+        assertFalse(submitted.await(100, TimeUnit.MILLISECONDS));
+
+        final CountDownLatch free = new CountDownLatch(1);
+        AsyncWriter.WriteFuture<Integer> tried = new AsyncWriter.WriteFuture<Integer>(write(-1, go, running, peak), null);
+        assertFalse(async.trySubmit(tried, new Runnable() {
+            public void run() {
+                free.countDown();
+            }
+        }));
+        assertEquals(1, free.getCount());
+
+        go.countDown();
+        assertTrue(free.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        producer.join(TIMEOUT);
+        assertFalse(producer.isAlive());
+        for (int i = 0; i < futures.size(); i++) {
+            assertEquals(Integer.valueOf(i), futures.get(i).get(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+        assertEquals(3 * MAX_IN_FLIGHT, futures.size());
+        assertEquals(MAX_IN_FLIGHT, peak.get());
+        await(running, 0);
+        assertFalse(tried.isDone());
+    }
+
+    /*
+     * Every future calls its whenDone once over, failed or not, and gives its slot back.
+     */
+    public void testWhenDone() throws Exception {
+        AsyncWriter async = AsyncWriter.forHost("fake-done", 9160, MAX_IN_FLIGHT);
+        final AtomicInteger done = new AtomicInteger();
+        Runnable whenDone = new Runnable() {
+            public void run() {
+                done.incrementAndGet();
+            }
+        };
+        AsyncWriter.WriteFuture<Integer> failed = async.submit(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                throw new Exception("Injected failure");
+            }
+        }, whenDone);
+        AsyncWriter.WriteFuture<Integer> written = async.submit(new Callable<Integer>() {
+            public Integer call() {
+                return 1;
+            }
+        }, whenDone);
+
+        assertEquals(Integer.valueOf(1), written.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        try {
+            failed.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("The write failed");
+        } catch (ExecutionException e) {
+            assertEquals("Injected failure", e.getCause().getMessage());
+        }
+        await(done, 2);
+        assertEquals(0, async.getInFlight());
+    }
+
+    /*
+     * shutdownAll() waits for the writes in flight, and interrupts the ones that don't end in time.
+     * Nothing can be submitted afterwards.
+     */
+    public void testShutdown() throws Exception {
+        AsyncWriter async = AsyncWriter.forHost("fake-shutdown", 9160, MAX_IN_FLIGHT);
+        AsyncWriter.WriteFuture<Integer> slow = async.submit(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                Thread.sleep(200);
+                return 1;
+            }
+        }, null);
+        AsyncWriter.shutdownAll(TIMEOUT);
+        assertTrue(slow.isDone());
+        assertEquals(Integer.valueOf(1), slow.get());
+        try {
+            async.submit(new Callable<Integer>() {
+                public Integer call() {
+                    return 2;
+                }
+            }, null);
+            fail("The writer is shut down");
+        } catch (RejectedExecutionException e) {
+            assertEquals(0, async.getInFlight());
+        }
+
+        async = AsyncWriter.forHost("fake-shutdown", 9160, MAX_IN_FLIGHT);
+        final CountDownLatch never = new CountDownLatch(1);
+        AsyncWriter.WriteFuture<Integer> stuck = async.submit(write(1, never, new AtomicInteger(),
+                new AtomicInteger()), null);
+        AsyncWriter.shutdownAll(100);
+        try {
+            stuck.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("The write was interrupted");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof InterruptedException);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.cass;
+
+import me.prettyprint.cassandra.connection.HConnectionManager;
+import me.prettyprint.cassandra.model.ExecutingKeyspace;
+import me.prettyprint.cassandra.model.ExecutionResult;
+import me.prettyprint.cassandra.model.QuorumAllConsistencyLevelPolicy;
+import me.prettyprint.cassandra.service.CassandraHost;
+import me.prettyprint.cassandra.service.CassandraHostConfigurator;
+import me.prettyprint.cassandra.service.FailoverPolicy;
+import me.prettyprint.cassandra.service.Operation;
+import me.prettyprint.hector.api.Keyspace;
+import me.prettyprint.hector.api.exceptions.HectorException;
+import me.prettyprint.hector.api.exceptions.HectorTransportException;
+import net.indigital.mysql2cass.TableSchema;
+import org.apache.cassandra.thrift.Cassandra;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.thrift.Mutation;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.transport.TTransport;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * In-process stand-in for a Cassandra cluster, for the tests. Same as the one of the benchmarks:
+ * the Hector operations run against a Thrift client that serializes the requests and drops the bytes.
+ * Every batch_mutate waits 'latencyMicros', then calls received(), which tests override to slow down
+ * or fail some writes. Keys are taken as longs, so the mappings must use keysType long.
+ */
+public class FakeCassandra {
+
+    private static final CassandraHost HOST = new CassandraHost("127.0.0.1", 9160);
+
+    private static HConnectionManager connectionManager;
+
+    private final Object lock = new Object();
+    private final Cassandra.Client client = new Cassandra.Client(new TBinaryProtocol(new NullTransport())) {
+        public void batch_mutate(Map<ByteBuffer, Map<String, List<Mutation>>> mutationMap,
+                                 ConsistencyLevel consistencyLevel) throws TException {
+            synchronized (lock) {
+                send_batch_mutate(mutationMap, consistencyLevel);
+            }
+            List<Long> keys = new ArrayList<Long>();
+            for (ByteBuffer key : mutationMap.keySet()) {
+                keys.add(key.getLong(key.position()));
+            }
+            try {
+                if (latencyMicros > 0) {
+                    TimeUnit.MICROSECONDS.sleep(latencyMicros);
+                }
+                received(keys);
+            } catch (TException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new TException(e);
+            }
+            synchronized (lock) {
+                written.addAll(keys);
+                calls++;
+            }
+        }
+    };
+
+    private long latencyMicros = 0;
+    private long calls = 0;
+    private Set<Long> written = new TreeSet<Long>();
+
+    public FakeCassandra() {
+    }
+
+    public FakeCassandra(long latencyMicros) {
+        this.latencyMicros = latencyMicros;
+    }
+
+    /*
+     * Called with the row keys of every batch_mutate. A TException is a failed write, as if the cluster
+     * was down, anything else goes up as it is.
+     */
+    protected void received(List<Long> keys) throws Exception {
+    }
+
+    /*
+     * Keyspace operator whose operations go to this fake cluster.
+     */
+    public Keyspace createKeyspace(String keyspaceName) {
+        return new ExecutingKeyspace(keyspaceName, connectionManager(), new QuorumAllConsistencyLevelPolicy(),
+                FailoverPolicy.FAIL_FAST) {
+            public <T> ExecutionResult<T> doExecuteOperation(Operation<T> op) throws HectorException {
+                op.applyConnectionParams(this.keyspace, this.consistencyLevelPolicy, this.failoverPolicy,
+                        this.credentials);
+                try {
+                    op.executeAndSetResult(client, HOST);
+                } catch (Exception e) {
+                    throw new HectorTransportException(e);
+                }
+                return op.getExecutionResult();
+            }
+        };
+    }
+
+    /*
+     * A CassWriter whose sessions write to this fake cluster.
+     */
+    public CassWriter createWriter() {
+        return new CassWriter() {
+            public WriterSession openSession(String keysType, String keyspaceName, String columnFamily,
+                                             TableSchema schema) {
+                return openSession(keysType, FakeCassandra.this.createKeyspace(keyspaceName), columnFamily, schema);
+            }
+        };
+    }
+
+    /* batch_mutate calls that went through. */
+    public long getCalls() {
+        synchronized (this.lock) {
+            return this.calls;
+        }
+    }
+
+    /* Keys of the rows written, in order. */
+    public Set<Long> getWritten() {
+        synchronized (this.lock) {
+            return new TreeSet<Long>(this.written);
+        }
+    }
+
+    private static synchronized HConnectionManager connectionManager() {
+        if (connectionManager == null) {
+            CassandraHostConfigurator configurator = new CassandraHostConfigurator("127.0.0.1:1");
+            configurator.setRetryDownedHosts(false);
+            connectionManager = new HConnectionManager("mysql2cass_tests", configurator);
+        }
+        return connectionManager;
+    }
+
+    /*
+     * Write-only transport that drops everything.
+     */
+    private static class NullTransport extends TTransport {
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void open() {
+        }
+
+        public void close() {
+        }
+
+        public int read(byte[] buf, int off, int len) {
+            throw new UnsupportedOperationException("Nothing to read from a fake cluster.");
+        }
+
+        public void write(byte[] buf, int off, int len) {
+        }
+    }
+}
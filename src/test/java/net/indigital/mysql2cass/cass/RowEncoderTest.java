@@ -0,0 +1,124 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.cass;
+
+import junit.framework.TestCase;
+import me.prettyprint.cassandra.serializers.IntegerSerializer;
+import me.prettyprint.cassandra.serializers.LongSerializer;
+import me.prettyprint.cassandra.serializers.StringSerializer;
+import net.indigital.mysql2cass.DateTimeConverter;
+import net.indigital.mysql2cass.RowBatch;
+import net.indigital.mysql2cass.TableSchema;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/*
+ * The bytes written have to be the ones the Hector serializers wrote before RowEncoder.
+ */
+public class RowEncoderTest extends TestCase {
+
+    private static final long[] KEYS = {0, 1, -1, 9, 10, 99, 1234567890, Integer.MAX_VALUE, Integer.MIN_VALUE,
+            Integer.MAX_VALUE + 1L, Integer.MIN_VALUE - 1L, Long.MAX_VALUE, Long.MIN_VALUE, -1000000000000L};
+
+    private static TableSchema schema() {
+        List<Map<String, String>> maps = new ArrayList<Map<String, String>>();
+        String[][] columns = {{"id", "int"}, {"name", "string"}, {"born", "datetime"}};
+        for (String[] column : columns) {
+            Map<String, String> map = new HashMap<String, String>();
+            map.put("name", column[0]);
+            map.put("type", column[1]);
+            maps.add(map);
+        }
+        return new TableSchema(maps);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        ByteBuffer tmp = buffer.duplicate();
+        byte[] bytes = new byte[tmp.remaining()];
+        tmp.get(bytes);
+        return bytes;
+    }
+
+    private static void assertSameBytes(String message, ByteBuffer expected, ByteBuffer actual) {
+        assertTrue(message, Arrays.equals(bytes(expected), bytes(actual)));
+    }
+
+    public void testStringKeys() {
+        RowEncoder encoder = new RowEncoder("string", schema());
+        for (long key : KEYS) {
+            assertSameBytes("key:" + key, StringSerializer.get().toByteBuffer(String.valueOf(key)),
+                    encoder.encodeKey(key));
+        }
+    }
+
+    public void testLongKeys() {
+        RowEncoder encoder = new RowEncoder("long", schema());
+        for (long key : KEYS) {
+            assertSameBytes("key:" + key, LongSerializer.get().toByteBuffer(key), encoder.encodeKey(key));
+        }
+    }
+
+    /*
+     * IntegerType keys keep the 4 bytes of IntegerSerializer when they fit in an int,
+     * and any other key still reads back as itself.
+     */
+    public void testIntKeys() {
+        RowEncoder encoder = new RowEncoder("int", schema());
+        for (long key : KEYS) {
+            ByteBuffer encoded = encoder.encodeKey(key);
+            if ((key >= Integer.MIN_VALUE) && (key <= Integer.MAX_VALUE)) {
+                assertSameBytes("key:" + key, IntegerSerializer.get().toByteBuffer((int) key), encoded);
+            }
+            assertEquals("key:" + key, BigInteger.valueOf(key), new BigInteger(bytes(encoded)));
+        }
+    }
+
+    public void testValues() {
+        TableSchema schema = schema();
+        RowEncoder encoder = new RowEncoder("long", schema);
+        assertEquals(3, encoder.size());
+        assertSameBytes("name", StringSerializer.get().toByteBuffer("name"), encoder.getColumnName(1));
+
+        RowBatch batch = new RowBatch(schema, 2);
+        int row = batch.addRow(1);
+        batch.setLong(row, 0, 5000000000L);
+        batch.setString(row, 1, "Martín");
+        batch.setLong(row, 2, 1341100800000L);
+        assertEquals(BigInteger.valueOf(5000000000L), new BigInteger(bytes(encoder.encodeValue(batch, row, 0))));
+        assertSameBytes("string", StringSerializer.get().toByteBuffer("Martín"), encoder.encodeValue(batch, row, 1));
+        assertSameBytes("datetime", DateTimeConverter.timeUUID(1341100800000L), encoder.encodeValue(batch, row, 2));
+        assertEquals("5000000000", encoder.valueToString(batch, row, 0));
+        assertEquals("Martín", encoder.valueToString(batch, row, 1));
+
+        /* Ints that fit keep the 4 bytes of IntegerSerializer. */
+        row = batch.addRow(2);
+        batch.setLong(row, 0, 7);
+        assertSameBytes("int", IntegerSerializer.get().toByteBuffer(7), encoder.encodeValue(batch, row, 0));
+    }
+}
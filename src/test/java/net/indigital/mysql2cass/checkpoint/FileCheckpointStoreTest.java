@@ -0,0 +1,178 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.checkpoint;
+
+import junit.framework.TestCase;
+
+import java.io.*;
+import java.util.*;
+
+/*
+ * Checkpoints in a temporary directory, reopened the way a restart would.
+ */
+public class FileCheckpointStoreTest extends TestCase {
+
+    private File dir;
+    private FileCheckpointStore store;
+
+    protected void setUp() throws Exception {
+        this.dir = File.createTempFile("checkpoints", "");
+        this.dir.delete();
+    }
+
+    protected void tearDown() throws Exception {
+        if (this.store != null) {
+            this.store.close();
+        }
+        File[] files = this.dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        this.dir.delete();
+    }
+
+    private FileCheckpointStore reopen() throws Exception {
+        if (this.store != null) {
+            this.store.close();
+        }
+        this.store = new FileCheckpointStore(this.dir);
+        return this.store;
+    }
+
+    private File file() {
+        return new File(this.dir, FileCheckpointStore.FILE_NAME);
+    }
+
+    private List<String> lines() throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file()), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            in.close();
+        }
+        return lines;
+    }
+
+    private void write(String content) throws IOException {
+        this.dir.mkdirs();
+        FileOutputStream out = new FileOutputStream(file());
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /*
+     * The last value saved for each mapping survives a restart.
+     */
+    public void testSaveAndReload() throws Exception {
+        FileCheckpointStore store = reopen();
+        assertNull(store.load("a"));
+        store.save("a", "1");
+        store.save("b", "binlog.000001/4");
+        store.save("a", "3");
+        assertEquals("3", store.load("a"));
+
+        store = reopen();
+        assertEquals("3", store.load("a"));
+        assertEquals("binlog.000001/4", store.load("b"));
+        assertNull(store.load("c"));
+    }
+
+    /*
+     * Opening the store compacts it to the last value of each mapping, and it still takes saves afterwards.
+     */
+    public void testCompaction() throws Exception {
+        FileCheckpointStore store = reopen();
+        for (int i = 1; i <= 100; i++) {
+            store.save("a", String.valueOf(i));
+            store.save("b", String.valueOf(-i));
+        }
+        assertEquals(200, lines().size());
+
+        store = reopen();
+        List<String> lines = lines();
+        Collections.sort(lines);
+        assertEquals(Arrays.asList("a\t100", "b\t-100"), lines);
+        assertFalse(new File(this.dir, FileCheckpointStore.FILE_NAME + ".tmp").exists());
+
+        store.save("a", "101");
+        store = reopen();
+        assertEquals("101", store.load("a"));
+        assertEquals("-100", store.load("b"));
+    }
+
+    /*
+     * A line cut by a crash is ignored, the previous value of its mapping is used,
+     * and the next compaction drops it from the file.
+     */
+    public void testTornTail() throws Exception {
+        write("a\t1\nb\t2\na\t3");
+        FileCheckpointStore store = reopen();
+        assertEquals("1", store.load("a"));
+        assertEquals("2", store.load("b"));
+        List<String> lines = lines();
+        Collections.sort(lines);
+        assertEquals(Arrays.asList("a\t1", "b\t2"), lines);
+
+        store.save("a", "4");
+        store = reopen();
+        assertEquals("4", store.load("a"));
+    }
+
+    /*
+     * Lines without a mapping are skipped, the rest of the file is still read.
+     */
+    public void testBadLine() throws Exception {
+        write("a\t1\nnot a checkpoint\n\t2\nb\t2\n");
+        FileCheckpointStore store = reopen();
+        assertEquals("1", store.load("a"));
+        assertEquals("2", store.load("b"));
+    }
+
+    public void testRejectsSeparators() throws Exception {
+        FileCheckpointStore store = reopen();
+        for (String[] checkpoint : new String[][]{{"a\tb", "1"}, {"a\nb", "1"}, {"a", "1\n2"}}) {
+            try {
+                store.save(checkpoint[0], checkpoint[1]);
+                fail("Saved:" + checkpoint[0] + "=" + checkpoint[1]);
+            } catch (IllegalArgumentException e) {
+                /* Expected. */
+            }
+        }
+        assertNull(store.load("a"));
+        store = reopen();
+        assertNull(store.load("a"));
+    }
+}
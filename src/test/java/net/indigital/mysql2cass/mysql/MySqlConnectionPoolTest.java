@@ -0,0 +1,137 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.mysql;
+
+import junit.framework.TestCase;
+
+import java.sql.SQLException;
+
+/*
+ * Pools of connections to an in-memory H2 database.
+ */
+public class MySqlConnectionPoolTest extends TestCase {
+
+    private static final String URL = "jdbc:h2:mem:pool;DB_CLOSE_DELAY=-1";
+    private static final long TIMEOUT = 50;
+
+    /*
+     * A released connection is handed out again, with its statements already prepared.
+     */
+    public void testReuse() throws Exception {
+        MySqlConnectionPool pool = MySqlConnectionPool.forUrl(URL, 2);
+        PooledConnection pc = pool.borrow(TIMEOUT);
+        assertSame(pc.prepare("SELECT 1"), pc.prepare("SELECT 1"));
+        pool.release(pc);
+        PooledConnection again = pool.borrow(TIMEOUT);
+        assertSame(pc, again);
+        assertFalse(again.connection.isClosed());
+        pool.invalidate(again);
+    }
+
+    /*
+     * No more than 'size' connections are borrowed at once, the next borrower waits for one.
+     */
+    public void testBounded() throws Exception {
+        MySqlConnectionPool pool = MySqlConnectionPool.forUrl(URL, 2);
+        PooledConnection first = pool.borrow(TIMEOUT);
+        PooledConnection second = pool.borrow(TIMEOUT);
+        assertNotSame(first, second);
+        try {
+            pool.borrow(TIMEOUT);
+            fail("Borrowed a third connection from a pool of 2");
+        } catch (RuntimeException e) {
+            /* Expected. */
+        }
+        pool.release(first);
+        PooledConnection third = pool.borrow(TIMEOUT);
+        assertSame(first, third);
+        pool.invalidate(second);
+        pool.invalidate(third);
+    }
+
+    /*
+     * An invalidated connection is closed and frees its slot; the next borrower gets a new one.
+     */
+    public void testInvalidate() throws Exception {
+        MySqlConnectionPool pool = MySqlConnectionPool.forUrl(URL, 1);
+        PooledConnection broken = pool.borrow(TIMEOUT);
+        pool.invalidate(broken);
+        assertTrue(broken.connection.isClosed());
+        PooledConnection pc = pool.borrow(TIMEOUT);
+        assertNotSame(broken, pc);
+        assertFalse(pc.connection.isClosed());
+        pool.invalidate(pc);
+    }
+
+    /*
+     * A connection idle for a while is validated before it is handed out, and replaced if it is dead.
+     */
+    public void testValidation() throws Exception {
+        MySqlConnectionPool pool = MySqlConnectionPool.forUrl(URL, 1);
+        PooledConnection dead = pool.borrow(TIMEOUT);
+        pool.release(dead);
+        dead.connection.close();
+        dead.lastUsed -= 10000;
+        PooledConnection pc = pool.borrow(TIMEOUT);
+        assertNotSame(dead, pc);
+        assertFalse(pc.connection.isClosed());
+        pool.invalidate(pc);
+    }
+
+    /*
+     * Connections idle for longer than the idle timeout are closed.
+     */
+    public void testIdleEviction() throws Exception {
+        MySqlConnectionPool pool = MySqlConnectionPool.forUrl(URL, 2);
+        PooledConnection old = pool.borrow(TIMEOUT);
+        PooledConnection recent = pool.borrow(TIMEOUT);
+        pool.release(old);
+        old.lastUsed -= MySqlConnectionPool.DEFAULT_IDLE_TIMEOUT + 1000;
+        pool.release(recent);
+        assertTrue(old.connection.isClosed());
+        assertSame(recent, pool.borrow(TIMEOUT));
+        PooledConnection pc = pool.borrow(TIMEOUT);
+        assertNotSame(old, pc);
+        pool.invalidate(recent);
+        pool.invalidate(pc);
+    }
+
+    /*
+     * A connection that can't be opened doesn't keep its slot.
+     */
+    public void testFailedConnection() throws Exception {
+        MySqlConnectionPool pool = MySqlConnectionPool.forUrl("jdbc:nowhere:pool", 1);
+        for (int i = 0; i < 2; i++) {
+            try {
+                pool.borrow(TIMEOUT);
+                fail("Connected to nowhere");
+            } catch (SQLException e) {
+                /* Expected, not a timeout waiting for the slot. */
+            }
+        }
+    }
+}
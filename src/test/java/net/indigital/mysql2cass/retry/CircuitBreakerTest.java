@@ -0,0 +1,95 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.retry;
+
+import junit.framework.TestCase;
+
+public class CircuitBreakerTest extends TestCase {
+
+    private static final long PAUSE = 50;
+
+    /* Calls acquire() in a thread of its own. */
+    private static class Caller extends Thread {
+        private CircuitBreaker breaker;
+        private volatile Boolean probe = null;
+
+        Caller(CircuitBreaker breaker) {
+            this.breaker = breaker;
+            setDaemon(true);
+        }
+
+        public void run() {
+            try {
+                this.probe = this.breaker.acquire();
+            } catch (InterruptedException e) {
+                /* The test fails on its own. */
+            }
+        }
+    }
+
+    /*
+     * A call that was in flight when the circuit opened fails while the probe is being tried:
+     * nobody else may try the host until the probe is done.
+     */
+    public void testOnlyTheProbeEndsTheTrial() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("host", 1, PAUSE);
+        assertFalse(breaker.acquire());
+        breaker.failure(false);
+        assertTrue(breaker.isOpen());
+        Thread.sleep(PAUSE + 10);
+
+        assertTrue(breaker.acquire());
+        breaker.failure(false);
+        Caller other = new Caller(breaker);
+        other.start();
+        other.join(4 * PAUSE);
+        assertTrue("Another call got through while the probe is in flight", other.isAlive());
+
+        breaker.success();
+        other.join(1000);
+        assertFalse(other.isAlive());
+        assertEquals(Boolean.FALSE, other.probe);
+        assertFalse(breaker.isOpen());
+    }
+
+    public void testFailedProbeReopens() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker("host", 2, PAUSE);
+        breaker.failure(false);
+        assertFalse(breaker.isOpen());
+        breaker.failure(false);
+        assertTrue(breaker.isOpen());
+        Thread.sleep(PAUSE + 10);
+
+        assertTrue(breaker.acquire());
+        breaker.failure(true);
+        assertTrue(breaker.isOpen());
+        Caller next = new Caller(breaker);
+        next.start();
+        next.join(1000);
+        assertEquals(Boolean.TRUE, next.probe);
+    }
+}
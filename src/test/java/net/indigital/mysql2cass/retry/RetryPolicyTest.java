@@ -0,0 +1,104 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.retry;
+
+import junit.framework.TestCase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class RetryPolicyTest extends TestCase {
+
+    private static final int SAMPLES = 1000;
+
+    public void testCanRetry() {
+        RetryPolicy policy = new RetryPolicy(10, 100, 3);
+        assertTrue(policy.canRetry(1));
+        assertTrue(policy.canRetry(2));
+        assertFalse(policy.canRetry(3));
+        assertFalse(policy.canRetry(4));
+
+        RetryPolicy once = new RetryPolicy(10, 100, 1);
+        assertFalse(once.canRetry(1));
+
+        RetryPolicy forever = new RetryPolicy(10, 100, 0);
+        assertTrue(forever.canRetry(1));
+        assertTrue(forever.canRetry(Integer.MAX_VALUE));
+    }
+
+    /*
+     * The wait doubles from 'pause' up to 'maxPause', and is somewhere between its half and itself.
+     */
+    public void testDelay() {
+        RetryPolicy policy = new RetryPolicy(100, 1000, 0);
+        long[] expected = {100, 100, 200, 400, 800, 1000, 1000};
+        for (int attempts = 0; attempts < expected.length; attempts++) {
+            for (int i = 0; i < SAMPLES; i++) {
+                long delay = policy.delay(attempts);
+                assertTrue("attempts:" + attempts + ", delay:" + delay, delay >= expected[attempts] / 2);
+                assertTrue("attempts:" + attempts + ", delay:" + delay, delay <= expected[attempts]);
+            }
+        }
+    }
+
+    /*
+     * Writers that failed together don't come back together.
+     */
+    public void testJitter() {
+        RetryPolicy policy = new RetryPolicy(1000, 1000, 0);
+        Set<Long> delays = new HashSet<Long>();
+        for (int i = 0; i < SAMPLES; i++) {
+            delays.add(policy.delay(1));
+        }
+        assertTrue("Only " + delays.size() + " different delays", delays.size() > 100);
+    }
+
+    /*
+     * However many attempts failed, the wait is never past 'maxPause', nor wraps around.
+     */
+    public void testLongOutage() {
+        RetryPolicy policy = new RetryPolicy(1, Long.MAX_VALUE / 2, 0);
+        long delay = policy.delay(Integer.MAX_VALUE);
+        assertTrue("delay:" + delay, delay >= Long.MAX_VALUE / 8);
+        assertTrue("delay:" + delay, delay <= Long.MAX_VALUE / 2);
+    }
+
+    /*
+     * A 'maxPause' below 'pause' is taken as 'pause'; a 'pause' of 0 never waits.
+     */
+    public void testBounds() {
+        RetryPolicy policy = new RetryPolicy(100, 10, 0);
+        for (int i = 0; i < SAMPLES; i++) {
+            long delay = policy.delay(5);
+            assertTrue("delay:" + delay, (delay >= 50) && (delay <= 100));
+        }
+        RetryPolicy none = new RetryPolicy(0, 0, 1);
+        assertEquals(0, none.delay(1));
+        assertEquals(0, none.delay(10));
+        assertEquals(1, none.getMaxAttempts());
+    }
+}
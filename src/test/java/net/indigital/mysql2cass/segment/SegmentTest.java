@@ -0,0 +1,228 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+package net.indigital.mysql2cass.segment;
+
+import junit.framework.TestCase;
+import net.indigital.mysql2cass.RowBatch;
+import net.indigital.mysql2cass.TableSchema;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.*;
+
+/*
+ * Batches of (id int, name string, born datetime) rows dumped to segments in a temporary directory
+ * and replayed back.
+ */
+public class SegmentTest extends TestCase {
+
+    private static final int ID = 0;
+    private static final int NAME = 1;
+    private static final int BORN = 2;
+    private static final int BATCH = 10;
+    private static final int BATCHES = 5;
+    /* Small enough for a few segments, even compressed. */
+    private static final int SEGMENT_SIZE = 512;
+
+    private File dir;
+    private TableSchema schema;
+
+    protected void setUp() throws Exception {
+        this.dir = File.createTempFile("segments", "");
+        this.dir.delete();
+        List<Map<String, String>> maps = new ArrayList<Map<String, String>>();
+        String[][] columns = {{"id", "int"}, {"name", "string"}, {"born", "datetime"}};
+        for (String[] column : columns) {
+            Map<String, String> map = new HashMap<String, String>();
+            map.put("name", column[0]);
+            map.put("type", column[1]);
+            maps.add(map);
+        }
+        this.schema = new TableSchema(maps);
+    }
+
+    protected void tearDown() throws Exception {
+        File[] files = this.dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        this.dir.delete();
+    }
+
+    /*
+     * Rows 'first' to 'first'+BATCH-1: every third one deleted, some names null or cleared, a few with
+     * text that isn't ASCII.
+     */
+    private RowBatch batch(long first) {
+        RowBatch batch = new RowBatch(this.schema, BATCH);
+        for (long key = first; key < first + BATCH; key++) {
+            int row = (key % 3 == 0) ? batch.addDeletedRow(key) : batch.addRow(key);
+            batch.setLong(row, ID, key);
+            if (key % 4 == 1) {
+                batch.setCleared(row, NAME);
+            } else if (key % 4 != 2) {
+                batch.setString(row, NAME, name(key));
+            }
+            if (key % 2 == 0) {
+                batch.setLong(row, BORN, 1341100800000L + key);
+            }
+        }
+        return batch;
+    }
+
+    private static String name(long key) {
+        return (key % 5 == 0) ? "Martín Gil " + key : "caller number " + key + ", caller number " + key;
+    }
+
+    private static void assertSameRows(RowBatch expected, RowBatch actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int row = 0; row < expected.size(); row++) {
+            String at = "key:" + expected.getKey(row);
+            assertEquals(at, expected.getKey(row), actual.getKey(row));
+            assertEquals(at, expected.isDeleted(row), actual.isDeleted(row));
+            for (int c = 0; c < 3; c++) {
+                assertEquals(at + ", column:" + c, expected.isNull(row, c), actual.isNull(row, c));
+                assertEquals(at + ", column:" + c, expected.isCleared(row, c), actual.isCleared(row, c));
+            }
+            assertEquals(at, expected.getLong(row, ID), actual.getLong(row, ID));
+            if (!expected.isNull(row, NAME)) {
+                assertEquals(at, expected.getString(row, NAME), actual.getString(row, NAME));
+            }
+            if (!expected.isNull(row, BORN)) {
+                assertEquals(at, expected.getLong(row, BORN), actual.getLong(row, BORN));
+            }
+        }
+    }
+
+    private void roundTrip(SegmentCodec codec) throws Exception {
+        SegmentWriter writer = new SegmentWriter(this.dir, this.schema, codec, SEGMENT_SIZE);
+        assertEquals(-1, writer.getLastKey());
+        for (int i = 0; i < BATCHES; i++) {
+            writer.append(batch(1 + i * BATCH));
+        }
+        assertEquals(BATCHES * BATCH, writer.getLastKey());
+        writer.close();
+        assertTrue(SegmentFormat.segments(this.dir).length > 1);
+
+        SegmentReader reader = new SegmentReader(this.dir, this.schema);
+        RowBatch batch = new RowBatch(this.schema, BATCH);
+        for (int i = 0; i < BATCHES; i++) {
+            batch.reset();
+            assertTrue(reader.next(batch, -1));
+            assertSameRows(batch(1 + i * BATCH), batch);
+        }
+        batch.reset();
+        assertFalse(reader.next(batch, -1));
+        reader.close();
+
+        /* Records up to a key are skipped. */
+        reader = new SegmentReader(this.dir, this.schema);
+        batch.reset();
+        assertTrue(reader.next(batch, 2 * BATCH));
+        assertSameRows(batch(1 + 2 * BATCH), batch);
+        reader.close();
+    }
+
+    public void testRoundTripNone() throws Exception {
+        roundTrip(SegmentCodec.NONE);
+    }
+
+    public void testRoundTripLz4() throws Exception {
+        roundTrip(SegmentCodec.LZ4);
+    }
+
+    public void testRoundTripSnappy() throws Exception {
+        roundTrip(SegmentCodec.SNAPPY);
+    }
+
+    /*
+     * A record cut by a crash is truncated when the writer opens the segments again, and the dump
+     * goes on after the last record that made it to disk.
+     */
+    public void testRecover() throws Exception {
+        SegmentWriter writer = new SegmentWriter(this.dir, this.schema, SegmentCodec.LZ4, SegmentWriter.DEFAULT_SEGMENT_SIZE);
+        writer.append(batch(1));
+        File segment = SegmentFormat.segment(this.dir, 0);
+        long complete = segment.length();
+        writer.append(batch(1 + BATCH));
+        writer.close();
+
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.setLength(file.length() - 7);
+        } finally {
+            file.close();
+        }
+
+        writer = new SegmentWriter(this.dir, this.schema, SegmentCodec.LZ4, SegmentWriter.DEFAULT_SEGMENT_SIZE);
+        assertEquals(BATCH, writer.getLastKey());
+        assertEquals(complete, segment.length());
+        writer.append(batch(1 + BATCH));
+        writer.close();
+
+        SegmentReader reader = new SegmentReader(this.dir, this.schema);
+        RowBatch batch = new RowBatch(this.schema, BATCH);
+        for (int i = 0; i < 2; i++) {
+            batch.reset();
+            assertTrue(reader.next(batch, -1));
+            assertSameRows(batch(1 + i * BATCH), batch);
+        }
+        batch.reset();
+        assertFalse(reader.next(batch, -1));
+        reader.close();
+        assertEquals(1, SegmentFormat.segments(this.dir).length);
+    }
+
+    /*
+     * A record whose bytes are wrong is as good as cut: it is truncated too.
+     */
+    public void testRecoverBadCrc() throws Exception {
+        SegmentWriter writer = new SegmentWriter(this.dir, this.schema, SegmentCodec.NONE, SegmentWriter.DEFAULT_SEGMENT_SIZE);
+        writer.append(batch(1));
+        File segment = SegmentFormat.segment(this.dir, 0);
+        long complete = segment.length();
+        writer.append(batch(1 + BATCH));
+        writer.close();
+
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        try {
+            file.seek(file.length() - 1);
+            int last = file.read();
+            file.seek(file.length() - 1);
+            file.write(last ^ 0xFF);
+        } finally {
+            file.close();
+        }
+
+        writer = new SegmentWriter(this.dir, this.schema, SegmentCodec.NONE, SegmentWriter.DEFAULT_SEGMENT_SIZE);
+        assertEquals(BATCH, writer.getLastKey());
+        assertEquals(complete, segment.length());
+        writer.close();
+    }
+}
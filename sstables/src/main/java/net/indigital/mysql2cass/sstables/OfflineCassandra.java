@@ -0,0 +1,82 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+
+package net.indigital.mysql2cass.sstables;
+
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.ColumnFamilyType;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.PrintWriter;
+
+/*
+ * The Cassandra classes that write and read SSTables expect the configuration of a node.
+ * This one is made up in a work directory, with the partitioner of the cluster the SSTables are for:
+ * it decides the order of the rows in the files, so it must be the one of the cluster.
+ * Must be called before any other Cassandra class is used.
+ */
+public class OfflineCassandra {
+
+    private static Logger Log = Logger.getLogger(OfflineCassandra.class);
+
+    public static final String DEFAULT_PARTITIONER = "org.apache.cassandra.dht.RandomPartitioner";
+
+    public static void configure(File workDir, String partitioner) throws Exception {
+        File yaml = new File(workDir, "cassandra.yaml");
+        workDir.mkdirs();
+        PrintWriter out = new PrintWriter(yaml, "UTF-8");
+        try {
+            out.println("cluster_name: 'mysql2cass export'");
+            out.println("partitioner: " + partitioner);
+            out.println("data_file_directories:");
+            out.println("    - " + new File(workDir, "data").getAbsolutePath());
+            out.println("commitlog_directory: " + new File(workDir, "commitlog").getAbsolutePath());
+            out.println("saved_caches_directory: " + new File(workDir, "saved_caches").getAbsolutePath());
+            out.println("commitlog_sync: periodic");
+            out.println("commitlog_sync_period_in_ms: 10000");
+            out.println("endpoint_snitch: org.apache.cassandra.locator.SimpleSnitch");
+            out.println("seed_provider:");
+            out.println("    - class_name: org.apache.cassandra.locator.SimpleSeedProvider");
+            out.println("      parameters:");
+            out.println("          - seeds: \"127.0.0.1\"");
+        } finally {
+            out.close();
+        }
+        System.setProperty("cassandra.config", yaml.toURI().toString());
+        Log.info("Cassandra configuration:" + yaml + ", partitioner:" + partitioner);
+    }
+
+    /*
+     * Column family as CassWriter.createSchema() defines it, as far as the files are concerned:
+     * a standard column family with UTF8Type column names.
+     */
+    public static CFMetaData metadata(String keyspace, String columnFamily) {
+        return new CFMetaData(keyspace, columnFamily, ColumnFamilyType.Standard, UTF8Type.instance, null);
+    }
+}
@@ -0,0 +1,141 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+
+package net.indigital.mysql2cass.sstables;
+
+import net.indigital.mysql2cass.Mapping;
+import net.indigital.mysql2cass.checkpoint.CheckpointStore;
+import net.indigital.mysql2cass.spool.DeadLetterSpool;
+import net.indigital.util.Properties;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.PropertyConfigurator;
+import org.apache.log4j.helpers.Loader;
+
+import java.io.File;
+import java.net.URL;
+import java.util.*;
+
+/*
+ * Offline initial load. Instead of going through the Thrift write path, every mapping of the configuration
+ * is read from MySQL and written as SSTables to OUTPUT_DIR/<keyspace>/, to be streamed to the cluster with
+ * sstableloader (see TableExport). Nothing is written to Cassandra.
+ * With 'check', the SSTables in OUTPUT_DIR are read back and checked instead (see TableCheck).
+ *
+ * The partitioner of the cluster is given with -Dpartitioner, RandomPartitioner by default.
+ * The exit status is 1 when an export or a check fails, or a check finds invalid keys or columns.
+ */
+public class SSTableExport {
+
+    private static Logger Log = Logger.getLogger(SSTableExport.class);
+
+    public static void main(String[] args) {
+
+        URL url = Loader.getResource("log4j.properties");
+        PropertyConfigurator.configure(url);
+
+        if ((args.length != 3) && (args.length != 4)) {
+            Log.error("Invalid number of arguments. You might want to run this as:");
+            Log.error("java [-Dpartitioner=PARTITIONER] -jar sstables.jar CONFIG_FILE OUTPUT_DIR LOG_LEVEL [check]");
+            System.exit(0);
+        }
+        Boolean check = Boolean.FALSE;
+        if (args.length == 4) {
+            if (!args[3].equals("check")) {
+                Log.error("Found an incorrect mode. Valid value is check. Founded:" + args[3]);
+                System.exit(0);
+            }
+            check = Boolean.TRUE;
+        }
+        int status = 0;
+        try {
+            /* Checking log variable*/
+            if (args[2].equalsIgnoreCase("DEBUG")) {
+                Log.getRootLogger().setLevel(Level.DEBUG);
+            } else if (args[2].equalsIgnoreCase("INFO")) {
+                Log.getRootLogger().setLevel(Level.INFO);
+            } else if (args[2].equalsIgnoreCase("WARN")) {
+                Log.getRootLogger().setLevel(Level.WARN);
+            } else if (args[2].equalsIgnoreCase("ERROR")) {
+                Log.getRootLogger().setLevel(Level.ERROR);
+            } else {
+                Log.error("Found an incorrect LOG_LEVEL. Valid values are DEBUG, INFO, WARN, ERROR." +
+                        "Founded:" + args[2]);
+                System.exit(0);
+            }
+
+            File output = new File(args[1]);
+            OfflineCassandra.configure(new File(output, ".cassandra"),
+                    System.getProperty("partitioner", OfflineCassandra.DEFAULT_PARTITIONER));
+
+            Log.info("Trying to load: " + args[0]);
+            List<Mapping> listMapping = Properties.configure(args[0]);
+            long invalid = 0;
+            for (Mapping map : listMapping) {
+                if (check) {
+                    Log.info("Checking mapping:" + map.getID());
+                    TableCheck tableCheck = new TableCheck(map, output);
+                    tableCheck.run();
+                    invalid += tableCheck.invalid;
+                } else {
+                    Log.info("Exporting mapping:" + map.getID());
+                    new TableExport(map, output, TableExport.DEFAULT_BUFFER_SIZE).run();
+                }
+            }
+            /* Mappings may share them. */
+            Set<CheckpointStore> checkpoints = new HashSet<CheckpointStore>();
+            Set<DeadLetterSpool> spools = new HashSet<DeadLetterSpool>();
+            for (Mapping map : listMapping) {
+                if (map.checkpoints != null) {
+                    checkpoints.add(map.checkpoints);
+                }
+                if (map.deadLetters != null) {
+                    spools.add(map.deadLetters);
+                }
+            }
+            for (CheckpointStore store : checkpoints) {
+                store.close();
+            }
+            for (DeadLetterSpool spool : spools) {
+                spool.close();
+            }
+            if (check) {
+                if (invalid == 0) {
+                    Log.info("Every SSTable is right.");
+                } else {
+                    Log.error("Found " + invalid + " invalid keys or columns.");
+                    status = 1;
+                }
+            }
+        } catch (Exception e) {
+            Log.error(e.getMessage(),e);
+            status = 1;
+        }
+        /* Cassandra leaves threads behind. */
+        System.exit(status);
+    }
+}
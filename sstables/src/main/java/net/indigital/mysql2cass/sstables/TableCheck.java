@@ -0,0 +1,194 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+
+package net.indigital.mysql2cass.sstables;
+
+import net.indigital.mysql2cass.ColumnType;
+import net.indigital.mysql2cass.Mapping;
+import net.indigital.mysql2cass.cass.RowEncoder;
+import org.apache.cassandra.config.CFMetaData;
+import org.apache.cassandra.db.ExpiringColumn;
+import org.apache.cassandra.db.IColumn;
+import org.apache.cassandra.db.columniterator.IColumnIterator;
+import org.apache.cassandra.db.marshal.MarshalException;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.dht.IPartitioner;
+import org.apache.cassandra.dht.Range;
+import org.apache.cassandra.io.sstable.Descriptor;
+import org.apache.cassandra.io.sstable.SSTableReader;
+import org.apache.cassandra.io.sstable.SSTableScanner;
+import org.apache.cassandra.service.StorageService;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/*
+ * Reads back the SSTables exported for a mapping (see TableExport), without Cassandra.
+ * Every row key must be a key of keysType and every column one of the maps, with a value of its type:
+ * 4 or 8 bytes for int, a version 1 UUID for datetime and UTF-8 for string.
+ * Logs how many rows and columns there are, the range of keys and every cell that is not right.
+ */
+public class TableCheck {
+
+    private static Logger Log = Logger.getLogger(TableCheck.class);
+
+    /* Invalid cells logged one by one, the rest are only counted. */
+    private static final int MAX_LOGGED = 20;
+
+    private Mapping mapping;
+    private File directory;
+    private Map<ByteBuffer, Integer> columns = new HashMap<ByteBuffer, Integer>();
+
+    public long rows = 0;
+    public long cells = 0;
+    public long expiring = 0;
+    public long invalid = 0;
+    public long minKey = Long.MAX_VALUE;
+    public long maxKey = Long.MIN_VALUE;
+
+    public TableCheck(Mapping mapping, File directory) {
+        this.mapping = mapping;
+        this.directory = directory;
+        RowEncoder encoder = new RowEncoder(mapping.keysType, mapping.schema);
+        for (int c = 0; c < encoder.size(); c++) {
+            this.columns.put(encoder.getColumnName(c), c);
+        }
+    }
+
+    public void run() throws Exception {
+        String keyspace = this.mapping.db;
+        String columnFamily = this.mapping.table;
+        File keyspaceDir = new File(this.directory, keyspace);
+        List<File> files = new ArrayList<File>();
+        File[] listed = keyspaceDir.listFiles();
+        if (listed != null) {
+            for (File file : listed) {
+                if (file.getName().startsWith(columnFamily + "-") && file.getName().endsWith("-Data.db")) {
+                    files.add(file);
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            Log.error("No SSTables of columnFamily:" + columnFamily + " in " + keyspaceDir);
+            this.invalid++;
+            return;
+        }
+
+        CFMetaData metadata = OfflineCassandra.metadata(keyspace, columnFamily);
+        IPartitioner partitioner = StorageService.getPartitioner();
+        Range everything = new Range(partitioner.getMinimumToken(), partitioner.getMinimumToken());
+        for (File file : files) {
+            long fileRows = this.rows;
+            SSTableReader reader = SSTableReader.open(Descriptor.fromFilename(file.getPath()), metadata);
+            SSTableScanner scanner = reader.getDirectScanner(everything);
+            try {
+                while (scanner.hasNext()) {
+                    checkRow(scanner.next());
+                }
+            } finally {
+                scanner.close();
+            }
+            Log.info("Read " + (this.rows - fileRows) + " rows from " + file);
+        }
+        Log.info("columnFamily:" + columnFamily + " of keyspace:" + keyspace + ": " + files.size() + " SSTables, " +
+                this.rows + " rows, " + this.cells + " columns (" + this.expiring + " with ttl), keys:" +
+                ((this.minKey <= this.maxKey) ? this.minKey + ".." + this.maxKey : "none") + ", invalid:" + this.invalid);
+    }
+
+    private void checkRow(IColumnIterator row) throws Exception {
+        this.rows++;
+        ByteBuffer rowKey = row.getKey().key;
+        Long key = decodeKey(rowKey);
+        if (key == null) {
+            invalid("Invalid key:" + ByteBufferUtil.bytesToHex(rowKey) + " for keysType:" + this.mapping.keysType);
+        } else {
+            this.minKey = Math.min(this.minKey, key);
+            this.maxKey = Math.max(this.maxKey, key);
+        }
+        while (row.hasNext()) {
+            IColumn column = row.next();
+            this.cells++;
+            if (column instanceof ExpiringColumn) {
+                this.expiring++;
+            }
+            Integer c = this.columns.get(column.name());
+            if (c == null) {
+                invalid("Unknown column:" + ByteBufferUtil.bytesToHex(column.name()) + " in the row with key:" + key);
+            } else if (!isValid(this.mapping.schema.types[c], column.value())) {
+                invalid("Invalid value:" + ByteBufferUtil.bytesToHex(column.value()) + " of column:" +
+                        this.mapping.schema.names[c] + " in the row with key:" + key);
+            }
+        }
+        row.close();
+    }
+
+    /*
+     * The key, as RowEncoder.encodeKey() wrote it, or null if it isn't one.
+     */
+    private Long decodeKey(ByteBuffer key) {
+        if (this.mapping.keysType.equals("int")) {
+            if ((key.remaining() != 4) && (key.remaining() != 8)) {
+                return null;
+            }
+            return new BigInteger(ByteBufferUtil.getArray(key)).longValue();
+        } else if (this.mapping.keysType.equals("long")) {
+            return (key.remaining() == 8) ? key.getLong(key.position()) : null;
+        }
+        try {
+            return Long.parseLong(ByteBufferUtil.string(key));
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static boolean isValid(ColumnType type, ByteBuffer value) {
+        switch (type) {
+            case INT:
+                return (value.remaining() == 4) || (value.remaining() == 8);
+            case DATETIME:
+                return (value.remaining() == 16) && (((value.get(value.position() + 6) >> 4) & 0x0F) == 1);
+            default:
+                try {
+                    UTF8Type.instance.validate(value);
+                    return true;
+                } catch (MarshalException e) {
+                    return false;
+                }
+        }
+    }
+
+    private void invalid(String message) {
+        this.invalid++;
+        if (this.invalid <= MAX_LOGGED) {
+            Log.error(message);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+This file is part of mysql2cass.
+
+mysql2cass is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+mysql2cass is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with mysql2cass.  If not, see <http://www.gnu.org/licenses/>.
+
+Author: Luis Martin Gil
+        www.luismartingil.com
+
+Contact:
+        martingil.luis@gmail.com
+        luis.martin.gil@indigital.net
+
+First version: lmartin, July 2012.
+*/
+
+
+package net.indigital.mysql2cass.sstables;
+
+import net.indigital.mysql2cass.ColumnType;
+import net.indigital.mysql2cass.Mapping;
+import net.indigital.mysql2cass.RowBatch;
+import net.indigital.mysql2cass.cass.RowEncoder;
+import net.indigital.mysql2cass.mysql.MySqlConnectionPool;
+import net.indigital.mysql2cass.mysql.MySqlReader;
+import org.apache.cassandra.db.marshal.UTF8Type;
+import org.apache.cassandra.io.sstable.SSTableSimpleUnsortedWriter;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/*
+ * Copy of a whole table to SSTables, instead of to Cassandra.
+ * The table is read in pages of elementsAtOnce rows, as the ReaderStage does, and every row is written
+ * with the same key, column names and values a WriterSession would write (see RowEncoder) to
+ * <directory>/<keyspace>/<columnFamily>-*.db, ready for sstableloader.
+ * The writer keeps up to bufferSize MB of rows in memory, then sorts them and writes another SSTable.
+ *
+ * Rows that can't be read go to the dead letters of the mapping. Once everything is written, the last key
+ * is saved as the checkpoint of the mapping, if it has one, so mysql2cass can resume after it.
+ */
+public class TableExport {
+
+    private static Logger Log = Logger.getLogger(TableExport.class);
+
+    /* Rows kept in memory before they are written as an SSTable [MB]. */
+    public static final int DEFAULT_BUFFER_SIZE = 64;
+
+    private Mapping mapping;
+    private File directory;
+    private int bufferSize;
+
+    public long rows = 0;
+    public long firstKey = -1;
+    public long lastKey = -1;
+
+    public TableExport(Mapping mapping, File directory, int bufferSize) {
+        this.mapping = mapping;
+        this.directory = directory;
+        this.bufferSize = bufferSize;
+    }
+
+    public void run() throws Exception {
+        String keyspace = this.mapping.db;
+        String columnFamily = this.mapping.table;
+        File keyspaceDir = new File(this.directory, keyspace);
+        keyspaceDir.mkdirs();
+
+        /* Reading starts after the last key in Cassandra, -1 unless resuming from a checkpoint. */
+        if (this.mapping.resume) {
+            this.mapping.loadCheckpoint();
+        }
+        MySqlConnectionPool pool = MySqlConnectionPool.get(this.mapping.mysqlHost, this.mapping.mysqlPort,
+                this.mapping.db, this.mapping.user, this.mapping.pass, Boolean.FALSE, this.mapping.poolSize,
+                this.mapping.validationQuery, this.mapping.poolIdleTimeout);
+        MySqlReader mreader = new MySqlReader(pool);
+        mreader.setDeadLetters(this.mapping, this.mapping.getID());
+        mreader.setDateTimeConverter(this.mapping.dates);
+        mreader.lastNumericKey = this.mapping.committedNumericKey;
+
+        RowEncoder encoder = new RowEncoder(this.mapping.keysType, this.mapping.schema);
+        ColumnType[] types = this.mapping.schema.types;
+        RowBatch batch = new RowBatch(this.mapping.schema, this.mapping.elementsAtOnce);
+        /* Every row gets its own timestamp, like the WriterSession does. Later writes to Cassandra win. */
+        long clock = System.currentTimeMillis() * 1000;
+        int ttl = this.mapping.ttl;
+
+        Log.info("Exporting table:" + this.mapping.table + " after key:" + mreader.lastNumericKey +
+                " to " + keyspaceDir + ", columnFamily:" + columnFamily);
+        long startTime = System.nanoTime();
+        SSTableSimpleUnsortedWriter writer = new SSTableSimpleUnsortedWriter(keyspaceDir, keyspace, columnFamily,
+                UTF8Type.instance, null, this.bufferSize);
+        try {
+            int read;
+            do {
+                read = readPage(mreader, batch);
+                for (int i = 0; i < batch.size(); i++) {
+                    long key = batch.getKey(i);
+                    writer.newRow(encoder.encodeKey(key));
+                    for (int c = 0; c < encoder.size(); c++) {
+                        if (batch.isNull(i, c)) {
+                            continue;
+                        }
+                        ByteBuffer value = encoder.encodeValue(batch, i, c);
+                        /* Strings point into the batch, which is read again. */
+                        if (types[c] == ColumnType.STRING) {
+                            value = ByteBufferUtil.clone(value);
+                        }
+                        if (ttl > 0) {
+                            writer.addExpiringColumn(encoder.getColumnName(c), value, clock, ttl,
+                                    System.currentTimeMillis() + ttl * 1000L);
+                        } else {
+                            writer.addColumn(encoder.getColumnName(c), value, clock);
+                        }
+                    }
+                    clock++;
+                    if (this.firstKey < 0) {
+                        this.firstKey = key;
+                    }
+                    this.lastKey = key;
+                    this.rows++;
+                }
+                if (batch.size() > 0) {
+                    Log.info("Exported " + this.rows + " rows of table:" + this.mapping.table +
+                            ", lastNumericKey:" + mreader.lastNumericKey);
+                }
+            } while (read > 0);
+        } finally {
+            writer.close();
+        }
+        long diff = (System.nanoTime() - startTime) / 1000000;
+        Log.info("Exported " + this.rows + " rows of table:" + this.mapping.table + " in time:" + diff + "ms." +
+                " keys:" + this.firstKey + ".." + this.lastKey);
+
+        if ((this.mapping.checkpoints != null) && (mreader.lastNumericKey >= 0)) {
+            this.mapping.checkpoints.save(this.mapping.getCheckpointId(), String.valueOf(mreader.lastNumericKey));
+            Log.info("Saved checkpoint:" + mreader.lastNumericKey + " of mapping:" + this.mapping.getID());
+        }
+    }
+
+    /*
+     * Reads the next page after lastNumericKey, retrying until MySQL answers.
+     * Returns the number of rows read, including the ones left out.
+     */
+    private int readPage(MySqlReader mreader, RowBatch batch) throws Exception {
+        while (true) {
+            try {
+                batch.reset();
+                mreader.connect();
+                int read = mreader.readDataBase(this.mapping.table, this.mapping.numericKeyStr,
+                        this.mapping.elementsAtOnce, batch);
+                mreader.close();
+                return read;
+            } catch (Exception e) {
+                Log.error(e.getMessage(),e);
+                Log.warn("Error while trying to connect/read to/from mysql host:" + this.mapping.mysqlHost +
+                        ", port:" + this.mapping.mysqlPort + ", table:" + this.mapping.table);
+                Log.warn("Not a problem! Retrying the connection within " +
+                        this.mapping.pauseMySQLReconnections + " ms...");
+                Thread.sleep(this.mapping.pauseMySQLReconnections);
+            }
+        }
+    }
+}